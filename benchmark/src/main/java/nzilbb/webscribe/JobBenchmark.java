@@ -0,0 +1,153 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import nzilbb.ag.Graph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks job bookkeeping: looking up jobs with {@link Job#FindJob(long)}, as status
+ * polling does, and tagging finished transcripts with
+ * {@link Job#StampAnnotator(Graph,String)}, as {@link Job#run()} does.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JobBenchmark {
+  
+  /** Jobs in the registry, for the lookup benchmarks. */
+  @State(Scope.Benchmark)
+  public static class LiveJobs {
+    
+    /** Number of jobs that haven't been forgotten. */
+    @Param({"100", "10000", "100000"})
+    public int liveJobs;
+
+    /** Jobs created by {@link #setup()}. */
+    Job[] jobs;
+
+    /** The lowest job ID. */
+    long firstId;
+
+    /**
+     * Registers the jobs.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+      Job.Registry().setStore(null); // don't touch the disk
+      jobs = new Job[liveJobs];
+      for (int j = 0; j < liveJobs; j++) {
+        jobs[j] = new Job(); // registers itself
+      }
+      firstId = jobs[0].getId();
+    } // end of setup()
+
+    /**
+     * Forgets the jobs.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      for (Job job : jobs) Job.Registry().remove(job);
+    } // end of tearDown()
+    
+    /**
+     * Picks a random job ID.
+     * @return The ID of one of the live jobs.
+     */
+    long randomId() {
+      return firstId + ThreadLocalRandom.current().nextInt(liveJobs);
+    } // end of randomId()
+  } // end of class LiveJobs
+  
+  /** A transcript for the stamping benchmark. */
+  @State(Scope.Thread)
+  public static class FinishedTranscript {
+    
+    /** Duration of the transcribed recording, in minutes. */
+    @Param({"1", "10", "60", "180"})
+    public int minutes;
+
+    /** The transcript to stamp. */
+    Graph transcript;
+
+    /**
+     * Generates the transcript.
+     */
+    @Setup(Level.Trial)
+    public void setup() {
+      transcript = SyntheticTranscript.Generate("benchmark.wav", minutes * 60.0, minutes);
+    } // end of setup()
+  } // end of class FinishedTranscript
+
+  /**
+   * Looks up a job on a single thread.
+   * @param state
+   * @return The job.
+   */
+  @Benchmark
+  public Job findJob(LiveJobs state) {
+    return Job.FindJob(state.randomId());
+  } // end of findJob()
+  
+  /**
+   * Looks up jobs from several threads at once, as when many clients are polling
+   * <tt>jobstatus</tt>.
+   * @param state
+   * @return The job.
+   */
+  @Benchmark
+  @Threads(8)
+  public Job findJobContended(LiveJobs state) {
+    return Job.FindJob(state.randomId());
+  } // end of findJobContended()
+  
+  /**
+   * Tags every annotation in a transcript with the transcriber that produced it.
+   * @param state
+   * @return The transcript.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Graph stampAnnotator(FinishedTranscript state) {
+    Job.StampAnnotator(state.transcript, "benchmark v0");
+    return state.transcript;
+  } // end of stampAnnotator()
+  
+} // end of class JobBenchmark
@@ -0,0 +1,152 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import nzilbb.ag.Graph;
+import nzilbb.ag.serialize.util.NamedStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks {@link SerializeService#serialize(Graph,String)} and writing the result,
+ * for transcripts of various lengths.
+ * <p> The native JSON format is always available. Other formats are loaded from the
+ * formatter jars in the directory given by the <tt>webscribe.formatterDir</tt> system
+ * property, and selected with JMH's <tt>-p mimeType=...</tt> option, e.g.
+ * <pre>java -Dwebscribe.formatterDir=/var/lib/tomcat9/webapps/webscribe/formatter \
+ *   -jar benchmarks.jar SerializeBenchmark -p mimeType=text/praat-textgrid</pre>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializeBenchmark {
+  
+  /** Duration of the transcribed recording, in minutes. */
+  @Param({"1", "10", "60", "180"})
+  public int minutes;
+  
+  /** Format to serialize to. */
+  @Param({SerializerRegistry.NATIVE_MIME_TYPE})
+  public String mimeType;
+
+  /** Number of files in the multi-file output, for {@link #zip(Blackhole)}. */
+  @Param({"4"})
+  public int files;
+
+  /** The transcript to serialize. */
+  Graph transcript;
+
+  /** The service under test. */
+  SerializeService service;
+
+  /** A serialized transcript, for benchmarking ZIP output without the serializer. */
+  byte[] serialized;
+  
+  /**
+   * Generates the transcript and loads the formatters.
+   * @throws Exception
+   */
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    transcript = SyntheticTranscript.Generate("benchmark.wav", minutes * 60.0, minutes);
+    File formatterDir = new File(System.getProperty("webscribe.formatterDir", "formatter"));
+    SerializerRegistry registry = new SerializerRegistry(formatterDir, message -> {});
+    if (!registry.hasFormat(mimeType)) {
+      throw new IllegalArgumentException(
+        "No formatter for " + mimeType + " in " + formatterDir.getAbsolutePath());
+    }
+    service = new SerializeService(registry, message -> {});
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    service.serialize(transcript, mimeType).writeTo(buffer);
+    serialized = buffer.toByteArray();
+  } // end of setup()
+
+  /**
+   * Serializes the transcript, and writes the result, as the <tt>transcript</tt>
+   * endpoint does.
+   * @param blackhole
+   * @return The number of bytes written.
+   * @throws Exception
+   */
+  @Benchmark
+  public long serialize(Blackhole blackhole) throws Exception {
+    CountingOutputStream out = new CountingOutputStream(blackhole);
+    service.serialize(transcript, mimeType).writeTo(out);
+    return out.count;
+  } // end of serialize()
+  
+  /**
+   * Writes several serialized files as a single ZIP file, as happens for formats that
+   * generate more than one file.
+   * @param blackhole
+   * @return The number of bytes written.
+   * @throws Exception
+   */
+  @Benchmark
+  public long zip(Blackhole blackhole) throws Exception {
+    Vector<NamedStream> streams = new Vector<NamedStream>();
+    for (int f = 0; f < files; f++) {
+      streams.add(new NamedStream(new ByteArrayInputStream(serialized), "benchmark-" + f));
+    }
+    CountingOutputStream out = new CountingOutputStream(blackhole);
+    new SerializeService.Serialization(streams, "benchmark.zip", mimeType, message -> {})
+      .writeTo(out);
+    return out.count;
+  } // end of zip()
+
+  /** Discards output, counting the bytes. */
+  static class CountingOutputStream extends OutputStream {
+    final Blackhole blackhole;
+    long count = 0;
+    CountingOutputStream(Blackhole blackhole) { this.blackhole = blackhole; }
+    @Override public void write(int b) {
+      blackhole.consume(b);
+      count++;
+    }
+    @Override public void write(byte[] b, int off, int len) {
+      blackhole.consume(b);
+      count += len;
+    }
+  } // end of class CountingOutputStream
+  
+} // end of class SerializeBenchmark
@@ -0,0 +1,112 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.util.Random;
+import nzilbb.ag.Anchor;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.Constants;
+import nzilbb.ag.Graph;
+
+/**
+ * Generates transcripts like those produced by a transcriber, for benchmarking.
+ * <p> Transcripts use the schema from {@link TranscriberPool#CreateSchema()}, with two
+ * participants taking turns, utterances of a few seconds, and words at a typical speech
+ * rate, so that a transcript of an hour-long recording has tens of thousands of
+ * annotations.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class SyntheticTranscript {
+  
+  /** Average speech rate in words per second. */
+  public static final double WORDS_PER_SECOND = 2.5;
+  
+  /** Average utterance length in seconds. */
+  public static final double UTTERANCE_SECONDS = 5.0;
+  
+  /** Average number of utterances per speaker turn. */
+  public static final int UTTERANCES_PER_TURN = 4;
+
+  /** Words to draw labels from. */
+  static final String[] vocabulary = {
+    "the", "and", "I", "you", "it", "that", "was", "so", "like", "we", "just", "yeah",
+    "know", "they", "but", "of", "to", "a", "in", "um", "think", "really", "went",
+    "there", "because", "Christchurch", "university", "remember", "actually", "quite"
+  };
+  
+  /**
+   * Generates a transcript of the given duration.
+   * <p> The same duration and seed always generate the same transcript.
+   * @param id The transcript ID, e.g. the name of the recording.
+   * @param seconds The duration of the recording.
+   * @param seed Seed for generating labels and timings.
+   * @return A new transcript.
+   */
+  public static Graph Generate(String id, double seconds, long seed) {
+    Random random = new Random(seed);
+    Graph transcript = new Graph();
+    transcript.setId(id);
+    transcript.setSchema(TranscriberPool.CreateSchema());
+    transcript.createTag(transcript, "scribe", "benchmark v0")
+      .setConfidence(Constants.CONFIDENCE_AUTOMATIC);
+    transcript.createTag(transcript, "date", "2023-01-01T00:00Z")
+      .setConfidence(Constants.CONFIDENCE_AUTOMATIC);
+    Annotation[] participants = {
+      transcript.createTag(transcript, "who", "A"),
+      transcript.createTag(transcript, "who", "B") };
+
+    double t = 0.0;
+    int p = 0;
+    while (t < seconds) {
+      Annotation who = participants[p];
+      Anchor turnStart = transcript.getOrCreateAnchorAt(t, Constants.CONFIDENCE_AUTOMATIC);
+      Annotation turn = transcript.createAnnotation(
+        turnStart, turnStart, "turn", who.getLabel(), who);
+      int utteranceCount = 1 + random.nextInt(UTTERANCES_PER_TURN * 2);
+      for (int u = 0; u < utteranceCount && t < seconds; u++) {
+        double utteranceEnd = Math.min(
+          seconds, t + UTTERANCE_SECONDS * (0.5 + random.nextDouble()));
+        Anchor utteranceStart = transcript.getOrCreateAnchorAt(
+          t, Constants.CONFIDENCE_AUTOMATIC);
+        // words are evenly spaced through the utterance
+        int wordCount = Math.max(1, (int)Math.round((utteranceEnd - t) * WORDS_PER_SECOND));
+        double wordSeconds = (utteranceEnd - t) / wordCount;
+        Anchor wordStart = utteranceStart;
+        for (int w = 1; w <= wordCount; w++) {
+          Anchor wordEnd = transcript.getOrCreateAnchorAt(
+            t + w * wordSeconds, Constants.CONFIDENCE_AUTOMATIC);
+          transcript.createAnnotation(
+            wordStart, wordEnd, "word", vocabulary[random.nextInt(vocabulary.length)], turn)
+            .setConfidence(Constants.CONFIDENCE_AUTOMATIC);
+          wordStart = wordEnd;
+        } // next word
+        transcript.createAnnotation(utteranceStart, wordStart, "utterance", who.getLabel(), turn)
+          .setConfidence(Constants.CONFIDENCE_AUTOMATIC);
+        turn.setEnd(wordStart);
+        t = utteranceEnd;
+      } // next utterance
+      p = (p + 1) % participants.length;
+    } // next turn
+    return transcript;
+  } // end of Generate()
+  
+} // end of class SyntheticTranscript
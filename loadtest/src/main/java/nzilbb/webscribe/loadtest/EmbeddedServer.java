@@ -0,0 +1,235 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.descriptor.web.ApplicationParameter;
+
+/**
+ * Runs webscribe in an embedded Tomcat container, with a given transcriber.
+ * <p> The web application is copied to a temporary directory first, so that the
+ * transcriber, data directory, and configuration don't affect the original.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class EmbeddedServer {
+  
+  /**
+   * The exploded web application directory, e.g. <tt>target/webscribe</tt> in the webscribe
+   * project.
+   * @see #getWebappDir()
+   * @see #setWebappDir(File)
+   */
+  protected File webappDir;
+  /**
+   * Getter for {@link #webappDir}: The exploded web application directory.
+   * @return The exploded web application directory.
+   */
+  public File getWebappDir() { return webappDir; }
+  /**
+   * Setter for {@link #webappDir}: The exploded web application directory.
+   * @param newWebappDir The exploded web application directory.
+   */
+  public EmbeddedServer setWebappDir(File newWebappDir) { webappDir = newWebappDir; return this; }
+  
+  /**
+   * The transcriber jar file to install.
+   * @see #getTranscriberJar()
+   * @see #setTranscriberJar(File)
+   */
+  protected File transcriberJar;
+  /**
+   * Getter for {@link #transcriberJar}: The transcriber jar file to install.
+   * @return The transcriber jar file to install.
+   */
+  public File getTranscriberJar() { return transcriberJar; }
+  /**
+   * Setter for {@link #transcriberJar}: The transcriber jar file to install.
+   * @param newTranscriberJar The transcriber jar file to install.
+   */
+  public EmbeddedServer setTranscriberJar(File newTranscriberJar) { transcriberJar = newTranscriberJar; return this; }
+  
+  /**
+   * The port to listen on, or 0 for any free port.
+   * @see #getPort()
+   * @see #setPort(int)
+   */
+  protected int port = 0;
+  /**
+   * Getter for {@link #port}: The port to listen on.
+   * @return The port to listen on, or 0 for any free port.
+   */
+  public int getPort() { return port; }
+  /**
+   * Setter for {@link #port}: The port to listen on.
+   * @param newPort The port to listen on, or 0 for any free port.
+   */
+  public EmbeddedServer setPort(int newPort) { port = newPort; return this; }
+
+  /**
+   * Context parameters that override those in <tt>web.xml</tt>.
+   * @see #getParameters()
+   */
+  protected Map<String,String> parameters = new LinkedHashMap<String,String>();
+  /**
+   * Getter for {@link #parameters}: Context parameters that override those in
+   * <tt>web.xml</tt>.
+   * @return Context parameters that override those in <tt>web.xml</tt>.
+   */
+  public Map<String,String> getParameters() { return parameters; }
+
+  /** The container. */
+  protected Tomcat tomcat;
+
+  /** Where the container and web application are installed. */
+  protected File baseDir;
+  
+  /**
+   * Default constructor.
+   */
+  public EmbeddedServer() {
+  } // end of constructor
+
+  /**
+   * Installs and starts the web application.
+   * @return The URL of the web application.
+   * @throws Exception
+   */
+  public String start() throws Exception {
+    if (webappDir == null || !new File(webappDir, "WEB-INF").isDirectory()) {
+      throw new IOException("Not an exploded web application: " + webappDir);
+    }
+    baseDir = Files.createTempDirectory("webscribe-loadtest").toFile();
+    File installedWebapp = new File(baseDir, "webscribe");
+    Copy(webappDir.toPath(), installedWebapp.toPath());
+    
+    // replace any transcribers with the given one
+    File transcriberDir = new File(installedWebapp, "transcriber");
+    Delete(transcriberDir.toPath());
+    transcriberDir.mkdir();
+    if (transcriberJar != null) {
+      Files.copy(transcriberJar.toPath(), new File(transcriberDir, transcriberJar.getName()).toPath());
+    }
+    if (!parameters.containsKey("DataDirectory")) {
+      parameters.put("DataDirectory", new File(baseDir, "data").getPath());
+    }
+    
+    tomcat = new Tomcat();
+    tomcat.setBaseDir(baseDir.getPath());
+    tomcat.setPort(port);
+    tomcat.getConnector(); // create the default connector
+    // webscribe has no JSPs, so only the default servlet is added for static files
+    tomcat.setAddDefaultWebXmlToWebapp(false);
+    Context context = tomcat.addWebapp("/webscribe", installedWebapp.getAbsolutePath());
+    Wrapper defaultServlet = context.createWrapper();
+    defaultServlet.setName("default");
+    defaultServlet.setServletClass("org.apache.catalina.servlets.DefaultServlet");
+    defaultServlet.setLoadOnStartup(1);
+    context.addChild(defaultServlet);
+    context.addServletMappingDecoded("/", "default");
+    context.addWelcomeFile("index.html");
+    Tomcat.addDefaultMimeTypeMappings(context);
+    for (Map.Entry<String,String> parameter : parameters.entrySet()) {
+      ApplicationParameter override = new ApplicationParameter();
+      override.setName(parameter.getKey());
+      override.setValue(parameter.getValue());
+      override.setOverride(false); // i.e. web.xml can't override this value
+      context.addApplicationParameter(override);
+    } // next parameter
+    tomcat.start();
+    return "http://localhost:" + tomcat.getConnector().getLocalPort() + "/webscribe";
+  } // end of start()
+
+  /**
+   * Stops the container and deletes the installed web application.
+   */
+  public void stop() {
+    try {
+      if (tomcat != null) {
+        tomcat.stop();
+        tomcat.destroy();
+      }
+    } catch (Exception x) {
+      System.err.println("Could not stop container: " + x);
+    }
+    try {
+      if (baseDir != null) Delete(baseDir.toPath());
+    } catch (IOException x) {
+      System.err.println("Could not delete " + baseDir + ": " + x);
+    }
+  } // end of stop()
+
+  /**
+   * Copies a directory tree.
+   * @param from
+   * @param to
+   * @throws IOException
+   */
+  static void Copy(final Path from, final Path to) throws IOException {
+    Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+        @Override public FileVisitResult preVisitDirectory(
+          Path dir, BasicFileAttributes attributes) throws IOException {
+          Files.createDirectories(to.resolve(from.relativize(dir)));
+          return FileVisitResult.CONTINUE;
+        }
+        @Override public FileVisitResult visitFile(
+          Path file, BasicFileAttributes attributes) throws IOException {
+          Files.copy(file, to.resolve(from.relativize(file)),
+                     StandardCopyOption.REPLACE_EXISTING);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+  } // end of Copy()
+
+  /**
+   * Deletes a directory tree, if it exists.
+   * @param root
+   * @throws IOException
+   */
+  static void Delete(Path root) throws IOException {
+    if (!Files.exists(root)) return;
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override public FileVisitResult visitFile(
+          Path file, BasicFileAttributes attributes) throws IOException {
+          Files.delete(file);
+          return FileVisitResult.CONTINUE;
+        }
+        @Override public FileVisitResult postVisitDirectory(Path dir, IOException x)
+          throws IOException {
+          Files.delete(dir);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+  } // end of Delete()
+  
+} // end of class EmbeddedServer
@@ -0,0 +1,264 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe.loadtest;
+
+import java.io.File;
+import java.util.Random;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import nzilbb.ag.Anchor;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.Constants;
+import nzilbb.ag.Graph;
+import nzilbb.ag.Schema;
+import nzilbb.ag.automation.Transcriber;
+
+/**
+ * Stand-in transcriber for load testing, which takes a configurable time to "transcribe"
+ * a recording, and produces a transcript of nonsense words.
+ * <p> It is configured by system properties, so that it can be set up by
+ * {@link LoadTest} or by the <tt>JAVA_OPTS</tt> of the server:
+ * <dl>
+ *  <dt>fakeTranscriber.realTimeFactor</dt>
+ *   <dd>Processing time as a proportion of the recording's duration (default 0.1).</dd>
+ *  <dt>fakeTranscriber.wordsPerSecond</dt>
+ *   <dd>The number of words per second of recording in the transcript (default 2.5).</dd>
+ *  <dt>fakeTranscriber.failureRate</dt>
+ *   <dd>The proportion of recordings that fail to transcribe (default 0).</dd>
+ *  <dt>fakeTranscriber.memoryMB</dt>
+ *   <dd>Memory to hold while transcribing, in megabytes (default 0).</dd>
+ * </dl>
+ * <p> The <tt>loadtest-transcriber.jar</tt> built by this module contains only this
+ * class, so that it can be put in webscribe's <tt>transcriber</tt> directory.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class FakeTranscriber extends Transcriber {
+
+  /** Words to draw labels from. */
+  static final String[] vocabulary = {
+    "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed",
+    "do", "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna" };
+  
+  /** Source of failures and labels. */
+  final Random random = new Random();
+
+  /** Whether {@link #cancel()} has been called. */
+  volatile boolean cancelled = false;
+
+  /**
+   * Processing time as a proportion of the recording's duration.
+   * @see #getRealTimeFactor()
+   * @see #setRealTimeFactor(double)
+   */
+  protected double realTimeFactor = Double.parseDouble(
+    System.getProperty("fakeTranscriber.realTimeFactor", "0.1"));
+  /**
+   * Getter for {@link #realTimeFactor}: Processing time as a proportion of the
+   * recording's duration.
+   * @return Processing time as a proportion of the recording's duration.
+   */
+  public double getRealTimeFactor() { return realTimeFactor; }
+  /**
+   * Setter for {@link #realTimeFactor}: Processing time as a proportion of the
+   * recording's duration.
+   * @param newRealTimeFactor Processing time as a proportion of the recording's duration.
+   */
+  public FakeTranscriber setRealTimeFactor(double newRealTimeFactor) { realTimeFactor = newRealTimeFactor; return this; }
+
+  /**
+   * The number of words per second of recording in the transcript.
+   * @see #getWordsPerSecond()
+   * @see #setWordsPerSecond(double)
+   */
+  protected double wordsPerSecond = Double.parseDouble(
+    System.getProperty("fakeTranscriber.wordsPerSecond", "2.5"));
+  /**
+   * Getter for {@link #wordsPerSecond}: The number of words per second of recording in
+   * the transcript.
+   * @return The number of words per second of recording in the transcript.
+   */
+  public double getWordsPerSecond() { return wordsPerSecond; }
+  /**
+   * Setter for {@link #wordsPerSecond}: The number of words per second of recording in
+   * the transcript.
+   * @param newWordsPerSecond The number of words per second of recording in the transcript.
+   */
+  public FakeTranscriber setWordsPerSecond(double newWordsPerSecond) { wordsPerSecond = newWordsPerSecond; return this; }
+
+  /**
+   * The proportion of recordings that fail to transcribe.
+   * @see #getFailureRate()
+   * @see #setFailureRate(double)
+   */
+  protected double failureRate = Double.parseDouble(
+    System.getProperty("fakeTranscriber.failureRate", "0"));
+  /**
+   * Getter for {@link #failureRate}: The proportion of recordings that fail to transcribe.
+   * @return The proportion of recordings that fail to transcribe.
+   */
+  public double getFailureRate() { return failureRate; }
+  /**
+   * Setter for {@link #failureRate}: The proportion of recordings that fail to transcribe.
+   * @param newFailureRate The proportion of recordings that fail to transcribe.
+   */
+  public FakeTranscriber setFailureRate(double newFailureRate) { failureRate = newFailureRate; return this; }
+
+  /**
+   * Memory to hold while transcribing, in megabytes.
+   * @see #getMemoryMB()
+   * @see #setMemoryMB(int)
+   */
+  protected int memoryMB = Integer.parseInt(
+    System.getProperty("fakeTranscriber.memoryMB", "0"));
+  /**
+   * Getter for {@link #memoryMB}: Memory to hold while transcribing, in megabytes.
+   * @return Memory to hold while transcribing, in megabytes.
+   */
+  public int getMemoryMB() { return memoryMB; }
+  /**
+   * Setter for {@link #memoryMB}: Memory to hold while transcribing, in megabytes.
+   * @param newMemoryMB Memory to hold while transcribing, in megabytes.
+   */
+  public FakeTranscriber setMemoryMB(int newMemoryMB) { memoryMB = newMemoryMB; return this; }
+  
+  /**
+   * Default constructor.
+   */
+  public FakeTranscriber() {
+  } // end of constructor
+
+  /**
+   * The minimum version of the nzilbb.ag API supported.
+   * @return "1.0.0".
+   */
+  public String getMinimumApiVersion() { return "1.0.0"; }
+
+  /**
+   * The version of this transcriber.
+   * @return The version of this transcriber.
+   */
+  public String getVersion() { return "0.1.0"; }
+
+  /**
+   * Cancels transcription.
+   */
+  public void cancel() {
+    cancelled = true;
+  } // end of cancel()
+
+  /**
+   * "Transcribes" the recording, by waiting for {@link #realTimeFactor} times its
+   * duration, and then filling the transcript with nonsense words.
+   * @param speech The recording.
+   * @param transcript The transcript to fill.
+   * @throws IllegalStateException If the recording randomly fails, or is cancelled.
+   */
+  public void transcribe(File speech, Graph transcript) {
+    cancelled = false;
+    setPercentComplete(0);
+    setStatus("Transcribing " + speech.getName());
+    double seconds = duration(speech);
+
+    // take up memory, as a real speech recognizer would
+    byte[][] memory = new byte[memoryMB][];
+    for (int m = 0; m < memoryMB; m++) {
+      memory[m] = new byte[1024 * 1024];
+      for (int b = 0; b < memory[m].length; b += 4096) memory[m][b] = 1; // touch each page
+    }
+    
+    // take up time
+    long processingMillis = (long)(seconds * realTimeFactor * 1000);
+    long start = System.currentTimeMillis();
+    long elapsed = 0;
+    while (elapsed < processingMillis) {
+      if (cancelled) throw new IllegalStateException("Cancelled");
+      try {
+        Thread.sleep(Math.min(100, processingMillis - elapsed));
+      } catch (InterruptedException x) {
+        throw new IllegalStateException("Interrupted");
+      }
+      elapsed = System.currentTimeMillis() - start;
+      setPercentComplete((int)Math.min(99, elapsed * 100 / Math.max(1, processingMillis)));
+    } // next tick
+    if (random.nextDouble() < failureRate) {
+      setStatus("Simulated failure: " + speech.getName());
+      throw new IllegalStateException("Simulated failure");
+    }
+
+    fillTranscript(transcript, seconds);
+    memory = null;
+    setPercentComplete(100);
+    setStatus("Finished " + speech.getName());
+  } // end of transcribe()
+
+  /**
+   * Adds a participant, and turns, utterances and words at {@link #wordsPerSecond}, to
+   * the transcript.
+   * @param transcript
+   * @param seconds The duration of the recording.
+   */
+  protected void fillTranscript(Graph transcript, double seconds) {
+    Schema schema = transcript.getSchema();
+    Annotation who = transcript.createTag(
+      transcript, schema.getParticipantLayerId(), "speaker");
+    Anchor start = transcript.getOrCreateAnchorAt(0.0, Constants.CONFIDENCE_AUTOMATIC);
+    Anchor end = transcript.getOrCreateAnchorAt(seconds, Constants.CONFIDENCE_AUTOMATIC);
+    Annotation turn = transcript.createAnnotation(
+      start, end, schema.getTurnLayerId(), who.getLabel(), who);
+    int wordCount = (int)(seconds * wordsPerSecond);
+    double wordSeconds = seconds / Math.max(1, wordCount);
+    Anchor utteranceStart = start;
+    Anchor wordStart = start;
+    for (int w = 1; w <= wordCount; w++) {
+      Anchor wordEnd = w == wordCount? end
+        : transcript.getOrCreateAnchorAt(w * wordSeconds, Constants.CONFIDENCE_AUTOMATIC);
+      transcript.createAnnotation(
+        wordStart, wordEnd, schema.getWordLayerId(),
+        vocabulary[random.nextInt(vocabulary.length)], turn);
+      if (w % 12 == 0 || w == wordCount) { // utterances of a dozen words
+        transcript.createAnnotation(
+          utteranceStart, wordEnd, schema.getUtteranceLayerId(), who.getLabel(), turn);
+        utteranceStart = wordEnd;
+      }
+      wordStart = wordEnd;
+    } // next word
+    if (wordCount == 0) {
+      transcript.createAnnotation(
+        start, end, schema.getUtteranceLayerId(), who.getLabel(), turn);
+    }
+  } // end of fillTranscript()
+
+  /**
+   * Determines the duration of a recording.
+   * @param speech
+   * @return The duration in seconds, or 0 if it can't be determined.
+   */
+  protected double duration(File speech) {
+    try {
+      AudioFileFormat format = AudioSystem.getAudioFileFormat(speech);
+      return format.getFrameLength() / format.getFormat().getFrameRate();
+    } catch (Exception x) {
+      return 0.0;
+    }
+  } // end of duration()
+  
+} // end of class FakeTranscriber
@@ -0,0 +1,629 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe.loadtest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Load test driver, which uploads recordings from many concurrent clients, polls their
+ * status until they're finished, and downloads their transcripts, and then reports
+ * throughput, latency percentiles, and peak heap usage.
+ * <p> Unless a <tt>--url</tt> is given, webscribe is started in an embedded container
+ * (see {@link EmbeddedServer}) with the {@link FakeTranscriber}, so no speech recognition
+ * model is required. e.g.
+ * <pre>java -jar target/loadtest.jar --webapp=../target/webscribe --clients=16 --jobs=200 \
+ *   --seconds=300 --workers=4 --realTimeFactor=0.05</pre>
+ * <p> Options are:
+ * <dl>
+ *  <dt>--url=...</dt> <dd>URL of a running webscribe instance to test.</dd>
+ *  <dt>--webapp=...</dt> <dd>Exploded webscribe war to run (default ../target/webscribe).</dd>
+ *  <dt>--transcriber=...</dt> <dd>Transcriber jar to install
+ *   (default target/loadtest-transcriber.jar).</dd>
+ *  <dt>--port=...</dt> <dd>Port for the embedded container (default any free port).</dd>
+ *  <dt>--workers=...</dt> <dd>Server's TranscriptionWorkers setting (default 2).</dd>
+ *  <dt>--queue=...</dt> <dd>Server's TranscriptionQueueSize setting (default 1000).</dd>
+ *  <dt>--clients=...</dt> <dd>Number of concurrent clients (default 8).</dd>
+ *  <dt>--jobs=...</dt> <dd>Total number of recordings to upload (default 100).</dd>
+ *  <dt>--wav=...</dt> <dd>Recording to upload (default a generated recording).</dd>
+ *  <dt>--seconds=...</dt> <dd>Duration of the generated recording (default 60).</dd>
+ *  <dt>--format=...</dt> <dd>Transcript format to download (default application/json).</dd>
+ *  <dt>--pollMillis=...</dt> <dd>Interval between status requests (default 500).</dd>
+ *  <dt>--json=...</dt> <dd>File to save results to, as JSON.</dd>
+ *  <dt>--realTimeFactor=..., --wordsPerSecond=..., --failureRate=..., --memoryMB=...</dt>
+ *   <dd>{@link FakeTranscriber} settings, for the embedded container.</dd>
+ * </dl>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class LoadTest {
+  
+  /**
+   * Command line entry point.
+   * @param argv Command line options - see {@link LoadTest}.
+   */
+  public static void main(String argv[]) {
+    Map<String,String> options = new HashMap<String,String>();
+    for (String arg : argv) {
+      if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+        System.err.println("Invalid option: " + arg + " - options are of the form --name=value");
+        System.exit(1);
+        return;
+      }
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    } // next argument
+    for (String setting : new String[] {
+        "realTimeFactor", "wordsPerSecond", "failureRate", "memoryMB" }) {
+      if (options.containsKey(setting)) {
+        System.setProperty("fakeTranscriber." + setting, options.remove(setting));
+      }
+    } // next transcriber setting
+    
+    LoadTest test = new LoadTest();
+    EmbeddedServer server = null;
+    try {
+      String url = options.remove("url");
+      if (url == null) {
+        server = new EmbeddedServer()
+          .setWebappDir(new File(Option(options, "webapp", "../target/webscribe")))
+          .setTranscriberJar(
+            new File(Option(options, "transcriber", "target/loadtest-transcriber.jar")))
+          .setPort(Integer.parseInt(Option(options, "port", "0")));
+        server.getParameters().put("TranscriptionWorkers", Option(options, "workers", "2"));
+        server.getParameters().put("TranscriptionQueueSize", Option(options, "queue", "1000"));
+        url = server.start();
+        test.setHeapIncludesServer(true);
+      }
+      test.setUrl(url)
+        .setClients(Integer.parseInt(Option(options, "clients", "8")))
+        .setJobs(Integer.parseInt(Option(options, "jobs", "100")))
+        .setFormat(Option(options, "format", "application/json"))
+        .setPollMillis(Long.parseLong(Option(options, "pollMillis", "500")));
+      String wav = options.remove("wav");
+      if (wav != null) {
+        test.setWav(new File(wav));
+      } else {
+        test.setWav(GenerateWav(Double.parseDouble(Option(options, "seconds", "60"))));
+        test.getWav().deleteOnExit();
+      }
+      String json = options.remove("json");
+      if (!options.isEmpty()) {
+        throw new IllegalArgumentException("Unknown options: " + options.keySet());
+      }
+      
+      test.run();
+      test.report(System.out);
+      if (json != null) {
+        Writer out = new FileWriter(json);
+        try {
+          test.report(out);
+        } finally {
+          out.close();
+        }
+      }
+    } catch (Exception x) {
+      System.err.println("Load test failed: " + x);
+      x.printStackTrace(System.err);
+      System.exit(2);
+    } finally {
+      if (server != null) server.stop();
+    }
+  } // end of main()
+
+  /**
+   * Gets and removes an option, so that unknown options can be detected.
+   * @param options
+   * @param name
+   * @param defaultValue
+   * @return The option value, or <var>defaultValue</var> if it wasn't specified.
+   */
+  static String Option(Map<String,String> options, String name, String defaultValue) {
+    String value = options.remove(name);
+    return value == null? defaultValue : value;
+  } // end of Option()
+
+  /**
+   * Generates a recording of noise, 16kHz mono 16-bit PCM, as typically uploaded.
+   * @param seconds The duration of the recording.
+   * @return The recording, in a temporary file.
+   * @throws IOException
+   */
+  public static File GenerateWav(double seconds) throws IOException {
+    AudioFormat format = new AudioFormat(16000f, 16, 1, true, false);
+    byte[] samples = new byte[(int)(seconds * format.getFrameRate()) * format.getFrameSize()];
+    new java.util.Random(seconds > 0? (long)seconds : 1).nextBytes(samples);
+    File wav = File.createTempFile("loadtest-", ".wav");
+    AudioSystem.write(
+      new AudioInputStream(new ByteArrayInputStream(samples), format,
+                           samples.length / format.getFrameSize()),
+      AudioFileFormat.Type.WAVE, wav);
+    return wav;
+  } // end of GenerateWav()
+
+  /** A set of request latencies. */
+  public static class Latencies {
+    
+    /** Latencies in nanoseconds. */
+    final List<Long> nanos = Collections.synchronizedList(new ArrayList<Long>());
+    
+    /**
+     * Records a latency.
+     * @param startNanos When the request started, according to {@link System#nanoTime()}.
+     */
+    public void record(long startNanos) {
+      nanos.add(System.nanoTime() - startNanos);
+    } // end of record()
+    
+    /**
+     * The number of latencies recorded.
+     * @return The number of latencies recorded.
+     */
+    public int count() {
+      return nanos.size();
+    } // end of count()
+
+    /**
+     * Gets a percentile of the latencies, using the nearest-rank method.
+     * @param percentile From 0 to 100.
+     * @return The latency in milliseconds, or 0 if there are none.
+     */
+    public double percentile(double percentile) {
+      List<Long> sorted = null;
+      synchronized (nanos) {
+        sorted = new ArrayList<Long>(nanos);
+      }
+      if (sorted.isEmpty()) return 0.0;
+      Collections.sort(sorted);
+      int rank = (int)Math.ceil(percentile / 100.0 * sorted.size());
+      return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank - 1))) / 1e6;
+    } // end of percentile()
+  } // end of class Latencies
+  
+  /**
+   * URL of the webscribe instance to test.
+   * @see #getUrl()
+   * @see #setUrl(String)
+   */
+  protected String url;
+  /**
+   * Getter for {@link #url}: URL of the webscribe instance to test.
+   * @return URL of the webscribe instance to test.
+   */
+  public String getUrl() { return url; }
+  /**
+   * Setter for {@link #url}: URL of the webscribe instance to test.
+   * @param newUrl URL of the webscribe instance to test.
+   */
+  public LoadTest setUrl(String newUrl) { url = newUrl; return this; }
+  
+  /**
+   * The number of concurrent clients.
+   * @see #getClients()
+   * @see #setClients(int)
+   */
+  protected int clients = 8;
+  /**
+   * Getter for {@link #clients}: The number of concurrent clients.
+   * @return The number of concurrent clients.
+   */
+  public int getClients() { return clients; }
+  /**
+   * Setter for {@link #clients}: The number of concurrent clients.
+   * @param newClients The number of concurrent clients.
+   */
+  public LoadTest setClients(int newClients) { clients = newClients; return this; }
+  
+  /**
+   * The total number of recordings to upload.
+   * @see #getJobs()
+   * @see #setJobs(int)
+   */
+  protected int jobs = 100;
+  /**
+   * Getter for {@link #jobs}: The total number of recordings to upload.
+   * @return The total number of recordings to upload.
+   */
+  public int getJobs() { return jobs; }
+  /**
+   * Setter for {@link #jobs}: The total number of recordings to upload.
+   * @param newJobs The total number of recordings to upload.
+   */
+  public LoadTest setJobs(int newJobs) { jobs = newJobs; return this; }
+  
+  /**
+   * The recording to upload.
+   * @see #getWav()
+   * @see #setWav(File)
+   */
+  protected File wav;
+  /**
+   * Getter for {@link #wav}: The recording to upload.
+   * @return The recording to upload.
+   */
+  public File getWav() { return wav; }
+  /**
+   * Setter for {@link #wav}: The recording to upload.
+   * @param newWav The recording to upload.
+   */
+  public LoadTest setWav(File newWav) { wav = newWav; return this; }
+  
+  /**
+   * The transcript format to download.
+   * @see #getFormat()
+   * @see #setFormat(String)
+   */
+  protected String format = "application/json";
+  /**
+   * Getter for {@link #format}: The transcript format to download.
+   * @return The MIME type of the transcript format to download.
+   */
+  public String getFormat() { return format; }
+  /**
+   * Setter for {@link #format}: The transcript format to download.
+   * @param newFormat The MIME type of the transcript format to download.
+   */
+  public LoadTest setFormat(String newFormat) { format = newFormat; return this; }
+  
+  /**
+   * Interval between status requests, in milliseconds.
+   * @see #getPollMillis()
+   * @see #setPollMillis(long)
+   */
+  protected long pollMillis = 500;
+  /**
+   * Getter for {@link #pollMillis}: Interval between status requests.
+   * @return Interval between status requests, in milliseconds.
+   */
+  public long getPollMillis() { return pollMillis; }
+  /**
+   * Setter for {@link #pollMillis}: Interval between status requests.
+   * @param newPollMillis Interval between status requests, in milliseconds.
+   */
+  public LoadTest setPollMillis(long newPollMillis) { pollMillis = newPollMillis; return this; }
+
+  /** Upload request latencies. */
+  protected final Latencies uploads = new Latencies();
+  
+  /** Status request latencies. */
+  protected final Latencies statuses = new Latencies();
+  
+  /** Transcript download latencies. */
+  protected final Latencies downloads = new Latencies();
+  
+  /** Time from starting the upload to finishing the download, for each job. */
+  protected final Latencies turnarounds = new Latencies();
+
+  /** The number of jobs whose transcripts were downloaded. */
+  protected final AtomicInteger succeeded = new AtomicInteger();
+  
+  /** The number of jobs that failed, e.g. because transcription failed. */
+  protected final AtomicInteger failed = new AtomicInteger();
+  
+  /** The number of uploads rejected because the server's queue was full. */
+  protected final AtomicInteger rejected = new AtomicInteger();
+
+  /** The highest heap usage seen, in bytes. */
+  protected final AtomicLong peakHeapBytes = new AtomicLong();
+
+  /**
+   * Whether the server is running in this JVM, so heap usage includes it.
+   * @see #getHeapIncludesServer()
+   * @see #setHeapIncludesServer(boolean)
+   */
+  protected boolean heapIncludesServer = false;
+  /**
+   * Getter for {@link #heapIncludesServer}: Whether the server is running in this JVM.
+   * @return Whether the server is running in this JVM, so heap usage includes it.
+   */
+  public boolean getHeapIncludesServer() { return heapIncludesServer; }
+  /**
+   * Setter for {@link #heapIncludesServer}: Whether the server is running in this JVM.
+   * @param newHeapIncludesServer Whether the server is running in this JVM, so heap usage
+   * includes it.
+   */
+  public LoadTest setHeapIncludesServer(boolean newHeapIncludesServer) { heapIncludesServer = newHeapIncludesServer; return this; }
+  
+  /** How long the test took, in milliseconds. */
+  protected long elapsedMillis;
+  
+  /**
+   * Default constructor.
+   */
+  public LoadTest() {
+  } // end of constructor
+  
+  /**
+   * Runs the test: each client uploads recordings, waits for them to be transcribed, and
+   * downloads the transcript, until {@link #jobs} have been processed.
+   * @throws Exception
+   */
+  public void run() throws Exception {
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    final AtomicInteger nextJob = new AtomicInteger(0);
+    Thread heapSampler = new Thread(() -> {
+        while (!Thread.currentThread().isInterrupted()) {
+          peakHeapBytes.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+          try { Thread.sleep(100); } catch (InterruptedException x) { return; }
+        }
+    }, "loadtest-heap");
+    heapSampler.setDaemon(true);
+    heapSampler.start();
+    
+    System.out.println("Load testing " + url + " with " + clients + " clients, "
+                       + jobs + " jobs of " + wav.getName());
+    long start = System.currentTimeMillis();
+    ExecutorService clientPool = Executors.newFixedThreadPool(clients);
+    for (int c = 0; c < clients; c++) {
+      clientPool.execute(() -> {
+          while (nextJob.getAndIncrement() < jobs) {
+            try {
+              processJob();
+            } catch (Exception x) {
+              failed.incrementAndGet();
+              System.err.println("Job failed: " + x);
+            }
+          } // next job
+        });
+    } // next client
+    clientPool.shutdown();
+    clientPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    elapsedMillis = System.currentTimeMillis() - start;
+    heapSampler.interrupt();
+  } // end of run()
+
+  /**
+   * Uploads the recording, polls its status until it's finished, and downloads its
+   * transcript.
+   * @throws Exception If the job fails.
+   */
+  protected void processJob() throws Exception {
+    long jobStart = System.nanoTime();
+    
+    // upload
+    String jobId = null;
+    while (jobId == null) {
+      long start = System.nanoTime();
+      HttpURLConnection connection = upload();
+      int status = connection.getResponseCode();
+      uploads.record(start);
+      if (status == HttpURLConnection.HTTP_UNAVAILABLE) { // queue is full
+        rejected.incrementAndGet();
+        connection.getErrorStream().close();
+        Thread.sleep(pollMillis);
+      } else if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Upload returned " + status);
+      } else {
+        jobId = ReadJson(connection.getInputStream()).getString("jobId");
+      }
+    } // until accepted
+
+    // wait for transcription
+    boolean running = true;
+    while (running) {
+      Thread.sleep(pollMillis);
+      long start = System.nanoTime();
+      HttpURLConnection connection = (HttpURLConnection)
+        new URL(url + "/jobstatus/" + jobId).openConnection();
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Status of job " + jobId + " returned " + status);
+      }
+      running = ReadJson(connection.getInputStream()).getBoolean("running");
+      statuses.record(start);
+    } // next poll
+
+    // download transcript
+    long start = System.nanoTime();
+    HttpURLConnection connection = (HttpURLConnection)new URL(
+      url + "/transcript/" + jobId + "?format=" + URLEncoder.encode(format, "UTF-8"))
+      .openConnection();
+    int status = connection.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) { // e.g. transcription failed
+      connection.getErrorStream().close();
+      throw new IOException("Transcript of job " + jobId + " returned " + status);
+    }
+    InputStream in = connection.getInputStream();
+    try {
+      byte[] buffer = new byte[65536];
+      while (in.read(buffer) >= 0);
+    } finally {
+      in.close();
+    }
+    downloads.record(start);
+    turnarounds.record(jobStart);
+    succeeded.incrementAndGet();
+  } // end of processJob()
+
+  /**
+   * Starts uploading {@link #wav} to <tt>starttranscription</tt>.
+   * @return The connection, after the request has been sent.
+   * @throws IOException
+   */
+  protected HttpURLConnection upload() throws IOException {
+    String boundary = "----loadtest" + Long.toHexString(System.nanoTime());
+    byte[] header = ("--" + boundary + "\r\n"
+                     + "Content-Disposition: form-data; name=\"wav\"; filename=\""
+                     + wav.getName() + "\"\r\n"
+                     + "Content-Type: audio/wav\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    byte[] footer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+    HttpURLConnection connection = (HttpURLConnection)
+      new URL(url + "/starttranscription").openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+    connection.setFixedLengthStreamingMode(header.length + wav.length() + footer.length);
+    OutputStream out = connection.getOutputStream();
+    try {
+      out.write(header);
+      InputStream in = new FileInputStream(wav);
+      try {
+        byte[] buffer = new byte[65536];
+        int bytesRead = in.read(buffer);
+        while (bytesRead >= 0) {
+          out.write(buffer, 0, bytesRead);
+          bytesRead = in.read(buffer);
+        }
+      } finally {
+        in.close();
+      }
+      out.write(footer);
+    } finally {
+      out.close();
+    }
+    return connection;
+  } // end of upload()
+
+  /**
+   * Reads a JSON object from a response.
+   * @param in The response stream, which is closed.
+   * @return The object.
+   */
+  static JsonObject ReadJson(InputStream in) {
+    JsonReader reader = Json.createReader(in);
+    try {
+      return reader.readObject();
+    } finally {
+      reader.close();
+    }
+  } // end of ReadJson()
+
+  /**
+   * Prints a summary of the results.
+   * @param out
+   */
+  public void report(PrintStream out) {
+    double audioSeconds = audioSeconds();
+    out.println();
+    out.println("Jobs: " + succeeded + " succeeded, " + failed + " failed, "
+                + rejected + " uploads rejected because the queue was full");
+    out.println(String.format("Elapsed: %.1fs", elapsedMillis / 1000.0));
+    out.println(String.format(
+                  "Throughput: %.2f jobs/min, %.2f hours of audio per hour",
+                  succeeded.get() * 60000.0 / elapsedMillis,
+                  succeeded.get() * audioSeconds / (elapsedMillis / 1000.0)));
+    out.println(String.format("%-12s %8s %10s %10s %10s %10s",
+                              "Latency", "count", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+    for (Map.Entry<String,Latencies> entry : latencies().entrySet()) {
+      Latencies l = entry.getValue();
+      out.println(String.format(
+                    "%-12s %8d %10.1f %10.1f %10.1f %10.1f", entry.getKey(), l.count(),
+                    l.percentile(50), l.percentile(90), l.percentile(99), l.percentile(100)));
+    } // next latency
+    out.println(String.format(
+                  "Peak heap: %.1fMB%s", peakHeapBytes.get() / (1024.0 * 1024),
+                  heapIncludesServer? "" : " (load driver only)"));
+  } // end of report()
+  
+  /**
+   * Writes the results as JSON, for comparing between releases or hardware.
+   * @param out
+   */
+  public void report(Writer out) {
+    Map<String,Object> config = new HashMap<String,Object>();
+    config.put(JsonGenerator.PRETTY_PRINTING, true);
+    JsonGenerator json = Json.createGeneratorFactory(config).createGenerator(out);
+    json.writeStartObject()
+      .write("url", url)
+      .write("clients", clients)
+      .write("jobs", jobs)
+      .write("audioSeconds", audioSeconds())
+      .write("succeeded", succeeded.get())
+      .write("failed", failed.get())
+      .write("rejected", rejected.get())
+      .write("elapsedSeconds", elapsedMillis / 1000.0)
+      .write("jobsPerMinute", succeeded.get() * 60000.0 / elapsedMillis)
+      .write("peakHeapBytes", peakHeapBytes.get())
+      .write("heapIncludesServer", heapIncludesServer);
+    json.writeStartObject("latencyMillis");
+    for (Map.Entry<String,Latencies> entry : latencies().entrySet()) {
+      Latencies l = entry.getValue();
+      json.writeStartObject(entry.getKey())
+        .write("count", l.count())
+        .write("p50", l.percentile(50))
+        .write("p90", l.percentile(90))
+        .write("p99", l.percentile(99))
+        .write("max", l.percentile(100))
+        .writeEnd();
+    } // next latency
+    json.writeEnd() // latencyMillis
+      .writeEnd()
+      .close();
+  } // end of report()
+
+  /**
+   * The latencies that were measured, by name.
+   * @return Latencies keyed by name.
+   */
+  protected Map<String,Latencies> latencies() {
+    Map<String,Latencies> latencies = new LinkedHashMap<String,Latencies>();
+    latencies.put("upload", uploads);
+    latencies.put("status", statuses);
+    latencies.put("download", downloads);
+    latencies.put("turnaround", turnarounds);
+    return latencies;
+  } // end of latencies()
+
+  /**
+   * Determines the duration of {@link #wav}.
+   * @return The duration in seconds, or 0 if it can't be determined.
+   */
+  protected double audioSeconds() {
+    try {
+      AudioFileFormat format = AudioSystem.getAudioFileFormat(wav);
+      return format.getFrameLength() / format.getFormat().getFrameRate();
+    } catch (Exception x) {
+      return 0.0;
+    }
+  } // end of audioSeconds()
+  
+} // end of class LoadTest
@@ -0,0 +1,305 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Prepares and sends responses for asynchronous requests, so that container threads
+ * aren't held while transcripts are serialized, emails are sent, or data trickles out to
+ * slow clients.
+ * <p> Slow work (e.g. serialization) is done on a fixed number of threads, with a bounded
+ * queue of tasks waiting for a thread; if the queue is full, further tasks are rejected.
+ * Data is sent with {@link #Send(AsyncContext,InputStream)}, which writes only as fast as
+ * the client can receive it, without blocking any thread, or written as it's produced to
+ * the stream returned by {@link #Stream(AsyncContext)}, which blocks only the producing
+ * thread when the client can't keep up.
+ * <p> A task that prepares several independent parts of a response (e.g. a transcript in
+ * several formats) can prepare them in parallel with {@link #help(Callable)}, which uses
+ * a separate set of threads, so that tasks never wait for threads their own parts are
+ * waiting for.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class AsyncResponder {
+
+  /**
+   * Gets the responder for the given web application.
+   * @param context The servlet context.
+   * @return The responder created by {@link ContextListener}, or null if there is none.
+   */
+  public static AsyncResponder From(ServletContext context) {
+    return (AsyncResponder)context.getAttribute(AsyncResponder.class.getName());
+  } // end of From()
+  
+  /** Threads that prepare responses. */
+  protected ThreadPoolExecutor executor;
+  
+  /** Threads that prepare parts of responses in parallel. */
+  protected ThreadPoolExecutor helpers;
+  
+  /** Where log messages go. */
+  protected Consumer<String> log;
+  
+  /**
+   * Constructor.
+   * @param threadCount The number of tasks that can run at once.
+   * @param queueCapacity The maximum number of tasks that can be waiting to start.
+   * @param log Where log messages go.
+   */
+  public AsyncResponder(int threadCount, int queueCapacity, Consumer<String> log) {
+    this.log = log;
+    final AtomicInteger threadNumber = new AtomicInteger(0);
+    executor = new ThreadPoolExecutor(
+      Math.max(1, threadCount), Math.max(1, threadCount), 60, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity)),
+      runnable -> {
+        Thread thread = new Thread(
+          runnable, "nzilbb.webscribe.AsyncResponder-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+    executor.allowCoreThreadTimeOut(true);
+    // parts are only submitted by running tasks, so their number is already limited
+    final AtomicInteger helperNumber = new AtomicInteger(0);
+    helpers = new ThreadPoolExecutor(
+      Math.max(1, threadCount), Math.max(1, threadCount), 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      runnable -> {
+        Thread thread = new Thread(
+          runnable, "nzilbb.webscribe.AsyncResponder-helper-" + helperNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+    helpers.allowCoreThreadTimeOut(true);
+  } // end of constructor
+  
+  /**
+   * Runs the given task on one of the responder's threads.
+   * @param task
+   * @throws RejectedExecutionException If there are already too many tasks waiting.
+   */
+  public void execute(Runnable task) throws RejectedExecutionException {
+    executor.execute(task);
+  } // end of execute()
+  
+  /**
+   * Prepares part of a response in parallel with the task that calls this. This must
+   * only be called by a task that's running on one of the responder's threads, which
+   * should wait for the result.
+   * @param part
+   * @return The result of the part.
+   */
+  public <T> Future<T> help(Callable<T> part) {
+    return helpers.submit(part);
+  } // end of help()
+  
+  /**
+   * Stops the threads. Tasks that have not started are abandoned.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+    helpers.shutdownNow();
+  } // end of shutdown()
+  
+  /**
+   * Determines how many tasks are currently running.
+   * @return The number of tasks currently running.
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  } // end of getActiveCount()
+  
+  /**
+   * Determines how many tasks are waiting for a thread.
+   * @return The number of tasks waiting.
+   */
+  public int getQueueLength() {
+    return executor.getQueue().size();
+  } // end of getQueueLength()
+  
+  /**
+   * Sends the given data as the body of an asynchronous response, without blocking, and
+   * completes the request once it's all been sent. The response status and headers must
+   * be set before this is called.
+   * @param async The asynchronous request.
+   * @param data The body of the response, which is closed once sent.
+   * @throws IOException
+   */
+  public static void Send(AsyncContext async, InputStream data) throws IOException {
+    ServletOutputStream out = async.getResponse().getOutputStream();
+    out.setWriteListener(new Pump(data, out, async));
+  } // end of Send()
+  
+  /**
+   * Sends the given data as the body of an asynchronous response, without blocking, and
+   * completes the request once it's all been sent. The response status and headers must
+   * be set before this is called.
+   * @param async The asynchronous request.
+   * @param data The body of the response.
+   * @throws IOException
+   */
+  public static void Send(AsyncContext async, byte[] data) throws IOException {
+    Send(async, new ByteArrayInputStream(data));
+  } // end of Send()
+  
+  /**
+   * Creates a stream for writing the body of an asynchronous response as it's produced,
+   * e.g. by a serializer, without holding it all in memory. Data is passed to the client
+   * without blocking container threads; if the client can't keep up, writes block once
+   * {@link Outlet#MAX_QUEUED_BYTES} are waiting. Closing the stream completes the request.
+   * The response status and headers must be set before this is called.
+   * @param async The asynchronous request.
+   * @return A stream to write the body of the response to.
+   * @throws IOException
+   */
+  public static OutputStream Stream(AsyncContext async) throws IOException {
+    ServletOutputStream out = async.getResponse().getOutputStream();
+    Outlet outlet = new Outlet(out, async);
+    out.setWriteListener(outlet);
+    return outlet;
+  } // end of Stream()
+  
+  /**
+   * Writes a stream to a response whenever the response is ready to accept more data.
+   */
+  static class Pump implements WriteListener {
+    InputStream in;
+    ServletOutputStream out;
+    AsyncContext async;
+    byte[] buffer = new byte[16384];
+    Pump(InputStream in, ServletOutputStream out, AsyncContext async) {
+      this.in = in;
+      this.out = out;
+      this.async = async;
+    }
+    public void onWritePossible() throws IOException {
+      while (out.isReady()) {
+        int bytesRead = in.read(buffer);
+        if (bytesRead < 0) { // finished
+          in.close();
+          async.complete();
+          return;
+        }
+        out.write(buffer, 0, bytesRead);
+      } // more can be written now
+      // otherwise, we'll be called again when the client has caught up
+    }
+    public void onError(Throwable t) { // e.g. client went away
+      try {
+        in.close();
+      } catch (IOException x) {
+      }
+      async.complete();
+    }
+  } // end of class Pump
+  
+  /**
+   * A stream whose data is queued, and written to a response whenever the response is
+   * ready to accept more, by whichever thread is around at the time: the writer, or the
+   * container when the client has caught up.
+   */
+  static class Outlet extends OutputStream implements WriteListener {
+    /** The most data that can be waiting for the client before writers are blocked. */
+    static final int MAX_QUEUED_BYTES = 65536;
+    ServletOutputStream out;
+    AsyncContext async;
+    ArrayDeque<byte[]> queue = new ArrayDeque<byte[]>();
+    int queuedBytes = 0;
+    boolean waitingForClient = false;
+    boolean closed = false;
+    boolean failed = false;
+    Outlet(ServletOutputStream out, AsyncContext async) {
+      this.out = out;
+      this.async = async;
+    }
+    @Override public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+    @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+      while (queuedBytes >= MAX_QUEUED_BYTES && !failed) {
+        try {
+          wait();
+        } catch (InterruptedException x) {
+          throw new IOException("Interrupted");
+        }
+      } // until the client catches up
+      if (failed) throw new IOException("Client has gone");
+      if (closed) throw new IOException("Stream closed");
+      byte[] chunk = new byte[len]; // the caller may reuse its buffer
+      System.arraycopy(b, off, chunk, 0, len);
+      queue.add(chunk);
+      queuedBytes += len;
+      if (!waitingForClient) drain();
+    }
+    @Override public synchronized void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      if (!waitingForClient) drain();
+    }
+    public synchronized void onWritePossible() throws IOException {
+      waitingForClient = false;
+      drain();
+    }
+    public synchronized void onError(Throwable t) { // e.g. client went away
+      failed = true;
+      queue.clear();
+      notifyAll();
+      async.complete();
+    }
+    /** Writes queued data until there's none left or the client can't take any more. */
+    void drain() throws IOException {
+      if (failed) return;
+      while (!queue.isEmpty()) {
+        if (!out.isReady()) { // we'll be called again when the client has caught up
+          waitingForClient = true;
+          return;
+        }
+        byte[] chunk = queue.poll();
+        queuedBytes -= chunk.length;
+        out.write(chunk);
+        notifyAll();
+      } // next chunk
+      if (closed) {
+        failed = true; // i.e. no more writing
+        async.complete();
+      }
+    }
+  } // end of class Outlet
+  
+} // end of class AsyncResponder
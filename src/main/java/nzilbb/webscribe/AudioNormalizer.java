@@ -0,0 +1,373 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Converts recordings to the format transcribers work with - 16-bit mono PCM at a given
+ * sample rate - so that e.g. 48kHz stereo 24-bit studio recordings don't cost more to
+ * transcribe than telephone-quality ones.
+ * <p> Conversion is streamed; channels are averaged, and the sample rate is changed with a
+ * windowed-sinc polyphase filter, which also removes frequencies above the new Nyquist
+ * frequency when downsampling. Only the filter and a small window of samples are held in
+ * memory, so long recordings can be converted in bounded memory.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class AudioNormalizer {
+
+  /** Zero-crossings of the filter's sinc function either side of its center. */
+  static final int ZERO_CROSSINGS = 16;
+
+  /** Cutoff frequency as a proportion of the Nyquist frequency, to leave room for rolloff. */
+  static final double ROLLOFF = 0.95;
+
+  /** Maximum number of filter phases; resampling ratios needing more are approximated. */
+  static final int MAX_PHASES = 1024;
+  
+  /**
+   * The sample rate of normalized recordings, in Hz.
+   * @see #getSampleRate()
+   * @see #setSampleRate(int)
+   */
+  protected int sampleRate = 16000;
+  /**
+   * Getter for {@link #sampleRate}: The sample rate of normalized recordings.
+   * @return The sample rate of normalized recordings, in Hz.
+   */
+  public int getSampleRate() { return sampleRate; }
+  /**
+   * Setter for {@link #sampleRate}: The sample rate of normalized recordings.
+   * @param newSampleRate The sample rate of normalized recordings, in Hz.
+   */
+  public AudioNormalizer setSampleRate(int newSampleRate) { sampleRate = newSampleRate; return this; }
+  
+  /**
+   * Default constructor.
+   */
+  public AudioNormalizer() {
+  } // end of constructor
+
+  /**
+   * The format of normalized recordings.
+   * @return 16-bit signed little-endian mono PCM at {@link #getSampleRate()}.
+   */
+  public AudioFormat getFormat() {
+    return new AudioFormat(sampleRate, 16, 1, true, false);
+  } // end of getFormat()
+  
+  /**
+   * Determines whether audio is already in the normalized format.
+   * @param format
+   * @return true if the audio doesn't need converting.
+   */
+  public boolean isNormalized(AudioFormat format) {
+    return AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding())
+      && format.getSampleSizeInBits() == 16
+      && format.getChannels() == 1
+      && Math.round(format.getSampleRate()) == sampleRate;
+  } // end of isNormalized()
+
+  /**
+   * Converts a recording to the normalized format, replacing the original file.
+   * <p> If the recording is already in the normalized format, it's left as it is.
+   * @param wav The recording.
+   * @return true if the recording was converted, false if it was already normalized.
+   * @throws UnsupportedAudioFileException If the recording format isn't supported.
+   * @throws IOException
+   */
+  public boolean normalize(File wav) throws UnsupportedAudioFileException, IOException {
+    AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(wav);
+    if (isNormalized(fileFormat.getFormat())) return false;
+    
+    File temp = new File(wav.getParentFile(), wav.getName() + ".normalizing");
+    AudioInputStream source = AudioSegmenter.OpenPcm(wav);
+    try {
+      Resampler resampler = new Resampler(source, sampleRate);
+      AudioSystem.write(
+        new AudioInputStream(resampler, getFormat(), resampler.getFrameLength()),
+        AudioFileFormat.Type.WAVE, temp);
+    } catch (IOException x) {
+      temp.delete();
+      throw x;
+    } finally {
+      source.close();
+    }
+    // replace the original all at once, so it's never half-written
+    Files.move(temp.toPath(), wav.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return true;
+  } // end of normalize()
+
+  /**
+   * A stream of 16-bit signed little-endian mono samples, converted from a PCM stream
+   * of any sample rate, sample size, and number of channels.
+   */
+  static class Resampler extends InputStream {
+    
+    /** The source audio. */
+    final AudioInputStream source;
+    
+    /** Format of the source audio. */
+    final AudioFormat format;
+
+    /** The number of output samples for every {@link #down} input samples. */
+    final int up;
+    
+    /** The number of input samples for every {@link #up} output samples. */
+    final int down;
+
+    /** The number of filter taps either side of the center. */
+    final int halfTaps;
+
+    /** Filter coefficients for each phase, {@link #halfTaps} * 2 each. */
+    final float[][] filter;
+
+    /** The number of output samples, or AudioSystem.NOT_SPECIFIED if unknown. */
+    final long frameLength;
+    
+    /** Raw source data. */
+    final byte[] raw;
+    
+    /** Mono input samples, from input sample {@link #windowStart} onward. */
+    float[] window;
+    
+    /** The input sample index of window[0]. */
+    long windowStart;
+    
+    /** The number of valid samples in {@link #window}. */
+    int windowCount = 0;
+    
+    /** Whether the source has been read to the end. */
+    boolean sourceEnded = false;
+
+    /** The index of the next output sample. */
+    long next = 0;
+
+    /** Encoded output not yet returned by {@link #read(byte[],int,int)}. */
+    final byte[] pending = new byte[2];
+    
+    /** The number of bytes in {@link #pending}. */
+    int pendingCount = 0;
+    
+    /**
+     * Constructor.
+     * @param source PCM audio, as returned by {@link AudioSegmenter#OpenPcm(File)}.
+     * @param sampleRate The output sample rate.
+     */
+    Resampler(AudioInputStream source, int sampleRate) {
+      this.source = source;
+      this.format = source.getFormat();
+      int inputRate = Math.round(format.getSampleRate());
+      int divisor = Gcd(inputRate, sampleRate);
+      up = sampleRate / divisor;
+      down = inputRate / divisor;
+      long inputFrames = source.getFrameLength();
+      frameLength = inputFrames == AudioSystem.NOT_SPECIFIED? AudioSystem.NOT_SPECIFIED
+        : (inputFrames * up + down - 1) / down; // i.e. outputs before the input ends
+
+      if (up == down) { // no resampling, just downmixing/requantizing
+        halfTaps = 1;
+        filter = new float[][] { { 1f, 0f } };
+      } else {
+        // cut off at the lower of the two Nyquist frequencies
+        double cutoff = Math.min(1.0, up / (double)down) * ROLLOFF;
+        halfTaps = (int)Math.ceil(ZERO_CROSSINGS / cutoff);
+        int phases = Math.min(up, MAX_PHASES);
+        filter = new float[phases][halfTaps * 2];
+        for (int p = 0; p < phases; p++) {
+          double fraction = p / (double)phases; // offset of output between input samples
+          double sum = 0;
+          for (int t = 0; t < halfTaps * 2; t++) {
+            double x = fraction - (t - halfTaps + 1); // distance from input sample
+            double coefficient = cutoff * Sinc(cutoff * x) * Blackman(x / halfTaps);
+            filter[p][t] = (float)coefficient;
+            sum += coefficient;
+          } // next tap
+          for (int t = 0; t < halfTaps * 2; t++) filter[p][t] /= sum; // unity gain
+        } // next phase
+      }
+
+      raw = new byte[4096 * format.getFrameSize()];
+      window = new float[Math.max(8192, halfTaps * 8)];
+      // samples before the start are silent
+      windowStart = -halfTaps;
+      windowCount = halfTaps;
+    } // end of constructor
+
+    /**
+     * The number of output samples.
+     * @return The number of output samples, or AudioSystem.NOT_SPECIFIED if unknown.
+     */
+    long getFrameLength() {
+      return frameLength;
+    } // end of getFrameLength()
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0? -1 : b[0] & 0xFF;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+      int count = 0;
+      while (count < len && pendingCount > 0) { // the remainder of the last sample
+        b[off + count++] = pending[2 - pendingCount--];
+      }
+      while (len - count >= 2) {
+        if (frameLength != AudioSystem.NOT_SPECIFIED && next >= frameLength) break;
+        int sample = nextSample();
+        if (sample == Integer.MIN_VALUE) break; // end of input
+        b[off + count++] = (byte)(sample & 0xFF);
+        b[off + count++] = (byte)((sample >> 8) & 0xFF);
+      } // next sample
+      if (count < len && len - count < 2 && pendingCount == 0
+          && (frameLength == AudioSystem.NOT_SPECIFIED || next < frameLength)) {
+        // odd-sized read; keep the rest of the sample for next time
+        int sample = nextSample();
+        if (sample != Integer.MIN_VALUE) {
+          b[off + count++] = (byte)(sample & 0xFF);
+          pending[1] = (byte)((sample >> 8) & 0xFF);
+          pendingCount = 1;
+        }
+      }
+      return count == 0? -1 : count;
+    }
+
+    /**
+     * Computes the next output sample.
+     * @return The sample as a 16-bit value, or Integer.MIN_VALUE if the input has ended.
+     * @throws IOException
+     */
+    int nextSample() throws IOException {
+      long position = next * down;
+      long base = position / up; // the input sample at or before the output sample
+      int phase = (int)((position % up) * filter.length / up);
+      long last = base + halfTaps; // the last input sample needed
+      while (windowStart + windowCount <= last && !sourceEnded) fill();
+      if (frameLength == AudioSystem.NOT_SPECIFIED && base >= windowStart + windowCount
+          && sourceEnded) {
+        return Integer.MIN_VALUE;
+      }
+      int first = (int)(base - halfTaps + 1 - windowStart);
+      float[] taps = filter[phase];
+      double sum = 0;
+      int available = Math.min(taps.length, windowCount - first); // past the end is silent
+      for (int t = 0; t < available; t++) sum += taps[t] * window[first + t];
+      next++;
+      long value = Math.round(sum * 32767);
+      return (int)Math.max(-32768, Math.min(32767, value));
+    } // end of nextSample()
+
+    /**
+     * Reads more input into {@link #window}, discarding samples that are no longer needed.
+     * @throws IOException
+     */
+    void fill() throws IOException {
+      // discard samples before the earliest one the next output needs
+      long needed = (next * down) / up - halfTaps + 1;
+      int discard = (int)Math.max(0, Math.min(windowCount, needed - windowStart));
+      if (discard > 0) {
+        System.arraycopy(window, discard, window, 0, windowCount - discard);
+        windowCount -= discard;
+        windowStart += discard;
+      }
+      if (windowCount == window.length) { // all the samples are still needed
+        float[] bigger = new float[window.length * 2];
+        System.arraycopy(window, 0, bigger, 0, windowCount);
+        window = bigger;
+      }
+      int frameSize = format.getFrameSize();
+      int channels = format.getChannels();
+      int bytesPerSample = (format.getSampleSizeInBits() + 7) / 8;
+      int wanted = Math.min(raw.length / frameSize, window.length - windowCount) * frameSize;
+      int read = 0;
+      while (read < wanted) {
+        int bytesRead = source.read(raw, read, wanted - read);
+        if (bytesRead < 0) {
+          sourceEnded = true;
+          break;
+        }
+        read += bytesRead;
+      } // next read
+      int frames = read / frameSize;
+      for (int f = 0; f < frames; f++) {
+        double mono = 0;
+        for (int c = 0; c < channels; c++) {
+          mono += AudioSegmenter.DecodeSample(
+            raw, f * frameSize + c * bytesPerSample, format);
+        }
+        window[windowCount++] = (float)(mono / channels);
+      } // next frame
+    } // end of fill()
+
+    @Override public void close() throws IOException {
+      source.close();
+    }
+  } // end of class Resampler
+
+  /**
+   * Normalized sinc function.
+   * @param x
+   * @return sin(&pi;x)/&pi;x
+   */
+  static double Sinc(double x) {
+    if (x == 0.0) return 1.0;
+    double pix = Math.PI * x;
+    return Math.sin(pix) / pix;
+  } // end of Sinc()
+
+  /**
+   * Blackman window.
+   * @param x Position in the window, from -1 to 1.
+   * @return The window value, which is 0 outside the window.
+   */
+  static double Blackman(double x) {
+    if (x <= -1.0 || x >= 1.0) return 0.0;
+    double n = (x + 1.0) / 2.0; // 0 to 1
+    return 0.42 - 0.5 * Math.cos(2 * Math.PI * n) + 0.08 * Math.cos(4 * Math.PI * n);
+  } // end of Blackman()
+  
+  /**
+   * Greatest common divisor.
+   * @param a
+   * @param b
+   * @return The greatest common divisor of <var>a</var> and <var>b</var>.
+   */
+  static int Gcd(int a, int b) {
+    while (b != 0) {
+      int t = a % b;
+      a = b;
+      b = t;
+    }
+    return a;
+  } // end of Gcd()
+  
+} // end of class AudioNormalizer
@@ -0,0 +1,361 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Vector;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Splits long recordings into shorter segments, cutting at quiet points, so that the
+ * segments can be transcribed separately.
+ * <p> The recording is read twice: once to measure the signal energy every 10ms, and
+ * once to write the segments. Only the energy measurements are held in memory, so long
+ * recordings can be split in bounded memory.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class AudioSegmenter {
+
+  /** A segment of a recording. */
+  public static class Segment {
+    File wav;
+    double start;
+    double end;
+    Segment(File wav, double start, double end) {
+      this.wav = wav;
+      this.start = start;
+      this.end = end;
+    }
+    /**
+     * The file containing the segment's audio.
+     * @return The segment file.
+     */
+    public File getWav() { return wav; }
+    /**
+     * The offset in the original recording at which the segment starts.
+     * @return The start offset in seconds.
+     */
+    public double getStart() { return start; }
+    /**
+     * The offset in the original recording at which the segment ends.
+     * @return The end offset in seconds.
+     */
+    public double getEnd() { return end; }
+  }
+  
+  /** Length of the window for energy measurements, in seconds. */
+  static final double FRAME_SECONDS = 0.01;
+  
+  /**
+   * Determines the duration of a recording from its header.
+   * @param wav
+   * @return The duration in seconds.
+   * @throws UnsupportedAudioFileException If the file format isn't recognized.
+   * @throws IOException
+   */
+  public static double Duration(File wav) throws UnsupportedAudioFileException, IOException {
+    AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(wav);
+    AudioFormat format = fileFormat.getFormat();
+    long frames = fileFormat.getFrameLength();
+    if (frames == AudioSystem.NOT_SPECIFIED) { // infer it from the file size
+      frames = (wav.length() - 44) / format.getFrameSize();
+    }
+    return frames / format.getFrameRate();
+  } // end of Duration()
+
+  /**
+   * Opens a recording as linear PCM.
+   * @param wav
+   * @return An audio stream with PCM_SIGNED or PCM_UNSIGNED encoding.
+   * @throws UnsupportedAudioFileException If the format can't be converted to PCM.
+   * @throws IOException
+   */
+  public static AudioInputStream OpenPcm(File wav)
+    throws UnsupportedAudioFileException, IOException {
+    AudioInputStream stream = AudioSystem.getAudioInputStream(
+      new BufferedInputStream(new FileInputStream(wav)));
+    AudioFormat.Encoding encoding = stream.getFormat().getEncoding();
+    if (!AudioFormat.Encoding.PCM_SIGNED.equals(encoding)
+        && !AudioFormat.Encoding.PCM_UNSIGNED.equals(encoding)) {
+      stream = AudioSystem.getAudioInputStream(AudioFormat.Encoding.PCM_SIGNED, stream);
+    }
+    return stream;
+  } // end of OpenPcm()
+
+  /**
+   * Decodes one sample of linear PCM audio.
+   * @param buffer The audio data.
+   * @param offset The position of the sample in the buffer.
+   * @param format The format of the audio, which must be PCM_SIGNED or PCM_UNSIGNED.
+   * @return The sample value, scaled to the range -1 to 1.
+   */
+  public static double DecodeSample(byte[] buffer, int offset, AudioFormat format) {
+    int bytes = (format.getSampleSizeInBits() + 7) / 8;
+    long value = 0;
+    if (format.isBigEndian()) {
+      for (int b = 0; b < bytes; b++) {
+        value = (value << 8) | (buffer[offset + b] & 0xFF);
+      }
+    } else {
+      for (int b = bytes - 1; b >= 0; b--) {
+        value = (value << 8) | (buffer[offset + b] & 0xFF);
+      }
+    }
+    int bits = bytes * 8;
+    if (AudioFormat.Encoding.PCM_UNSIGNED.equals(format.getEncoding())) {
+      value -= 1L << (bits - 1);
+    } else if ((value & (1L << (bits - 1))) != 0) { // negative; sign-extend
+      value -= 1L << bits;
+    }
+    return value / (double)(1L << (bits - 1));
+  } // end of DecodeSample()
+
+  /**
+   * Target length of segments, in seconds.
+   * @see #getSegmentSeconds()
+   * @see #setSegmentSeconds(double)
+   */
+  protected double segmentSeconds = 600;
+  /**
+   * Getter for {@link #segmentSeconds}: Target length of segments, in seconds.
+   * @return Target length of segments, in seconds.
+   */
+  public double getSegmentSeconds() { return segmentSeconds; }
+  /**
+   * Setter for {@link #segmentSeconds}: Target length of segments, in seconds.
+   * @param newSegmentSeconds Target length of segments, in seconds.
+   */
+  public AudioSegmenter setSegmentSeconds(double newSegmentSeconds) { segmentSeconds = newSegmentSeconds; return this; }
+
+  /**
+   * How far either side of the target length to look for a quiet point, in seconds.
+   * @see #getSearchSeconds()
+   * @see #setSearchSeconds(double)
+   */
+  protected double searchSeconds = 30;
+  /**
+   * Getter for {@link #searchSeconds}: How far either side of the target length to look
+   * for a quiet point.
+   * @return How far either side of the target length to look, in seconds.
+   */
+  public double getSearchSeconds() { return searchSeconds; }
+  /**
+   * Setter for {@link #searchSeconds}: How far either side of the target length to look
+   * for a quiet point.
+   * @param newSearchSeconds How far either side of the target length to look, in seconds.
+   */
+  public AudioSegmenter setSearchSeconds(double newSearchSeconds) { searchSeconds = newSearchSeconds; return this; }
+
+  /**
+   * Length of the stretch of audio that must be quiet at a cut point, in seconds.
+   * @see #getPauseSeconds()
+   * @see #setPauseSeconds(double)
+   */
+  protected double pauseSeconds = 0.5;
+  /**
+   * Getter for {@link #pauseSeconds}: Length of the stretch of audio that must be quiet at
+   * a cut point.
+   * @return Length of the quiet stretch, in seconds.
+   */
+  public double getPauseSeconds() { return pauseSeconds; }
+  /**
+   * Setter for {@link #pauseSeconds}: Length of the stretch of audio that must be quiet at
+   * a cut point.
+   * @param newPauseSeconds Length of the quiet stretch, in seconds.
+   */
+  public AudioSegmenter setPauseSeconds(double newPauseSeconds) { pauseSeconds = newPauseSeconds; return this; }
+  
+  /**
+   * Default constructor.
+   */
+  public AudioSegmenter() {
+  } // end of constructor
+
+  /**
+   * Determines whether a recording is long enough to be worth splitting.
+   * @param duration The duration of the recording in seconds.
+   * @return true if the recording is at least one and a half segments long.
+   */
+  public boolean shouldSplit(double duration) {
+    return segmentSeconds > 0 && duration >= segmentSeconds * 1.5;
+  } // end of shouldSplit()
+  
+  /**
+   * Splits a recording into segments.
+   * @param wav The recording.
+   * @param outputDir The directory to write segment files to.
+   * @return The segments, in order.
+   * @throws UnsupportedAudioFileException If the recording format isn't supported.
+   * @throws IOException
+   */
+  public Vector<Segment> split(File wav, File outputDir)
+    throws UnsupportedAudioFileException, IOException {
+    
+    // measure energy
+    float[] energy = measureEnergy(wav);
+    long[] cuts = chooseCuts(energy); // in frames of FRAME_SECONDS
+
+    // write segments
+    Vector<Segment> segments = new Vector<Segment>();
+    AudioInputStream source = OpenPcm(wav);
+    try {
+      AudioFormat format = source.getFormat();
+      long samplesPerFrame = Math.round(format.getFrameRate() * FRAME_SECONDS);
+      // don't let AudioSystem.write close the source
+      InputStream uncloseable = new FilterInputStream(source) {
+          @Override public void close() {}
+        };
+      String baseName = wav.getName().replaceAll("\\.[^.]*$", "");
+      long startSample = 0;
+      for (int s = 0; s <= cuts.length; s++) {
+        long endSample = s < cuts.length? cuts[s] * samplesPerFrame : source.getFrameLength();
+        long length = endSample == AudioSystem.NOT_SPECIFIED?
+          AudioSystem.NOT_SPECIFIED : endSample - startSample;
+        File segmentWav = new File(outputDir, baseName + "-" + (s+1) + ".wav");
+        AudioInputStream segmentStream = new AudioInputStream(uncloseable, format, length);
+        long written = AudioSystem.write(segmentStream, AudioFileFormat.Type.WAVE, segmentWav);
+        long samples = written > 0? (written - 44) / format.getFrameSize() : 0;
+        if (length != AudioSystem.NOT_SPECIFIED) samples = length;
+        segments.add(new Segment(
+                       segmentWav,
+                       startSample / format.getFrameRate(),
+                       (startSample + samples) / format.getFrameRate()));
+        startSample += samples;
+      } // next segment
+    } finally {
+      source.close();
+    }
+    return segments;
+  } // end of split()
+
+  /**
+   * Measures the RMS energy of each 10ms frame of the given recording.
+   * @param wav
+   * @return The energy of each frame.
+   * @throws UnsupportedAudioFileException
+   * @throws IOException
+   */
+  protected float[] measureEnergy(File wav) throws UnsupportedAudioFileException, IOException {
+    AudioInputStream stream = OpenPcm(wav);
+    try {
+      AudioFormat format = stream.getFormat();
+      int channels = format.getChannels();
+      int bytesPerSample = (format.getSampleSizeInBits() + 7) / 8;
+      int frameSize = format.getFrameSize();
+      int samplesPerFrame = (int)Math.max(1, Math.round(format.getFrameRate() * FRAME_SECONDS));
+      long sampleCount = stream.getFrameLength();
+      int frameCount = sampleCount == AudioSystem.NOT_SPECIFIED?
+        1024 : (int)(sampleCount / samplesPerFrame) + 1;
+      float[] energy = new float[frameCount];
+      byte[] buffer = new byte[samplesPerFrame * frameSize];
+      int f = 0;
+      int read = ReadFully(stream, buffer);
+      while (read >= frameSize) {
+        double sumOfSquares = 0;
+        int samples = read / frameSize;
+        for (int i = 0; i < samples; i++) {
+          double mono = 0;
+          for (int c = 0; c < channels; c++) {
+            mono += DecodeSample(buffer, i * frameSize + c * bytesPerSample, format);
+          }
+          mono /= channels;
+          sumOfSquares += mono * mono;
+        } // next sample
+        if (f >= energy.length) { // length wasn't known, so grow the array
+          float[] bigger = new float[energy.length * 2];
+          System.arraycopy(energy, 0, bigger, 0, energy.length);
+          energy = bigger;
+        }
+        energy[f++] = (float)Math.sqrt(sumOfSquares / samples);
+        read = ReadFully(stream, buffer);
+      } // next frame
+      float[] measured = new float[f];
+      System.arraycopy(energy, 0, measured, 0, f);
+      return measured;
+    } finally {
+      stream.close();
+    }
+  } // end of measureEnergy()
+
+  /**
+   * Chooses where to cut the recording, given its frame energies.
+   * @param energy RMS energy of each 10ms frame.
+   * @return The frame indices to cut at.
+   */
+  protected long[] chooseCuts(float[] energy) {
+    int segmentFrames = (int)(segmentSeconds / FRAME_SECONDS);
+    int searchFrames = (int)(Math.min(searchSeconds, segmentSeconds / 4) / FRAME_SECONDS);
+    int pauseFrames = Math.max(1, (int)(pauseSeconds / FRAME_SECONDS));
+    Vector<Long> cuts = new Vector<Long>();
+    int start = 0;
+    // stop when what's left is short enough to be the last segment
+    while (energy.length - start >= segmentFrames * 1.5) {
+      int from = Math.max(start + pauseFrames, start + segmentFrames - searchFrames);
+      int to = Math.min(energy.length - pauseFrames, start + segmentFrames + searchFrames);
+      // find the quietest stretch of pauseFrames frames, using a sliding sum
+      double sum = 0;
+      for (int f = from; f < from + pauseFrames; f++) sum += energy[f];
+      double quietest = sum;
+      int best = from;
+      for (int f = from + 1; f + pauseFrames <= to; f++) {
+        sum += energy[f + pauseFrames - 1] - energy[f - 1];
+        if (sum < quietest) {
+          quietest = sum;
+          best = f;
+        }
+      } // next window position
+      int cut = best + pauseFrames / 2; // cut in the middle of the pause
+      cuts.add((long)cut);
+      start = cut;
+    } // next segment
+    long[] result = new long[cuts.size()];
+    for (int c = 0; c < result.length; c++) result[c] = cuts.get(c);
+    return result;
+  } // end of chooseCuts()
+
+  /**
+   * Reads until the buffer is full or the stream ends.
+   * @param stream
+   * @param buffer
+   * @return The number of bytes read, or -1 if the stream had already ended.
+   * @throws IOException
+   */
+  static int ReadFully(InputStream stream, byte[] buffer) throws IOException {
+    int total = 0;
+    while (total < buffer.length) {
+      int read = stream.read(buffer, total, buffer.length - total);
+      if (read < 0) break;
+      total += read;
+    } // next read
+    return total == 0? -1 : total;
+  } // end of ReadFully()
+  
+} // end of class AudioSegmenter
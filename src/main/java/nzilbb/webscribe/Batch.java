@@ -0,0 +1,189 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A group of transcription jobs uploaded in one request.
+ * <p> Batches are forgotten once all of their jobs have been forgotten by the
+ * {@link JobRegistry}.
+ * <p> Jobs are held by ID, and found with {@link Job#FindJob(long)}, so that finished
+ * jobs can be dropped from memory while the batch lasts.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class Batch {
+  
+  /** Source of batch IDs. */
+  private static final AtomicLong nextId = new AtomicLong(1);
+  
+  /** Batches that have not yet been forgotten. */
+  protected static final Map<Long,Batch> batches = new ConcurrentHashMap<Long,Batch>();
+  
+  /**
+   * Finds a batch given its ID.
+   * @param id The batch's ID.
+   * @return The identified batch, or null if it can't be found.
+   */
+  public static Batch FindBatch(long id) {
+    return batches.get(id);
+  } // end of FindBatch()
+  
+  /**
+   * Removes the given job from its batch, if any, and forgets the batch if it has no
+   * jobs left. This is intended to be registered as a
+   * {@link JobRegistry#getForgetObservers()} observer.
+   * @param jobId The ID of a job that has been forgotten.
+   */
+  public static void JobForgotten(long jobId) {
+    // the job may no longer be in memory, so its batch isn't known
+    for (Batch batch : batches.values()) {
+      if (batch.jobIds.remove(jobId)) {
+        if (batch.jobIds.isEmpty()) batch.forget();
+        return;
+      }
+    } // next batch
+  } // end of JobForgotten()
+  
+  /**
+   * Unique ID for the batch.
+   * @see #getId()
+   */
+  protected long id;
+  /**
+   * Getter for {@link #id}: Unique ID for the batch.
+   * @return Unique ID for the batch.
+   */
+  public long getId() { return id; }
+  
+  /**
+   * The IDs of the jobs in the batch, in the order they were uploaded.
+   * @see #getJobIds()
+   */
+  protected List<Long> jobIds = new CopyOnWriteArrayList<Long>();
+  /**
+   * Getter for {@link #jobIds}: The IDs of the jobs in the batch, in the order they were
+   * uploaded.
+   * @return The IDs of the jobs in the batch, in the order they were uploaded.
+   */
+  public List<Long> getJobIds() { return Collections.unmodifiableList(jobIds); }
+  
+  /**
+   * Recordings that were uploaded but not queued, mapped to the reason why.
+   * @see #getRejections()
+   */
+  protected Map<String,String> rejections
+  = Collections.synchronizedMap(new LinkedHashMap<String,String>());
+  /**
+   * Getter for {@link #rejections}: Recordings that were uploaded but not queued, mapped
+   * to the reason why.
+   * @return Recordings that were uploaded but not queued, mapped to the reason why.
+   */
+  public Map<String,String> getRejections() { return rejections; }
+  
+  /**
+   * Constructor. The batch is registered so it can be found with {@link #FindBatch(long)}.
+   */
+  public Batch() {
+    id = nextId.getAndIncrement();
+    batches.put(id, this);
+  } // end of constructor
+  
+  /**
+   * Adds a job to the batch.
+   * @param job
+   * @return This batch.
+   */
+  public Batch add(Job job) {
+    job.setBatchId(id);
+    jobIds.add(job.getId());
+    return this;
+  } // end of add()
+
+  /**
+   * Finds the jobs in the batch. Finished jobs that are no longer in memory are loaded
+   * from the {@link JobStore}, so for a large batch, it's better to find the jobs of
+   * {@link #getJobIds()} one at a time.
+   * @return The jobs in the batch that can still be found, in the order they were
+   * uploaded.
+   */
+  public List<Job> getJobs() {
+    List<Job> jobs = new ArrayList<Job>();
+    for (long jobId : jobIds) {
+      Job job = Job.FindJob(jobId);
+      if (job != null) jobs.add(job);
+    } // next job
+    return jobs;
+  } // end of getJobs()
+  
+  /**
+   * Records that an uploaded recording was not queued.
+   * @param name The name of the recording.
+   * @param reason Why it wasn't queued.
+   * @return This batch.
+   */
+  public Batch reject(String name, String reason) {
+    rejections.put(name, reason);
+    return this;
+  } // end of reject()
+  
+  /**
+   * Determines how many of the jobs in the batch are finished (successfully or not).
+   * @return The number of jobs that are finished.
+   */
+  public int getFinishedCount() {
+    int count = 0;
+    for (long jobId : jobIds) {
+      Job job = Job.FindJob(jobId);
+      if (job != null && job.isDone()) count++;
+    } // next job
+    return count;
+  } // end of getFinishedCount()
+  
+  /**
+   * Determines whether all jobs in the batch are finished.
+   * @return true if no job in the batch is queued or running.
+   */
+  public boolean isDone() {
+    for (long jobId : jobIds) {
+      Job job = Job.FindJob(jobId);
+      if (job != null && !job.isDone()) return false;
+    } // next job
+    return true;
+  } // end of isDone()
+  
+  /**
+   * Forgets the batch, so that it can no longer be found with {@link #FindBatch(long)}.
+   * The jobs themselves are not affected.
+   */
+  public void forget() {
+    batches.remove(id, this);
+  } // end of forget()
+  
+} // end of class Batch
@@ -0,0 +1,106 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.IOException;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Returns the status of a batch of transcription jobs, including the status of each job.
+ * <p> The "running" attribute is true until every job in the batch is finished.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@WebServlet("/batchstatus/*")
+public class BatchStatus extends ServletBase {
+  /**
+   * Default constructor.
+   */
+  public BatchStatus() {
+  } // end of constructor
+  
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    if (request.getPathInfo() == null        
+        || !request.getPathInfo().startsWith("/")
+        || request.getPathInfo().equals("/")) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("No Batch ID specified.", response);
+      return;
+    }
+    String suffix = request.getPathInfo().substring(1);
+    long batchId = 0;
+    try {
+      batchId = Long.parseLong(suffix);
+    } catch(NumberFormatException exception) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("Invalid Batch ID: " + suffix, response);
+      return;
+    }
+    Batch batch = Batch.FindBatch(batchId);
+    if (batch == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      returnMessage("Batch not found: " + batchId, response);
+      return;
+    }
+    
+    JobScheduler scheduler = JobScheduler.From(getServletContext());
+    // finished jobs may have to be loaded, so find them one at a time rather than
+    // having all their transcripts in memory at once
+    int jobCount = 0;
+    int finishedCount = 0;
+    for (long jobId : batch.getJobIds()) {
+      Job job = Job.FindJob(jobId);
+      if (job == null) continue; // expired
+      jobCount++;
+      if (job.isDone()) finishedCount++;
+    } // next job
+    response.setContentType("application/json;charset=UTF-8");
+    JsonGenerator json = Json.createGenerator(response.getWriter())
+      .writeStartObject()
+      .write("message", finishedCount + " of " + jobCount + " finished")
+      .write("batchId", ""+batch.getId())
+      .write("jobCount", jobCount)
+      .write("finishedCount", finishedCount)
+      .write("running", finishedCount < jobCount)
+      .writeStartArray("jobs");
+    for (long jobId : batch.getJobIds()) {
+      Job job = Job.FindJob(jobId);
+      if (job == null) continue;
+      json.writeStartObject()
+        .write("jobId", ""+job.getId())
+        .write("hasTranscript", job.getTranscript() != null);
+      JobStatus.WriteStatusAttributes(job, scheduler, json)
+        .writeEnd();
+    } // next job
+    json.writeEnd();
+    StartBatch.WriteRejections(batch, json)
+      .writeEnd()
+      .close();
+  }
+} // end of class BatchStatus
@@ -0,0 +1,220 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import nzilbb.util.IO;
+
+/**
+ * Returns the transcripts of all the finished jobs in a batch, in a given format, as a
+ * single ZIP file.
+ * <p> Jobs that have no transcript (because they're not finished, or they failed) are
+ * listed in a file called <tt>missing.txt</tt> in the ZIP file.
+ * <p> The ZIP file is written by the {@link AsyncResponder}, rather than a container
+ * thread.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@WebServlet(urlPatterns = "/batchtranscripts/*", asyncSupported = true)
+public class BatchTranscripts extends ServletBase {
+  /**
+   * Default constructor.
+   */
+  public BatchTranscripts() {
+  } // end of constructor
+  
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    if (request.getPathInfo() == null        
+        || !request.getPathInfo().startsWith("/")
+        || request.getPathInfo().equals("/")) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("No Batch ID specified.", response);
+      return;
+    }
+    String suffix = request.getPathInfo().substring(1);
+    long batchId = 0;
+    try {
+      batchId = Long.parseLong(suffix);
+    } catch(NumberFormatException exception) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("Invalid Batch ID: " + suffix, response);
+      return;
+    }
+    final Batch batch = Batch.FindBatch(batchId);
+    if (batch == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      returnMessage("Batch not found: " + batchId, response);
+      return;
+    }
+    final String mimeType = request.getParameter("format");
+    if (mimeType == null) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("No format specified.", response);
+      return;
+    }
+    SerializerRegistry serializers = SerializerRegistry.From(getServletContext());
+    if (!serializers.hasFormat(mimeType)) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("Unknown format: " + mimeType, response);
+      return;
+    }
+    log("Batch transcripts: " + batchId + " " + mimeType);
+    
+    response.setContentType("application/zip");
+    response.addHeader(
+      "Content-Disposition", "attachment; filename=batch-" + batchId + ".zip");
+    // serialize on a responder thread, so that this thread is free for other requests
+    final AsyncContext async = request.startAsync();
+    async.setTimeout(0); // there may be a lot to serialize
+    try {
+      AsyncResponder.From(getServletContext()).execute(() -> {
+          try {
+            writeTranscripts(batch, mimeType, async.getResponse().getOutputStream());
+          } catch (IOException x) { // e.g. client went away
+            log("Batch " + batch.getId() + ": " + x);
+          } finally {
+            async.complete();
+          }
+        });
+    } catch (RejectedExecutionException x) {
+      returnMessage(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Too many downloads in progress; please try again later.", async);
+    }
+  }
+  
+  /**
+   * Writes the transcripts of the given batch to the given stream as a ZIP file.
+   * @param batch
+   * @param mimeType The format of the transcripts.
+   * @param out Where to write the ZIP file; this is closed afterwards.
+   * @throws IOException
+   */
+  protected void writeTranscripts(Batch batch, String mimeType, OutputStream out)
+    throws IOException {
+    TranscriptCache cache = TranscriptCache.From(getServletContext());
+    SerializeService serialization = new SerializeService(getServletContext());
+    ZipOutputStream zip = new ZipOutputStream(out);
+    Set<String> names = new HashSet<String>();
+    StringBuilder missing = new StringBuilder();
+    // each transcript is serialized here before its entry is started, so that if the
+    // serializer fails, there's no truncated entry in the ZIP file
+    File temp = File.createTempFile("batch-" + batch.getId() + "-", ".tmp");
+    try {
+      for (long jobId : batch.getJobIds()) {
+        // finished jobs may have to be loaded, so find them one at a time
+        Job job = Job.FindJob(jobId);
+        if (job == null) continue; // expired
+        if (job.getTranscript() == null) {
+          missing.append(job.getWav().getName()).append("\t").append(job.getStatus())
+            .append("\r\n");
+          continue;
+        }
+        
+        // use the cached serialization if there is one
+        TranscriptCache.Entry cached = cache.get(job.getId(), mimeType);
+        InputStream data = null;
+        String name = null;
+        if (cached != null) {
+          try {
+            data = cached.open();
+            name = cached.getName();
+          } catch (IOException x) { // evicted since we looked it up
+          }
+        }
+        if (data == null) {
+          try {
+            SerializeService.Serialization stream
+              = serialization.serialize(job.getTranscript(), mimeType);
+            OutputStream file = new FileOutputStream(temp);
+            try {
+              // keep a copy for next time...
+              TranscriptCache.Recorder recorder = cache.record(
+                job.getId(), mimeType, stream.getName(), stream.getContentType(), file);
+              stream.writeTo(recorder);
+              recorder.commit();
+            } finally {
+              file.close();
+            }
+            name = stream.getName();
+            data = new FileInputStream(temp);
+          } catch (Exception x) {
+            log("Batch " + batch.getId() + " job " + job.getId() + ": " + x);
+            missing.append(job.getWav().getName()).append("\tERROR: ").append(x)
+              .append("\r\n");
+            continue;
+          }
+        }
+        // errors writing to the ZIP file mean the client has gone, so they end the loop
+        try {
+          zip.putNextEntry(new ZipEntry(uniqueName(name, job, names)));
+          IO.Pump(data, zip, false);
+        } finally {
+          data.close();
+        }
+        zip.closeEntry();
+      } // next job
+      
+      if (missing.length() > 0) {
+        zip.putNextEntry(new ZipEntry("missing.txt"));
+        zip.write(missing.toString().getBytes("UTF-8"));
+        zip.closeEntry();
+      }
+    } finally {
+      temp.delete();
+      zip.close();
+    }
+  } // end of writeTranscripts()
+  
+  /**
+   * Ensures the name of a ZIP entry isn't already used by another transcript, by
+   * prefixing the job ID if necessary.
+   * @param name The name of the transcript file.
+   * @param job The job the transcript is from.
+   * @param names The names used so far, to which the result is added.
+   * @return A name that is not already in <var>names</var>.
+   */
+  protected String uniqueName(String name, Job job, Set<String> names) {
+    if (!names.add(name)) {
+      name = job.getId() + "-" + name;
+      names.add(name);
+    }
+    return name;
+  } // end of uniqueName()
+  
+} // end of class BatchTranscripts
@@ -0,0 +1,245 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.ServletContext;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.Graph;
+
+/**
+ * Index of jobs by the content of their recording and the transcriber that transcribes
+ * them, so that repeated uploads of the same recording needn't be transcribed again.
+ * <p> Recordings are identified by a SHA-256 hash of the uploaded file, computed as it
+ * is received. The first job for a given recording and transcriber version is the
+ * <em>leader</em>; later jobs for the same recording {@link Job#follow(Job)} it,
+ * finishing immediately if it has already finished, or when it does if it's still queued
+ * or running.
+ * <p> If there's a {@link JobStore}, jobs that finished before a restart are looked up
+ * there when a recording isn't in the index.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ContentIndex {
+  
+  /**
+   * Gets the index for the given web application.
+   * @param context The servlet context.
+   * @return The index created by {@link ContextListener}, or null if there is none.
+   */
+  public static ContentIndex From(ServletContext context) {
+    return (ContentIndex)context.getAttribute(ContentIndex.class.getName());
+  } // end of From()
+
+  /**
+   * Creates the index key for a recording and transcriber.
+   * @param contentHash The hash of the recording.
+   * @param transcriberId The transcriber's ID.
+   * @param transcriberVersion The transcriber's version.
+   * @return The key, or null if <var>contentHash</var> is null.
+   */
+  public static String Key(String contentHash, String transcriberId, String transcriberVersion) {
+    if (contentHash == null) return null;
+    return contentHash + " " + Annotator(transcriberId, transcriberVersion);
+  } // end of Key()
+
+  /**
+   * Creates the annotator label that's recorded in the <tt>scribe</tt> tag of transcripts.
+   * @param transcriberId The transcriber's ID.
+   * @param transcriberVersion The transcriber's version.
+   * @return e.g. "WhisperTranscriber v0.1.0"
+   */
+  public static String Annotator(String transcriberId, String transcriberVersion) {
+    return transcriberId + " v" + transcriberVersion;
+  } // end of Annotator()
+
+  /**
+   * Creates a digest for hashing recordings.
+   * @return A new SHA-256 digest.
+   */
+  public static MessageDigest NewDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException x) { // every JVM has SHA-256
+      throw new IllegalStateException(x);
+    }
+  } // end of NewDigest()
+
+  /**
+   * Formats a hash as hexadecimal.
+   * @param hash
+   * @return The hash in lower-case hexadecimal.
+   */
+  public static String Hex(byte[] hash) {
+    StringBuilder hex = new StringBuilder(hash.length * 2);
+    for (byte b : hash) hex.append(String.format("%02x", b & 0xFF));
+    return hex.toString();
+  } // end of Hex()
+  
+  /** An indexed job. */
+  static class Entry {
+    final long jobId;
+    final long created = System.currentTimeMillis();
+    Entry(long jobId) { this.jobId = jobId; }
+  }
+  
+  /** Leading jobs, by key. */
+  protected ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+  
+  /**
+   * How long jobs are indexed for, in milliseconds, which should be the same as how long
+   * they're kept for.
+   * @see #getRetentionMillis()
+   * @see #setRetentionMillis(long)
+   */
+  protected long retentionMillis = 1000 * 60 * 60; // 1 hour
+  /**
+   * Getter for {@link #retentionMillis}: How long jobs are indexed for.
+   * @return How long jobs are indexed for, in milliseconds.
+   */
+  public long getRetentionMillis() { return retentionMillis; }
+  /**
+   * Setter for {@link #retentionMillis}: How long jobs are indexed for.
+   * @param newRetentionMillis How long jobs are indexed for, in milliseconds.
+   */
+  public ContentIndex setRetentionMillis(long newRetentionMillis) { retentionMillis = newRetentionMillis; return this; }
+  
+  /**
+   * Where jobs that finished before a restart can be found, or null if there is none.
+   * @see #getStore()
+   * @see #setStore(JobStore)
+   */
+  protected JobStore store;
+  /**
+   * Getter for {@link #store}: Where jobs that finished before a restart can be found.
+   * @return Where jobs that finished before a restart can be found, or null if there is
+   * none.
+   */
+  public JobStore getStore() { return store; }
+  /**
+   * Setter for {@link #store}: Where jobs that finished before a restart can be found.
+   * @param newStore Where jobs that finished before a restart can be found, or null if
+   * there is none.
+   */
+  public ContentIndex setStore(JobStore newStore) { store = newStore; return this; }
+  
+  /**
+   * Default constructor.
+   */
+  public ContentIndex() {
+  } // end of constructor
+
+  /**
+   * Finds the job that a new job for the same recording should follow, or if there isn't
+   * one, makes the new job the leader for its recording.
+   * <p> If identical recordings are uploaded at the same time, only one of them becomes
+   * the leader. Leaders are checked outside of any lock, as that may mean loading them
+   * from the {@link #store}, and the index is only changed if it hasn't changed since.
+   * @param key The key from {@link #Key(String,String,String)}.
+   * @param job The new job.
+   * @return The job to follow, or null if <var>job</var> is now the leader.
+   */
+  public Job claim(String key, Job job) {
+    if (key == null) return null;
+    Entry claim = new Entry(job.getId());
+    while (true) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        // it may have been transcribed before a restart
+        long storedId = store == null? 0 : store.findContent(key);
+        Job leader = storedId == 0? null : usableLeader(key, storedId);
+        if (leader != null) {
+          if (entries.putIfAbsent(key, new Entry(storedId)) == null) return leader;
+        } else {
+          if (entries.putIfAbsent(key, claim) == null) return null;
+        }
+      } else {
+        Job leader = usableLeader(key, entry.jobId);
+        if (leader != null) return leader;
+        if (entries.replace(key, entry, claim)) return null;
+      }
+      // another job changed the index while we checked, so check again
+    } // next attempt
+  } // end of claim()
+
+  /**
+   * Removes a leader, e.g. because it couldn't be queued after all.
+   * @param key The key from {@link #Key(String,String,String)}.
+   * @param job The job that was the leader.
+   */
+  public void remove(String key, Job job) {
+    if (key == null) return;
+    entries.computeIfPresent(key, (k, entry) -> entry.jobId == job.getId()? null : entry);
+  } // end of remove()
+  
+  /**
+   * Determines whether the given job can be followed.
+   * @param key The job's key.
+   * @param jobId The job's ID.
+   * @return The job, if it's queued or running, or finished with a transcript that was
+   * produced by the transcriber in the key, or null otherwise.
+   */
+  protected Job usableLeader(String key, long jobId) {
+    Job job = Job.FindJob(jobId);
+    if (job == null) return null; // forgotten
+    if (!job.isDone()) return job;
+    if (job.getState() != Job.State.Finished) return null; // failed, so try again
+    Graph transcript = job.getTranscript();
+    if (transcript == null) return null;
+    // check the transcript was produced by the same transcriber version
+    String annotator = Annotator(job.getTranscriberId(), job.getTranscriberVersion());
+    if (!key.endsWith(" " + annotator)) return null;
+    for (Annotation scribe : transcript.all("scribe")) {
+      if (annotator.equals(scribe.getLabel())) return job;
+    }
+    return null;
+  } // end of usableLeader()
+  
+  /**
+   * Removes leaders that are older than {@link #getRetentionMillis()}.
+   * @return The number of leaders removed.
+   */
+  public int purge() {
+    long cutoff = System.currentTimeMillis() - retentionMillis;
+    int count = 0;
+    Iterator<Map.Entry<String,Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().getValue().created < cutoff) {
+        iterator.remove();
+        count++;
+      }
+    } // next entry
+    return count;
+  } // end of purge()
+
+  /**
+   * The number of indexed recordings.
+   * @return The number of leading jobs.
+   */
+  public int size() {
+    return entries.size();
+  } // end of size()
+  
+} // end of class ContentIndex
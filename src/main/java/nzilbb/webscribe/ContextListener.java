@@ -0,0 +1,364 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.DoubleSupplier;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Creates shared services when the web application starts, and shuts them down when it
+ * stops. This uses the following servlet configuration parameters:
+ * <dl>
+ *  <dt>DataDirectory</dt>
+ *   <dd>Where jobs are kept so that they survive restarts (default
+ *    <tt>~/webscribe-data/<var>context-path</var></tt>).</dd>
+ *  <dt>TranscriptionWorkers</dt>
+ *   <dd>The number of transcription jobs that can run at once (default 1).</dd>
+ *  <dt>SpoolDirectory</dt>
+ *   <dd>A directory shared with {@link Worker} processes, which transcribe jobs instead
+ *    of the web application (default none, i.e. jobs are transcribed by the web
+ *    application). TranscriptionWorkers is then the number of jobs that can be handed
+ *    to workers at once.</dd>
+ *  <dt>TranscriptionQueueSize</dt>
+ *   <dd>The number of jobs that can be waiting to start (default 100).</dd>
+ *  <dt>FinishedJobRetentionMinutes</dt>
+ *   <dd>How long finished jobs and their transcripts are kept (default 60).</dd>
+ *  <dt>MaxFinishedJobs</dt>
+ *   <dd>The maximum number of finished jobs that are kept in memory (default 1000);
+ *    others are reloaded from DataDirectory when needed.</dd>
+ *  <dt>MinTranscribers</dt>
+ *   <dd>The number of initialized transcriber instances to keep ready (default 1).</dd>
+ *  <dt>MaxTranscribers</dt>
+ *   <dd>The maximum number of transcriber instances (default TranscriptionWorkers).</dd>
+ *  <dt>TranscriberIdleMinutes</dt>
+ *   <dd>How long unused transcriber instances are kept (default 30).</dd>
+ *  <dt>TranscriptCacheMB</dt>
+ *   <dd>Memory budget for caching serialized transcripts (default 64).</dd>
+ *  <dt>TranscriptCacheSpillMB</dt>
+ *   <dd>Disk budget for serialized transcripts evicted from memory (default 0, i.e.
+ *    evicted transcripts are discarded).</dd>
+ *  <dt>ScratchQuotaMB</dt>
+ *   <dd>The maximum disk space used by recordings that are being uploaded or waiting to be
+ *    transcribed (default 10240, 0 for no limit).</dd>
+ *  <dt>MinFreeDiskMB</dt>
+ *   <dd>Uploads are refused if they would leave less than this much disk space free
+ *    (default 1024).</dd>
+ *  <dt>ResponseThreads</dt>
+ *   <dd>The number of responses (e.g. serialized transcripts) that can be prepared at
+ *    once (default 4).</dd>
+ *  <dt>ResponseQueueSize</dt>
+ *   <dd>The number of responses that can be waiting to be prepared (default 100).</dd>
+ * </dl>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@WebListener
+public class ContextListener implements ServletContextListener {
+  
+  /** Timer for periodic housekeeping tasks. */
+  Timer housekeeping;
+  
+  /**
+   * The names of the metrics registered by {@link #registerMetrics}, which refer to this
+   * application's services, so they're unregistered when it stops.
+   */
+  Vector<String> metricNames = new Vector<String>();
+  
+  /**
+   * Default constructor.
+   */
+  public ContextListener() {
+  } // end of constructor
+  
+  /**
+   * Starts the job scheduler, the transcriber pool, the spool (if jobs are transcribed by
+   * worker processes), the serializer registry, the transcript cache, the email outbox,
+   * the asynchronous responder, the job store, the scratch space for uploads, and purging
+   * of finished jobs. Jobs that were unfinished
+   * when the web application last stopped are resumed.
+   */
+  @Override public void contextInitialized(ServletContextEvent event) {
+    final ServletContext context = event.getServletContext();
+    int workers = IntegerParameter(context, "TranscriptionWorkers", 1);
+    
+    final TranscriberPool transcriberPool = new TranscriberPool(
+      new File(context.getRealPath("transcriber")),
+      IntegerParameter(context, "MaxTranscribers", workers),
+      message -> context.log(message))
+      .setMinSize(IntegerParameter(context, "MinTranscribers", 1))
+      .setIdleMillis(1000L * 60 * IntegerParameter(context, "TranscriberIdleMinutes", 30));
+    context.setAttribute(TranscriberPool.class.getName(), transcriberPool);
+
+    // jobs may be handed to worker processes instead of being transcribed here
+    String spoolDirectory = context.getInitParameter("SpoolDirectory");
+    final Spool spool = spoolDirectory == null || spoolDirectory.trim().length() == 0? null
+      : new Spool(new File(spoolDirectory.trim()), message -> context.log(message));
+    if (spool != null) {
+      context.setAttribute(Spool.class.getName(), spool);
+      context.log("Jobs are transcribed by workers using: " + spoolDirectory.trim());
+    } else {
+      // load the transcriber in the background, so the first job doesn't have to wait
+      transcriberPool.warmUpInBackground();
+    }
+    
+    SerializerRegistry serializers = new SerializerRegistry(
+      new File(context.getRealPath("formatter")), message -> context.log(message))
+      .refresh();
+    context.setAttribute(SerializerRegistry.class.getName(), serializers);
+    
+    final TranscriptCache transcriptCache = new TranscriptCache(
+      1024L * 1024 * IntegerParameter(context, "TranscriptCacheMB", 64),
+      message -> context.log(message));
+    long spillBytes = 1024L * 1024 * IntegerParameter(context, "TranscriptCacheSpillMB", 0);
+    File tempDir = (File)context.getAttribute("javax.servlet.context.tempdir");
+    if (spillBytes > 0 && tempDir != null) {
+      transcriptCache
+        .setSpillDir(new File(tempDir, "transcript-cache"))
+        .setMaxSpillBytes(spillBytes);
+    }
+    context.setAttribute(TranscriptCache.class.getName(), transcriptCache);
+    Job.Registry().getForgetObservers().add(transcriptCache::invalidate);
+    
+    JobScheduler scheduler = new JobScheduler(
+      workers,
+      IntegerParameter(context, "TranscriptionQueueSize", 100),
+      message -> context.log(message))
+      .start();
+    context.setAttribute(JobScheduler.class.getName(), scheduler);
+
+    EmailOutbox outbox = SendEmailService.NewOutbox(context);
+    if (outbox != null) {
+      context.setAttribute(EmailOutbox.class.getName(), outbox.start());
+    }
+
+    AsyncResponder responder = new AsyncResponder(
+      IntegerParameter(context, "ResponseThreads", 4),
+      IntegerParameter(context, "ResponseQueueSize", 100),
+      message -> context.log(message));
+    context.setAttribute(AsyncResponder.class.getName(), responder);
+
+    final JobRegistry registry = Job.Registry()
+      .setRetentionMillis(
+        1000L * 60 * IntegerParameter(context, "FinishedJobRetentionMinutes", 60))
+      .setMaxFinished(IntegerParameter(context, "MaxFinishedJobs", 1000));
+    registry.getForgetObservers().add(Batch::JobForgotten);
+
+    // keep jobs on disk, and resume those that were interrupted by a restart
+    String dataDirectory = context.getInitParameter("DataDirectory");
+    File dataDir = dataDirectory != null && dataDirectory.trim().length() > 0?
+      new File(dataDirectory.trim())
+      : new File(System.getProperty("user.home"), "webscribe-data" + context.getContextPath());
+    final JobStore store = new JobStore(dataDir, message -> context.log(message))
+      .setRetentionMillis(registry.getRetentionMillis());
+    context.setAttribute(JobStore.class.getName(), store);
+    registry.setStore(store);
+    Job.ReserveIds(store.getNextId());
+
+    // uploads are received in the data directory, within a disk quota
+    final ScratchSpace scratch = new ScratchSpace(
+      new File(dataDir, "uploads"), message -> context.log(message))
+      .setQuotaBytes(1024L * 1024 * IntegerParameter(context, "ScratchQuotaMB", 10240))
+      .setMinFreeBytes(1024L * 1024 * IntegerParameter(context, "MinFreeDiskMB", 1024))
+      .watch(store.getUnfinishedDir());
+    context.setAttribute(ScratchSpace.class.getName(), scratch);
+    int orphans = scratch.sweep(); // nothing can be uploading yet
+    if (orphans > 0) context.log("Deleted " + orphans + " interrupted upload(s)");
+
+    // don't transcribe recordings that have already been transcribed
+    final ContentIndex contentIndex = new ContentIndex()
+      .setRetentionMillis(registry.getRetentionMillis())
+      .setStore(store); // jobs that finished before a restart are looked up when needed
+    context.setAttribute(ContentIndex.class.getName(), contentIndex);
+    
+    int resumed = 0;
+    for (Job job : store.recover()) {
+      job.setTranscriberPool(transcriberPool).setSpool(spool);
+      String key = ContentIndex.Key(
+        job.getContentHash(), job.getTranscriberId(), job.getTranscriberVersion());
+      try {
+        Job leader = contentIndex.claim(key, job);
+        if (leader != null) { // it was following another job
+          registry.add(job);
+          job.follow(leader);
+        } else {
+          scheduler.submit(job);
+          registry.add(job);
+        }
+        resumed++;
+      } catch (RejectedExecutionException x) { // it stays on disk for next time
+        contentIndex.remove(key, job);
+        context.log("Could not resume job " + job.getId() + ": " + x.getMessage());
+      }
+    } // next unfinished job
+    context.log("Job store: " + dataDir.getPath() + " - resumed " + resumed + " job(s)");
+    registerMetrics(scheduler, transcriberPool, transcriptCache, responder, outbox, scratch);
+    
+    housekeeping = new Timer("nzilbb.webscribe.ContextListener", true);
+    housekeeping.schedule(new TimerTask() {
+        public void run() {
+          int purged = registry.purge();
+          if (purged > 0) context.log("Forgot " + purged + " finished job(s)");
+          int deleted = store.purge();
+          if (deleted > 0) context.log("Deleted " + deleted + " stored job(s)");
+          contentIndex.purge();
+          int abandoned = scratch.purge();
+          if (abandoned > 0) context.log("Deleted " + abandoned + " abandoned upload(s)");
+          int evicted = transcriberPool.evictIdle();
+          if (evicted > 0) context.log("Discarded " + evicted + " idle transcriber(s)");
+        }
+      }, 60000, 60000);
+  } // end of contextInitialized()
+  
+  /**
+   * Registers the values of the given services as {@link Metrics}.
+   * @param scheduler
+   * @param transcriberPool
+   * @param transcriptCache
+   * @param responder
+   * @param outbox The email outbox, or null if email isn't configured.
+   * @param scratch
+   */
+  protected void registerMetrics(
+    JobScheduler scheduler, TranscriberPool transcriberPool, TranscriptCache transcriptCache,
+    AsyncResponder responder, EmailOutbox outbox, ScratchSpace scratch) {
+    gauge("webscribe_queue_depth", "Jobs waiting for a worker",
+          () -> scheduler.getQueueLength());
+    gauge("webscribe_queue_submitters", "Submitters with jobs waiting for a worker",
+          () -> scheduler.getSubmitterCount());
+    gauge("webscribe_jobs_running", "Jobs currently running",
+          () -> scheduler.getRunningCount());
+    gauge("webscribe_workers", "Jobs that can run at once",
+          () -> scheduler.getWorkerCount());
+    gauge("webscribe_scratch_bytes",
+          "Disk space used by recordings being uploaded or waiting for transcription",
+          () -> scratch.getUsedBytes());
+    gauge("webscribe_transcribers", "Transcriber instances, busy or idle",
+          () -> transcriberPool.getLiveCount());
+    gauge("webscribe_transcribers_idle", "Transcriber instances not in use",
+          () -> transcriberPool.getIdleCount());
+    counter("webscribe_transcript_cache_hits_total",
+            "Transcript downloads served from the cache",
+            () -> transcriptCache.getHits());
+    counter("webscribe_transcript_cache_misses_total",
+            "Transcript downloads that had to be serialized",
+            () -> transcriptCache.getMisses());
+    gauge("webscribe_transcript_cache_hit_ratio",
+          "Proportion of transcript downloads served from the cache", () -> {
+            double total = transcriptCache.getHits() + transcriptCache.getMisses();
+            return total > 0? transcriptCache.getHits() / total : 0;
+          });
+    gauge("webscribe_transcript_cache_bytes", "Memory used by cached transcripts",
+          () -> transcriptCache.getMemoryBytes());
+    gauge("webscribe_responder_active", "Responses being prepared",
+          () -> responder.getActiveCount());
+    gauge("webscribe_responder_queue_depth", "Responses waiting to be prepared",
+          () -> responder.getQueueLength());
+    if (outbox != null) {
+      gauge("webscribe_email_queue_depth", "Email messages waiting to be sent",
+            () -> outbox.getQueueLength());
+      counter("webscribe_email_sent_total", "Email messages sent",
+              () -> outbox.getSentCount());
+    }
+  } // end of registerMetrics()
+  
+  /**
+   * Registers a gauge with {@link Metrics}, to be unregistered by
+   * {@link #contextDestroyed(ServletContextEvent)}.
+   * @param name The metric name.
+   * @param help A description of the metric.
+   * @param value Gets the current value.
+   */
+  protected void gauge(String name, String help, DoubleSupplier value) {
+    Metrics.Instance().gauge(name, help, value);
+    metricNames.add(name);
+  } // end of gauge()
+  
+  /**
+   * Registers a counter with {@link Metrics}, to be unregistered by
+   * {@link #contextDestroyed(ServletContextEvent)}.
+   * @param name The metric name.
+   * @param help A description of the metric.
+   * @param value Gets the current value.
+   */
+  protected void counter(String name, String help, DoubleSupplier value) {
+    Metrics.Instance().counter(name, help, value);
+    metricNames.add(name);
+  } // end of counter()
+  
+  /**
+   * Stops the job scheduler, the transcriber pool, and housekeeping tasks, and
+   * unregisters the metrics that refer to them.
+   */
+  @Override public void contextDestroyed(ServletContextEvent event) {
+    if (housekeeping != null) housekeeping.cancel();
+    // metrics outlive the application, so mustn't keep its services reachable
+    for (String name : metricNames) Metrics.Instance().unregister(name);
+    metricNames.clear();
+    ServletContext context = event.getServletContext();
+    // interrupted jobs should be resumed next time, not stored as failed
+    Job.Registry().setStore(null);
+    context.removeAttribute(JobStore.class.getName());
+    JobScheduler scheduler = JobScheduler.From(context);
+    if (scheduler != null) scheduler.shutdown();
+    context.removeAttribute(JobScheduler.class.getName());
+    AsyncResponder responder = AsyncResponder.From(context);
+    if (responder != null) responder.shutdown();
+    context.removeAttribute(AsyncResponder.class.getName());
+    EmailOutbox outbox = EmailOutbox.From(context);
+    if (outbox != null) outbox.shutdown();
+    context.removeAttribute(EmailOutbox.class.getName());
+    // jobs have been interrupted, so transcribers are no longer needed
+    TranscriberPool transcriberPool = TranscriberPool.From(context);
+    if (transcriberPool != null) transcriberPool.shutdown();
+    context.removeAttribute(TranscriberPool.class.getName());
+    context.removeAttribute(Spool.class.getName());
+    context.removeAttribute(SerializerRegistry.class.getName());
+    context.removeAttribute(TranscriptCache.class.getName());
+    context.removeAttribute(ScratchSpace.class.getName());
+  } // end of contextDestroyed()
+
+  /**
+   * Gets an integer-valued servlet configuration parameter.
+   * @param context The servlet context.
+   * @param name The name of the parameter.
+   * @param defaultValue The value to use if the parameter is not set or is invalid.
+   * @return The parameter value.
+   */
+  public static int IntegerParameter(ServletContext context, String name, int defaultValue) {
+    String value = context.getInitParameter(name);
+    if (value == null || value.trim().length() == 0) return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException x) {
+      context.log("Invalid value for " + name + ": \"" + value + "\" - using " + defaultValue);
+      return defaultValue;
+    }
+  } // end of IntegerParameter()
+  
+} // end of class ContextListener
@@ -0,0 +1,406 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.servlet.ServletContext;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Queues email messages and sends them from a background thread, so that callers don't
+ * wait for the mail server.
+ * <p> The connection to the SMTP server is kept open while there are messages to send,
+ * so that a batch of messages is sent over one (authenticated) connection, and is closed
+ * once the outbox has been idle for {@link #getIdleMillis()}. If a message can't be sent,
+ * e.g. because the server is unreachable, or it replies with a transient (4xx) error such
+ * as greylisting, it's retried after a delay that doubles with each attempt, up to
+ * {@link #getMaxAttempts()} attempts. Messages the server rejects permanently (e.g.
+ * because of a bad address) are not retried.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class EmailOutbox {
+
+  /**
+   * Gets the outbox for the given web application.
+   * @param context The servlet context.
+   * @return The outbox created by {@link ContextListener}, or null if email is not
+   * configured.
+   */
+  public static EmailOutbox From(ServletContext context) {
+    return (EmailOutbox)context.getAttribute(EmailOutbox.class.getName());
+  } // end of From()
+
+  /**
+   * Creates mail session properties for the given server.
+   * @param host Host name of the SMTP server.
+   * @param port The SMTP port, or 0 for the default; 465 (SSL) if <var>user</var> is set,
+   * otherwise 25.
+   * @param user SMTP username, or null if not required.
+   * @param password SMTP password, or null if not required.
+   * @return The session properties.
+   */
+  public static Properties SessionProperties(
+    String host, int port, String user, String password) {
+    Properties props = new Properties();
+    props.put("mail.smtp.host", host);
+    // don't let an unresponsive server hold up the outbox forever
+    props.put("mail.smtp.connectiontimeout", "60000");
+    props.put("mail.smtp.timeout", "60000");
+    if (user != null) {
+      if (password != null) { // password is set too
+        props.put("mail.smtp.auth", "true");
+      } else { // no password
+        // treat SMTPUser as the sending host instead
+        // otherwise, set mail.smtp.localhost
+        props.put("mail.smtp.localhost", user);
+      }
+      props.put("mail.smtp.starttls.enable","true");	 
+      props.put("mail.smtp.EnableSSL.enable","true");
+      
+      props.setProperty("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");   
+      props.setProperty("mail.smtp.socketFactory.fallback", "false");   
+      if (port <= 0) port = 465;
+      props.setProperty("mail.smtp.socketFactory.port", ""+port);
+    }
+    if (port > 0) props.setProperty("mail.smtp.port", ""+port);
+    return props;
+  } // end of SessionProperties()
+  
+  /**
+   * Determines whether the SMTP server rejected a message only for now, e.g. because of
+   * greylisting, in which case it's worth trying again later.
+   * @param x The exception thrown when sending the message, or any exception it's
+   * chained to.
+   * @return true if the server replied with a 4xx code.
+   */
+  public static boolean IsTransient(MessagingException x) {
+    for (Exception cause = x; cause != null;
+         cause = cause instanceof MessagingException?
+           ((MessagingException)cause).getNextException() : null) {
+      int code = 0;
+      if (cause instanceof SMTPSendFailedException) {
+        code = ((SMTPSendFailedException)cause).getReturnCode();
+      } else if (cause instanceof SMTPAddressFailedException) {
+        code = ((SMTPAddressFailedException)cause).getReturnCode();
+      }
+      if (code >= 400 && code < 500) return true;
+    } // next chained exception
+    return false;
+  } // end of IsTransient()
+  
+  /**
+   * A message waiting to be sent.
+   */
+  static class Outgoing implements Delayed {
+    Message message;
+    int attempts = 0;
+    long notBefore = System.currentTimeMillis();
+    Outgoing(Message message) {
+      this.message = message;
+    }
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(notBefore - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+    public int compareTo(Delayed other) {
+      return Long.compare(notBefore, ((Outgoing)other).notBefore);
+    }
+  } // end of class Outgoing
+  
+  /** Mail session, created once. */
+  protected Session session;
+  /**
+   * Getter for {@link #session}: The mail session, for creating messages.
+   * @return The mail session.
+   */
+  public Session getSession() { return session; }
+  
+  /** SMTP username, or null. */
+  protected String user;
+  
+  /** SMTP password, or null. */
+  protected String password;
+  
+  /** Messages waiting to be sent, ordered by when they can next be tried. */
+  protected DelayQueue<Outgoing> queue = new DelayQueue<Outgoing>();
+  
+  /** Connection to the SMTP server, if one is open. */
+  protected Transport transport;
+  
+  /** The thread that sends messages. */
+  protected Thread sender;
+  
+  /** Where log messages go. */
+  protected Consumer<String> log;
+  
+  /** The number of messages that have been sent. */
+  protected AtomicLong sentCount = new AtomicLong(0);
+  
+  /** The number of messages that were given up on. */
+  protected AtomicLong failedCount = new AtomicLong(0);
+  
+  /**
+   * How many times to try sending a message before giving up.
+   * @see #getMaxAttempts()
+   * @see #setMaxAttempts(int)
+   */
+  protected int maxAttempts = 5;
+  /**
+   * Getter for {@link #maxAttempts}: How many times to try sending a message before giving up.
+   * @return How many times to try sending a message before giving up.
+   */
+  public int getMaxAttempts() { return maxAttempts; }
+  /**
+   * Setter for {@link #maxAttempts}: How many times to try sending a message before giving up.
+   * @param newMaxAttempts How many times to try sending a message before giving up.
+   */
+  public EmailOutbox setMaxAttempts(int newMaxAttempts) { maxAttempts = newMaxAttempts; return this; }
+  
+  /**
+   * How long, in milliseconds, to wait before the first retry; subsequent retries wait
+   * twice as long as the one before.
+   * @see #getRetryMillis()
+   * @see #setRetryMillis(long)
+   */
+  protected long retryMillis = 10000;
+  /**
+   * Getter for {@link #retryMillis}: How long, in milliseconds, to wait before the first
+   * retry.
+   * @return How long, in milliseconds, to wait before the first retry.
+   */
+  public long getRetryMillis() { return retryMillis; }
+  /**
+   * Setter for {@link #retryMillis}: How long, in milliseconds, to wait before the first
+   * retry.
+   * @param newRetryMillis How long, in milliseconds, to wait before the first retry.
+   */
+  public EmailOutbox setRetryMillis(long newRetryMillis) { retryMillis = newRetryMillis; return this; }
+  
+  /**
+   * How long, in milliseconds, to keep the connection open when there's nothing to send.
+   * @see #getIdleMillis()
+   * @see #setIdleMillis(long)
+   */
+  protected long idleMillis = 30000;
+  /**
+   * Getter for {@link #idleMillis}: How long, in milliseconds, to keep the connection
+   * open when there's nothing to send.
+   * @return How long to keep the connection open when there's nothing to send.
+   */
+  public long getIdleMillis() { return idleMillis; }
+  /**
+   * Setter for {@link #idleMillis}: How long, in milliseconds, to keep the connection
+   * open when there's nothing to send.
+   * @param newIdleMillis How long to keep the connection open when there's nothing to send.
+   */
+  public EmailOutbox setIdleMillis(long newIdleMillis) { idleMillis = newIdleMillis; return this; }
+  
+  /**
+   * Constructor.
+   * @param properties Mail session properties, e.g. from
+   * {@link #SessionProperties(String,int,String,String)}.
+   * @param user SMTP username, or null if not required.
+   * @param password SMTP password, or null if not required.
+   * @param log Where log messages go.
+   */
+  public EmailOutbox(Properties properties, String user, String password, Consumer<String> log) {
+    this.session = Session.getInstance(properties, null);
+    this.user = user;
+    this.password = password;
+    this.log = log;
+  } // end of constructor
+  
+  /**
+   * Starts the sending thread.
+   * @return This outbox.
+   */
+  public EmailOutbox start() {
+    sender = new Thread(() -> work(), "nzilbb.webscribe.EmailOutbox");
+    sender.setDaemon(true);
+    sender.start();
+    return this;
+  } // end of start()
+  
+  /**
+   * Stops the sending thread. Messages that haven't been sent are discarded.
+   */
+  public void shutdown() {
+    if (sender != null) sender.interrupt();
+    if (queue.size() > 0) {
+      log.accept("EmailOutbox: discarding " + queue.size() + " unsent message(s)");
+    }
+    queue.clear();
+  } // end of shutdown()
+  
+  /**
+   * Queues a message to be sent as soon as possible.
+   * @param message A message created with {@link #getSession()}.
+   */
+  public void send(Message message) {
+    queue.add(new Outgoing(message));
+  } // end of send()
+  
+  /**
+   * The number of messages waiting to be sent, including those waiting to be retried.
+   * @return The number of messages waiting to be sent.
+   */
+  public int getQueueLength() {
+    return queue.size();
+  } // end of getQueueLength()
+  
+  /**
+   * The number of messages that have been sent.
+   * @return The number of messages that have been sent.
+   */
+  public long getSentCount() {
+    return sentCount.get();
+  } // end of getSentCount()
+  
+  /**
+   * The number of messages that could not be sent, even after retrying.
+   * @return The number of messages that were given up on.
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  } // end of getFailedCount()
+  
+  /**
+   * Sending thread body: sends queued messages until interrupted.
+   */
+  protected void work() {
+    Vector<Outgoing> batch = new Vector<Outgoing>();
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Outgoing next = queue.poll(idleMillis, TimeUnit.MILLISECONDS);
+        if (next == null) { // nothing to do for a while
+          disconnect();
+          continue;
+        }
+        // send everything that's ready over the same connection
+        batch.add(next);
+        queue.drainTo(batch);
+        for (Outgoing outgoing : batch) {
+          try {
+            deliver(outgoing);
+          } catch (RuntimeException x) { // don't let one bad message stop the outbox
+            log.accept("EmailOutbox: could not send " + subject(outgoing) + ": " + x);
+            failedCount.incrementAndGet();
+            disconnect();
+          }
+        } // next message
+        batch.clear();
+      } catch (InterruptedException x) {
+        break;
+      }
+    } // next batch
+    disconnect();
+  } // end of work()
+  
+  /**
+   * Tries to send a message, queuing it for a retry if that fails.
+   * @param outgoing
+   */
+  protected void deliver(Outgoing outgoing) {
+    outgoing.attempts++;
+    long startTime = System.nanoTime();
+    try {
+      connect();
+      outgoing.message.saveChanges();
+      transport.sendMessage(outgoing.message, outgoing.message.getAllRecipients());
+      sentCount.incrementAndGet();
+      Metrics.Instance().emailSeconds.observe((System.nanoTime() - startTime) / 1e9);
+    } catch (MessagingException x) {
+      Metrics.Instance().emailFailures.inc();
+      if (x instanceof SendFailedException && !IsTransient(x)) {
+        // e.g. bad address, so retrying won't help
+        log.accept("EmailOutbox: could not send " + subject(outgoing) + ": " + x);
+        failedCount.incrementAndGet();
+        return;
+      }
+      // maybe the connection was lost, or the server wants us to try again later
+      if (!(x instanceof SendFailedException)) disconnect(); // otherwise it's still usable
+      if (outgoing.attempts >= maxAttempts) {
+        log.accept("EmailOutbox: giving up on " + subject(outgoing)
+                   + " after " + outgoing.attempts + " attempts: " + x);
+        failedCount.incrementAndGet();
+      } else {
+        long delay = retryMillis << (outgoing.attempts - 1);
+        log.accept("EmailOutbox: could not send " + subject(outgoing)
+                   + " - retrying in " + (delay / 1000) + "s: " + x);
+        outgoing.notBefore = System.currentTimeMillis() + delay;
+        queue.add(outgoing);
+      }
+    }
+  } // end of deliver()
+  
+  /**
+   * Opens the connection to the SMTP server, if it's not already open.
+   * @throws MessagingException
+   */
+  protected void connect() throws MessagingException {
+    if (transport != null && transport.isConnected()) return;
+    transport = session.getTransport("smtp");
+    if (user != null && password != null) {
+      transport.connect(user, password);
+    } else {
+      transport.connect();
+    }
+  } // end of connect()
+  
+  /**
+   * Closes the connection to the SMTP server, if it's open.
+   */
+  protected void disconnect() {
+    if (transport != null) {
+      try {
+        transport.close();
+      } catch (MessagingException x) {
+      }
+      transport = null;
+    }
+  } // end of disconnect()
+  
+  /**
+   * Describes a message for log messages.
+   * @param outgoing
+   * @return The message's subject.
+   */
+  protected String subject(Outgoing outgoing) {
+    try {
+      return "\"" + outgoing.message.getSubject() + "\"";
+    } catch (MessagingException x) {
+      return "message";
+    }
+  } // end of subject()
+  
+} // end of class EmailOutbox
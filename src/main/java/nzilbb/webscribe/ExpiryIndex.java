@@ -0,0 +1,278 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import nzilbb.util.IO;
+
+/**
+ * Deletes files or directories at given times.
+ * <p> Files are registered with {@link #add(String,long)} when they're created. Pending
+ * deletions are kept in a {@link DelayQueue}, so that a single thread sleeps until the
+ * next one is due, and the cost of deleting files depends only on how many expire, not
+ * on how many exist.
+ * <p> So that files are still deleted after a restart, the index is persisted in a
+ * journal file, to which each addition and deletion is appended. When the journal has
+ * grown to much more than the number of pending deletions, it's rewritten. Files that
+ * expired while the application was stopped are deleted when the index is started.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ExpiryIndex {
+
+  /** A pending deletion. */
+  protected static class Entry implements Delayed {
+    final String name;
+    final long expiryTime;
+    Entry(String name, long expiryTime) {
+      this.name = name;
+      this.expiryTime = expiryTime;
+    }
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(expiryTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+    public int compareTo(Delayed other) {
+      return Long.compare(expiryTime, ((Entry)other).expiryTime);
+    }
+  } // end of class Entry
+
+  /** The directory containing the files to delete. */
+  protected File dir;
+
+  /** The journal file. */
+  protected File journal;
+
+  /** Where log messages go. */
+  protected Consumer<String> log;
+
+  /** Pending deletions, in order of expiry. */
+  protected DelayQueue<Entry> queue = new DelayQueue<Entry>();
+
+  /**
+   * The current pending deletion for each file. Entries in {@link #queue} that are not
+   * here have been superseded.
+   */
+  protected Map<String,Entry> pending = new HashMap<String,Entry>();
+
+  /** Open journal, or null if it's not open. */
+  protected Writer journalWriter;
+
+  /** The number of lines in the journal. */
+  protected int journalLines = 0;
+
+  /** Thread that deletes files when they expire. */
+  protected Thread deleter;
+
+  /**
+   * Constructor.
+   * @param dir The directory containing the files to delete.
+   * @param journal The file in which to persist the index; this should not be in
+   * <var>dir</var>.
+   * @param log Where log messages go.
+   */
+  public ExpiryIndex(File dir, File journal, Consumer<String> log) {
+    this.dir = dir;
+    this.journal = journal;
+    this.log = log;
+  } // end of constructor
+
+  /**
+   * Reads the journal, and starts deleting files as they expire.
+   * <p> If there's no journal yet, files already in the directory are indexed as expiring
+   * <var>maxAge</var> after they were last modified.
+   * @param maxAge How long existing unindexed files are kept, in milliseconds.
+   * @return This index.
+   * @throws IOException If the journal can't be read or written.
+   */
+  public synchronized ExpiryIndex start(long maxAge) throws IOException {
+    if (journal.exists()) {
+      BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+      try {
+        String line = reader.readLine();
+        while (line != null) {
+          int space = line.indexOf(' ');
+          if (space > 0) {
+            String name = line.substring(space + 1);
+            if (line.startsWith("-")) { // deleted
+              pending.remove(name);
+            } else {
+              try {
+                pending.put(name, new Entry(name, Long.parseLong(line.substring(0, space))));
+              } catch (NumberFormatException x) { // a partially written line
+              }
+            }
+          }
+          line = reader.readLine();
+        } // next line
+      } finally {
+        reader.close();
+      }
+    } else { // first time, so index what's already there
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          pending.put(file.getName(), new Entry(file.getName(), file.lastModified() + maxAge));
+        } // next file
+      }
+    }
+    queue.addAll(pending.values());
+    compact();
+    
+    deleter = new Thread(() -> deleteExpired(), "nzilbb.webscribe.ExpiryIndex");
+    deleter.setDaemon(true);
+    deleter.start();
+    return this;
+  } // end of start()
+
+  /**
+   * Stops deleting files. Pending deletions remain in the journal for next time.
+   */
+  public void shutdown() {
+    if (deleter != null) deleter.interrupt();
+    synchronized (this) {
+      closeJournal();
+    }
+  } // end of shutdown()
+
+  /**
+   * Schedules deletion of a file in the directory. If the file's deletion was already
+   * scheduled, it's rescheduled.
+   * @param name The name of the file or subdirectory.
+   * @param expiryTime When to delete it, as returned by {@link System#currentTimeMillis()}.
+   */
+  public synchronized void add(String name, long expiryTime) {
+    Entry entry = new Entry(name, expiryTime);
+    pending.put(name, entry);
+    queue.add(entry);
+    journal(expiryTime + " " + name);
+  } // end of add()
+
+  /**
+   * The number of files waiting to be deleted.
+   * @return The number of pending deletions.
+   */
+  public synchronized int size() {
+    return pending.size();
+  } // end of size()
+
+  /**
+   * Body of the {@link #deleter} thread: deletes each file when it expires.
+   */
+  protected void deleteExpired() {
+    while (!Thread.currentThread().isInterrupted()) {
+      Entry entry = null;
+      try {
+        entry = queue.take();
+      } catch (InterruptedException x) {
+        break;
+      }
+      synchronized (this) {
+        if (pending.get(entry.name) != entry) continue; // rescheduled since
+        File file = new File(dir, entry.name);
+        if (file.exists() && !IO.RecursivelyDelete(file)) {
+          log.accept("ExpiryIndex: could not remove " + file.getPath());
+          // try again later
+          Entry retry = new Entry(entry.name, System.currentTimeMillis() + 60000);
+          pending.put(entry.name, retry);
+          queue.add(retry);
+          continue;
+        }
+        log.accept("ExpiryIndex: removed " + file.getPath());
+        pending.remove(entry.name);
+        journal("- " + entry.name);
+      }
+    } // next expired file
+  } // end of deleteExpired()
+
+  /**
+   * Appends a line to the journal, compacting it if it has grown too large.
+   * @param line
+   */
+  protected void journal(String line) {
+    try {
+      if (journalLines > 2 * pending.size() + 100) {
+        compact();
+      } else {
+        if (journalWriter == null) {
+          journalWriter = new OutputStreamWriter(
+            new FileOutputStream(journal, true), "UTF-8");
+        }
+        journalWriter.write(line + "\n");
+        journalWriter.flush();
+        journalLines++;
+      }
+    } catch (IOException x) {
+      log.accept("ExpiryIndex: could not update " + journal.getPath() + ": " + x);
+      closeJournal();
+    }
+  } // end of journal()
+
+  /**
+   * Rewrites the journal so that it contains only pending deletions.
+   * @throws IOException
+   */
+  protected void compact() throws IOException {
+    closeJournal();
+    File temp = new File(journal.getPath() + ".tmp");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+    try {
+      for (Entry entry : pending.values()) {
+        writer.write(entry.expiryTime + " " + entry.name + "\n");
+      } // next pending deletion
+    } finally {
+      writer.close();
+    }
+    // replace the journal all at once, so it's never half-written
+    Files.move(temp.toPath(), journal.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    journalLines = pending.size();
+  } // end of compact()
+
+  /**
+   * Closes {@link #journalWriter}, if it's open.
+   */
+  protected void closeJournal() {
+    if (journalWriter != null) {
+      try {
+        journalWriter.close();
+      } catch (IOException x) {
+      }
+      journalWriter = null;
+    }
+  } // end of closeJournal()
+  
+} // end of class ExpiryIndex
@@ -23,8 +23,12 @@ package nzilbb.webscribe;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import javax.sound.sampled.UnsupportedAudioFileException;
 import nzilbb.ag.Annotation;
 import nzilbb.ag.Constants;
 import nzilbb.ag.Graph;
@@ -39,29 +43,98 @@ import nzilbb.configure.ParameterSet;
 import nzilbb.util.IO;
 
 /**
- * Ongoing transcription job.
+ * Transcription job.
+ * <p> Jobs are not threads; they are queued with a {@link JobScheduler}, which runs them
+ * on one of a fixed number of worker threads.
  * @author Robert Fromont robert@fromont.net.nz
  */
-public class Job extends Thread { // TODO periodically purge finished jobs
+public class Job implements Runnable {
 
-  protected static final ThreadGroup jobThreadGroup = new ThreadGroup("nzilbb.webscribe.Job");
+  /** Possible states of a job. */
+  public enum State { Queued, Running, Finished, Failed }
+  
+  /** Source of job IDs. */
+  private static final AtomicLong nextId = new AtomicLong(1);
+  
+  /** Jobs that have not yet been forgotten. */
+  protected static final JobRegistry registry = new JobRegistry();
+
+  /**
+   * The registry of jobs.
+   * @return The registry of jobs.
+   */
+  public static JobRegistry Registry() { return registry; }
   
   /**
    * Finds a job given its ID.
-   * @param lThreadId the Job's ID
+   * @param id the Job's ID
    * @return The identified Job, or null if it can't be found.
    */
   public static Job FindJob(long id) {
-    Thread[] threads = new Thread[jobThreadGroup.activeCount()];
-    jobThreadGroup.enumerate(threads);
-    for (Thread thread : threads) {
-      if (thread != null && thread.getId() == id) {
-        return (Job)thread;
-      }
-    } // next thread
-    return null;
+    return registry.get(id);
   }
 
+  /**
+   * Ensures that new jobs get IDs no lower than the given ID, e.g. so that IDs aren't
+   * reused after a restart.
+   * @param id The lowest ID to give a new job.
+   */
+  public static void ReserveIds(long id) {
+    nextId.accumulateAndGet(id, Math::max);
+  } // end of ReserveIds()
+
+  /**
+   * Unique ID for the job.
+   * @see #getId()
+   */
+  protected long id;
+  /**
+   * Getter for {@link #id}: Unique ID for the job.
+   * @return Unique ID for the job.
+   */
+  public long getId() { return id; }
+
+  /**
+   * The current state of the job.
+   * @see #getState()
+   */
+  protected volatile State state = State.Queued;
+  /**
+   * Getter for {@link #state}: The current state of the job.
+   * @return The current state of the job.
+   */
+  public State getState() { return state; }
+
+  /**
+   * Determines whether the job has finished, successfully or otherwise.
+   * @return true if the job's state is {@link State#Finished} or {@link State#Failed}.
+   */
+  public boolean isDone() { return state == State.Finished || state == State.Failed; }
+
+  /**
+   * When the job started running, as returned by {@link System#currentTimeMillis()}, or 0
+   * if it hasn't started.
+   * @see #getStartedTime()
+   */
+  protected volatile long startedTime = 0;
+  /**
+   * Getter for {@link #startedTime}: When the job started running, or 0 if it hasn't.
+   * @return When the job started running, as returned by {@link System#currentTimeMillis()}.
+   */
+  public long getStartedTime() { return startedTime; }
+
+  /**
+   * When the job finished, as returned by {@link System#currentTimeMillis()}, or 0 if it
+   * hasn't finished.
+   * @see #getFinishedTime()
+   */
+  protected long finishedTime = 0;
+  /**
+   * Getter for {@link #finishedTime}: When the job finished, or 0 if it hasn't finished.
+   * @return When the job finished, as returned by {@link System#currentTimeMillis()}.
+   */
+  public long getFinishedTime() { return finishedTime; }
+
   /**
    * The speech recording to transcribe.
    * @see #getWav()
@@ -77,11 +150,7 @@ public class Job extends Thread { // TODO periodically purge finished jobs
    * Setter for {@link #wav}: The speech recording to transcribe.
    * @param newWav The speech recording to transcribe.
    */
-  public Job setWav(File newWav) {
-    wav = newWav;
-    // name the thread after the wav
-    setName(wav.getName());
-    return this; }
+  public Job setWav(File newWav) { wav = newWav; return this; }
   
   /**
    * The transcriber implementation to use for transcription.
@@ -100,6 +169,249 @@ public class Job extends Thread { // TODO periodically purge finished jobs
    */
   public Job setTranscriber(Transcriber newTranscriber) { transcriber = newTranscriber; return this; }
 
+  /**
+   * Pool to borrow a transcriber from when the job starts, if {@link #transcriber} is not set.
+   * @see #getTranscriberPool()
+   * @see #setTranscriberPool(TranscriberPool)
+   */
+  protected TranscriberPool transcriberPool;
+  /**
+   * Getter for {@link #transcriberPool}: Pool to borrow a transcriber from.
+   * @return Pool to borrow a transcriber from.
+   */
+  public TranscriberPool getTranscriberPool() { return transcriberPool; }
+  /**
+   * Setter for {@link #transcriberPool}: Pool to borrow a transcriber from.
+   * @param newTranscriberPool Pool to borrow a transcriber from.
+   */
+  public Job setTranscriberPool(TranscriberPool newTranscriberPool) { transcriberPool = newTranscriberPool; return this; }
+
+  /**
+   * The annotator ID of the transcriber.
+   * @see #getTranscriberId()
+   * @see #setTranscriberId(String)
+   */
+  protected String transcriberId;
+  /**
+   * Getter for {@link #transcriberId}: The annotator ID of the transcriber.
+   * @return The annotator ID of the transcriber.
+   */
+  public String getTranscriberId() { return transcriberId; }
+  /**
+   * Setter for {@link #transcriberId}: The annotator ID of the transcriber.
+   * @param newTranscriberId The annotator ID of the transcriber.
+   */
+  public Job setTranscriberId(String newTranscriberId) { transcriberId = newTranscriberId; return this; }
+
+  /**
+   * The version of the transcriber.
+   * @see #getTranscriberVersion()
+   * @see #setTranscriberVersion(String)
+   */
+  protected String transcriberVersion;
+  /**
+   * Getter for {@link #transcriberVersion}: The version of the transcriber.
+   * @return The version of the transcriber.
+   */
+  public String getTranscriberVersion() { return transcriberVersion; }
+  /**
+   * Setter for {@link #transcriberVersion}: The version of the transcriber.
+   * @param newTranscriberVersion The version of the transcriber.
+   */
+  public Job setTranscriberVersion(String newTranscriberVersion) { transcriberVersion = newTranscriberVersion; return this; }
+
+  /**
+   * The spool through which the job is handed to a {@link Worker} process, or null if the
+   * job is transcribed in this process.
+   * @see #getSpool()
+   * @see #setSpool(Spool)
+   */
+  protected Spool spool;
+  /**
+   * Getter for {@link #spool}: The spool through which the job is handed to a worker.
+   * @return The spool through which the job is handed to a {@link Worker} process, or null
+   * if the job is transcribed in this process.
+   */
+  public Spool getSpool() { return spool; }
+  /**
+   * Setter for {@link #spool}: The spool through which the job is handed to a worker.
+   * @param newSpool The spool through which the job is handed to a {@link Worker}
+   * process, or null if the job is transcribed in this process.
+   */
+  public Job setSpool(Spool newSpool) { spool = newSpool; return this; }
+  
+  /**
+   * Splits long recordings so that segments can be transcribed in parallel, or null if
+   * recordings are always transcribed in one piece.
+   * @see #getSegmenter()
+   * @see #setSegmenter(AudioSegmenter)
+   */
+  protected AudioSegmenter segmenter;
+  /**
+   * Getter for {@link #segmenter}: Splits long recordings for parallel transcription.
+   * @return Splits long recordings for parallel transcription, or null.
+   */
+  public AudioSegmenter getSegmenter() { return segmenter; }
+  /**
+   * Setter for {@link #segmenter}: Splits long recordings for parallel transcription.
+   * @param newSegmenter Splits long recordings for parallel transcription, or null.
+   */
+  public Job setSegmenter(AudioSegmenter newSegmenter) { segmenter = newSegmenter; return this; }
+
+  /**
+   * Converts the recording to the format transcribers work with before transcription, or
+   * null if the recording is transcribed as uploaded.
+   * @see #getNormalizer()
+   * @see #setNormalizer(AudioNormalizer)
+   */
+  protected AudioNormalizer normalizer;
+  /**
+   * Getter for {@link #normalizer}: Converts the recording to the format transcribers work
+   * with before transcription.
+   * @return Converts the recording before transcription, or null.
+   */
+  public AudioNormalizer getNormalizer() { return normalizer; }
+  /**
+   * Setter for {@link #normalizer}: Converts the recording to the format transcribers work
+   * with before transcription.
+   * @param newNormalizer Converts the recording before transcription, or null.
+   */
+  public Job setNormalizer(AudioNormalizer newNormalizer) { normalizer = newNormalizer; return this; }
+
+  /**
+   * SHA-256 hash of the uploaded recording, in hexadecimal, or null if unknown.
+   * @see #getContentHash()
+   * @see #setContentHash(String)
+   */
+  protected String contentHash;
+  /**
+   * Getter for {@link #contentHash}: SHA-256 hash of the uploaded recording.
+   * @return SHA-256 hash of the uploaded recording, in hexadecimal, or null if unknown.
+   */
+  public String getContentHash() { return contentHash; }
+  /**
+   * Setter for {@link #contentHash}: SHA-256 hash of the uploaded recording.
+   * @param newContentHash SHA-256 hash of the uploaded recording, in hexadecimal.
+   */
+  public Job setContentHash(String newContentHash) { contentHash = newContentHash; return this; }
+
+  /**
+   * The job whose outcome this job takes, because it has an identical recording, or null
+   * if this job transcribes its own recording.
+   * @see #getLeader()
+   * @see #follow(Job)
+   */
+  protected Job leader;
+  /**
+   * Getter for {@link #leader}: The job whose outcome this job takes.
+   * @return The job whose outcome this job takes, or null.
+   */
+  public Job getLeader() { return leader; }
+
+  /**
+   * Who uploaded the recording, e.g. their session or address, or null if unknown. The
+   * {@link JobScheduler} shares transcription time fairly between submitters.
+   * @see #getSubmitter()
+   * @see #setSubmitter(String)
+   */
+  protected String submitter;
+  /**
+   * Getter for {@link #submitter}: Who uploaded the recording.
+   * @return Who uploaded the recording, or null if unknown.
+   */
+  public String getSubmitter() { return submitter; }
+  /**
+   * Setter for {@link #submitter}: Who uploaded the recording.
+   * @param newSubmitter Who uploaded the recording.
+   */
+  public Job setSubmitter(String newSubmitter) { submitter = newSubmitter; return this; }
+
+  /**
+   * Duration of the recording in seconds, read from its header when it was uploaded, or 0
+   * if unknown.
+   * @see #getDuration()
+   * @see #setDuration(double)
+   */
+  protected double duration = 0.0;
+  /**
+   * Getter for {@link #duration}: Duration of the recording in seconds.
+   * @return Duration of the recording in seconds, or 0 if unknown.
+   */
+  public double getDuration() { return duration; }
+  /**
+   * Setter for {@link #duration}: Duration of the recording in seconds.
+   * @param newDuration Duration of the recording in seconds, or 0 if unknown.
+   */
+  public Job setDuration(double newDuration) { duration = newDuration; return this; }
+
+  /**
+   * ID of the {@link Batch} the job was uploaded in, or 0 if it was uploaded on its own.
+   * @see #getBatchId()
+   * @see #setBatchId(long)
+   */
+  protected long batchId = 0;
+  /**
+   * Getter for {@link #batchId}: ID of the batch the job was uploaded in.
+   * @return ID of the batch the job was uploaded in, or 0 if it was uploaded on its own.
+   */
+  public long getBatchId() { return batchId; }
+  /**
+   * Setter for {@link #batchId}: ID of the batch the job was uploaded in.
+   * @param newBatchId ID of the batch the job was uploaded in.
+   */
+  public Job setBatchId(long newBatchId) { batchId = newBatchId; return this; }
+
+  /**
+   * Things to notify when the job's state, status, progress, or queue position changes.
+   * @see #getChangeObservers()
+   */
+  protected List<Consumer<Job>> changeObservers = new CopyOnWriteArrayList<Consumer<Job>>();
+  /**
+   * Getter for {@link #changeObservers}: Things to notify when the job's state, status,
+   * progress, or queue position changes.
+   * @return Things to notify when the job changes.
+   */
+  public List<Consumer<Job>> getChangeObservers() { return changeObservers; }
+
+  /**
+   * Notifies {@link #changeObservers} that something about the job has changed.
+   */
+  public void changed() {
+    for (Consumer<Job> observer : changeObservers) {
+      try {
+        observer.accept(this);
+      } catch (Throwable t) {
+      }
+    } // next observer
+  } // end of changed()
+
+  /** The last status message, updated by the transcriber while the job runs. */
+  protected volatile String status = "Waiting to start...";
+
+  /** Progress when the transcriber was given back. */
+  protected volatile int percentComplete = 0;
+
+  /**
+   * The current status of the job.
+   * @return The last status message.
+   */
+  public String getStatus() {
+    return status;
+  } // end of getStatus()
+
+  /**
+   * Transcription progress.
+   * @return The percentage of the transcription that's complete.
+   */
+  public int getPercentComplete() {
+    Transcriber transcriber = this.transcriber;
+    if (state == State.Running && transcriber != null) {
+      Integer percent = transcriber.getPercentComplete();
+      return percent == null? 0 : percent;
+    }
+    return percentComplete;
+  } // end of getPercentComplete()
+
   /**
    * The resulting transcript.
    * @see #getTranscript()
@@ -117,6 +429,26 @@ public class Job extends Thread { // TODO periodically purge finished jobs
    */
   public Job setTranscript(Graph newTranscript) { transcript = newTranscript; return this; }
   
+  /**
+   * The utterances transcribed so far, which are available before the job finishes if
+   * the recording is transcribed in segments.
+   * @see #getPartialTranscript()
+   */
+  protected final PartialTranscript partialTranscript = new PartialTranscript();
+  /**
+   * Getter for {@link #partialTranscript}: The utterances transcribed so far.
+   * <p> Once there's a {@link #transcript}, the partial transcript is complete.
+   * @return The utterances transcribed so far.
+   */
+  public PartialTranscript getPartialTranscript() {
+    Graph transcript = this.transcript;
+    // e.g. followers, jobs restored from the store, or unsegmented transcription
+    if (transcript != null && !partialTranscript.isComplete()) {
+      partialTranscript.complete(transcript);
+    }
+    return partialTranscript;
+  } // end of getPartialTranscript()
+  
   /**
    * What to do when finished, if anything.
    * @see #getOnFinished()
@@ -133,13 +465,15 @@ public class Job extends Thread { // TODO periodically purge finished jobs
    * @param newOnFinished What to do when finished, if anything.
    */
   public Job setOnFinished(Consumer<Job> newOnFinished) {
-    onFinished = newOnFinished;
-    // has the transcriber already finished?
-    if (transcriber != null && !transcriber.getRunning()) {
-      try {
-        onFinished.accept(this);
-      } catch(Throwable exception) {
-      }
+    synchronized (this) {
+      onFinished = newOnFinished;
+      // if the job isn't finished yet, run() will call onFinished
+      if (!isDone()) return this;
+    }
+    // the job has already finished
+    try {
+      onFinished.accept(this);
+    } catch(Throwable exception) {
     }
     return this;
   }
@@ -150,7 +484,8 @@ public class Job extends Thread { // TODO periodically purge finished jobs
    * Default constructor.
    */
   public Job() {
-    super(jobThreadGroup, "");
+    id = nextId.getAndIncrement();
+    registry.add(this);
 
     TimeZone tz = TimeZone.getTimeZone("UTC");
     utcIsoTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
@@ -158,45 +493,316 @@ public class Job extends Thread { // TODO periodically purge finished jobs
 
   } // end of constructor
 
+  /**
+   * Constructor for a job that already has an ID, e.g. one restored by a
+   * {@link JobStore}. The job is not registered.
+   * @param id The job's ID.
+   */
+  public Job(long id) {
+    this.id = id;
+    ReserveIds(id + 1);
+
+    TimeZone tz = TimeZone.getTimeZone("UTC");
+    utcIsoTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+    utcIsoTime.setTimeZone(tz);
+  } // end of constructor
+
+  /**
+   * Sets the state of a job restored by a {@link JobStore}.
+   * @param state The job's state.
+   * @param status The last status message.
+   * @param percentComplete The job's progress.
+   * @param finishedTime When the job finished, or 0 if it hasn't.
+   * @return This job.
+   */
+  public Job restore(State state, String status, int percentComplete, long finishedTime) {
+    this.state = state;
+    this.status = status;
+    this.percentComplete = percentComplete;
+    this.finishedTime = finishedTime;
+    return this;
+  } // end of restore()
+
   @Override public void run() {
+    long startTime = System.nanoTime();
+    startedTime = System.currentTimeMillis();
+    state = State.Running;
+    changed();
+    State finalState = State.Failed;
+    Transcriber transcriber = getTranscriber();
+    boolean borrowed = false;
+    String annotator = null;
+    Consumer<String> statusObserver = message -> {
+      status = message;
+      changed();
+    };
+    try {
+      if (normalizer != null && spool == null) { // workers normalize their own copy
+        status = "Preparing recording...";
+        changed();
+        try {
+          if (normalizer.normalize(getWav())) {
+            System.err.println("Normalized " + getWav().getPath());
+          }
+        } catch (UnsupportedAudioFileException x) {
+          // let the transcriber try the recording as it is
+          System.err.println("Could not normalize " + getWav().getPath() + ": " + x);
+        }
+      }
+      // normally read from the header on upload, so it agrees with what the scheduler
+      // estimated; otherwise try the recording before it's deleted
+      if (duration <= 0) duration = audioDuration();
+      if (spool != null) {
+        // a worker process transcribes it, and this process waits for the transcript
+        annotator = getTranscriberId() + " v" + getTranscriberVersion();
+        spool.submit(this);
+        Graph transcript = spool.await(this, statusObserver, percent -> {
+            percentComplete = percent;
+            changed();
+          });
+        transcript.setMediaProvider(new FileMediaProvider().withFile(getWav()));
+        finish(transcript, annotator);
+      } else if (transcriber == null && shouldSegment()) {
+        // transcribe segments in parallel, using several transcribers from the pool
+        annotator = getTranscriberId() + " v" + getTranscriberVersion();
+        Graph transcript = newTranscript(TranscriberPool.CreateSchema(), annotator);
+        new SegmentedTranscription(transcriberPool, segmenter)
+          .setPartial(partialTranscript)
+          .setProgress(statusObserver, percent -> {
+              percentComplete = percent;
+              changed();
+            })
+          .transcribe(getWav(), transcript);
+        finish(transcript, annotator);
+      } else {
+        if (transcriber == null) {
+          status = "Waiting for transcriber...";
+          transcriber = transcriberPool.borrow();
+          borrowed = true;
+          setTranscriber(transcriber);
+        }
+        status = transcriber.getStatus();
+        transcriber.getStatusObservers().add(statusObserver);
+        
+        annotator = transcriber.getAnnotatorId() + " v" + transcriber.getVersion();
+        Graph transcript = newTranscript((Schema)transcriber.getSchema().clone(), annotator);
+        // transcribe the audio
+        transcriber.transcribe(getWav(), transcript);
+        finish(transcript, annotator);
+      }
+      finalState = State.Finished;
+      if (duration > 0) {
+        Metrics.Instance().audioSeconds.labels(annotator).add(duration);
+        Metrics.Instance().transcriptionSeconds.labels(annotator)
+          .add((System.nanoTime() - startTime) / 1e9);
+      }
+    } catch(Exception exception) {
+      System.err.println("Error transcribing " + wav.getName() + ": " + exception);
+      exception.printStackTrace(System.err);
+      status = "Error: " + exception.getMessage();
+    } finally {
+      if (transcriber != null) {
+        transcriber.getStatusObservers().remove(statusObserver);
+        Integer percent = transcriber.getPercentComplete();
+        percentComplete = finalState == State.Finished? 100 : percent == null? 0 : percent;
+        if (borrowed) {
+          // don't report other jobs' status from now on
+          setTranscriber(null);
+          if (finalState == State.Finished) {
+            transcriberPool.giveBack(transcriber);
+          } else { // it may be in an invalid state
+            transcriberPool.discard(transcriber);
+          }
+        }
+      }
+    }
+    Metrics.Instance().jobSeconds.labels(finalState.name())
+      .observe((System.nanoTime() - startTime) / 1e9);
+    done(finalState);
+  } // run
+
+  /**
+   * Records that the job is done, and notifies everything that needs to know.
+   * @param finalState {@link State#Finished} or {@link State#Failed}.
+   */
+  protected void done(State finalState) {
+    Consumer<Job> callback = null;
+    synchronized (this) {
+      finishedTime = System.currentTimeMillis();
+      state = finalState;
+      callback = onFinished;
+    }
+    registry.finished(this);
+    changed();
+    if (callback != null) { // email the human?
+      try {
+        callback.accept(this);
+      } catch(Throwable exception) {
+      }
+    }
+  } // end of done()
+
+  /**
+   * Takes the outcome of another job that's transcribing an identical recording, instead
+   * of transcribing this job's recording.
+   * <p> If the leader has already finished, this job finishes immediately with the same
+   * transcript. Otherwise this job reflects the leader's state and progress until the
+   * leader finishes.
+   * @param leader The job to follow.
+   * @return This job.
+   */
+  public Job follow(final Job leader) {
+    this.leader = leader;
+    status = "Waiting for job " + leader.getId() + "...";
+    leader.getChangeObservers().add(new Consumer<Job>() {
+        public void accept(Job l) {
+          if (l.isDone()) {
+            l.getChangeObservers().remove(this);
+            finishLike(l);
+          } else {
+            synchronized (Job.this) {
+              if (isDone()) return;
+              state = l.getState();
+              status = l.getStatus();
+              percentComplete = l.getPercentComplete();
+            }
+            changed();
+          }
+        }
+      });
+    if (leader.isDone()) finishLike(leader); // it may have finished before we started observing
+    return this;
+  } // end of follow()
+
+  /**
+   * Finishes this job with the same outcome as the given job.
+   * @param leader A job that's done.
+   */
+  protected void finishLike(Job leader) {
+    if (isDone()) return; // already finished
+    // the transcript must have this job's name, not the leader's
+    Graph copy = null;
+    String error = null;
+    if (leader.getTranscript() != null) {
+      try {
+        copy = copyTranscript(leader.getTranscript());
+      } catch (Exception x) {
+        System.err.println("Job " + id + ": could not copy transcript of job "
+                           + leader.getId() + ": " + x);
+        error = "Error: " + x.getMessage();
+      }
+    }
+    State finalState = State.Failed;
+    synchronized (this) {
+      if (isDone()) return; // already finished
+      transcript = copy;
+      if (transcript != null) finalState = leader.getState();
+      status = finalState == State.Finished? "Same recording as job " + leader.getId()
+        : error != null? error : leader.getStatus();
+      percentComplete = leader.getPercentComplete();
+      state = finalState; // so that it's only finished once
+    }
+    // the recording isn't needed, as it's been transcribed already
+    if (getWav() != null) getWav().delete();
+    done(finalState);
+  } // end of finishLike()
+
+  /**
+   * Copies another job's transcript, named after this job's recording. The copy is made
+   * by saving the transcript and reading it back, the same as when jobs are restored by
+   * the {@link JobStore}.
+   * @param original
+   * @return A copy of the transcript, whose ID and media are this job's recording.
+   * @throws Exception
+   */
+  protected Graph copyTranscript(Graph original) throws Exception {
+    File file = File.createTempFile(
+      "transcript-", ".json", getWav() == null? null : getWav().getParentFile());
+    try {
+      JobStore.WriteTranscript(
+        original, file, message -> System.err.println("Job " + id + ": " + message));
+      Graph copy = JobStore.ReadTranscript(file);
+      copy.setId(IO.WithoutExtension(wav));
+      // ensure the serializer can know the media file name
+      copy.setMediaProvider(new FileMediaProvider().withFile(getWav()));
+      return copy;
+    } finally {
+      file.delete();
+    }
+  } // end of copyTranscript()
+
+  /**
+   * Determines the duration of the recording.
+   * @return The duration of the recording in seconds, or 0 if it can't be determined.
+   */
+  protected double audioDuration() {
+    try {
+      return AudioSegmenter.Duration(getWav());
+    } catch (Exception x) { // can't read the format
+      return 0;
+    }
+  } // end of audioDuration()
+
+  /**
+   * Determines whether the recording should be split and transcribed in parallel
+   * segments. This is only the case if there's a {@link #segmenter}, the pool has more than
+   * one transcriber, and the recording is long enough.
+   * @return true if the recording should be transcribed in segments.
+   */
+  protected boolean shouldSegment() {
+    if (segmenter == null || transcriberPool == null || transcriberPool.getMaxSize() < 2) {
+      return false;
+    }
+    try {
+      return segmenter.shouldSplit(AudioSegmenter.Duration(getWav()));
+    } catch (Exception x) { // can't read the format, so let the transcriber deal with it
+      return false;
+    }
+  } // end of shouldSegment()
+
+  /**
+   * Creates an empty transcript for the recording, tagged with the transcriber and date.
+   * @param schema The transcript's schema.
+   * @param annotator The transcriber's ID and version.
+   * @return The new transcript.
+   */
+  protected Graph newTranscript(Schema schema, String annotator) {
     Graph transcript = new Graph();
     transcript.setId(IO.WithoutExtension(wav));
-    transcript.setSchema((Schema)transcriber.getSchema().clone());
+    transcript.setSchema(schema);
     // ensure the serializer can know the media file name
     transcript.setMediaProvider(new FileMediaProvider().withFile(getWav()));
     // include transcriber name tag
-    String annotator = getTranscriber().getAnnotatorId() + " v" + getTranscriber().getVersion();
     transcript.createTag(transcript, "scribe", annotator)
       .setConfidence(Constants.CONFIDENCE_AUTOMATIC);
     // include transcription date tag
     transcript.createTag(transcript, "date", utcIsoTime.format(new java.util.Date()))
       .setConfidence(Constants.CONFIDENCE_AUTOMATIC);
-    try {      
-      // transcribe the audio
-      getTranscriber().transcribe(getWav(), transcript);
-      setTranscript(transcript);
-      // tag all anotations as annotated by the transcriber
-      for (Annotation annotation : transcript.getAnnotationsById().values()) {
-        annotation.setAnnotator(annotator);
-      }
-      // delete the wav file
-      System.err.println("Deleting " + getWav().getPath());
-      getWav().delete();
-      
-      // email the human?
-      if (onFinished != null) {
-        try {
-          onFinished.accept(this);
-        } catch(Throwable exception) {
-        }
-      }
-    } catch(Exception exception) {
-      System.err.println("Error transcribing " + wav.getName() + ": " + exception);
-      exception.printStackTrace(System.err);
-    }
-    try { // give any observers a chance to get the status before we finish
-      Thread.sleep(10000);
-    } catch (Exception x) {
+    return transcript;
+  } // end of newTranscript()
+
+  /**
+   * Sets the finished transcript and deletes the recording.
+   * @param transcript The finished transcript.
+   * @param annotator The transcriber's ID and version.
+   */
+  protected void finish(Graph transcript, String annotator) {
+    StampAnnotator(transcript, annotator);
+    setTranscript(transcript);
+    percentComplete = 100;
+    // delete the wav file
+    System.err.println("Deleting " + getWav().getPath());
+    getWav().delete();
+  } // end of finish()
+
+  /**
+   * Tags all annotations in the transcript as annotated by the given annotator.
+   * @param transcript
+   * @param annotator
+   */
+  public static void StampAnnotator(Graph transcript, String annotator) {
+    for (Annotation annotation : transcript.getAnnotationsById().values()) {
+      annotation.setAnnotator(annotator);
     }
-  } // run
+  } // end of StampAnnotator()
 } // end of class Job
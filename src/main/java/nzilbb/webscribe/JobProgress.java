@@ -0,0 +1,235 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Streams the status of a transcription job as
+ * <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html">Server-Sent
+ * Events</a>.
+ * <p> The URL path is formatted <tt>jobprogress/<var>jobId</var></tt>. Each event's data
+ * is the same JSON object returned by {@link JobStatus}. An event is sent whenever the
+ * job's state, status message, progress, or queue position changes, and also every
+ * {@link #HEARTBEAT_SECONDS} seconds. The stream ends when the job is finished.
+ * <p> The request is handled asynchronously, and events are written without blocking, so
+ * no thread is held while waiting for changes, or by clients that are slow to receive
+ * events; only the latest status is sent to a client that falls behind, and a client that
+ * takes nothing for a minute is disconnected.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@WebServlet(urlPatterns = "/jobprogress/*", asyncSupported = true)
+public class JobProgress extends ServletBase {
+
+  /** How often to send an event if nothing has changed. */
+  public static final int HEARTBEAT_SECONDS = 15;
+  
+  /** Threads that send events. */
+  ScheduledExecutorService pusher;
+  
+  /**
+   * Default constructor.
+   */
+  public JobProgress() {
+  } // end of constructor
+
+  /**
+   * Starts the event-sending threads.
+   */
+  @Override public void init() throws ServletException {
+    pusher = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "nzilbb.webscribe.JobProgress");
+        thread.setDaemon(true);
+        return thread;
+      });
+    super.init();
+  } // end of init()
+  
+  /**
+   * Stops the event-sending threads.
+   */
+  @Override public void destroy() {
+    pusher.shutdownNow();
+    super.destroy();
+  } // end of destroy()
+  
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    if (request.getPathInfo() == null        
+        || !request.getPathInfo().startsWith("/")
+        || request.getPathInfo().equals("/")) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("No Job ID specified.", response);
+      return;
+    }
+    String suffix = request.getPathInfo().substring(1);
+    long jobId = -1;
+    try {
+      jobId = Long.parseLong(suffix);
+    } catch(NumberFormatException exception) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("Invalid Job ID: " + suffix, response);
+      return;
+    }
+    final Job job = Job.FindJob(jobId);
+    if (job == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      returnMessage("Job not found: " + jobId, response);
+      return;
+    }
+
+    response.setContentType("text/event-stream;charset=UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    final AsyncContext async = request.startAsync();
+    async.setTimeout(0); // the stream lasts as long as the job
+    final EventStream events = new EventStream(
+      job, JobScheduler.From(getServletContext()), response.getOutputStream(), async);
+    
+    // changes can come thick and fast, so coalesce them; only the latest status matters
+    final AtomicBoolean pending = new AtomicBoolean(false);
+    final Consumer<Job> observer = changedJob -> {
+      if (pending.compareAndSet(false, true)) {
+        pusher.execute(() -> {
+            pending.set(false);
+            events.changed();
+          });
+      }
+    };
+    final ScheduledFuture<?> heartbeat = pusher.scheduleAtFixedRate(
+      () -> events.heartbeat(), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    async.addListener(new AsyncListener() {
+        public void onComplete(AsyncEvent event) { stop(); }
+        public void onTimeout(AsyncEvent event) { stop(); }
+        public void onError(AsyncEvent event) { stop(); }
+        public void onStartAsync(AsyncEvent event) {}
+        void stop() {
+          events.ended = true;
+          job.getChangeObservers().remove(observer);
+          heartbeat.cancel(false);
+        }
+      });
+    job.getChangeObservers().add(observer);
+    // the current status is sent as soon as the stream is ready
+    events.changed();
+    response.getOutputStream().setWriteListener(events);
+  }
+  
+  /**
+   * The events for one client, which are written without blocking. If the client can't
+   * keep up, only the latest status is kept to send when it's ready, and if it doesn't
+   * take anything for {@link #STALLED_SECONDS}, the stream is ended, so a stalled client
+   * never holds up events for other clients.
+   */
+  static class EventStream implements WriteListener {
+    /** How long a client can go without taking data before it's dropped. */
+    static final int STALLED_SECONDS = HEARTBEAT_SECONDS * 4;
+    Job job;
+    JobScheduler scheduler;
+    ServletOutputStream out;
+    AsyncContext async;
+    /** Whether the job has changed since the last event was sent. */
+    boolean changed = false;
+    /** Whether the stream has been registered and is ready for the first write. */
+    boolean started = false;
+    /** When the client stopped taking data, or 0 if it's keeping up. */
+    long waitingSince = 0;
+    volatile boolean ended = false;
+    EventStream(Job job, JobScheduler scheduler, ServletOutputStream out, AsyncContext async) {
+      this.job = job;
+      this.scheduler = scheduler;
+      this.out = out;
+      this.async = async;
+    }
+    /** Sends the job's status, as soon as the client can take it. */
+    synchronized void changed() {
+      changed = true;
+      if (started && waitingSince == 0) send();
+    }
+    /** Sends the status even if it hasn't changed, or drops a stalled client. */
+    synchronized void heartbeat() {
+      if (waitingSince > 0
+          && System.currentTimeMillis() - waitingSince > STALLED_SECONDS * 1000L) {
+        end();
+      } else {
+        changed();
+      }
+    }
+    public synchronized void onWritePossible() throws IOException {
+      if (ended) return;
+      started = true;
+      waitingSince = 0;
+      out.flush(); // anything written while the client was catching up
+      send();
+    }
+    public synchronized void onError(Throwable t) { // e.g. client went away
+      end();
+    }
+    /** Writes the latest status, if the client can take it. */
+    void send() {
+      if (ended || !changed) return;
+      try {
+        if (!out.isReady()) { // onWritePossible will be called when it's ready
+          waitingSince = System.currentTimeMillis();
+          return;
+        }
+        changed = false;
+        StringWriter json = new StringWriter();
+        JobStatus.WriteStatus(job, scheduler, json);
+        out.write(("data: " + json + "\n\n").getBytes("UTF-8"));
+        if (job.isDone()) { // no more to say
+          end();
+        } else if (out.isReady()) {
+          out.flush();
+        } else {
+          waitingSince = System.currentTimeMillis();
+        }
+      } catch (IOException x) { // client gone
+        end();
+      }
+    }
+    /** Ends the stream. */
+    void end() {
+      if (ended) return;
+      ended = true;
+      async.complete();
+    }
+  } // end of class EventStream
+  
+} // end of class JobProgress
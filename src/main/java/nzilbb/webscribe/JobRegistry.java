@@ -0,0 +1,267 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Index of transcription jobs by ID.
+ * <p> Jobs stay registered after they finish, so that clients can get their status and
+ * transcript some time afterwards. Finished jobs are forgotten once they are older than
+ * {@link #getRetentionMillis()}.
+ * <p> No more than {@link #getMaxFinished()} finished jobs are kept in memory; the jobs
+ * that finished first are dropped first. If there's a {@link JobStore}, finished jobs
+ * are saved in it, so dropping them from memory doesn't forget them: jobs that aren't
+ * in memory (e.g. because they finished before a restart) are loaded from the store
+ * when they're asked for. Otherwise, dropped jobs are forgotten.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class JobRegistry {
+  
+  /** All known jobs, by ID. */
+  protected ConcurrentHashMap<Long,Job> jobs = new ConcurrentHashMap<Long,Job>();
+
+  /** Finished jobs, in the order they finished. */
+  protected ConcurrentLinkedQueue<Job> finished = new ConcurrentLinkedQueue<Job>();
+
+  /** The number of jobs in {@link #finished}. */
+  protected AtomicInteger finishedCount = new AtomicInteger(0);
+
+  /**
+   * Finished jobs that have been dropped from memory but are still in the {@link #store},
+   * in the order they finished, so that they can be forgotten when they expire. Each
+   * element is the job's ID and the time it finished.
+   */
+  protected ConcurrentLinkedQueue<long[]> dropped = new ConcurrentLinkedQueue<long[]>();
+  
+  /**
+   * How long finished jobs are kept, in milliseconds.
+   * @see #getRetentionMillis()
+   * @see #setRetentionMillis(long)
+   */
+  protected long retentionMillis = 1000 * 60 * 60; // 1 hour
+  /**
+   * Getter for {@link #retentionMillis}: How long finished jobs are kept, in milliseconds.
+   * @return How long finished jobs are kept, in milliseconds.
+   */
+  public long getRetentionMillis() { return retentionMillis; }
+  /**
+   * Setter for {@link #retentionMillis}: How long finished jobs are kept, in milliseconds.
+   * @param newRetentionMillis How long finished jobs are kept, in milliseconds.
+   */
+  public JobRegistry setRetentionMillis(long newRetentionMillis) { retentionMillis = newRetentionMillis; return this; }
+  
+  /**
+   * The maximum number of finished jobs to keep in memory.
+   * @see #getMaxFinished()
+   * @see #setMaxFinished(int)
+   */
+  protected int maxFinished = 1000;
+  /**
+   * Getter for {@link #maxFinished}: The maximum number of finished jobs to keep in
+   * memory.
+   * @return The maximum number of finished jobs to keep in memory.
+   */
+  public int getMaxFinished() { return maxFinished; }
+  /**
+   * Setter for {@link #maxFinished}: The maximum number of finished jobs to keep in
+   * memory.
+   * @param newMaxFinished The maximum number of finished jobs to keep in memory.
+   */
+  public JobRegistry setMaxFinished(int newMaxFinished) { maxFinished = newMaxFinished; return this; }
+  
+  /**
+   * Things to notify with the ID of a job when it's forgotten (i.e. removed or expired,
+   * not just dropped from memory), e.g. so that resources associated with it can be
+   * released.
+   * @see #getForgetObservers()
+   */
+  protected List<LongConsumer> forgetObservers = new CopyOnWriteArrayList<LongConsumer>();
+  /**
+   * Getter for {@link #forgetObservers}: Things to notify with the ID of a job when it's
+   * forgotten.
+   * @return Things to notify with the ID of a job when it's forgotten.
+   */
+  public List<LongConsumer> getForgetObservers() { return forgetObservers; }
+  
+  /**
+   * Where jobs are kept on disk, or null if they're only kept in memory.
+   * @see #getStore()
+   * @see #setStore(JobStore)
+   */
+  protected JobStore store;
+  /**
+   * Getter for {@link #store}: Where jobs are kept on disk.
+   * @return Where jobs are kept on disk, or null if they're only kept in memory.
+   */
+  public JobStore getStore() { return store; }
+  /**
+   * Setter for {@link #store}: Where jobs are kept on disk.
+   * @param newStore Where jobs are kept on disk, or null if they're only kept in memory.
+   */
+  public JobRegistry setStore(JobStore newStore) { store = newStore; return this; }
+  
+  /**
+   * Default constructor.
+   */
+  public JobRegistry() {
+  } // end of constructor
+
+  /**
+   * Registers a new job.
+   * @param job
+   */
+  public void add(Job job) {
+    jobs.put(job.getId(), job);
+  } // end of add()
+
+  /**
+   * Finds a job given its ID.
+   * @param id The job's ID.
+   * @return The identified job, or null if it's not registered.
+   */
+  public Job get(long id) {
+    Job job = jobs.get(id);
+    if (job == null && store != null) { // it may have finished before a restart
+      Job loaded = store.load(id);
+      if (loaded != null) {
+        job = jobs.putIfAbsent(id, loaded);
+        if (job == null) { // we loaded it first
+          job = loaded;
+          retain(job);
+        }
+      }
+    }
+    return job;
+  } // end of get()
+
+  /**
+   * Unregisters a job.
+   * @param job
+   */
+  public void remove(Job job) {
+    if (store != null) store.remove(job);
+    if (jobs.remove(job.getId(), job)) {
+      if (finished.remove(job)) finishedCount.decrementAndGet();
+      forgotten(job.getId());
+    }
+  } // end of remove()
+
+  /**
+   * Records that the given job has finished, so that it can be forgotten later. If this
+   * means there are too many finished jobs, the oldest are forgotten. If there's a
+   * {@link #store}, the job's outcome is saved there first.
+   * @param job
+   */
+  public void finished(Job job) {
+    if (store != null) store.finished(job);
+    retain(job);
+  } // end of finished()
+
+  /**
+   * Adds a finished job to the jobs to forget later. If this means there are too many
+   * finished jobs in memory, the oldest are dropped from memory, and forgotten unless
+   * they're in the {@link #store}.
+   * @param job
+   */
+  protected void retain(Job job) {
+    finished.add(job);
+    int count = finishedCount.incrementAndGet();
+    while (count > maxFinished) {
+      Job oldest = finished.poll();
+      if (oldest == null) break;
+      count = finishedCount.decrementAndGet();
+      if (jobs.remove(oldest.getId(), oldest)) {
+        if (store != null) { // it can be loaded again until it expires
+          dropped.add(new long[] { oldest.getId(), oldest.getFinishedTime() });
+        } else {
+          forgotten(oldest.getId());
+        }
+      }
+    } // next excess job
+  } // end of retain()
+
+  /**
+   * Forgets finished jobs that are older than {@link #getRetentionMillis()}.
+   * @return The number of jobs forgotten.
+   */
+  public int purge() {
+    long cutoff = System.currentTimeMillis() - retentionMillis;
+    int count = 0;
+    Job oldest = finished.peek();
+    // jobs are queued in the order they finished, so stop at the first one to keep
+    while (oldest != null && oldest.getFinishedTime() < cutoff) {
+      if (finished.remove(oldest)) {
+        finishedCount.decrementAndGet();
+        if (jobs.remove(oldest.getId(), oldest)) forgotten(oldest.getId());
+        count++;
+      }
+      oldest = finished.peek();
+    } // next expired job
+    long[] oldestDropped = dropped.peek();
+    while (oldestDropped != null && oldestDropped[1] < cutoff) {
+      if (dropped.remove(oldestDropped)) {
+        // if it's been loaded again, it's forgotten when that expires
+        if (!jobs.containsKey(oldestDropped[0])) forgotten(oldestDropped[0]);
+        count++;
+      }
+      oldestDropped = dropped.peek();
+    } // next expired job
+    return count;
+  } // end of purge()
+
+  /**
+   * Notifies {@link #forgetObservers} that a job has been forgotten.
+   * @param id The job's ID.
+   */
+  protected void forgotten(long id) {
+    for (LongConsumer observer : forgetObservers) {
+      try {
+        observer.accept(id);
+      } catch (Throwable t) {
+      }
+    } // next observer
+  } // end of forgotten()
+
+  /**
+   * All registered jobs.
+   * @return A live view of the registered jobs.
+   */
+  public Collection<Job> all() {
+    return jobs.values();
+  } // end of all()
+
+  /**
+   * The number of registered jobs.
+   * @return The number of jobs.
+   */
+  public int size() {
+    return jobs.size();
+  } // end of size()
+  
+} // end of class JobRegistry
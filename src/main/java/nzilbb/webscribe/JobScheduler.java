@@ -0,0 +1,506 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.servlet.ServletContext;
+
+/**
+ * Runs transcription jobs on a fixed number of worker threads.
+ * <p> Jobs are submitted to a bounded queue. If the queue is full, further submissions
+ * are rejected until some jobs have been started.
+ * <p> Jobs aren't started in the order they were submitted; instead, each submitter (see
+ * {@link Job#getSubmitter()}) gets a fair share of transcription time, so that someone
+ * who uploads many long recordings doesn't hold up someone else's short one:
+ * <ul>
+ *  <li> Each submitter with waiting jobs has a <em>virtual time</em>, which advances by
+ *   the duration of each recording of theirs that's started. The next job is always
+ *   taken from the submitter whose virtual time would be lowest after it, so a short
+ *   recording goes ahead of a long one from someone else who's had the same share so
+ *   far. A submitter whose queue was empty starts at the current virtual time, so idle
+ *   time can't be saved up for later. </li>
+ *  <li> Within a submitter's share, the shortest recording goes first, but each job's
+ *   duration is reduced by {@link #agingRate} seconds for every second it has waited, so
+ *   long recordings are not postponed forever. </li>
+ * </ul>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class JobScheduler {
+
+  /**
+   * Gets the scheduler for the given web application.
+   * @param context The servlet context.
+   * @return The scheduler created by {@link ContextListener}, or null if there is none.
+   */
+  public static JobScheduler From(ServletContext context) {
+    return (JobScheduler)context.getAttribute(JobScheduler.class.getName());
+  } // end of From()
+
+  /** The duration assumed for recordings whose duration is unknown, in seconds. */
+  public static final double UNKNOWN_DURATION = 60.0;
+
+  /** A job waiting for a worker. */
+  protected static class Entry {
+    final Job job;
+    /** When it was submitted, as returned by {@link System#currentTimeMillis()}. */
+    final long submitted = System.currentTimeMillis();
+    /** The recording duration in seconds. */
+    final double cost;
+    Entry(Job job) {
+      this.job = job;
+      this.cost = job.getDuration() > 0? job.getDuration() : UNKNOWN_DURATION;
+    }
+    /**
+     * The job's priority within its submitter's share; lower goes first.
+     * @param now The current time.
+     * @param agingRate Seconds of priority gained per second waited.
+     * @return The duration less the credit for waiting.
+     */
+    double priority(long now, double agingRate) {
+      return cost - agingRate * (now - submitted) / 1000.0;
+    }
+  } // end of class Entry
+
+  /** The jobs of one submitter that are waiting for a worker. */
+  protected static class Share {
+    final List<Entry> entries = new ArrayList<Entry>();
+    /** Total duration of the submitter's jobs that have been started, in virtual time. */
+    double virtualTime;
+    Share(double virtualTime) {
+      this.virtualTime = virtualTime;
+    }
+  } // end of class Share
+
+  /** Jobs waiting for a worker, by submitter, in the order submitters first arrived. */
+  protected final Map<String,Share> shares = new LinkedHashMap<String,Share>();
+
+  /** The virtual time of the share the most recently started job was taken from. */
+  protected double virtualTime = 0.0;
+
+  /** The number of jobs waiting for a worker. */
+  protected int queueLength = 0;
+
+  /** The maximum number of jobs that can be waiting. */
+  protected int queueCapacity;
+
+  /** Queue positions, computed when last requested, or null if the queue has changed. */
+  protected Map<Job,Integer> positions;
+
+  /**
+   * Estimated seconds until each queued job starts, computed with {@link #positions}, or
+   * null if there's no history to base estimates on.
+   */
+  protected Map<Job,Double> starts;
+
+  /** When {@link #positions} was computed. */
+  protected long positionsTime;
+
+  /**
+   * Rolling model of how long jobs take, used to estimate when they'll start and finish.
+   * @see #getThroughput()
+   */
+  protected final ThroughputModel throughput = new ThroughputModel();
+  /**
+   * Getter for {@link #throughput}: Rolling model of how long jobs take.
+   * @return Rolling model of how long jobs take.
+   */
+  public ThroughputModel getThroughput() { return throughput; }
+
+  /**
+   * Seconds of priority a job gains, within its submitter's share, for every second it
+   * waits.
+   * @see #getAgingRate()
+   * @see #setAgingRate(double)
+   */
+  protected double agingRate = 2.0;
+  /**
+   * Getter for {@link #agingRate}: Seconds of priority a job gains for every second it
+   * waits.
+   * @return Seconds of priority a job gains for every second it waits.
+   */
+  public double getAgingRate() { return agingRate; }
+  /**
+   * Setter for {@link #agingRate}: Seconds of priority a job gains for every second it
+   * waits.
+   * @param newAgingRate Seconds of priority a job gains for every second it waits.
+   */
+  public JobScheduler setAgingRate(double newAgingRate) { agingRate = newAgingRate; return this; }
+
+  /** Worker threads. */
+  protected Thread[] workers;
+
+  /** The number of jobs currently being run. */
+  protected AtomicInteger runningCount = new AtomicInteger(0);
+
+  /** The jobs currently being run. */
+  protected Set<Job> running = ConcurrentHashMap.newKeySet();
+
+  /** Where log messages go. */
+  protected Consumer<String> log;
+
+  /**
+   * Constructor.
+   * @param workerCount The number of jobs that can run at once.
+   * @param queueCapacity The maximum number of jobs that can be waiting to start.
+   * @param log Where log messages go.
+   */
+  public JobScheduler(int workerCount, int queueCapacity, Consumer<String> log) {
+    this.queueCapacity = Math.max(1, queueCapacity);
+    this.workers = new Thread[Math.max(1, workerCount)];
+    this.log = log;
+  } // end of constructor
+
+  /**
+   * Starts the worker threads.
+   * @return This scheduler.
+   */
+  public JobScheduler start() {
+    for (int w = 0; w < workers.length; w++) {
+      workers[w] = new Thread(() -> work(), "nzilbb.webscribe.JobScheduler-" + w);
+      workers[w].setDaemon(true);
+      workers[w].start();
+    } // next worker
+    log.accept("JobScheduler: started " + workers.length + " worker(s)");
+    return this;
+  } // end of start()
+
+  /**
+   * Stops the worker threads. Queued jobs are not run, and running jobs are interrupted.
+   */
+  public void shutdown() {
+    for (Thread worker : workers) {
+      if (worker != null) worker.interrupt();
+    } // next worker
+    synchronized (this) {
+      shares.clear();
+      queueLength = 0;
+      positions = null;
+    }
+  } // end of shutdown()
+
+  /**
+   * Queues a job to be run when a worker is free.
+   * @param job The job to run.
+   * @throws RejectedExecutionException If the queue is full.
+   */
+  public void submit(Job job) throws RejectedExecutionException {
+    List<Job> waiting = null;
+    synchronized (this) {
+      if (queueLength >= queueCapacity) {
+        throw new RejectedExecutionException(
+          "The server is busy (" + queueLength + " jobs waiting). Please try again later.");
+      }
+      String submitter = job.getSubmitter() == null? "" : job.getSubmitter();
+      Share share = shares.get(submitter);
+      if (share == null) {
+        share = new Share(virtualTime);
+        shares.put(submitter, share);
+      } else if (share.entries.isEmpty()) { // no credit for time spent idle
+        share.virtualTime = Math.max(share.virtualTime, virtualTime);
+      }
+      share.entries.add(new Entry(job));
+      queueLength++;
+      positions = null;
+      waiting = waitingJobs();
+      notifyAll();
+    }
+    // the new job may have gone ahead of others
+    for (Job queued : waiting) if (queued != job) queued.changed();
+  } // end of submit()
+
+  /**
+   * Removes the next job to run from the queue, waiting until there is one.
+   * @return The next job.
+   * @throws InterruptedException If the thread is interrupted while waiting.
+   */
+  protected synchronized Job take() throws InterruptedException {
+    while (queueLength == 0) wait();
+    long now = System.currentTimeMillis();
+    Share share = nextShare(shares.values(), now);
+    Entry next = nextEntry(share.entries, now);
+    share.entries.remove(next);
+    virtualTime = share.virtualTime;
+    share.virtualTime += next.cost;
+    queueLength--;
+    positions = null;
+    // forget submitters with nothing waiting, unless they've used more than their share
+    Iterator<Share> s = shares.values().iterator();
+    while (s.hasNext()) {
+      Share idle = s.next();
+      if (idle.entries.isEmpty() && idle.virtualTime <= virtualTime) s.remove();
+    } // next share
+    return next.job;
+  } // end of take()
+
+  /**
+   * Lists the jobs waiting for a worker, in no particular order.
+   * @return The jobs in the queue.
+   */
+  protected synchronized List<Job> waitingJobs() {
+    List<Job> waiting = new ArrayList<Job>(queueLength);
+    for (Share share : shares.values()) {
+      for (Entry entry : share.entries) waiting.add(entry.job);
+    } // next share
+    return waiting;
+  } // end of waitingJobs()
+
+  /**
+   * Selects the share whose virtual time would be lowest after its next job, among those
+   * with jobs waiting.
+   * @param shares
+   * @param now The current time.
+   * @return The share the next job should be taken from, or null if none have jobs waiting.
+   */
+  protected Share nextShare(Iterable<Share> shares, long now) {
+    Share next = null;
+    double nextFinish = Double.MAX_VALUE;
+    for (Share share : shares) {
+      if (share.entries.isEmpty()) continue;
+      double finish = share.virtualTime + nextEntry(share.entries, now).cost;
+      if (next == null || finish < nextFinish) {
+        next = share;
+        nextFinish = finish;
+      }
+    } // next share
+    return next;
+  } // end of nextShare()
+
+  /**
+   * Selects the entry with the highest priority.
+   * @param entries
+   * @param now The current time.
+   * @return The entry with the lowest {@link Entry#priority(long,double)}.
+   */
+  protected Entry nextEntry(List<Entry> entries, long now) {
+    Entry next = null;
+    double nextPriority = Double.MAX_VALUE;
+    for (Entry entry : entries) {
+      double priority = entry.priority(now, agingRate);
+      if (next == null || priority < nextPriority) {
+        next = entry;
+        nextPriority = priority;
+      }
+    } // next entry
+    return next;
+  } // end of nextEntry()
+
+  /**
+   * Determines the position of the given job in the queue, i.e. the order in which
+   * waiting jobs would be started if no more were submitted.
+   * @param job
+   * @return The 1-based position of the job in the queue, or 0 if it's not in the queue.
+   */
+  public synchronized int getQueuePosition(Job job) {
+    refreshPositions(System.currentTimeMillis());
+    Integer position = positions.get(job);
+    return position == null? 0 : position;
+  } // end of getQueuePosition()
+
+  /**
+   * Estimates how long it will be until the given job starts.
+   * @param job
+   * @return The estimated number of seconds until the job starts, 0 if it has already
+   * started, or -1 if there's no history to base an estimate on.
+   */
+  public double estimateSecondsUntilStart(Job job) {
+    if (job.getLeader() != null) job = job.getLeader();
+    if (job.getState() != Job.State.Queued) return 0;
+    synchronized (this) {
+      refreshPositions(System.currentTimeMillis());
+      if (starts == null) return -1;
+      Double start = starts.get(job);
+      return start == null? -1 : start;
+    }
+  } // end of estimateSecondsUntilStart()
+
+  /**
+   * Estimates how long it will be until the given job finishes.
+   * <p> For a running job, this is the predicted duration less the time it has been
+   * running, unless the job has already taken longer than predicted, in which case the
+   * proportion of the prediction corresponding to its remaining percentage is used.
+   * @param job
+   * @return The estimated number of seconds until the job finishes, 0 if it has already
+   * finished, or -1 if there's no history to base an estimate on.
+   */
+  public double estimateSecondsRemaining(Job job) {
+    if (job.getLeader() != null) job = job.getLeader();
+    if (job.isDone()) return 0;
+    if (job.getState() == Job.State.Running) {
+      return estimateRunningSecondsRemaining(job, System.currentTimeMillis());
+    }
+    double start = estimateSecondsUntilStart(job);
+    if (start < 0) return -1;
+    return start + predictSeconds(job);
+  } // end of estimateSecondsRemaining()
+
+  /**
+   * Predicts how long the given job will take from start to finish.
+   * @param job
+   * @return The predicted duration of the job in seconds, or -1 if there's no history to
+   * base a prediction on.
+   */
+  protected double predictSeconds(Job job) {
+    return throughput.predict(
+      ContentIndex.Annotator(job.getTranscriberId(), job.getTranscriberVersion()),
+      job.getDuration() > 0? job.getDuration() : UNKNOWN_DURATION);
+  } // end of predictSeconds()
+
+  /**
+   * Estimates how long it will be until the given running job finishes.
+   * @param job A running job.
+   * @param now The current time.
+   * @return The estimated number of seconds until the job finishes, or -1 if there's no
+   * history to base an estimate on.
+   */
+  protected double estimateRunningSecondsRemaining(Job job, long now) {
+    double predicted = predictSeconds(job);
+    if (predicted < 0) return -1;
+    double elapsed = (now - job.getStartedTime()) / 1000.0;
+    double percentRemaining = 100 - Math.min(100, job.getPercentComplete());
+    return Math.max(predicted - elapsed, predicted * percentRemaining / 100);
+  } // end of estimateRunningSecondsRemaining()
+
+  /**
+   * Recomputes {@link #positions} and {@link #starts}, unless they're recent.
+   * @param now The current time.
+   */
+  protected synchronized void refreshPositions(long now) {
+    // positions change as jobs age, but not so fast that they're worth recomputing often
+    if (positions == null || now - positionsTime > 1000) {
+      positions = new IdentityHashMap<Job,Integer>();
+      starts = null;
+      positionsTime = now;
+      // when each worker will next be free
+      PriorityQueue<Double> free = null;
+      if (!throughput.isEmpty()) {
+        starts = new IdentityHashMap<Job,Double>();
+        free = new PriorityQueue<Double>();
+        for (Job job : running) free.add(Math.max(0, estimateRunningSecondsRemaining(job, now)));
+        while (free.size() < workers.length) free.add(0.0);
+      }
+      // simulate taking all the jobs, on copies of the shares
+      List<Share> remaining = new ArrayList<Share>();
+      for (Share share : shares.values()) {
+        Share copy = new Share(share.virtualTime);
+        copy.entries.addAll(share.entries);
+        remaining.add(copy);
+      } // next share
+      for (Share next = nextShare(remaining, now); next != null;
+           next = nextShare(remaining, now)) {
+        Entry entry = nextEntry(next.entries, now);
+        next.entries.remove(entry);
+        next.virtualTime += entry.cost;
+        positions.put(entry.job, positions.size() + 1);
+        if (free != null) { // it starts when the first worker is free
+          double start = free.poll();
+          starts.put(entry.job, start);
+          free.add(start + Math.max(0, predictSeconds(entry.job)));
+        }
+      } // next job
+    }
+  } // end of refreshPositions()
+
+  /**
+   * The number of jobs waiting for a worker.
+   * @return The number of jobs in the queue.
+   */
+  public synchronized int getQueueLength() {
+    return queueLength;
+  } // end of getQueueLength()
+
+  /**
+   * The number of submitters with jobs waiting for a worker.
+   * @return The number of submitters with jobs in the queue.
+   */
+  public synchronized int getSubmitterCount() {
+    int count = 0;
+    for (Share share : shares.values()) if (!share.entries.isEmpty()) count++;
+    return count;
+  } // end of getSubmitterCount()
+
+  /**
+   * The number of jobs currently running.
+   * @return The number of workers that are busy.
+   */
+  public int getRunningCount() {
+    return runningCount.get();
+  } // end of getRunningCount()
+
+  /**
+   * The number of worker threads.
+   * @return The maximum number of jobs that can run at once.
+   */
+  public int getWorkerCount() {
+    return workers.length;
+  } // end of getWorkerCount()
+
+  /**
+   * Worker thread body: runs queued jobs until interrupted.
+   */
+  protected void work() {
+    String name = Thread.currentThread().getName();
+    while (!Thread.currentThread().isInterrupted()) {
+      Job job = null;
+      List<Job> waiting = null;
+      try {
+        synchronized (this) {
+          job = take();
+          running.add(job);
+          waiting = waitingJobs();
+        }
+      } catch (InterruptedException x) {
+        break;
+      }
+      runningCount.incrementAndGet();
+      // everything else in the queue has moved up one
+      for (Job queued : waiting) queued.changed();
+      Thread.currentThread().setName(name + ": " + job.getWav().getName());
+      try {
+        job.run();
+        if (job.getState() == Job.State.Finished && job.getDuration() > 0) {
+          throughput.record(
+            ContentIndex.Annotator(job.getTranscriberId(), job.getTranscriberVersion()),
+            job.getDuration(),
+            (job.getFinishedTime() - job.getStartedTime()) / 1000.0);
+        }
+      } catch (Throwable t) {
+        log.accept("JobScheduler: job " + job.getId() + " failed: " + t);
+      } finally {
+        Thread.currentThread().setName(name);
+        running.remove(job);
+        runningCount.decrementAndGet();
+      }
+    } // next job
+  } // end of work()
+  
+} // end of class JobScheduler
@@ -23,8 +23,12 @@ package nzilbb.webscribe;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.time.Instant;
 import java.util.List;
 import javax.json.Json;
+import javax.json.stream.JsonGenerator;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -43,7 +47,7 @@ import org.apache.commons.fileupload.servlet.*;
  * Returns the status of a transcription job.
  * @author Robert Fromont robert@fromont.net.nz
  */
-@WebServlet("/jobstatus/*")
+@WebServlet(urlPatterns = "/jobstatus/*", asyncSupported = true)
 public class JobStatus extends ServletBase {
   /**
    * Default constructor.
@@ -51,6 +55,65 @@ public class JobStatus extends ServletBase {
   public JobStatus() {
   } // end of constructor
   
+  /**
+   * Writes the status of the given job as a JSON object.
+   * <p> The "running" attribute is true until the job is finished, including while it's
+   * queued, so that clients know to keep checking.
+   * @param job
+   * @param scheduler The scheduler the job is queued with.
+   * @param writer Where to write the JSON.
+   */
+  public static void WriteStatus(Job job, JobScheduler scheduler, Writer writer) {
+    JsonGenerator json = Json.createGenerator(writer).writeStartObject();
+    WriteStatusAttributes(job, scheduler, json)
+      .writeEnd()
+      .close();
+  } // end of WriteStatus()
+  
+  /**
+   * Writes the attributes of the status of the given job into the current JSON object.
+   * <p> This includes "estimatedSecondsRemaining" and, for queued jobs, "estimatedStart"
+   * (an ISO 8601 time), which are null until there's enough history to estimate them.
+   * @param job
+   * @param scheduler The scheduler the job is queued with.
+   * @param json A generator in the context of an object.
+   * @return The given generator.
+   * @see #WriteStatus(Job,JobScheduler,Writer)
+   */
+  public static JsonGenerator WriteStatusAttributes(
+    Job job, JobScheduler scheduler, JsonGenerator json) {
+    int position = 0;
+    String message = job.getStatus();
+    if (job.getState() == Job.State.Queued) {
+      // jobs for identical recordings wait in the queue position of the one they follow
+      position = scheduler.getQueuePosition(job.getLeader() == null? job : job.getLeader());
+      message = "Queued, position " + position;
+    }
+    json
+      .write("message", message)
+      .write("wav", job.getWav().getName())
+      .write("percentComplete", job.getPercentComplete())
+      .write("running", !job.isDone())
+      .write("queued", job.getState() == Job.State.Queued)
+      .write("queuePosition", position);
+    // estimates are based on how long previous jobs took, so there may be none yet
+    double remaining = scheduler.estimateSecondsRemaining(job);
+    if (remaining < 0) {
+      json.writeNull("estimatedSecondsRemaining");
+    } else {
+      json.write("estimatedSecondsRemaining", Math.round(remaining));
+    }
+    double untilStart = job.getState() == Job.State.Queued?
+      scheduler.estimateSecondsUntilStart(job) : -1;
+    if (untilStart < 0) {
+      json.writeNull("estimatedStart");
+    } else {
+      json.write("estimatedStart", Instant.ofEpochMilli(
+                   System.currentTimeMillis() + Math.round(untilStart * 1000)).toString());
+    }
+    return json;
+  } // end of WriteStatusAttributes()
+  
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException {
@@ -64,22 +127,16 @@ public class JobStatus extends ServletBase {
       String suffix = request.getPathInfo().substring(1);
       try {
         long jobId = Long.parseLong(suffix);
-        log("JobStatus: " + jobId);
         Job job = Job.FindJob(jobId);
         if (job == null) {
           response.setStatus(HttpServletResponse.SC_NOT_FOUND);
           returnMessage("Job not found: " + jobId, response);
         } else {
-          
+          StringWriter json = new StringWriter();
+          WriteStatus(job, JobScheduler.From(getServletContext()), json);
           response.setContentType("application/json;charset=UTF-8");
-          Json.createGenerator(response.getWriter())
-            .writeStartObject()
-            .write("message", job.getTranscriber().getStatus())
-            .write("wav", job.getWav().getName())
-            .write("percentComplete", job.getTranscriber().getPercentComplete())
-            .write("running", job.getTranscriber().getRunning())
-            .writeEnd()
-            .close();
+          // send without blocking, in case the client is slow
+          AsyncResponder.Send(request.startAsync(), json.toString().getBytes("UTF-8"));
         }
       } catch(Exception exception) {
         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -0,0 +1,475 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.function.Consumer;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.servlet.ServletContext;
+import nzilbb.ag.Graph;
+import nzilbb.ag.serialize.SerializationException;
+import nzilbb.ag.serialize.json.JSONSerialization;
+import nzilbb.ag.serialize.util.NamedStream;
+import nzilbb.ag.serialize.util.Utility;
+import nzilbb.ag.util.FileMediaProvider;
+import nzilbb.configure.ParameterSet;
+import nzilbb.util.IO;
+
+/**
+ * Keeps jobs on disk, so that they survive the web application being restarted.
+ * <p> Each job has its own directory, containing the job's metadata (<tt>job.json</tt>)
+ * and either the recording to transcribe, or the transcript (<tt>transcript.json</tt>,
+ * in the native format of {@link JSONSerialization}). The directories of jobs that are
+ * not yet finished are in <tt>unfinished/</tt> and those of finished jobs are in
+ * <tt>finished/</tt>, so that on start-up, only unfinished jobs need to be read;
+ * finished jobs are read only when they're asked for. The next job ID is kept in
+ * <tt>next-id</tt>.
+ * <p> The ID of the last job to transcribe each recording with each transcriber version
+ * is kept in <tt>by-content/</tt>, in a file named after the {@link ContentIndex} key,
+ * so that a recording that's uploaded again after a restart can be found without reading
+ * every finished job.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class JobStore {
+
+  /**
+   * Gets the store for the given web application.
+   * @param context The servlet context.
+   * @return The store created by {@link ContextListener}, or null if there is none.
+   */
+  public static JobStore From(ServletContext context) {
+    return (JobStore)context.getAttribute(JobStore.class.getName());
+  } // end of From()
+  
+  /** Directories of jobs that are queued or running. */
+  protected File unfinishedDir;
+  
+  /** Directories of jobs that are finished. */
+  protected File finishedDir;
+
+  /**
+   * Getter for {@link #unfinishedDir}: Directories of jobs that are queued or running.
+   * @return Directories of jobs that are queued or running.
+   */
+  public File getUnfinishedDir() { return unfinishedDir; }
+
+  /** Files containing the IDs of finished jobs, named by content. */
+  protected File byContentDir;
+
+  /** File containing the next job ID. */
+  protected File nextIdFile;
+  
+  /** Where log messages go. */
+  protected Consumer<String> log;
+  
+  /**
+   * How long, in milliseconds, finished jobs are kept.
+   * @see #getRetentionMillis()
+   * @see #setRetentionMillis(long)
+   */
+  protected long retentionMillis = 1000L * 60 * 60;
+  /**
+   * Getter for {@link #retentionMillis}: How long, in milliseconds, finished jobs are kept.
+   * @return How long, in milliseconds, finished jobs are kept.
+   */
+  public long getRetentionMillis() { return retentionMillis; }
+  /**
+   * Setter for {@link #retentionMillis}: How long, in milliseconds, finished jobs are kept.
+   * @param newRetentionMillis How long, in milliseconds, finished jobs are kept.
+   */
+  public JobStore setRetentionMillis(long newRetentionMillis) { retentionMillis = newRetentionMillis; return this; }
+  
+  /**
+   * Constructor.
+   * @param dataDir The directory in which to keep jobs; it's created if necessary.
+   * @param log Where log messages go.
+   */
+  public JobStore(File dataDir, Consumer<String> log) {
+    this.log = log;
+    unfinishedDir = new File(dataDir, "unfinished");
+    finishedDir = new File(dataDir, "finished");
+    byContentDir = new File(dataDir, "by-content");
+    nextIdFile = new File(dataDir, "next-id");
+    unfinishedDir.mkdirs();
+    finishedDir.mkdirs();
+    byContentDir.mkdirs();
+  } // end of constructor
+  
+  /**
+   * Stores a new job. Its recording is moved into the job's directory.
+   * @param job
+   * @throws IOException
+   */
+  public void add(Job job) throws IOException {
+    File dir = new File(unfinishedDir, ""+job.getId());
+    dir.mkdir();
+    File originalWav = job.getWav();
+    File wav = new File(dir, originalWav.getName());
+    Files.move(originalWav.toPath(), wav.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    originalWav.getParentFile().delete(); // if it's now empty
+    job.setWav(wav);
+    writeMetadata(job, dir);
+    writeNextId(job.getId() + 1);
+  } // end of add()
+  
+  /**
+   * Deletes a job that hasn't finished, e.g. because it couldn't be queued.
+   * @param job
+   */
+  public void remove(Job job) {
+    File dir = new File(unfinishedDir, ""+job.getId());
+    if (dir.exists()) IO.RecursivelyDelete(dir);
+  } // end of remove()
+  
+  /**
+   * Stores the outcome of a finished job, including its transcript, if any. The job's
+   * recording, and anything else left in its directory (e.g. segments of the recording),
+   * is deleted.
+   * @param job
+   */
+  public void finished(Job job) {
+    File dir = new File(unfinishedDir, ""+job.getId());
+    if (!dir.exists()) return; // not stored
+    try {
+      if (job.getTranscript() != null) {
+        WriteTranscript(job.getTranscript(), new File(dir, "transcript.json"), log);
+      }
+      File[] files = dir.listFiles(
+        file -> !file.getName().equals("job.json") && !file.getName().equals("transcript.json"));
+      if (files != null) for (File file : files) IO.RecursivelyDelete(file);
+      writeMetadata(job, dir);
+      // move it to finished all at once, so a half-stored job is never found
+      Files.move(dir.toPath(), new File(finishedDir, dir.getName()).toPath(),
+                 StandardCopyOption.ATOMIC_MOVE);
+      if (job.getState() == Job.State.Finished && job.getTranscript() != null) {
+        String key = ContentIndex.Key(
+          job.getContentHash(), job.getTranscriberId(), job.getTranscriberVersion());
+        if (key != null) {
+          File temp = File.createTempFile("id-", ".tmp", byContentDir);
+          Files.write(temp.toPath(), (""+job.getId()).getBytes("UTF-8"));
+          Files.move(temp.toPath(), byContentFile(key).toPath(),
+                     StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+      }
+    } catch (Exception x) {
+      log.accept("JobStore: could not store job " + job.getId() + ": " + x);
+    }
+  } // end of finished()
+  
+  /**
+   * Reads the jobs that weren't finished when the web application stopped, in the order
+   * they were created. Jobs that were running are returned as queued, to be started again.
+   * <p> The jobs are not registered, and have no transcriber pool.
+   * @return The unfinished jobs.
+   */
+  public Vector<Job> recover() {
+    Vector<Job> jobs = new Vector<Job>();
+    File[] dirs = unfinishedDir.listFiles(File::isDirectory);
+    if (dirs == null) return jobs;
+    long[] ids = new long[dirs.length];
+    int count = 0;
+    for (File dir : dirs) {
+      try {
+        ids[count++] = Long.parseLong(dir.getName());
+      } catch (NumberFormatException x) {
+      }
+    } // next dir
+    ids = Arrays.copyOf(ids, count);
+    Arrays.sort(ids);
+    for (long id : ids) {
+      File dir = new File(unfinishedDir, ""+id);
+      try {
+        JsonObject metadata = readMetadata(dir);
+        Job job = newJob(metadata, dir);
+        if (!job.getWav().exists()) throw new IOException("Recording missing");
+        job.restore(Job.State.Queued, "Waiting to start...", 0, 0);
+        jobs.add(job);
+      } catch (Exception x) {
+        log.accept("JobStore: could not recover job " + id + ": " + x);
+        IO.RecursivelyDelete(dir);
+      }
+    } // next job
+    return jobs;
+  } // end of recover()
+  
+  /**
+   * Finds the last stored job that transcribed a recording with a transcriber version,
+   * e.g. because it's been uploaded again after a restart.
+   * @param key The key from {@link ContentIndex#Key(String,String,String)}.
+   * @return The ID of the job, or 0 if there is none. The job may have expired since.
+   */
+  public long findContent(String key) {
+    try {
+      File file = byContentFile(key);
+      if (!file.exists()) return 0;
+      return Long.parseLong(new String(Files.readAllBytes(file.toPath()), "UTF-8").trim());
+    } catch (Exception x) {
+      return 0;
+    }
+  } // end of findContent()
+
+  /**
+   * Determines the file that records the job that transcribed a recording with a
+   * transcriber version.
+   * @param key The key from {@link ContentIndex#Key(String,String,String)}.
+   * @return The file, named after a hash of the key, as the key itself contains the
+   * transcriber's ID.
+   */
+  protected File byContentFile(String key) throws IOException {
+    return new File(
+      byContentDir, ContentIndex.Hex(ContentIndex.NewDigest().digest(key.getBytes("UTF-8"))));
+  } // end of byContentFile()
+
+  /**
+   * Reads a finished job.
+   * <p> The job is not registered.
+   * @param id The job's ID.
+   * @return The job, or null if it's not stored, or has expired.
+   */
+  public Job load(long id) {
+    File dir = new File(finishedDir, ""+id);
+    File metadataFile = new File(dir, "job.json");
+    if (!metadataFile.exists()) return null;
+    try {
+      JsonObject metadata = readMetadata(dir);
+      long finishedTime = metadata.getJsonNumber("finishedTime").longValue();
+      if (finishedTime < System.currentTimeMillis() - retentionMillis) return null;
+      Job job = newJob(metadata, dir)
+        .restore(Job.State.valueOf(metadata.getString("state")),
+                 metadata.getString("status", null),
+                 metadata.getInt("percentComplete", 0),
+                 finishedTime);
+      File transcriptFile = new File(dir, "transcript.json");
+      if (transcriptFile.exists()) {
+        Graph transcript = ReadTranscript(transcriptFile);
+        // ensure the serializer can know the media file name
+        transcript.setMediaProvider(new FileMediaProvider().withFile(job.getWav()));
+        job.setTranscript(transcript);
+      }
+      return job;
+    } catch (Exception x) {
+      log.accept("JobStore: could not load job " + id + ": " + x);
+      return null;
+    }
+  } // end of load()
+  
+  /**
+   * Deletes finished jobs that are older than {@link #getRetentionMillis()}.
+   * @return The number of jobs deleted.
+   */
+  public int purge() {
+    long cutoff = System.currentTimeMillis() - retentionMillis;
+    int count = 0;
+    // job.json is last written when the job finishes
+    File[] dirs = finishedDir.listFiles(
+      dir -> new File(dir, "job.json").lastModified() < cutoff);
+    if (dirs != null) {
+      for (File dir : dirs) {
+        if (IO.RecursivelyDelete(dir)) count++;
+      } // next expired job
+    }
+    File[] byContent = byContentDir.listFiles(file -> file.lastModified() < cutoff);
+    if (byContent != null) for (File file : byContent) file.delete();
+    return count;
+  } // end of purge()
+  
+  /**
+   * The next job ID, which is greater than the ID of any stored job.
+   * @return The next job ID, or 1 if none has been stored.
+   */
+  public long getNextId() {
+    if (nextIdFile.exists()) {
+      try {
+        return Long.parseLong(
+          new String(Files.readAllBytes(nextIdFile.toPath()), "UTF-8").trim());
+      } catch (Exception x) {
+        log.accept("JobStore: could not read " + nextIdFile.getPath() + ": " + x);
+      }
+    }
+    return 1;
+  } // end of getNextId()
+  
+  /**
+   * Creates a job from its metadata.
+   * @param metadata
+   * @param dir The job's directory.
+   * @return The job.
+   */
+  protected Job newJob(JsonObject metadata, File dir) {
+    Job job = new Job(metadata.getJsonNumber("id").longValue())
+      .setWav(new File(dir, metadata.getString("wav")))
+      .setTranscriberId(metadata.getString("transcriberId", null))
+      .setTranscriberVersion(metadata.getString("transcriberVersion", null))
+      .setBatchId(metadata.getJsonNumber("batchId").longValue());
+    String contentHash = metadata.getString("contentHash", "");
+    if (contentHash.length() > 0) job.setContentHash(contentHash);
+    String submitter = metadata.getString("submitter", "");
+    if (submitter.length() > 0) job.setSubmitter(submitter);
+    if (metadata.containsKey("duration")) {
+      job.setDuration(metadata.getJsonNumber("duration").doubleValue());
+    }
+    int segmentSeconds = metadata.getInt("segmentSeconds", 0);
+    if (segmentSeconds > 0) {
+      job.setSegmenter(new AudioSegmenter().setSegmentSeconds(segmentSeconds));
+    }
+    int normalizeSampleRate = metadata.getInt("normalizeSampleRate", 0);
+    if (normalizeSampleRate > 0) {
+      job.setNormalizer(new AudioNormalizer().setSampleRate(normalizeSampleRate));
+    }
+    return job;
+  } // end of newJob()
+  
+  /**
+   * Writes the given job's metadata to <tt>job.json</tt> in the given directory.
+   * @param job
+   * @param dir
+   * @throws IOException
+   */
+  protected void writeMetadata(Job job, File dir) throws IOException {
+    File file = new File(dir, "job.json");
+    File temp = new File(dir, "job.json.tmp");
+    OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+    try {
+      Json.createGenerator(writer)
+        .writeStartObject()
+        .write("id", job.getId())
+        .write("state", job.getState().name())
+        .write("wav", job.getWav().getName())
+        .write("transcriberId", ""+job.getTranscriberId())
+        .write("transcriberVersion", ""+job.getTranscriberVersion())
+        .write("status", ""+job.getStatus())
+        .write("percentComplete", job.getPercentComplete())
+        .write("batchId", job.getBatchId())
+        .write("contentHash", job.getContentHash() == null? "" : job.getContentHash())
+        .write("submitter", job.getSubmitter() == null? "" : job.getSubmitter())
+        .write("duration", job.getDuration())
+        .write("segmentSeconds", job.getSegmenter() == null? 0
+               : (int)job.getSegmenter().getSegmentSeconds())
+        .write("normalizeSampleRate", job.getNormalizer() == null? 0
+               : job.getNormalizer().getSampleRate())
+        .write("finishedTime", job.getFinishedTime())
+        .writeEnd()
+        .close();
+    } finally {
+      writer.close();
+    }
+    // replace the old metadata all at once, so it's never half-written
+    Files.move(temp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  } // end of writeMetadata()
+  
+  /**
+   * Reads <tt>job.json</tt> from the given directory.
+   * @param dir
+   * @return The job's metadata.
+   * @throws IOException
+   */
+  protected JsonObject readMetadata(File dir) throws IOException {
+    InputStream in = new FileInputStream(new File(dir, "job.json"));
+    try {
+      JsonReader reader = Json.createReader(in);
+      try {
+        return reader.readObject();
+      } finally {
+        reader.close();
+      }
+    } finally {
+      in.close();
+    }
+  } // end of readMetadata()
+  
+  /**
+   * Records the next job ID.
+   * @param nextId
+   * @throws IOException
+   */
+  protected synchronized void writeNextId(long nextId) throws IOException {
+    if (nextId <= getNextId()) return;
+    File temp = new File(nextIdFile.getPath() + ".tmp");
+    Files.write(temp.toPath(), (""+nextId).getBytes("UTF-8"));
+    Files.move(temp.toPath(), nextIdFile.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  } // end of writeNextId()
+  
+  /**
+   * Saves a transcript, including all its layers, in the native JSON format.
+   * @param transcript
+   * @param file
+   * @param log For serialization warnings.
+   * @throws Exception
+   */
+  public static void WriteTranscript(Graph transcript, File file, Consumer<String> log)
+    throws Exception {
+    JSONSerialization serializer = new JSONSerialization();
+    serializer.configure(
+      serializer.configure(new ParameterSet(), transcript.getSchema()),
+      transcript.getSchema());
+    final Vector<NamedStream> streams = new Vector<NamedStream>();
+    final Vector<SerializationException> errors = new Vector<SerializationException>();
+    serializer.serialize(
+      Utility.OneGraphSpliterator(transcript),
+      transcript.getSchema().getLayers().keySet().toArray(new String[0]),
+      stream -> streams.add(stream),
+      warning -> log.accept("JobStore: " + transcript.getId() + ": " + warning),
+      exception -> errors.add(exception));
+    if (!errors.isEmpty()) throw errors.firstElement();
+    if (streams.isEmpty()) throw new IOException("Transcript not serialized");
+    OutputStream out = new FileOutputStream(file);
+    try {
+      IO.Pump(streams.firstElement().getStream(), out, false);
+    } finally {
+      out.close();
+    }
+  } // end of WriteTranscript()
+  
+  /**
+   * Reads a transcript saved by {@link #WriteTranscript(Graph,File,Consumer)}.
+   * @param file
+   * @return The transcript.
+   * @throws Exception
+   */
+  public static Graph ReadTranscript(File file) throws Exception {
+    JSONSerialization deserializer = new JSONSerialization();
+    deserializer.configure(
+      new ParameterSet(), TranscriberPool.CreateSchema());
+    NamedStream[] streams = { new NamedStream(file) };
+    deserializer.setParameters(deserializer.load(streams, TranscriberPool.CreateSchema()));
+    try {
+      return deserializer.deserialize()[0];
+    } finally {
+      streams[0].getStream().close();
+    }
+  } // end of ReadTranscript()
+  
+} // end of class JobStore
@@ -21,26 +21,14 @@
 //
 package nzilbb.webscribe;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.List;
-import java.util.Vector;
 import javax.json.Json;
 import javax.json.stream.JsonGenerator;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import nzilbb.ag.Constants;
-import nzilbb.ag.Layer;
-import nzilbb.ag.Schema;
-import nzilbb.ag.automation.Annotator;
-import nzilbb.ag.automation.Transcriber;
-import nzilbb.ag.automation.util.AnnotatorDescriptor;
-import nzilbb.ag.serialize.GraphSerializer;
 import nzilbb.ag.serialize.SerializationDescriptor;
-import nzilbb.ag.serialize.util.IconHelper;
-import nzilbb.util.IO;
 
 /**
  * Lists available transcript formats.
@@ -60,32 +48,22 @@ public class ListFormats extends ServletBase {
     response.setContentType("application/json;charset=UTF-8");
     
     // return a list of serializers
-    File serializerDir = new File(getServletContext().getRealPath("formatter"));
-    File[] serializers = serializerDir.listFiles((File dir, String name)->{
-        return name.endsWith(".jar");
-      });
     JsonGenerator json = Json.createGenerator(response.getWriter())
       .writeStartArray();
     try {
-      for (File jar : serializers) {
-        Vector implementors = IO.FindImplementorsInJar(
-          jar, getClass().getClassLoader(), 
-          Class.forName("nzilbb.ag.serialize.GraphSerializer"));
-        for (Object o : implementors) {
-          GraphSerializer serializer = (GraphSerializer)o;
-          SerializationDescriptor descriptor = serializer.getDescriptor();
-          json.writeStartObject();
-          try {
-            json.write("name", descriptor.getName())
-              .write("version", descriptor.getVersion())
-              .write("mimeType", descriptor.getMimeType());
-            File iconFile = IconHelper.EnsureIconFileExists(descriptor, serializerDir);
-            json.write("icon", iconFile.getName());            
-          } finally {
-            json.writeEnd();
-          }
+      for (SerializerRegistry.Format format
+             : SerializerRegistry.From(getServletContext()).listFormats()) {
+        SerializationDescriptor descriptor = format.getDescriptor();
+        json.writeStartObject();
+        try {
+          json.write("name", descriptor.getName())
+            .write("version", descriptor.getVersion())
+            .write("mimeType", descriptor.getMimeType());
+          if (format.getIcon() != null) json.write("icon", format.getIcon());
+        } finally {
+          json.writeEnd();
         }
-      } // next serializer jar
+      } // next format
     } catch (Exception x) {
       json.writeStartObject();
       json.write("error", ""+x);
@@ -0,0 +1,54 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Returns operational {@link Metrics} in the
+ * <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus
+ * text format</a>, for scraping by a monitoring system.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@WebServlet("/metrics")
+public class ListMetrics extends ServletBase {
+  /**
+   * Default constructor.
+   */
+  public ListMetrics() {
+  } // end of constructor
+  
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+    StringWriter metrics = new StringWriter();
+    Metrics.Instance().write(metrics);
+    response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.getWriter().write(metrics.toString());
+  }
+} // end of class ListMetrics
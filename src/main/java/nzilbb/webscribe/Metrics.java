@@ -0,0 +1,371 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Operational metrics, which can be written in the
+ * <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus
+ * text format</a>.
+ * <p> Counters and summaries are updated with {@link LongAdder}s and {@link DoubleAdder}s,
+ * so updating them never blocks. Values that are already tracked elsewhere, like queue
+ * lengths, are registered as callbacks with {@link #gauge(String,String,DoubleSupplier)}
+ * and read only when the metrics are written.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class Metrics {
+  
+  /** The metrics of this web application. */
+  protected static final Metrics metrics = new Metrics();
+  
+  /**
+   * The metrics of this web application.
+   * @return The metrics.
+   */
+  public static Metrics Instance() { return metrics; }
+  
+  /** A value that only goes up. */
+  public static class Counter {
+    DoubleAdder value = new DoubleAdder();
+    /** Adds one. */
+    public void inc() { value.add(1); }
+    /** Adds the given amount. @param amount */
+    public void add(double amount) { value.add(amount); }
+    /** The current value. @return The current value. */
+    public double get() { return value.sum(); }
+  } // end of class Counter
+  
+  /** The number and total size of observations, e.g. durations. */
+  public static class Summary {
+    LongAdder count = new LongAdder();
+    DoubleAdder sum = new DoubleAdder();
+    /** Records an observation. @param value */
+    public void observe(double value) {
+      count.increment();
+      sum.add(value);
+    }
+    /** The number of observations. @return The number of observations. */
+    public long getCount() { return count.sum(); }
+    /** The total of all observations. @return The total of all observations. */
+    public double getSum() { return sum.sum(); }
+  } // end of class Summary
+  
+  /**
+   * A metric with one label, with a child metric for each label value.
+   * @param <T> The type of the child metrics.
+   */
+  public static class Family<T> {
+    String labelName;
+    Supplier<T> factory;
+    ConcurrentHashMap<String,T> children = new ConcurrentHashMap<String,T>();
+    Family(String labelName, Supplier<T> factory) {
+      this.labelName = labelName;
+      this.factory = factory;
+    }
+    /**
+     * Gets the child metric for the given label value, creating it if necessary.
+     * @param value
+     * @return The child metric.
+     */
+    public T labels(String value) {
+      if (value == null) value = "";
+      T child = children.get(value);
+      if (child == null) child = children.computeIfAbsent(value, v -> factory.get());
+      return child;
+    }
+    /**
+     * The child metrics so far, by label value.
+     * @return The child metrics so far, by label value.
+     */
+    public Map<String,T> getChildren() { return children; }
+  } // end of class Family
+
+  /** Values with one label, computed when they're written. */
+  static class GaugeFamily {
+    String labelName;
+    Supplier<Map<String,Double>> values;
+    GaugeFamily(String labelName, Supplier<Map<String,Double>> values) {
+      this.labelName = labelName;
+      this.values = values;
+    }
+  } // end of class GaugeFamily
+
+  /** A registered metric, for writing. */
+  static class Registered {
+    String name;
+    String help;
+    String type;
+    Object metric;
+    Registered(String name, String help, String type, Object metric) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+      this.metric = metric;
+    }
+  } // end of class Registered
+  
+  /** All metrics, in the order they were registered. */
+  protected Vector<Registered> registered = new Vector<Registered>();
+  
+  /** Wall time of jobs, by outcome ("Finished" or "Failed"). */
+  public final Family<Summary> jobSeconds = summaryFamily(
+    "webscribe_job_duration_seconds", "Time taken to run jobs, including waiting for a transcriber", "outcome");
+  
+  /** Duration of transcribed recordings, by transcriber and version. */
+  public final Family<Counter> audioSeconds = counterFamily(
+    "webscribe_audio_seconds_total", "Duration of recordings transcribed", "transcriber");
+  
+  /** Time spent transcribing recordings in {@link #audioSeconds}, by transcriber and version. */
+  public final Family<Counter> transcriptionSeconds = counterFamily(
+    "webscribe_transcription_seconds_total", "Time taken to transcribe recordings", "transcriber");
+  
+  /** Bytes of recordings uploaded. */
+  public final Counter uploadBytes = counter(
+    "webscribe_upload_bytes_total", "Bytes of recordings uploaded");
+  
+  /** Time spent receiving uploaded recordings. */
+  public final Counter uploadSeconds = counter(
+    "webscribe_upload_seconds_total", "Time taken receiving uploaded recordings");
+  
+  /** Uploads of recordings that had already been uploaded, which weren't transcribed again. */
+  public final Counter duplicateUploads = counter(
+    "webscribe_duplicate_uploads_total", "Uploads of recordings that had already been uploaded");
+  
+  /** Time taken to serialize transcripts, by requested MIME type. */
+  public final Family<Summary> serializationSeconds = summaryFamily(
+    "webscribe_serialization_duration_seconds", "Time taken to serialize transcripts", "format");
+  
+  /** Time taken to send email messages. */
+  public final Summary emailSeconds = summary(
+    "webscribe_email_send_duration_seconds", "Time taken to send email messages");
+  
+  /** Email messages that could not be sent. */
+  public final Counter emailFailures = counter(
+    "webscribe_email_failures_total", "Email send attempts that failed");
+  
+  /**
+   * Default constructor.
+   */
+  public Metrics() {
+    gaugeFamily("webscribe_real_time_factor",
+                "Time taken to transcribe recordings divided by their duration",
+                "transcriber", () -> {
+                  Map<String,Double> ratios = new TreeMap<String,Double>();
+                  for (Map.Entry<String,Counter> audio : audioSeconds.getChildren().entrySet()) {
+                    double duration = audio.getValue().get();
+                    if (duration > 0) {
+                      ratios.put(audio.getKey(),
+                                 transcriptionSeconds.labels(audio.getKey()).get() / duration);
+                    }
+                  } // next transcriber
+                  return ratios;
+                });
+    gauge("webscribe_upload_bytes_per_second", "Average upload speed", () -> {
+        double seconds = uploadSeconds.get();
+        return seconds > 0? uploadBytes.get() / seconds : 0;
+      });
+  } // end of constructor
+  
+  /**
+   * Registers a counter.
+   * @param name The metric name.
+   * @param help A description of the metric.
+   * @return The counter.
+   */
+  public Counter counter(String name, String help) {
+    Counter counter = new Counter();
+    registered.add(new Registered(name, help, "counter", counter));
+    return counter;
+  } // end of counter()
+  
+  /**
+   * Registers a counter whose value is tracked elsewhere.
+   * @param name The metric name.
+   * @param help A description of the metric.
+   * @param value Gets the current value.
+   */
+  public void counter(String name, String help, DoubleSupplier value) {
+    registered.add(new Registered(name, help, "counter", value));
+  } // end of counter()
+  
+  /**
+   * Registers a counter with one label.
+   * @param name The metric name.
+   * @param help A description of the metric.
+   * @param labelName The name of the label.
+   * @return The counters, by label value.
+   */
+  public Family<Counter> counterFamily(String name, String help, String labelName) {
+    Family<Counter> family = new Family<Counter>(labelName, Counter::new);
+    registered.add(new Registered(name, help, "counter", family));
+    return family;
+  } // end of counterFamily()
+  
+  /**
+   * Registers a summary.
+   * @param name The metric name.
+   * @param help A description of the metric.
+   * @return The summary.
+   */
+  public Summary summary(String name, String help) {
+    Summary summary = new Summary();
+    registered.add(new Registered(name, help, "summary", summary));
+    return summary;
+  } // end of summary()
+  
+  /**
+   * Registers a summary with one label.
+   * @param name The metric name.
+   * @param help A description of the metric.
+   * @param labelName The name of the label.
+   * @return The summaries, by label value.
+   */
+  public Family<Summary> summaryFamily(String name, String help, String labelName) {
+    Family<Summary> family = new Family<Summary>(labelName, Summary::new);
+    registered.add(new Registered(name, help, "summary", family));
+    return family;
+  } // end of summaryFamily()
+  
+  /**
+   * Registers a value that can go up and down, which is tracked elsewhere.
+   * @param name The metric name.
+   * @param help A description of the metric.
+   * @param value Gets the current value.
+   */
+  public void gauge(String name, String help, DoubleSupplier value) {
+    registered.add(new Registered(name, help, "gauge", value));
+  } // end of gauge()
+  
+  /**
+   * Registers values that can go up and down, with one label, which are computed when
+   * they're written.
+   * @param name The metric name.
+   * @param help A description of the metric.
+   * @param labelName The name of the label.
+   * @param values Gets the current values, by label value.
+   */
+  public void gaugeFamily(
+    String name, String help, String labelName, Supplier<Map<String,Double>> values) {
+    registered.add(new Registered(name, help, "gauge", new GaugeFamily(labelName, values)));
+  } // end of gaugeFamily()
+
+  /**
+   * Removes a metric registered with {@link #counter(String,String,DoubleSupplier)} or
+   * {@link #gauge(String,String,DoubleSupplier)}, e.g. when the web application stops.
+   * @param name The metric name.
+   */
+  public void unregister(String name) {
+    registered.removeIf(metric -> metric.name.equals(name));
+  } // end of unregister()
+  
+  /**
+   * Writes all metrics in the Prometheus text format.
+   * @param out
+   * @throws IOException
+   */
+  public void write(Writer out) throws IOException {
+    for (Registered metric : registered.toArray(new Registered[0])) {
+      out.write("# HELP " + metric.name + " " + metric.help + "\n");
+      out.write("# TYPE " + metric.name + " " + metric.type + "\n");
+      if (metric.metric instanceof Counter) {
+        writeSample(out, metric.name, null, null, ((Counter)metric.metric).get());
+      } else if (metric.metric instanceof Summary) {
+        writeSummary(out, metric.name, null, null, (Summary)metric.metric);
+      } else if (metric.metric instanceof DoubleSupplier) {
+        writeSample(out, metric.name, null, null, ((DoubleSupplier)metric.metric).getAsDouble());
+      } else if (metric.metric instanceof Family) {
+        Family<?> family = (Family<?>)metric.metric;
+        for (Map.Entry<String,?> child : new TreeMap<String,Object>(family.children).entrySet()) {
+          if (child.getValue() instanceof Summary) {
+            writeSummary(out, metric.name, family.labelName, child.getKey(),
+                         (Summary)child.getValue());
+          } else {
+            writeSample(out, metric.name, family.labelName, child.getKey(),
+                        ((Counter)child.getValue()).get());
+          }
+        } // next child
+      } else if (metric.metric instanceof GaugeFamily) {
+        GaugeFamily family = (GaugeFamily)metric.metric;
+        for (Map.Entry<String,Double> value : family.values.get().entrySet()) {
+          writeSample(out, metric.name, family.labelName, value.getKey(), value.getValue());
+        } // next value
+      }
+    } // next metric
+  } // end of write()
+  
+  /**
+   * Writes a summary's count and sum.
+   * @param out
+   * @param name
+   * @param labelName
+   * @param labelValue
+   * @param summary
+   * @throws IOException
+   */
+  protected void writeSummary(
+    Writer out, String name, String labelName, String labelValue, Summary summary)
+    throws IOException {
+    writeSample(out, name + "_count", labelName, labelValue, summary.getCount());
+    writeSample(out, name + "_sum", labelName, labelValue, summary.getSum());
+  } // end of writeSummary()
+  
+  /**
+   * Writes one sample line.
+   * @param out
+   * @param name
+   * @param labelName The label name, or null if there's no label.
+   * @param labelValue
+   * @param value
+   * @throws IOException
+   */
+  protected void writeSample(
+    Writer out, String name, String labelName, String labelValue, double value)
+    throws IOException {
+    out.write(name);
+    if (labelName != null) {
+      out.write("{" + labelName + "=\"" + labelValue
+                .replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"}");
+    }
+    out.write(" ");
+    if (Double.isNaN(value)) {
+      out.write("NaN");
+    } else if (Double.isInfinite(value)) {
+      out.write(value > 0? "+Inf" : "-Inf");
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      out.write(Long.toString((long)value));
+    } else {
+      out.write(Double.toString(value));
+    }
+    out.write("\n");
+  } // end of writeSample()
+  
+} // end of class Metrics
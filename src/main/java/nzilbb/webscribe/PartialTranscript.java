@@ -0,0 +1,179 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Vector;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.Graph;
+import nzilbb.ag.Schema;
+
+/**
+ * The utterances of a transcript produced so far, which can be read while the transcript
+ * is still being produced.
+ * <p> Utterances are only ever appended, in order, and each is immutable, so readers can
+ * take a consistent snapshot at any time without copying the transcript itself. Each
+ * utterance's position in the list is a cursor; {@link #since(int)} returns only those
+ * added after a given cursor.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class PartialTranscript {
+
+  /** An utterance in the transcript. */
+  public static class Utterance {
+    final double start;
+    final double end;
+    final String participant;
+    final String text;
+    Utterance(double start, double end, String participant, String text) {
+      this.start = start;
+      this.end = end;
+      this.participant = participant;
+      this.text = text;
+    }
+    /**
+     * The start time of the utterance.
+     * @return The start time in seconds from the beginning of the recording.
+     */
+    public double getStart() { return start; }
+    /**
+     * The end time of the utterance.
+     * @return The end time in seconds from the beginning of the recording.
+     */
+    public double getEnd() { return end; }
+    /**
+     * Who spoke the utterance.
+     * @return The participant's name, or null if unknown.
+     */
+    public String getParticipant() { return participant; }
+    /**
+     * What was said.
+     * @return The words of the utterance.
+     */
+    public String getText() { return text; }
+  } // end of class Utterance
+
+  /** The utterances so far, in order. */
+  protected List<Utterance> utterances = new ArrayList<Utterance>();
+
+  /** Whether all the utterances have been added. */
+  protected volatile boolean complete = false;
+
+  /**
+   * Default constructor.
+   */
+  public PartialTranscript() {
+  } // end of constructor
+
+  /**
+   * Determines whether all the utterances have been added.
+   * @return true if the transcript is complete.
+   */
+  public boolean isComplete() { return complete; }
+
+  /**
+   * The number of utterances so far, which is the cursor for getting any added later.
+   * @return The number of utterances.
+   */
+  public synchronized int size() {
+    return utterances.size();
+  } // end of size()
+
+  /**
+   * Gets the utterances added after the given cursor.
+   * @param cursor The number of utterances already seen.
+   * @return A snapshot of the utterances from <var>cursor</var> on.
+   */
+  public synchronized List<Utterance> since(int cursor) {
+    cursor = Math.max(0, Math.min(cursor, utterances.size()));
+    return new Vector<Utterance>(utterances.subList(cursor, utterances.size()));
+  } // end of since()
+
+  /**
+   * Appends the utterances of part of the transcript, e.g. a transcribed segment of the
+   * recording. Parts must be added in order.
+   * @param part A transcript of part of the recording.
+   * @param offset The start time of the part in the whole recording.
+   */
+  public void add(Graph part, double offset) {
+    List<Utterance> added = Utterances(part, offset);
+    synchronized (this) {
+      utterances.addAll(added);
+    }
+  } // end of add()
+
+  /**
+   * Marks the transcript as complete. If no utterances have been added (e.g. because the
+   * transcriber produced the whole transcript at once), those of the given transcript are
+   * added first.
+   * @param transcript The complete transcript.
+   */
+  public synchronized void complete(Graph transcript) {
+    if (complete) return;
+    if (utterances.isEmpty()) utterances.addAll(Utterances(transcript, 0.0));
+    complete = true;
+  } // end of complete()
+
+  /**
+   * Extracts the utterances of a transcript. The text of each utterance is made up of
+   * the words that start within it, or its own label if there are none.
+   * @param graph
+   * @param offset Added to all times.
+   * @return The utterances, ordered by start time.
+   */
+  public static List<Utterance> Utterances(Graph graph, double offset) {
+    Schema schema = graph.getSchema();
+    Comparator<Annotation> byStart = Comparator.comparingDouble(
+      a -> SegmentedTranscription.Offset(a.getStart(), 0.0));
+    Annotation[] lines = graph.all(schema.getUtteranceLayerId());
+    Arrays.sort(lines, byStart);
+    Annotation[] words = graph.all(schema.getWordLayerId());
+    Arrays.sort(words, byStart);
+    List<Utterance> list = new ArrayList<Utterance>(lines.length);
+    int w = 0;
+    for (Annotation line : lines) {
+      double start = SegmentedTranscription.Offset(line.getStart(), 0.0);
+      double end = SegmentedTranscription.Offset(line.getEnd(), start);
+      // skip words before this utterance
+      while (w < words.length
+             && SegmentedTranscription.Offset(words[w].getStart(), 0.0) < start) w++;
+      StringBuilder text = new StringBuilder();
+      while (w < words.length
+             && SegmentedTranscription.Offset(words[w].getStart(), 0.0) < end) {
+        if (text.length() > 0) text.append(' ');
+        text.append(words[w++].getLabel());
+      } // next word in the utterance
+      if (text.length() == 0 && line.getLabel() != null) text.append(line.getLabel());
+      // utterances belong to turns, which belong to participants
+      Annotation turn = line.getParent();
+      Annotation participant = turn == null? null : turn.getParent();
+      list.add(new Utterance(
+                 offset + start, offset + end,
+                 participant == null? null : participant.getLabel(), text.toString()));
+    } // next utterance
+    return list;
+  } // end of Utterances()
+  
+} // end of class PartialTranscript
@@ -0,0 +1,300 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.servlet.ServletContext;
+import nzilbb.util.IO;
+
+/**
+ * Disk space for recordings that are being uploaded or waiting to be transcribed.
+ * <p> Each upload is received into a directory of its own, which is deleted if the upload
+ * fails; otherwise the recording is moved to its job's directory in the {@link JobStore},
+ * which is also counted as part of the scratch space (see {@link #watch(File)}).
+ * <p> New uploads are refused, by throwing {@link RejectedExecutionException} (the same
+ * as when the job queue is full), if they would take the space used over
+ * {@link #quotaBytes}, or leave less than {@link #minFreeBytes} free on the disk. This is
+ * checked before receiving starts, and again as data is received.
+ * <p> At start-up, any upload directories left by a previous run are deleted, and upload
+ * directories that are abandoned for longer than {@link #maxAgeMillis} are deleted
+ * periodically by {@link #purge()}.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ScratchSpace {
+
+  /**
+   * Gets the scratch space for the given web application.
+   * @param context The servlet context.
+   * @return The scratch space created by {@link ContextListener}, or null if there is none.
+   */
+  public static ScratchSpace From(ServletContext context) {
+    return (ScratchSpace)context.getAttribute(ScratchSpace.class.getName());
+  } // end of From()
+
+  /** Directory containing a subdirectory for each upload in progress. */
+  protected File uploadDir;
+
+  /** Directories whose contents count towards the space used. */
+  protected List<File> watched = new CopyOnWriteArrayList<File>();
+
+  /** Bytes received by uploads in progress since {@link #measuredBytes} was measured. */
+  protected AtomicLong pendingBytes = new AtomicLong(0);
+
+  /** The size of the contents of {@link #watched} when last measured, or -1 if unknown. */
+  protected volatile long measuredBytes = -1;
+
+  /** When {@link #measuredBytes} was measured. */
+  protected volatile long measuredTime = 0;
+
+  /** Where log messages go. */
+  protected Consumer<String> log;
+  
+  /**
+   * The maximum space, in bytes, that recordings can use, or 0 for no limit.
+   * @see #getQuotaBytes()
+   * @see #setQuotaBytes(long)
+   */
+  protected long quotaBytes = 0;
+  /**
+   * Getter for {@link #quotaBytes}: The maximum space that recordings can use.
+   * @return The maximum space, in bytes, that recordings can use, or 0 for no limit.
+   */
+  public long getQuotaBytes() { return quotaBytes; }
+  /**
+   * Setter for {@link #quotaBytes}: The maximum space that recordings can use.
+   * @param newQuotaBytes The maximum space, in bytes, that recordings can use, or 0 for
+   * no limit.
+   */
+  public ScratchSpace setQuotaBytes(long newQuotaBytes) { quotaBytes = newQuotaBytes; return this; }
+
+  /**
+   * The disk space, in bytes, that must be left free.
+   * @see #getMinFreeBytes()
+   * @see #setMinFreeBytes(long)
+   */
+  protected long minFreeBytes = 0;
+  /**
+   * Getter for {@link #minFreeBytes}: The disk space that must be left free.
+   * @return The disk space, in bytes, that must be left free.
+   */
+  public long getMinFreeBytes() { return minFreeBytes; }
+  /**
+   * Setter for {@link #minFreeBytes}: The disk space that must be left free.
+   * @param newMinFreeBytes The disk space, in bytes, that must be left free.
+   */
+  public ScratchSpace setMinFreeBytes(long newMinFreeBytes) { minFreeBytes = newMinFreeBytes; return this; }
+
+  /**
+   * How long, in milliseconds, an upload directory can go unmodified before it's
+   * assumed to be abandoned.
+   * @see #getMaxAgeMillis()
+   * @see #setMaxAgeMillis(long)
+   */
+  protected long maxAgeMillis = 1000L * 60 * 60 * 24;
+  /**
+   * Getter for {@link #maxAgeMillis}: How long an upload directory can go unmodified.
+   * @return How long, in milliseconds, an upload directory can go unmodified.
+   */
+  public long getMaxAgeMillis() { return maxAgeMillis; }
+  /**
+   * Setter for {@link #maxAgeMillis}: How long an upload directory can go unmodified.
+   * @param newMaxAgeMillis How long, in milliseconds, an upload directory can go unmodified.
+   */
+  public ScratchSpace setMaxAgeMillis(long newMaxAgeMillis) { maxAgeMillis = newMaxAgeMillis; return this; }
+  
+  /**
+   * Constructor.
+   * @param uploadDir The directory in which to receive uploads; it's created if necessary.
+   * @param log Where log messages go.
+   */
+  public ScratchSpace(File uploadDir, Consumer<String> log) {
+    this.uploadDir = uploadDir;
+    this.log = log;
+    uploadDir.mkdirs();
+    watched.add(uploadDir);
+  } // end of constructor
+
+  /**
+   * Counts the contents of the given directory as part of the space used.
+   * @param dir
+   * @return This scratch space.
+   */
+  public ScratchSpace watch(File dir) {
+    watched.add(dir);
+    measuredBytes = -1;
+    return this;
+  } // end of watch()
+
+  /**
+   * Deletes all upload directories, e.g. those left behind by a previous run. This must
+   * only be called when no uploads are in progress.
+   * @return The number of directories deleted.
+   */
+  public int sweep() {
+    int count = 0;
+    File[] dirs = uploadDir.listFiles();
+    if (dirs != null) {
+      for (File dir : dirs) {
+        if (IO.RecursivelyDelete(dir)) count++;
+      } // next orphan
+    }
+    measuredBytes = -1;
+    return count;
+  } // end of sweep()
+
+  /**
+   * Deletes upload directories that haven't been modified for {@link #maxAgeMillis}.
+   * @return The number of directories deleted.
+   */
+  public int purge() {
+    long cutoff = System.currentTimeMillis() - maxAgeMillis;
+    int count = 0;
+    File[] dirs = uploadDir.listFiles(dir -> LastModified(dir) < cutoff);
+    if (dirs != null) {
+      for (File dir : dirs) {
+        if (IO.RecursivelyDelete(dir)) count++;
+      } // next abandoned upload
+    }
+    if (count > 0) measuredBytes = -1;
+    return count;
+  } // end of purge()
+
+  /**
+   * Creates a directory for receiving an upload, if there's space for it.
+   * @param expectedBytes The expected size of the upload, or -1 if unknown.
+   * @return A new empty directory.
+   * @throws RejectedExecutionException If there's not enough space.
+   * @throws IOException If the directory can't be created.
+   */
+  public File createDirectory(long expectedBytes) throws IOException {
+    admit(Math.max(0, expectedBytes));
+    return Files.createTempDirectory(uploadDir.toPath(), "upload-").toFile();
+  } // end of createDirectory()
+
+  /**
+   * Accounts for more data received by an upload in progress, until it's counted by
+   * measuring the upload's directory. Once the upload is finished, it must be
+   * {@link #release() released}.
+   * @param bytes The number of bytes received.
+   * @throws RejectedExecutionException If there's not enough space for them.
+   */
+  public void claim(long bytes) {
+    admit(bytes);
+    pendingBytes.addAndGet(bytes);
+  } // end of claim()
+
+  /**
+   * Records that an upload is finished, so its data, wherever it's moved to, is counted
+   * by measuring the watched directories from now on.
+   */
+  public void release() {
+    measuredBytes = -1;
+  } // end of release()
+
+  /**
+   * Deletes an upload directory, or any other file or directory.
+   * @param file
+   */
+  public void delete(File file) {
+    if (file != null && file.exists()) IO.RecursivelyDelete(file);
+    measuredBytes = -1;
+  } // end of delete()
+
+  /**
+   * Determines the space used by recordings.
+   * @return The space used, in bytes.
+   */
+  public long getUsedBytes() {
+    long measured = measuredBytes;
+    // measuring involves listing every file, so it's not done for every chunk received
+    if (measured < 0 || System.currentTimeMillis() - measuredTime > 10000) {
+      synchronized (this) {
+        measured = measuredBytes;
+        long now = System.currentTimeMillis();
+        if (measured < 0 || now - measuredTime > 10000) { // nobody else just measured
+          // bytes claimed so far are already on disk, so they're counted by measuring;
+          // bytes claimed while measuring may be counted twice, which errs on the safe side
+          long claimed = pendingBytes.get();
+          measured = 0;
+          for (File dir : watched) measured += Size(dir);
+          pendingBytes.addAndGet(-claimed);
+          measuredBytes = measured;
+          measuredTime = now;
+        }
+      }
+    }
+    return measured + pendingBytes.get();
+  } // end of getUsedBytes()
+
+  /**
+   * Checks there's space for the given number of bytes, e.g. before starting to receive
+   * an upload.
+   * @param bytes
+   * @throws RejectedExecutionException If there's not.
+   */
+  public void admit(long bytes) {
+    if (quotaBytes > 0 && getUsedBytes() + bytes > quotaBytes) {
+      throw new RejectedExecutionException(
+        "The server has no room for more recordings at the moment. Please try again later.");
+    }
+    if (minFreeBytes > 0 && uploadDir.getUsableSpace() - bytes < minFreeBytes) {
+      log.accept("ScratchSpace: disk space is low: " + uploadDir.getUsableSpace() + " bytes");
+      throw new RejectedExecutionException(
+        "The server is low on disk space. Please try again later.");
+    }
+  } // end of admit()
+
+  /**
+   * Determines the total size of a file or directory.
+   * @param file
+   * @return The size of the file, or all files in the directory and its subdirectories.
+   */
+  protected static long Size(File file) {
+    if (!file.isDirectory()) return file.length();
+    long size = 0;
+    File[] children = file.listFiles();
+    if (children != null) for (File child : children) size += Size(child);
+    return size;
+  } // end of Size()
+
+  /**
+   * Determines when a file or directory, or anything in it, was last modified.
+   * @param file
+   * @return The latest modification time.
+   */
+  protected static long LastModified(File file) {
+    long lastModified = file.lastModified();
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) lastModified = Math.max(lastModified, LastModified(child));
+    }
+    return lastModified;
+  } // end of LastModified()
+  
+} // end of class ScratchSpace
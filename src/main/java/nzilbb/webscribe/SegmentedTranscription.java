@@ -0,0 +1,301 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import nzilbb.ag.Anchor;
+import nzilbb.ag.Annotation;
+import nzilbb.ag.Constants;
+import nzilbb.ag.Graph;
+import nzilbb.ag.Schema;
+import nzilbb.ag.automation.Transcriber;
+
+/**
+ * Transcribes a long recording by splitting it into segments, transcribing the segments
+ * concurrently with separate transcriber instances, and merging the resulting segment
+ * transcripts into one.
+ * <p> When merging, anchor offsets are shifted by the segment's start time, participants
+ * with the same name in different segments are treated as the same participant, and a
+ * turn that continues across a segment boundary is joined into one turn.
+ * <p> Segments are merged as soon as they and all the segments before them have been
+ * transcribed, and their utterances are added to the {@link PartialTranscript}, if any,
+ * so the beginning of the transcript is available before the end has been transcribed.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class SegmentedTranscription {
+
+  /** Where transcribers come from. */
+  protected TranscriberPool pool;
+
+  /** Splits the recording. */
+  protected AudioSegmenter segmenter;
+
+  /** Receives status messages. */
+  protected Consumer<String> statusObserver = message -> {};
+
+  /** Receives percentage complete updates. */
+  protected Consumer<Integer> percentObserver = percent -> {};
+
+  /** Receives the utterances of each segment as it's merged, or null. */
+  protected PartialTranscript partial;
+
+  /**
+   * Constructor.
+   * @param pool Where transcribers come from.
+   * @param segmenter Splits the recording.
+   */
+  public SegmentedTranscription(TranscriberPool pool, AudioSegmenter segmenter) {
+    this.pool = pool;
+    this.segmenter = segmenter;
+  } // end of constructor
+
+  /**
+   * Sets observers for progress.
+   * @param statusObserver Receives status messages.
+   * @param percentObserver Receives percentage complete.
+   * @return This object.
+   */
+  public SegmentedTranscription setProgress(
+    Consumer<String> statusObserver, Consumer<Integer> percentObserver) {
+    this.statusObserver = statusObserver;
+    this.percentObserver = percentObserver;
+    return this;
+  } // end of setProgress()
+
+  /**
+   * Sets the partial transcript to add utterances to as segments are merged.
+   * @param partial
+   * @return This object.
+   */
+  public SegmentedTranscription setPartial(PartialTranscript partial) {
+    this.partial = partial;
+    return this;
+  } // end of setPartial()
+
+  /**
+   * Transcribes the recording into the given transcript.
+   * @param wav The recording.
+   * @param transcript The transcript to add annotations to.
+   * @throws Exception If splitting or transcription fails.
+   */
+  public void transcribe(File wav, Graph transcript) throws Exception {
+    statusObserver.accept("Splitting recording...");
+    final Vector<AudioSegmenter.Segment> segments = segmenter.split(wav, wav.getParentFile());
+    try {
+      // transcribed segments, which are only read or written while holding merged
+      final Graph[] results = new Graph[segments.size()];
+      final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+      // transcribers currently in use, which are cancelled if the job is stopped
+      final HashSet<Transcriber> busy = new HashSet<Transcriber>();
+      final AtomicInteger nextSegment = new AtomicInteger(0);
+      final AtomicInteger finishedSegments = new AtomicInteger(0);
+      final Schema schema = transcript.getSchema();
+      // the number of segments merged so far
+      final int[] merged = { 0 };
+      final HashMap<String,Annotation> participants = new HashMap<String,Annotation>();
+      final Annotation[] lastTurn = new Annotation[1];
+      // merges segments in order, as soon as all the segments before them are merged
+      final Runnable mergeReady = () -> {
+        synchronized (merged) {
+          while (merged[0] < results.length && results[merged[0]] != null) {
+            int m = merged[0];
+            double start = segments.get(m).getStart();
+            Merge(results[m], start, transcript, participants, lastTurn);
+            if (partial != null) partial.add(results[m], start);
+            merged[0]++;
+          } // next ready segment
+        }
+      };
+      statusObserver.accept("Transcribing " + segments.size() + " segments...");
+      percentObserver.accept(0);
+      
+      // each thread transcribes segments in turn with its own transcriber
+      Runnable transcribeSegments = () -> {
+        int s = nextSegment.getAndIncrement();
+        while (s < segments.size() && failure.get() == null) {
+          AudioSegmenter.Segment segment = segments.get(s);
+          try {
+            Transcriber transcriber = pool.borrow();
+            boolean succeeded = false;
+            synchronized (busy) {
+              busy.add(transcriber);
+            }
+            try {
+              Graph graph = new Graph();
+              graph.setId(segment.getWav().getName());
+              graph.setSchema((Schema)schema.clone());
+              transcriber.transcribe(segment.getWav(), graph);
+              synchronized (merged) { // so it's complete before it's merged
+                results[s] = graph;
+              }
+              succeeded = true;
+            } finally {
+              synchronized (busy) { // so it's not cancelled once it's given back
+                busy.remove(transcriber);
+              }
+              if (succeeded) {
+                pool.giveBack(transcriber);
+              } else {
+                pool.discard(transcriber);
+              }
+            }
+            segment.getWav().delete();
+            mergeReady.run();
+            int finished = finishedSegments.incrementAndGet();
+            statusObserver.accept(
+              "Transcribed " + finished + " of " + segments.size() + " segments");
+            percentObserver.accept(finished * 100 / segments.size());
+          } catch (Exception x) {
+            failure.compareAndSet(null, x);
+          }
+          s = nextSegment.getAndIncrement();
+        } // next segment
+      };
+      int threadCount = Math.min(segments.size(), pool.getMaxSize());
+      Thread[] threads = new Thread[threadCount];
+      for (int t = 0; t < threadCount; t++) {
+        threads[t] = new Thread(
+          transcribeSegments, Thread.currentThread().getName() + "-segment-" + t);
+        threads[t].setDaemon(true);
+        threads[t].start();
+      }
+      // segment files mustn't be deleted until all the threads have stopped using them
+      InterruptedException interrupted = null;
+      for (Thread thread : threads) {
+        while (thread.isAlive()) {
+          try {
+            thread.join();
+          } catch (InterruptedException x) { // e.g. the scheduler is shutting down
+            if (interrupted == null) {
+              interrupted = x;
+              failure.compareAndSet(null, x);
+              synchronized (busy) {
+                for (Transcriber transcriber : busy) transcriber.cancel();
+              }
+              for (Thread other : threads) other.interrupt();
+            }
+          }
+        } // until it's stopped
+      } // next thread
+      if (interrupted != null) throw interrupted;
+      if (failure.get() != null) throw failure.get();
+      mergeReady.run(); // everything should be merged already
+    } finally {
+      for (AudioSegmenter.Segment segment : segments) segment.getWav().delete();
+    }
+  } // end of transcribe()
+
+  /**
+   * Copies the annotations of a segment transcript into the full transcript.
+   * @param segment The transcript of the segment.
+   * @param offset The start time of the segment in the full recording.
+   * @param transcript The full transcript.
+   * @param participants Participants already in the transcript, by name.
+   * @param lastTurn Holder for the last turn added to the transcript, which may be
+   * extended if the segment's first turn is by the same participant.
+   */
+  public static void Merge(Graph segment, double offset, Graph transcript,
+                           HashMap<String,Annotation> participants, Annotation[] lastTurn) {
+    Schema schema = transcript.getSchema();
+    HashMap<String,Annotation> idMap = new HashMap<String,Annotation>();
+    
+    // participants are identified by name
+    for (Annotation who : segment.all(schema.getParticipantLayerId())) {
+      Annotation participant = participants.get(who.getLabel());
+      if (participant == null) {
+        participant = transcript.createTag(
+          transcript, schema.getParticipantLayerId(), who.getLabel());
+        participant.setConfidence(who.getConfidence());
+        participants.put(who.getLabel(), participant);
+      }
+      idMap.put(who.getId(), participant);
+    } // next participant
+
+    // turns, in order
+    Annotation[] turns = segment.all(schema.getTurnLayerId());
+    Arrays.sort(turns, Comparator.comparingDouble(t -> Offset(t.getStart(), 0.0)));
+    for (int t = 0; t < turns.length; t++) {
+      Annotation turn = turns[t];
+      Annotation participant = idMap.get(turn.getParentId());
+      Anchor end = CopyAnchor(turn.getEnd(), offset, transcript);
+      if (t == 0 && lastTurn[0] != null && participant != null
+          && participant.getId().equals(lastTurn[0].getParentId())) {
+        // the speaker continues across the segment boundary
+        lastTurn[0].setEnd(end);
+        idMap.put(turn.getId(), lastTurn[0]);
+      } else {
+        Annotation copy = transcript.createAnnotation(
+          CopyAnchor(turn.getStart(), offset, transcript), end,
+          schema.getTurnLayerId(), turn.getLabel(), participant);
+        copy.setConfidence(turn.getConfidence());
+        idMap.put(turn.getId(), copy);
+        lastTurn[0] = copy;
+      }
+    } // next turn
+
+    // utterances and words
+    for (String layerId : new String[] {
+        schema.getUtteranceLayerId(), schema.getWordLayerId() }) {
+      for (Annotation annotation : segment.all(layerId)) {
+        Annotation copy = transcript.createAnnotation(
+          CopyAnchor(annotation.getStart(), offset, transcript),
+          CopyAnchor(annotation.getEnd(), offset, transcript),
+          layerId, annotation.getLabel(), idMap.get(annotation.getParentId()));
+        copy.setConfidence(annotation.getConfidence());
+      } // next annotation
+    } // next layer
+  } // end of Merge()
+
+  /**
+   * Gets the anchor in the transcript corresponding to the given segment anchor.
+   * @param anchor The anchor in the segment transcript.
+   * @param offset The start time of the segment.
+   * @param transcript The full transcript.
+   * @return An anchor at the shifted offset.
+   */
+  static Anchor CopyAnchor(Anchor anchor, double offset, Graph transcript) {
+    Integer confidence = anchor == null? null : anchor.getConfidence();
+    return transcript.getOrCreateAnchorAt(
+      offset + Offset(anchor, 0.0),
+      confidence == null? Constants.CONFIDENCE_AUTOMATIC : confidence);
+  } // end of CopyAnchor()
+
+  /**
+   * Gets the offset of an anchor.
+   * @param anchor
+   * @param defaultOffset The value to return if the anchor has no offset.
+   * @return The anchor's offset, or the default.
+   */
+  static double Offset(Anchor anchor, double defaultOffset) {
+    if (anchor == null || anchor.getOffset() == null) return defaultOffset;
+    return anchor.getOffset();
+  } // end of Offset()
+  
+} // end of class SegmentedTranscription
@@ -22,9 +22,6 @@
 package nzilbb.webscribe;
 
 import java.io.File;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.Properties;
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
 import javax.activation.FileDataSource;
@@ -32,8 +29,6 @@ import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
-import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
@@ -42,9 +37,11 @@ import javax.mail.internet.MimeMultipart;
 import javax.servlet.ServletContext;
 
 /**
- * Sends emails. This uses the following servlet configuration parameters:
+ * Sends emails, via the {@link EmailOutbox}. This uses the following servlet
+ * configuration parameters:
  * <dl>
  *  <dt>SMTPHost</dt> <dd>Host name of the SMTP server.</dd>
+ *  <dt>SMTPPort</dt> <dd>SMTP port, if not the default.</dd>
  *  <dt>EmailFrom</dt> <dd>Email address that messages are sent from.</dd>
  *  <dt>SMTPUser</dt> <dd>SMTP username, if required.</dd>
  *  <dt>SMTPPassword</dt> <dd>SMTP password, if required.</dd>
@@ -53,37 +50,65 @@ import javax.servlet.ServletContext;
  */
 public class SendEmailService {
   
-  ServletContext context;
-
-  String SMTPHost; // Host name of the SMTP server.
   String EmailFrom; // Email address that messages are sent from.
-  String SMTPUser; // SMTP username, if required.
-  String SMTPPassword; // SMTP password, if required.  
+
+  /** Where messages are queued to be sent. */
+  EmailOutbox outbox;
+  
+  /**
+   * Creates the outbox for the given web application, using its configuration parameters.
+   * @param context The servlet context.
+   * @return The outbox, which has not been started, or null if SMTPHost is not set.
+   */
+  public static EmailOutbox NewOutbox(ServletContext context) {
+    String SMTPHost = Parameter(context, "SMTPHost"); // Host name of the SMTP server.
+    String SMTPUser = Parameter(context, "SMTPUser"); // SMTP username, if required.
+    String SMTPPassword = Parameter(context, "SMTPPassword"); // SMTP password, if required.
+    if (SMTPHost == null) return null;
+    return new EmailOutbox(
+      EmailOutbox.SessionProperties(
+        SMTPHost, ContextListener.IntegerParameter(context, "SMTPPort", 0),
+        SMTPUser, SMTPPassword),
+      SMTPUser, SMTPPassword, message -> context.log(message));
+  } // end of NewOutbox()
+
+  /**
+   * Gets a configuration parameter.
+   * @param context
+   * @param name
+   * @return The value of the parameter, or null if it's not set or blank.
+   */
+  static String Parameter(ServletContext context, String name) {
+    String value = context.getInitParameter(name);
+    if (value != null && value.length() == 0) value = null;
+    return value;
+  } // end of Parameter()
   
   /**
    * Constructor.
-   * @param config The servlet configuration.
+   * @param context The servlet context.
    * @throws NullPointerException If the server is not configured to send email.
    */
   public SendEmailService(ServletContext context) throws NullPointerException {
-    this.context = context;
-    SMTPHost = context.getInitParameter("SMTPHost");
-    if (SMTPHost != null && SMTPHost.length() == 0) SMTPHost = null;
-    EmailFrom = context.getInitParameter("EmailFrom");
-    if (EmailFrom != null && EmailFrom.length() == 0) EmailFrom = null;
-    SMTPUser = context.getInitParameter("SMTPUser");
-    if (SMTPUser != null && SMTPUser.length() == 0) SMTPUser = null;
-    SMTPPassword = context.getInitParameter("SMTPPassword");
-    if (SMTPPassword != null && SMTPPassword.length() == 0) SMTPPassword = null;
-
-    if (SMTPHost == null) {
+    this(EmailOutbox.From(context), Parameter(context, "EmailFrom"));
+    if (outbox == null) {
       context.log("SendEmailService: SMTPHost is not set.");
       throw new NullPointerException("SMTPHost is not set.");
     }
   } // end of constructor
   
   /**
-   * Sends an email.
+   * Constructor.
+   * @param outbox Where messages are queued to be sent.
+   * @param emailFrom Email address that messages are sent from.
+   */
+  public SendEmailService(EmailOutbox outbox, String emailFrom) {
+    this.outbox = outbox;
+    this.EmailFrom = emailFrom;
+  } // end of constructor
+  
+  /**
+   * Sends an email. The message is queued, and sent shortly afterwards.
    * @param to Email address of recipient. Multiple recipients must be delimited by ';'.
    * @param subject Subject line.
    * @param message Message body.
@@ -93,43 +118,21 @@ public class SendEmailService {
     sendEmail(null, to, subject, html, true, null);
   }
   /**
-   * Sends an email.
+   * Sends an email. The message is queued, and sent shortly afterwards.
    * @param from Email address, or null to default to correctionsEmail system attribute.
    * @param to Email address of recipient. Multiple recipients must be delimited by ';'.
    * @param subject Subject line.
    * @param message Message body.
    * @param html Whether the message is HTML (true) or plain text (false).
    * @param attachment A file to attach, or null.
+   * @throws AddressException If an email address is invalid.
    */
   public void sendEmail(
     String from, String to, String subject, String message, boolean html, File attachment)
     throws AddressException, MessagingException {
     
-    // Set the host smtp address
-    Properties props = new Properties();
-    props.put("mail.smtp.host", context.getInitParameter("SMTPHost"));
-    
-    if (SMTPUser != null) {
-      if (SMTPPassword != null) { // password is set too
-        props.put("mail.smtp.auth", "true");
-      } else { // no password
-        // treat SMTPUser as the sending host instead
-        // otherwise, set mail.smtp.localhost
-        props.put("mail.smtp.localhost", SMTPUser);
-      }
-      props.put("mail.smtp.starttls.enable","true");	 
-      props.put("mail.smtp.EnableSSL.enable","true");
-      
-      props.setProperty("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");   
-      props.setProperty("mail.smtp.socketFactory.fallback", "false");   
-      props.setProperty("mail.smtp.port", "465");   
-      props.setProperty("mail.smtp.socketFactory.port", "465");
-    }
-    // create some properties and get the default Session
-    Session session = Session.getDefaultInstance(props, null);
-
     // create a message
-    Message msg = new MimeMessage(session);
+    Message msg = new MimeMessage(outbox.getSession());
 
     // set the from and to address
     if (from == null) from = EmailFrom;
@@ -170,30 +173,7 @@ public class SendEmailService {
       msg.setContent(multipart);
     } // attachment
 
-    if (SMTPUser != null && SMTPPassword != null) {
-      try {
-        Transport tr = session.getTransport("smtp");
-        tr.connect(SMTPHost, SMTPUser, SMTPPassword);
-        msg.saveChanges();
-        tr.sendMessage(msg, msg.getAllRecipients());
-        tr.close();
-      } catch(javax.mail.MessagingException t) {
-        context.log("sendEmail: " + t);
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        t.printStackTrace(pw);
-        context.log(sw.toString());
-        throw t;
-      } catch(Throwable t) {
-        context.log("sendEmail: " + t);
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        t.printStackTrace(pw);
-        context.log(sw.toString());
-      }
-    } else {
-      Transport.send(msg);
-    }
+    outbox.send(msg);
   } // end of sendEmail()
   
 } // end of class SendEmailService
@@ -24,23 +24,20 @@ package nzilbb.webscribe;
 import java.net.URL;
 import java.io.File;
 import java.io.IOException;
-import java.util.Date;
+import java.io.StringWriter;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
 import javax.json.Json;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import nzilbb.util.IO;
 import nzilbb.ag.Constants;
 import nzilbb.ag.Layer;
 import nzilbb.ag.Schema;
 import nzilbb.ag.automation.Annotator;
 import nzilbb.ag.automation.Transcriber;
 import nzilbb.ag.automation.util.AnnotatorDescriptor;
-import nzilbb.ag.serialize.util.NamedStream;
 import org.apache.commons.fileupload.*;
 import org.apache.commons.fileupload.disk.*;
 import org.apache.commons.fileupload.servlet.*;
@@ -57,7 +54,7 @@ import org.apache.commons.fileupload.servlet.*;
  * </dl>
  * @author Robert Fromont robert@fromont.net.nz
  */
-@WebServlet("/sendtranscript/*")
+@WebServlet(urlPatterns = "/sendtranscript/*", asyncSupported = true)
 public class SendTranscript extends ServletBase {
   /**
    * Default constructor.
@@ -66,42 +63,34 @@ public class SendTranscript extends ServletBase {
   } // end of constructor
 
   long maxTranscriptAge = 1000 * 60 * 60 * 24; // 24 hours
-  long ageCheckInterval = 1000 * 60 * 5; // 5 minutes
-  Timer fileCheckTimer = new Timer("SendTranscript");    
+
+  /** Deletes saved transcripts when their links expire. */
+  ExpiryIndex expiry;
   
   /**
-   * Start a regular file-cleanup job.
+   * Starts deleting saved transcripts when they expire. The index of expiry times is kept
+   * in WEB-INF, so that it's not downloadable.
    */
   @Override public void init() throws ServletException {
-    final File transcriptsDir = new File(getServletContext().getRealPath("transcripts"));
+    File transcriptsDir = new File(getServletContext().getRealPath("transcripts"));
     transcriptsDir.mkdir();
-    TimerTask task = new TimerTask() {
-        public void run() {
-          log("Checking for old transcripts...");
-          final long cutoffTime = new Date().getTime() - maxTranscriptAge;
-          File[] subdirectories = transcriptsDir.listFiles(f -> {
-              return f.isDirectory()
-                && f.lastModified() < cutoffTime;
-                });
-          for (File subdirectory : subdirectories) {
-            if (IO.RecursivelyDelete​(subdirectory)) {
-              log("Removed " + subdirectory.getPath());
-            } else {
-              log("Could not remove " + subdirectory.getPath());
-            }
-          }
-        }
-      };
-    fileCheckTimer.schedule(task, ageCheckInterval, ageCheckInterval);
-    
+    expiry = new ExpiryIndex(
+      transcriptsDir,
+      new File(getServletContext().getRealPath("WEB-INF"), "transcripts-expiry.txt"),
+      message -> log(message));
+    try {
+      expiry.start(maxTranscriptAge);
+    } catch (IOException x) {
+      throw new ServletException("Could not read transcript expiry index", x);
+    }
     super.init();
   } // end of init()
   
   /**
-   * Stop old-transcript-cleanup task.
+   * Stops deleting old transcripts; those that expire later are deleted after a restart.
    */
   public void destroy() {
-    fileCheckTimer.cancel();
+    expiry.shutdown();
     super.destroy();
   } // end of destroy()
   
@@ -114,120 +103,148 @@ public class SendTranscript extends ServletBase {
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException {
 
+    final SendEmailService mailer;
     try {
-      final SendEmailService mailer = new SendEmailService(getServletContext());
+      mailer = new SendEmailService(getServletContext());
+    } catch (NullPointerException npe) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage(""+npe, response);
+      return;
+    }
 
-      if (request.getPathInfo() == null        
-          || !request.getPathInfo().startsWith("/")
-          || request.getPathInfo().equals("/")) {
-        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        returnMessage("No Job ID specified.", response);
-        return;
-      }
+    if (request.getPathInfo() == null        
+        || !request.getPathInfo().startsWith("/")
+        || request.getPathInfo().equals("/")) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("No Job ID specified.", response);
+      return;
+    }
     
-      String suffix = request.getPathInfo().substring(1);
-      try {
-        long jobId = Long.parseLong(suffix);
-        log("SendTranscript: " + jobId);
-        final Job job = Job.FindJob(jobId);
-        if (job == null) {
-          response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-          returnMessage("Job not found: " + jobId, response);
-          return;
-        }
-      
-        final String email = request.getParameter("email");
-        if (email == null || email.length() == 0) {
-          response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-          returnMessage("No email specified", response);
-          return;
-        }
-        final String format = request.getParameter("format");
-        if (format == null || format.length() == 0) {
-          response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-          returnMessage("No format specified", response);
-          return;
-        }
-
-        // send an initial message to confirm it's possible
-        try {
-          String subject = "Webscribe transcribing: " + job.getWav().getName();
-          String html = 
-            "<p>"+job.getTranscriber().getAnnotatorId()+" is transcribing "
-            +job.getWav().getName()+" ...</p>"
-            +"<p>You will receive a notification when finished.</p>";
-          mailer.sendHtmlEmail(email, subject, html);
-        } catch (Exception x) {
-          log("Could not send initial email: " + x);
-          response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-          returnMessage("Could not send email: " + x, response);
-          return;
-        }
-
-        // give the Job the email and format
-        URL requestUrl = new URL(request.getRequestURL().toString());
-        job.setOnFinished(finishedJob -> {
-            String subject = "Webscribe finished: " + finishedJob.getWav().getName();
-            String html =
-              "<p>"+finishedJob.getTranscriber().getAnnotatorId()+" has finished transcribing "
-              +finishedJob.getWav().getName()+"</p>";
-            // serialize transcript
-            SerializeService serialization = new SerializeService(getServletContext());
-            try {
-              NamedStream stream = serialization.serialize(finishedJob.getTranscript(), format);
-            
-              // save the transcript to a file
-              File transcriptsDir = new File(getServletContext().getRealPath("transcripts"));
-              transcriptsDir.mkdir();
-              File jobDir = new File(transcriptsDir, ""+finishedJob.getId());
-              jobDir.mkdir();
-              stream.save(jobDir);
-
-              // compute the download URL
-              URL transcriptUrl = new URL(
-                requestUrl,
-                "../"+transcriptsDir.getName()+"/"+jobDir.getName()+"/"+stream.getName());
-              
-              // send an email
-              html += "<p>"
-                +"You can download it here: "
-                +"<a href=\""+transcriptUrl+"\" download>"+transcriptUrl+"</a>"
-                +"</p><p>This link will work for 24 hours.</p>";
+    String suffix = request.getPathInfo().substring(1);
+    long jobId = -1;
+    try {
+      jobId = Long.parseLong(suffix);
+    } catch(NumberFormatException exception) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("Invalid Job ID: " + suffix, response);
+      return;
+    }
+    log("SendTranscript: " + jobId);
+    final Job job = Job.FindJob(jobId);
+    if (job == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      returnMessage("Job not found: " + jobId, response);
+      return;
+    }
+    
+    final String email = request.getParameter("email");
+    if (email == null || email.length() == 0) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("No email specified", response);
+      return;
+    }
+    final String format = request.getParameter("format");
+    if (format == null || format.length() == 0) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("No format specified", response);
+      return;
+    }
+    final URL requestUrl = new URL(request.getRequestURL().toString());
 
-              // TODO ensure it's deleted within 24 hours
-            } catch (Throwable t) {
-              html += "<p style='color: red;'>An error occured during formatting: "
-                +t.getMessage() +"</p>";
-              System.err.println(
-                "Serializing for email " + finishedJob.getWav().getName() + ": " + t);
-              t.printStackTrace(System.err);
-            }
-            try {
-              mailer.sendHtmlEmail(email, subject, html);
-            } catch (Exception x) {
-              log("Could not send email: " + x);
-            }
-          });
-        
-        response.setContentType("application/json;charset=UTF-8");
-        Json.createGenerator(response.getWriter())
-          .writeStartObject()
-          .write("email", email)
-          .write("format", format)
-          .write("message", job.getTranscriber().getStatus())
-          .write("wav", job.getWav().getName())
-          .write("percentComplete", job.getTranscriber().getPercentComplete())
-          .write("running", job.getTranscriber().getRunning())
-          .writeEnd()
-          .close();
-      } catch(Exception exception) {
-        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        returnMessage("Invalid Job ID: " + suffix, response);
-      }
-    } catch (NullPointerException npe) {
+    // send an initial message to confirm it's possible
+    try {
+      String subject = "Webscribe transcribing: " + job.getWav().getName();
+      String html = 
+        "<p>"+job.getTranscriberId()+" is transcribing "
+        +job.getWav().getName()+" ...</p>"
+        +"<p>You will receive a notification when finished.</p>";
+      mailer.sendHtmlEmail(email, subject, html); // queued, so this doesn't wait
+    } catch (Exception x) {
+      log("Could not send initial email: " + x);
       response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-      returnMessage(""+npe, response);
+      returnMessage("Could not send email: " + x, response);
+      return;
     }
+    
+    // give the Job the email and format
+    final AsyncResponder responder = AsyncResponder.From(getServletContext());
+    job.setOnFinished(finishedJob -> {
+        // serialize on a responder thread rather than the transcription worker
+        Runnable send = () -> sendTranscript(
+          finishedJob, email, format, mailer, requestUrl);
+        try {
+          responder.execute(send);
+        } catch (RejectedExecutionException x) { // too busy, so do it here
+          send.run();
+        }
+      });
+    
+    StringWriter json = new StringWriter();
+    Json.createGenerator(json)
+      .writeStartObject()
+      .write("email", email)
+      .write("format", format)
+      .write("message", job.getStatus())
+      .write("wav", job.getWav().getName())
+      .write("percentComplete", job.getPercentComplete())
+      .write("running", !job.isDone())
+      .writeEnd()
+      .close();
+    response.setContentType("application/json;charset=UTF-8");
+    // send without blocking, in case the client is slow
+    AsyncResponder.Send(request.startAsync(), json.toString().getBytes("UTF-8"));
   }
+  
+  /**
+   * Saves the transcript of a finished job and emails a link to it.
+   * @param job The finished job.
+   * @param email The recipient email address.
+   * @param format The content-type of the transcript format.
+   * @param mailer For sending the email.
+   * @param requestUrl The URL of the original request, for computing the download URL.
+   */
+  protected void sendTranscript(
+    Job job, String email, String format, SendEmailService mailer, URL requestUrl) {
+    String subject = "Webscribe finished: " + job.getWav().getName();
+    String html =
+      "<p>"+job.getTranscriberId()+" has finished transcribing "
+      +job.getWav().getName()+"</p>";
+    // serialize transcript
+    SerializeService serialization = new SerializeService(getServletContext());
+    try {
+      SerializeService.Serialization stream
+        = serialization.serialize(job.getTranscript(), format);
+      
+      // save the transcript to a file
+      File transcriptsDir = new File(getServletContext().getRealPath("transcripts"));
+      transcriptsDir.mkdir();
+      File jobDir = new File(transcriptsDir, ""+job.getId());
+      jobDir.mkdir();
+      expiry.add(jobDir.getName(), System.currentTimeMillis() + maxTranscriptAge);
+      stream.saveTo(jobDir);
+      
+      // compute the download URL
+      URL transcriptUrl = new URL(
+        requestUrl,
+        "../"+transcriptsDir.getName()+"/"+jobDir.getName()+"/"+stream.getName());
+      
+      // send an email
+      html += "<p>"
+        +"You can download it here: "
+        +"<a href=\""+transcriptUrl+"\" download>"+transcriptUrl+"</a>"
+        +"</p><p>This link will work for 24 hours.</p>";
+    } catch (Throwable t) {
+      html += "<p style='color: red;'>An error occured during formatting: "
+        +t.getMessage() +"</p>";
+      System.err.println(
+        "Serializing for email " + job.getWav().getName() + ": " + t);
+      t.printStackTrace(System.err);
+    }
+    try {
+      mailer.sendHtmlEmail(email, subject, html);
+    } catch (Exception x) {
+      log("Could not send email: " + x);
+    }
+  } // end of sendTranscript()
 
 }
@@ -22,12 +22,18 @@
 package nzilbb.webscribe;
 
 import javax.servlet.ServletContext;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 import java.util.function.Consumer;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.zip.ZipOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -37,7 +43,6 @@ import nzilbb.ag.automation.Annotator;
 import nzilbb.ag.automation.Transcriber;
 import nzilbb.ag.automation.util.AnnotatorDescriptor;
 import nzilbb.ag.serialize.GraphSerializer;
-import nzilbb.ag.serialize.SerializationDescriptor;
 import nzilbb.ag.serialize.SerializationException;
 import nzilbb.ag.serialize.util.NamedStream;
 import nzilbb.util.IO;
@@ -49,30 +54,190 @@ import nzilbb.configure.ParameterSet;
  */
 public class SerializeService {
 
-  ServletContext context;
+  /** Where serializers come from. */
+  SerializerRegistry registry;
+
+  /** Where log messages go. */
+  Consumer<String> log;
 
   /**
    * Constructor.
-   * @param config The servlet configuration.
+   * @param context The servlet context.
    */
   public SerializeService(ServletContext context) {
-    this.context = context;
+    this(SerializerRegistry.From(context), message -> context.log(message));
+  } // end of constructor
+
+  /**
+   * Constructor.
+   * @param registry Where serializers come from.
+   * @param log Where log messages go.
+   */
+  public SerializeService(SerializerRegistry registry, Consumer<String> log) {
+    this.registry = registry;
+    this.log = log;
   } // end of constructor
   
+  /**
+   * The output of serializing a graph, which can be written to a stream or saved to a file.
+   * <p> If the serializer generated one file, it's written as-is. If it generated several,
+   * they are compressed into a ZIP file as they're written, on the calling thread.
+   */
+  public static class Serialization {
+    
+    /** The files generated by the serializer. */
+    Vector<NamedStream> files;
+    
+    /** The name of the output file. */
+    String name;
+    
+    /** The MIME type of the output. */
+    String contentType;
+    
+    /** Where log messages go. */
+    Consumer<String> log;
+    
+    /**
+     * Constructor.
+     * @param files The files generated by the serializer - there must be at least one.
+     * @param zipName The name of the output file if there's more than one file.
+     * @param mimeType The MIME type of the files.
+     * @param log Where log messages go.
+     */
+    Serialization(
+      Vector<NamedStream> files, String zipName, String mimeType, Consumer<String> log) {
+      this.files = files;
+      this.log = log;
+      if (files.size() == 1) { // one file only
+        // don't zip a single file
+        name = files.firstElement().getName();
+        contentType = mimeType;
+      } else { // multiple files
+        name = zipName;
+        contentType = "application/zip";
+      }
+    } // end of constructor
+    
+    /**
+     * Getter for {@link #name}: The name of the output file.
+     * @return The name of the output file, which ends with ".zip" if there are multiple
+     * files.
+     */
+    public String getName() { return name; }
+    
+    /**
+     * Getter for {@link #contentType}: The MIME type of the output.
+     * @return The MIME type of the output, which is "application/zip" if there are
+     * multiple files.
+     */
+    public String getContentType() { return contentType; }
+    
+    /**
+     * Writes the serialized data to the given stream. The stream is not closed, so this
+     * can be used to write into a larger stream, e.g. an entry of another ZIP file.
+     * <p> This can only be called once, as the serializer's streams are consumed.
+     * @param out Where to write the data.
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out) throws IOException {
+      try {
+        if (files.size() == 1) {
+          IO.Pump(files.firstElement().getStream(), out, false);
+        } else {
+          ZipOutputStream zipOut = new ZipOutputStream(out);
+          for (NamedStream stream : files) {
+            try {
+              zipOut.putNextEntry(new ZipEntry(IO.SafeFileNameUrl(stream.getName())));
+              IO.Pump(stream.getStream(), zipOut, false);
+            } catch (ZipException zx) { // e.g. duplicate entry
+              log.accept("SerializeService: " + stream.getName() + ": " + zx);
+            }
+          } // next file
+          zipOut.finish(); // but don't close the underlying stream
+        }
+      } finally {
+        close();
+      }
+    } // end of writeTo()
+    
+    /**
+     * Saves the serialized data in the given directory, with the name {@link #getName()}.
+     * @param dir
+     * @return The file the data was saved to.
+     * @throws IOException
+     */
+    public File saveTo(File dir) throws IOException {
+      File file = new File(dir, name);
+      OutputStream out = new FileOutputStream(file);
+      try {
+        writeTo(out);
+      } finally {
+        out.close();
+      }
+      return file;
+    } // end of saveTo()
+    
+    /**
+     * Closes the serializer's streams, e.g. if the data isn't going to be written after
+     * all.
+     */
+    public void close() {
+      for (NamedStream stream : files) {
+        try {
+          stream.getStream().close();
+        } catch (IOException x) {
+        }
+      } // next file
+    } // end of close()
+  } // end of class Serialization
+  
+  /**
+   * Formats the given annotation graph as each of the given content types, in parallel.
+   * <p> The serializers share the graph, which they only read. The first format is
+   * serialized on the calling thread, and the others by the given <var>helper</var>, so
+   * the whole thing takes about as long as the slowest format. As with
+   * {@link #serialize(Graph,String)}, the output of each format is only written when the
+   * caller writes it, so the formats can be written one after another into one stream,
+   * without all being held in memory.
+   * @param transcript
+   * @param mimeTypes
+   * @param helper Runs serializations in parallel with the calling thread, e.g.
+   * {@link AsyncResponder#help(Callable)}.
+   * @return The serialization of each format, in the same order as <var>mimeTypes</var>.
+   * If a format couldn't be serialized, getting its serialization throws an
+   * {@link ExecutionException} whose cause is the error.
+   */
+  public List<Future<Serialization>> serializeAll(
+    final Graph transcript, List<String> mimeTypes,
+    Function<Callable<Serialization>,Future<Serialization>> helper) {
+    List<Future<Serialization>> serializations = new Vector<Future<Serialization>>();
+    if (mimeTypes.isEmpty()) return serializations;
+    for (final String mimeType : mimeTypes.subList(1, mimeTypes.size())) {
+      serializations.add(helper.apply(() -> serialize(transcript, mimeType)));
+    } // next format
+    CompletableFuture<Serialization> first = new CompletableFuture<Serialization>();
+    try {
+      first.complete(serialize(transcript, mimeTypes.get(0)));
+    } catch (Throwable t) {
+      first.completeExceptionally(t);
+    }
+    serializations.add(0, first);
+    return serializations;
+  } // end of serializeAll()
+  
   /**
    * Formats the given annotation graph as the given content type.
-   * <p> This method is asynchronous; the stream may be returned before any data has been
-   * written to it, and serialization is completed in another thread.
+   * <p> The serializer is run immediately, but the output is only written when
+   * {@link Serialization#writeTo(OutputStream)} or {@link Serialization#saveTo(File)} is
+   * called, directly into the caller's stream.
    * @param transcript
    * @param mimeType
-   * @return The serialized data, which may be a compressed zip stream containing multiple
-   * files.
-   * @throws NullPointerException If there's no serializer available for the
-   * <var>mimeType</var> or it generated no output files.
+   * @return The serialized data, which may be a ZIP file containing multiple files.
    * @throws NullPointerException If there's no serializer available for the
    * <var>mimeType</var> or it generated no output files.
    */
-  public NamedStream serialize(Graph transcript, String mimeType) throws NullPointerException, Exception {
+  public Serialization serialize(Graph transcript, String mimeType)
+    throws NullPointerException, Exception {
     // find serializer
     GraphSerializer serializer = findSerializer(mimeType);
     if (serializer == null) throw new NullPointerException("No formatter found: " + mimeType);
@@ -89,6 +254,7 @@ public class SerializeService {
     String[] layerIds = {
       transcript.getSchema().getUtteranceLayerId(), "scribe", "date" };
     final Vector<NamedStream> files = new Vector<NamedStream>();
+    long startTime = System.nanoTime();
     serializer.serialize(
       nzilbb.ag.serialize.util.Utility.OneGraphSpliterator(transcript), layerIds,
       new Consumer<NamedStream>() {
@@ -97,91 +263,29 @@ public class SerializeService {
         }},
       new Consumer<String>() {
         public void accept(String warning) {
-          context.log("SerializeService: WARNING: " + warning);
+          log.accept("SerializeService: WARNING: " + warning);
         }},
       new Consumer<SerializationException>() {
         public void accept(SerializationException exception) {
-          context.log("SerializeService: SerializeFragment error: " + exception);
+          log.accept("SerializeService: SerializeFragment error: " + exception);
         }       
       });
     
+    Metrics.Instance().serializationSeconds.labels(mimeType)
+      .observe((System.nanoTime() - startTime) / 1e9);
     if (files.size() == 0) throw new NullPointerException("No files were generated");
     
-    if (files.size() == 1) { // one file only
-      // don't zip a single file, just return the file
-      return files.firstElement();
-    } else { /// multiple files
-      // create a stream to pump from
-      PipedInputStream inStream = new PipedInputStream();
-      final PipedOutputStream outStream = new PipedOutputStream(inStream);
-                
-      // start a new thread to extract the data and stream it back
-      new Thread(new Runnable() {
-          public void run() {
-            try {
-              ZipOutputStream zipOut = new ZipOutputStream(outStream);
-              
-              // for each file
-              for (NamedStream stream : files) {
-                try {
-                  // create the zip entry
-                  zipOut.putNextEntry(new ZipEntry(IO.SafeFileNameUrl(stream.getName())));
-                  
-                  IO.Pump(stream.getStream(), zipOut, false);
-                } catch (ZipException zx) {
-                } finally {
-                  stream.getStream().close();
-                }
-              } // next file
-              try {
-                zipOut.close();
-              } catch(Exception exception) {
-                context.log("SerializeService: Cannot close ZIP file: " + exception);
-              }
-            } catch(Exception exception) {
-              context.log("SerializeGraphs: open zip stream: " + exception);
-            }
-          }
-        }).start();
-
-      return new NamedStream(inStream, IO.SafeFileNameUrl(transcript.getId()) + ".zip");      
-    } // multiple files              
+    return new Serialization(
+      files, IO.SafeFileNameUrl(transcript.getId()) + ".zip", mimeType, log);
   } // end of serialize()
   
   /**
    * Finds the serializer that outputs the given format.
    * @param mimeType
-   * @return The serializer, or null if it couldn't be found.
+   * @return A new instance of the serializer, or null if it couldn't be found.
    */
   protected GraphSerializer findSerializer(String mimeType) {
-    if ("application/json".equals(mimeType)) {
-      return new nzilbb.ag.serialize.json.JSONSerialization();
-    }
-    // get a list of serializers
-    File serializerDir = new File(context.getRealPath("formatter"));
-    File[] serializers = serializerDir.listFiles((File dir, String name)->{
-        return name.endsWith(".jar");
-      });
-    for (File jar : serializers) {
-      try {
-        Vector implementors = IO.FindImplementorsInJar(
-          jar, getClass().getClassLoader(), 
-          Class.forName("nzilbb.ag.serialize.GraphSerializer"));
-        for (Object o : implementors) {
-          GraphSerializer serializer = (GraphSerializer)o;
-          SerializationDescriptor descriptor = serializer.getDescriptor();
-          if (descriptor.getMimeType().equals(mimeType)) {
-            return serializer;
-          }
-        } // next serializer
-      } catch (ClassNotFoundException x) {
-        context.log("SerializeService: " + x);
-      } catch (IOException x) {
-        context.log("SerializeService: " + x);
-      }
-    } // next jar file
-    // if we got this far, we didn't find it
-    return null;
+    return registry.newSerializer(mimeType);
   } // end of findSerializer()
 
 } // end of class SerializeService
@@ -0,0 +1,240 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+import java.util.function.Consumer;
+import javax.servlet.ServletContext;
+import nzilbb.ag.serialize.GraphSerializer;
+import nzilbb.ag.serialize.SerializationDescriptor;
+import nzilbb.ag.serialize.json.JSONSerialization;
+import nzilbb.ag.serialize.util.IconHelper;
+import nzilbb.util.IO;
+
+/**
+ * Index of the serializers available in the <tt>formatter</tt> directory, by MIME type.
+ * <p> Jar files are scanned for serializer implementations once, and the result is
+ * reused until the set of jar files changes, so that looking up a serializer doesn't
+ * involve loading classes from jars.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class SerializerRegistry {
+
+  /**
+   * Gets the serializer registry for the given web application.
+   * @param context The servlet context.
+   * @return The registry created by {@link ContextListener}, or null if there is none.
+   */
+  public static SerializerRegistry From(ServletContext context) {
+    return (SerializerRegistry)context.getAttribute(SerializerRegistry.class.getName());
+  } // end of From()
+
+  /** A serializer implementation. */
+  public static class Format {
+    SerializationDescriptor descriptor;
+    Class<? extends GraphSerializer> implementation;
+    String icon;
+    Format(GraphSerializer serializer, String icon) {
+      this.descriptor = serializer.getDescriptor();
+      this.implementation = serializer.getClass();
+      this.icon = icon;
+    }
+    /**
+     * The serializer's descriptor.
+     * @return The descriptor.
+     */
+    public SerializationDescriptor getDescriptor() { return descriptor; }
+    /**
+     * The name of the serializer's icon file, in the formatter directory.
+     * @return The icon file name, or null if there is none.
+     */
+    public String getIcon() { return icon; }
+    /**
+     * Creates a new instance of the serializer.
+     * @return A new serializer.
+     * @throws Exception If the serializer can't be instantiated.
+     */
+    public GraphSerializer newInstance() throws Exception {
+      return implementation.getDeclaredConstructor().newInstance();
+    }
+  }
+  
+  /** The MIME type of the built-in native serialization. */
+  public static final String NATIVE_MIME_TYPE = "application/json";
+  
+  /**
+   * The directory containing serializer jar files.
+   * @see #getFormatterDir()
+   */
+  protected File formatterDir;
+  /**
+   * Getter for {@link #formatterDir}: The directory containing serializer jar files.
+   * @return The directory containing serializer jar files.
+   */
+  public File getFormatterDir() { return formatterDir; }
+  
+  /**
+   * Minimum time between checks for changes to jar files, in milliseconds.
+   * @see #getCheckIntervalMillis()
+   * @see #setCheckIntervalMillis(long)
+   */
+  protected long checkIntervalMillis = 5000;
+  /**
+   * Getter for {@link #checkIntervalMillis}: Minimum time between checks for changes.
+   * @return Minimum time between checks for changes to jar files, in milliseconds.
+   */
+  public long getCheckIntervalMillis() { return checkIntervalMillis; }
+  /**
+   * Setter for {@link #checkIntervalMillis}: Minimum time between checks for changes.
+   * @param newCheckIntervalMillis Minimum time between checks for changes, in milliseconds.
+   */
+  public SerializerRegistry setCheckIntervalMillis(long newCheckIntervalMillis) { checkIntervalMillis = newCheckIntervalMillis; return this; }
+
+  /** Where log messages go. */
+  protected Consumer<String> log;
+
+  /** Available formats, keyed by MIME type. */
+  protected volatile LinkedHashMap<String,Format> formats
+  = new LinkedHashMap<String,Format>();
+  
+  /** Names, sizes, and modification times of the jar files that formats were loaded from. */
+  protected volatile String fingerprint = null;
+  
+  /** When the jar files were last checked for changes. */
+  protected volatile long lastChecked = 0;
+  
+  /**
+   * Constructor.
+   * @param formatterDir The directory containing serializer jar files.
+   * @param log Where log messages go.
+   */
+  public SerializerRegistry(File formatterDir, Consumer<String> log) {
+    this.formatterDir = formatterDir;
+    this.log = log;
+  } // end of constructor
+
+  /**
+   * Creates a new serializer for the given MIME type.
+   * @param mimeType
+   * @return A new serializer instance, or null if there's no serializer for the MIME type.
+   */
+  public GraphSerializer newSerializer(String mimeType) {
+    if (NATIVE_MIME_TYPE.equals(mimeType)) {
+      return new JSONSerialization();
+    }
+    Format format = getFormats().get(mimeType);
+    if (format == null) return null;
+    try {
+      return format.newInstance();
+    } catch (Exception x) {
+      log.accept("SerializerRegistry: Could not instantiate " + mimeType + ": " + x);
+      return null;
+    }
+  } // end of newSerializer()
+
+  /**
+   * Determines whether there's a serializer for the given MIME type.
+   * @param mimeType
+   * @return true if {@link #newSerializer(String)} would return a serializer.
+   */
+  public boolean hasFormat(String mimeType) {
+    return NATIVE_MIME_TYPE.equals(mimeType) || getFormats().containsKey(mimeType);
+  } // end of hasFormat()
+
+  /**
+   * Lists the formats available in the formatter directory.
+   * @return The available formats, in jar file order.
+   */
+  public Collection<Format> listFormats() {
+    return Collections.unmodifiableCollection(getFormats().values());
+  } // end of listFormats()
+
+  /**
+   * Gets the current formats, reloading them if the jar files have changed since the
+   * last check.
+   * @return Formats keyed by MIME type.
+   */
+  protected LinkedHashMap<String,Format> getFormats() {
+    long now = System.currentTimeMillis();
+    if (fingerprint == null || now - lastChecked >= checkIntervalMillis) {
+      refresh();
+    }
+    return formats;
+  } // end of getFormats()
+
+  /**
+   * Checks whether the jar files have changed, and reloads formats if they have.
+   * @return This registry.
+   */
+  public synchronized SerializerRegistry refresh() {
+    File[] jars = formatterDir.listFiles((File dir, String name)->{
+        return name.endsWith(".jar");
+      });
+    if (jars == null) jars = new File[0];
+    Arrays.sort(jars);
+    StringBuilder currentFingerprint = new StringBuilder();
+    for (File jar : jars) {
+      currentFingerprint.append(jar.getName())
+        .append(':').append(jar.length())
+        .append(':').append(jar.lastModified())
+        .append(';');
+    } // next jar
+    lastChecked = System.currentTimeMillis();
+    if (currentFingerprint.toString().equals(fingerprint)) return this; // no changes
+    
+    LinkedHashMap<String,Format> newFormats = new LinkedHashMap<String,Format>();
+    for (File jar : jars) {
+      try {
+        Vector implementors = IO.FindImplementorsInJar(
+          jar, getClass().getClassLoader(), 
+          Class.forName("nzilbb.ag.serialize.GraphSerializer"));
+        for (Object o : implementors) {
+          GraphSerializer serializer = (GraphSerializer)o;
+          SerializationDescriptor descriptor = serializer.getDescriptor();
+          String icon = null;
+          try {
+            File iconFile = IconHelper.EnsureIconFileExists(descriptor, formatterDir);
+            if (iconFile != null) icon = iconFile.getName();
+          } catch (Exception x) {
+            log.accept("SerializerRegistry: no icon for " + descriptor.getName() + ": " + x);
+          }
+          if (!newFormats.containsKey(descriptor.getMimeType())) {
+            newFormats.put(descriptor.getMimeType(), new Format(serializer, icon));
+          }
+        } // next serializer
+      } catch (Exception x) {
+        log.accept("SerializerRegistry: " + jar.getName() + ": " + x);
+      }
+    } // next jar file
+    formats = newFormats;
+    fingerprint = currentFingerprint.toString();
+    log.accept("SerializerRegistry: loaded " + formats.size() + " format(s)");
+    return this;
+  } // end of refresh()
+  
+} // end of class SerializerRegistry
@@ -22,10 +22,12 @@
 package nzilbb.webscribe;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import javax.json.stream.JsonGenerator;
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -75,4 +77,26 @@ public class ServletBase extends HttpServlet {
       .close();
   } // end of returnMessage()
 
+  /**
+   * Writes a JSON-formatted message as the response to an asynchronous request, and
+   * completes the request.
+   * @param status The HTTP status code.
+   * @param message The message to return.
+   * @param async The asynchronous request.
+   * @throws IOException
+   */
+  protected void returnMessage(int status, String message, AsyncContext async)
+    throws IOException {
+    StringWriter json = new StringWriter();
+    Json.createGenerator(json)
+      .writeStartObject()
+      .write("message", message)
+      .writeEnd()
+      .close();
+    HttpServletResponse response = (HttpServletResponse)async.getResponse();
+    response.setStatus(status);
+    response.setContentType("application/json;charset=UTF-8");
+    AsyncResponder.Send(async, json.toString().getBytes("UTF-8"));
+  } // end of returnMessage()
+
 } // end of class ServletBase
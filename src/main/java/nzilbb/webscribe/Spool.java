@@ -0,0 +1,458 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.servlet.ServletContext;
+import nzilbb.ag.Graph;
+import nzilbb.util.IO;
+
+/**
+ * A directory shared by the web application and {@link Worker} processes, through which
+ * jobs are handed to workers and transcripts handed back.
+ * <p> Each job has its own directory, containing its settings (<tt>job.json</tt>) and
+ * its recording. The directory moves through the following subdirectories of the spool:
+ * <dl>
+ *  <dt>incoming/</dt> <dd>while the web application is writing it,</dd>
+ *  <dt>queue/</dt> <dd>while it's waiting for a worker,</dd>
+ *  <dt>claimed/</dt> <dd>while a worker is transcribing it, and</dd>
+ *  <dt>done/</dt> <dd>once the worker has written <tt>transcript.json</tt> or
+ *   <tt>error.txt</tt>, until the web application collects it.</dd>
+ * </dl>
+ * <p> Each move is a single rename, which is atomic, even on a network file system. So a
+ * half-written job is never claimed, and a job can only be claimed by one worker: if
+ * several try at once, only one rename succeeds.
+ * <p> While a worker has a job, it touches the job's <tt>heartbeat</tt> file regularly,
+ * and records the job's progress in <tt>progress.txt</tt>. If the heartbeat stops for
+ * longer than {@link #staleMillis} (e.g. because the worker was killed), the web
+ * application moves the job back to the queue for another worker. The clocks of all
+ * machines sharing the spool must therefore roughly agree.
+ * <p> Each claim gets a directory of its own in <tt>claimed/</tt>, named
+ * <var>id</var>.<var>worker</var>.<var>nonce</var>, and a worker only ever uses the
+ * directory of its own claim. So if a worker that was only slow comes back after its job
+ * has been returned to the queue, and perhaps claimed by another worker, its directory no
+ * longer exists, and it can't touch the job's heartbeat, recording, or outcome.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class Spool {
+
+  /**
+   * Gets the spool for the given web application.
+   * @param context The servlet context.
+   * @return The spool created by {@link ContextListener}, or null if jobs are transcribed
+   * by the web application itself.
+   */
+  public static Spool From(ServletContext context) {
+    return (Spool)context.getAttribute(Spool.class.getName());
+  } // end of From()
+
+  /** Jobs being written by the web application. */
+  protected File incomingDir;
+
+  /** Jobs waiting for a worker. */
+  protected File queueDir;
+
+  /** Jobs being transcribed by a worker. */
+  protected File claimedDir;
+
+  /** Jobs that workers have finished with. */
+  protected File doneDir;
+
+  /** Where log messages go. */
+  protected Consumer<String> log;
+
+  /** Makes the names of claims unique. */
+  protected Random random = new Random();
+
+  /**
+   * How long, in milliseconds, a claimed job's heartbeat can stop before the job is
+   * returned to the queue. Workers touch the heartbeat four times as often as this.
+   * @see #getStaleMillis()
+   * @see #setStaleMillis(long)
+   */
+  protected long staleMillis = 1000L * 60 * 2;
+  /**
+   * Getter for {@link #staleMillis}: How long a claimed job's heartbeat can stop.
+   * @return How long, in milliseconds, a claimed job's heartbeat can stop before the job
+   * is returned to the queue.
+   */
+  public long getStaleMillis() { return staleMillis; }
+  /**
+   * Setter for {@link #staleMillis}: How long a claimed job's heartbeat can stop.
+   * @param newStaleMillis How long, in milliseconds, a claimed job's heartbeat can stop
+   * before the job is returned to the queue.
+   */
+  public Spool setStaleMillis(long newStaleMillis) { staleMillis = newStaleMillis; return this; }
+
+  /**
+   * How often, in milliseconds, the spool is checked for changes.
+   * @see #getPollMillis()
+   * @see #setPollMillis(long)
+   */
+  protected long pollMillis = 1000;
+  /**
+   * Getter for {@link #pollMillis}: How often the spool is checked for changes.
+   * @return How often, in milliseconds, the spool is checked for changes.
+   */
+  public long getPollMillis() { return pollMillis; }
+  /**
+   * Setter for {@link #pollMillis}: How often the spool is checked for changes.
+   * @param newPollMillis How often, in milliseconds, the spool is checked for changes.
+   */
+  public Spool setPollMillis(long newPollMillis) { pollMillis = newPollMillis; return this; }
+
+  /**
+   * Constructor.
+   * @param dir The spool directory; its subdirectories are created if necessary.
+   * @param log Where log messages go.
+   */
+  public Spool(File dir, Consumer<String> log) {
+    this.log = log;
+    incomingDir = new File(dir, "incoming");
+    queueDir = new File(dir, "queue");
+    claimedDir = new File(dir, "claimed");
+    doneDir = new File(dir, "done");
+    incomingDir.mkdirs();
+    queueDir.mkdirs();
+    claimedDir.mkdirs();
+    doneDir.mkdirs();
+  } // end of constructor
+
+  /**
+   * Adds the given job to the queue, unless it's already in the spool (e.g. because it
+   * was submitted before the web application restarted).
+   * <p> The job's recording is copied, so the job can be resubmitted if the spool copy
+   * is lost.
+   * @param job
+   * @throws IOException
+   */
+  public void submit(Job job) throws IOException {
+    String name = ""+job.getId();
+    if (new File(queueDir, name).exists() || findClaim(name) != null
+        || new File(doneDir, name).exists()) {
+      return;
+    }
+    File dir = new File(incomingDir, name);
+    if (dir.exists()) IO.RecursivelyDelete(dir); // left by an interrupted submission
+    if (!dir.mkdir()) throw new IOException("Could not create " + dir.getPath());
+    Files.copy(job.getWav().toPath(), new File(dir, job.getWav().getName()).toPath());
+    File settings = new File(dir, "job.json");
+    Json.createGenerator(Files.newBufferedWriter(settings.toPath()))
+      .writeStartObject()
+      .write("id", job.getId())
+      .write("wav", job.getWav().getName())
+      .write("transcriberId", ""+job.getTranscriberId())
+      .write("transcriberVersion", ""+job.getTranscriberVersion())
+      .write("segmentSeconds", job.getSegmenter() == null? 0
+             : (int)job.getSegmenter().getSegmentSeconds())
+      .write("normalizeSampleRate", job.getNormalizer() == null? 0
+             : job.getNormalizer().getSampleRate())
+      .writeEnd()
+      .close();
+    Files.move(dir.toPath(), new File(queueDir, name).toPath(), StandardCopyOption.ATOMIC_MOVE);
+  } // end of submit()
+
+  /**
+   * Waits for a worker to transcribe the given job, which must have been
+   * {@link #submit(Job) submitted}. The job is returned to the queue if its worker's
+   * heartbeat stops, and its directory is deleted from the spool once its outcome has
+   * been read.
+   * @param job
+   * @param statusObserver Receives the worker's status messages.
+   * @param percentObserver Receives the worker's progress.
+   * @return The transcript.
+   * @throws InterruptedException If the thread is interrupted while waiting.
+   * @throws Exception If the job is lost from the spool, or the worker could not
+   * transcribe it.
+   */
+  public Graph await(Job job, Consumer<String> statusObserver, IntConsumer percentObserver)
+    throws Exception {
+    String name = ""+job.getId();
+    File queued = new File(queueDir, name);
+    File done = new File(doneDir, name);
+    File claimed = null;
+    String lastProgress = null;
+    long claimedSeen = 0; // when the job was first seen claimed
+    while (true) {
+      // check in the order that the directory moves, so a move can't be missed
+      if (queued.exists()) {
+        claimedSeen = 0;
+        if (lastProgress == null) {
+          statusObserver.accept("Waiting for a transcription worker...");
+          lastProgress = "";
+        }
+      } else if ((claimed = findClaim(name)) != null) {
+        if (claimedSeen == 0) claimedSeen = System.currentTimeMillis();
+        // the worker may not have started its heartbeat yet
+        long lastBeat = Math.max(new File(claimed, "heartbeat").lastModified(), claimedSeen);
+        if (System.currentTimeMillis() - lastBeat > staleMillis) {
+          String worker = readText(new File(claimed, "worker"));
+          if (requeue(claimed)) {
+            log.accept("Spool: job " + name + " returned to the queue by " + worker);
+            lastProgress = null;
+            claimedSeen = 0;
+          } // otherwise the worker finished after all
+        } else {
+          String progress = readText(new File(claimed, "progress.txt"));
+          if (progress != null && !progress.equals(lastProgress)) {
+            lastProgress = progress;
+            int newline = progress.indexOf('\n');
+            try {
+              percentObserver.accept(Integer.parseInt(progress.substring(0, newline)));
+            } catch (Exception x) {
+            }
+            statusObserver.accept(progress.substring(newline + 1));
+          }
+        }
+      } else if (done.exists()) {
+        try {
+          File transcript = new File(done, "transcript.json");
+          if (transcript.exists()) return JobStore.ReadTranscript(transcript);
+          String error = readText(new File(done, "error.txt"));
+          throw new Exception(error == null? "Worker failed" : error);
+        } finally {
+          IO.RecursivelyDelete(done);
+        }
+      } else {
+        throw new IOException("Job " + name + " is no longer in the spool");
+      }
+      Thread.sleep(pollMillis);
+    } // next check
+  } // end of await()
+
+  /**
+   * Claims the longest-waiting job in the queue, for a worker.
+   * @param worker The name of the worker.
+   * @return The directory of the claim, which is only used by the worker that claimed the
+   * job, or null if there are no jobs waiting.
+   */
+  public File claim(String worker) {
+    File[] queued = queueDir.listFiles(File::isDirectory);
+    if (queued == null) return null;
+    // returned jobs keep their modification time, so they're claimed again first
+    Arrays.sort(queued, Comparator.comparingLong(File::lastModified)
+                .thenComparing(File::getName));
+    for (File dir : queued) {
+      File claimed = new File(
+        claimedDir, dir.getName() + "." + worker.replaceAll("[^A-Za-z0-9@_-]", "_")
+        + "." + Long.toHexString(random.nextLong() & Long.MAX_VALUE));
+      try {
+        Files.move(dir.toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException x) { // another worker got it first
+        continue;
+      }
+      try {
+        writeText(new File(claimed, "worker"), worker);
+        heartbeat(claimed);
+      } catch (IOException x) {
+        log.accept("Spool: could not mark job " + dir.getName() + " claimed: " + x);
+      }
+      return claimed;
+    } // next queued job
+    return null;
+  } // end of claim()
+
+  /**
+   * Reads the settings of a claimed job.
+   * @param claimed The directory returned by {@link #claim(String)}.
+   * @return A job to transcribe the job's recording.
+   * @throws IOException
+   */
+  public Job load(File claimed) throws IOException {
+    JsonObject settings = null;
+    InputStream in = new FileInputStream(new File(claimed, "job.json"));
+    try {
+      JsonReader reader = Json.createReader(in);
+      try {
+        settings = reader.readObject();
+      } finally {
+        reader.close();
+      }
+    } finally {
+      in.close();
+    }
+    Job job = new Job(settings.getJsonNumber("id").longValue())
+      .setWav(new File(claimed, settings.getString("wav")))
+      .setTranscriberId(settings.getString("transcriberId", null))
+      .setTranscriberVersion(settings.getString("transcriberVersion", null));
+    int segmentSeconds = settings.getInt("segmentSeconds", 0);
+    if (segmentSeconds > 0) {
+      job.setSegmenter(new AudioSegmenter().setSegmentSeconds(segmentSeconds));
+    }
+    int normalizeSampleRate = settings.getInt("normalizeSampleRate", 0);
+    if (normalizeSampleRate > 0) {
+      job.setNormalizer(new AudioNormalizer().setSampleRate(normalizeSampleRate));
+    }
+    return job;
+  } // end of load()
+
+  /**
+   * Touches the heartbeat of a claimed job, so that it's not returned to the queue.
+   * @param claimed The directory returned by {@link #claim(String)}.
+   * @return false if the job is no longer claimed, i.e. it's been returned to the queue.
+   * @throws IOException
+   */
+  public boolean heartbeat(File claimed) throws IOException {
+    File heartbeat = new File(claimed, "heartbeat");
+    try {
+      if (!heartbeat.exists()) heartbeat.createNewFile();
+    } catch (IOException x) {
+      if (!claimed.exists()) return false; // it was returned to the queue just now
+      throw x;
+    }
+    return heartbeat.setLastModified(System.currentTimeMillis());
+  } // end of heartbeat()
+
+  /**
+   * Records the progress of a claimed job.
+   * @param claimed The directory returned by {@link #claim(String)}.
+   * @param percentComplete
+   * @param status
+   * @throws IOException
+   */
+  public void progress(File claimed, int percentComplete, String status) throws IOException {
+    if (!claimed.exists()) return; // it's been returned to the queue
+    writeText(new File(claimed, "progress.txt"), percentComplete + "\n" + status);
+  } // end of progress()
+
+  /**
+   * Records the outcome of a claimed job, and moves it out of the claimed directory.
+   * @param claimed The directory returned by {@link #claim(String)}.
+   * @param transcript The transcript, or null if the job failed.
+   * @param error Why the job failed, if it did.
+   * @return false if the job was returned to the queue before it was finished.
+   * @throws Exception
+   */
+  public boolean complete(File claimed, Graph transcript, String error) throws Exception {
+    if (!claimed.exists()) return false;
+    if (transcript != null) {
+      // written under a temporary name, so that if the job is returned to the queue
+      // while it's being written, the partial transcript is removed with the claim
+      File temp = new File(claimed, "transcript.json.tmp");
+      JobStore.WriteTranscript(transcript, temp, log);
+      Files.move(temp.toPath(), new File(claimed, "transcript.json").toPath(),
+                 StandardCopyOption.ATOMIC_MOVE);
+    } else {
+      writeText(new File(claimed, "error.txt"), error == null? "Worker failed" : error);
+    }
+    try {
+      Files.move(claimed.toPath(), new File(doneDir, jobName(claimed)).toPath(),
+                 StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (IOException x) { // it was returned to the queue while we were writing
+      return false;
+    }
+  } // end of complete()
+
+  /**
+   * Returns a claimed job to the queue, e.g. because its worker is stopping.
+   * @param claimed The directory returned by {@link #claim(String)}.
+   * @return true if it was returned to the queue.
+   */
+  public boolean release(File claimed) {
+    return requeue(claimed);
+  } // end of release()
+
+  /**
+   * Moves a claimed job back to the queue, and removes what its worker left in it.
+   * <p> If the worker still has one of those files open, it keeps writing to the removed
+   * file, which is never seen by the next worker to claim the job.
+   * @param claimed The directory of the claim.
+   * @return false if the job is no longer claimed by that claim.
+   */
+  protected boolean requeue(File claimed) {
+    File queued = new File(queueDir, jobName(claimed));
+    try {
+      Files.move(claimed.toPath(), queued.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException x) {
+      return false;
+    }
+    File[] files = queued.listFiles(
+      f -> f.getName().equals("worker") || f.getName().equals("heartbeat")
+      || f.getName().equals("progress.txt") || f.getName().equals("error.txt")
+      || f.getName().equals("transcript.json") || f.getName().endsWith(".tmp"));
+    if (files != null) for (File file : files) file.delete();
+    return true;
+  } // end of requeue()
+
+  /**
+   * Finds the current claim of a job.
+   * @param name The name of the job, i.e. its ID.
+   * @return The directory of the claim, or null if the job isn't claimed.
+   */
+  protected File findClaim(String name) {
+    String prefix = name + ".";
+    File[] claims = claimedDir.listFiles(f -> f.getName().startsWith(prefix));
+    return claims == null || claims.length == 0? null : claims[0];
+  } // end of findClaim()
+
+  /**
+   * Determines the name of the job a claim is for.
+   * @param claimed The directory of the claim.
+   * @return The name of the job, i.e. its ID.
+   */
+  protected String jobName(File claimed) {
+    String name = claimed.getName();
+    int dot = name.indexOf('.');
+    return dot < 0? name : name.substring(0, dot);
+  } // end of jobName()
+
+  /**
+   * Writes a small text file all at once, so that it's never read half-written.
+   * @param file
+   * @param text
+   * @throws IOException
+   */
+  protected void writeText(File file, String text) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+    Files.write(temp.toPath(), text.getBytes("UTF-8"));
+    Files.move(temp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  } // end of writeText()
+
+  /**
+   * Reads a small text file.
+   * @param file
+   * @return The contents of the file, or null if it can't be read.
+   */
+  protected String readText(File file) {
+    try {
+      return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    } catch (IOException x) {
+      return null;
+    }
+  } // end of readText()
+
+} // end of class Spool
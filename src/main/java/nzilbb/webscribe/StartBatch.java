@@ -0,0 +1,212 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+
+/**
+ * Servlet for receiving many recordings at once and queuing a transcription job for each.
+ * <p> The request may include any number of .wav file parts, and/or .zip file parts
+ * containing .wav files. Each recording is streamed to disk and queued as soon as it has
+ * been received, so transcription of the first recordings can start while later ones are
+ * still uploading. All the jobs belong to one {@link Batch}, whose status and transcripts
+ * are available via {@link BatchStatus} and {@link BatchTranscripts}.
+ * <p> Recordings that are too large, or that can't be queued because the queue is full,
+ * are skipped and listed in the response; the rest of the batch is still queued.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@WebServlet("/startbatch")
+public class StartBatch extends StartTranscription {
+  /**
+   * Default constructor.
+   */
+  public StartBatch() {
+  } // end of constructor
+  
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    // fail early if there's no transcriber
+    String transcriberId = null;
+    String transcriberVersion = null;
+    try {
+      TranscriberPool pool = TranscriberPool.From(getServletContext());
+      transcriberId = pool.getAnnotatorId();
+      transcriberVersion = pool.getVersion();
+    } catch (Exception x) {
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      log("ERROR: " + x);
+      returnMessage("ERROR: " + x, response);
+      return;
+    }
+    
+    Batch batch = new Batch();
+    String submitter = submitter(request);
+    boolean queueFull = false;
+    ServletFileUpload upload = new ServletFileUpload();
+    upload.setFileSizeMax(maxUploadBytes);
+    try {
+      FileItemIterator items = upload.getItemIterator(request);
+      while (items.hasNext()) {
+        FileItemStream item = items.next();
+        if (item.isFormField() || item.getName() == null) continue;
+        String name = item.getName().toLowerCase();
+        if (name.endsWith(".wav")) {
+          InputStream in = item.openStream();
+          try {
+            queueFull |= !queue(batch, item.getName(), in, submitter);
+          } catch (FileUploadBase.FileUploadIOException x) { // part larger than the limit
+            if (!(x.getCause() instanceof FileUploadBase.FileSizeLimitExceededException)) {
+              throw x;
+            }
+            batch.reject(item.getName(), "Too large; the limit is " + maxUploadDescription());
+          } finally {
+            in.close();
+          }
+        } else if (name.endsWith(".zip")) {
+          log("Archive: " + item.getName());
+          ZipInputStream zip = new ZipInputStream(item.openStream());
+          try {
+            ZipEntry entry = zip.getNextEntry();
+            while (entry != null) {
+              if (!entry.isDirectory() && entry.getName().toLowerCase().endsWith(".wav")) {
+                queueFull |= !queue(batch, entry.getName(), zip, submitter);
+              }
+              zip.closeEntry();
+              entry = zip.getNextEntry();
+            } // next entry
+          } finally {
+            zip.close();
+          }
+        } // .zip file
+      } // next item
+    } catch (Exception x) {
+      // whatever was queued before the error remains queued, so report it
+      log("ERROR: " + x);
+      batch.reject(batch.getRejections().isEmpty() && batch.getJobIds().isEmpty()?
+                   "request" : "remainder of request", "ERROR: " + x);
+    }
+
+    if (batch.getJobIds().isEmpty()) {
+      batch.forget();
+      if (batch.getRejections().isEmpty()) {
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        returnMessage("No wav files found.", response);
+        return;
+      }
+      response.setStatus(queueFull? HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                         : HttpServletResponse.SC_BAD_REQUEST);
+    }
+    log("Batch " + batch.getId() + ": " + batch.getJobIds().size() + " job(s) queued, "
+        + batch.getRejections().size() + " rejected");
+    response.setContentType("application/json;charset=UTF-8");
+    JsonGenerator json = Json.createGenerator(response.getWriter())
+      .writeStartObject()
+      .write("message", "Uploaded " + batch.getJobIds().size() + " recording(s)")
+      .write("batchId", ""+batch.getId())
+      .write("transcriber", transcriberId)
+      .write("version", transcriberVersion)
+      .writeStartArray("jobs");
+    for (Job job : batch.getJobs()) {
+      json.writeStartObject()
+        .write("jobId", ""+job.getId())
+        .write("wav", job.getWav().getName())
+        .writeEnd();
+    } // next job
+    json.writeEnd();
+    WriteRejections(batch, json);
+    json.writeEnd().close();
+  } // doPost
+  
+  /**
+   * Saves a recording and queues a transcription job for it, as part of the given batch.
+   * If the recording is too large, the queue is full, or there's not enough disk space,
+   * the recording is added to the batch's rejections instead.
+   * @param batch The batch the recording belongs to.
+   * @param name The name of the recording.
+   * @param in The content of the recording. This stream is not closed.
+   * @param submitter Who uploaded the recording.
+   * @return false if the job couldn't be queued because the queue is full or there's not
+   * enough disk space, true otherwise.
+   * @throws Exception If the recording can't be received.
+   */
+  protected boolean queue(Batch batch, String name, InputStream in, String submitter)
+    throws Exception {
+    File wav = null;
+    try {
+      MessageDigest digest = ContentIndex.NewDigest();
+      wav = receiveWav(name, in, digest);
+      batch.add(startTranscriptionJob(wav, ContentIndex.Hex(digest.digest()), submitter));
+    } catch (FileUploadBase.FileSizeLimitExceededException x) {
+      log("Rejected upload larger than " + maxUploadDescription() + ": " + name);
+      batch.reject(name, "Too large; the limit is " + maxUploadDescription());
+    } catch (RejectedExecutionException x) { // queue is full, or disk space is low
+      log("Rejected: " + name + ": " + x.getMessage());
+      discardUpload(wav);
+      batch.reject(name, x.getMessage());
+      return false;
+    } catch (Exception x) { // e.g. there's no transcriber
+      discardUpload(wav);
+      throw x;
+    }
+    return true;
+  } // end of queue()
+  
+  /**
+   * Writes the given batch's rejections as a JSON array called "rejected", with each
+   * element having "wav" and "message" attributes.
+   * @param batch
+   * @param json A generator in the context of an object.
+   * @return The given generator.
+   */
+  public static JsonGenerator WriteRejections(Batch batch, JsonGenerator json) {
+    json.writeStartArray("rejected");
+    synchronized (batch.getRejections()) {
+      for (Map.Entry<String,String> rejection : batch.getRejections().entrySet()) {
+        json.writeStartObject()
+          .write("wav", rejection.getKey())
+          .write("message", rejection.getValue())
+          .writeEnd();
+      } // next rejection
+    }
+    return json.writeEnd();
+  } // end of WriteRejections()
+  
+} // end of class StartBatch
@@ -22,22 +22,22 @@
 package nzilbb.webscribe;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.List;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.RejectedExecutionException;
 import javax.json.Json;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import nzilbb.ag.Constants;
-import nzilbb.ag.Layer;
-import nzilbb.ag.Schema;
-import nzilbb.ag.automation.Annotator;
-import nzilbb.ag.automation.Transcriber;
-import nzilbb.ag.automation.util.AnnotatorDescriptor;
-import org.apache.commons.fileupload.*;
-import org.apache.commons.fileupload.disk.*;
-import org.apache.commons.fileupload.servlet.*;
+import javax.servlet.http.HttpSession;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
 
 /**
  * Serlvet for receiving a recording and starting transcription.
@@ -51,30 +51,69 @@ public class StartTranscription extends ServletBase {
   public StartTranscription() {
   } // end of constructor
   
+  /** Maximum size of an uploaded recording in bytes, or -1 for no limit. */
+  protected long maxUploadBytes = -1;
+  
+  /** Target segment length for parallel transcription, or 0 to disable segmentation. */
+  protected int segmentMinutes = 10;
+  
+  /**
+   * Sample rate recordings are converted to before transcription, 0 for the rate the
+   * transcriber prefers, if it states one, or -1 to disable.
+   */
+  protected int normalizeSampleRate = 0;
+  
+  /**
+   * Reads the MaxUploadMB, SegmentMinutes, and NormalizeSampleRate configuration
+   * parameters.
+   */
+  @Override public void init() throws ServletException {
+    int maxUploadMB = ContextListener.IntegerParameter(getServletContext(), "MaxUploadMB", 2048);
+    maxUploadBytes = maxUploadMB > 0? 1024L * 1024 * maxUploadMB : -1;
+    segmentMinutes = ContextListener.IntegerParameter(getServletContext(), "SegmentMinutes", 10);
+    normalizeSampleRate = ContextListener.IntegerParameter(
+      getServletContext(), "NormalizeSampleRate", 0);
+    super.init();
+  } // end of init()
+  
   @Override
-  @SuppressWarnings("unchecked")
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
     throws ServletException, IOException {
+
+    // reject uploads that are obviously too large before reading anything
+    if (maxUploadBytes > 0 && request.getContentLengthLong() > maxUploadBytes) {
+      response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      returnMessage("Recording is too large; the limit is " + maxUploadDescription(), response);
+      return;
+    }
+    // or if there's obviously not enough disk space for it
+    try {
+      ScratchSpace.From(getServletContext()).admit(request.getContentLengthLong());
+    } catch (RejectedExecutionException x) {
+      log("Rejected: " + x.getMessage());
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      returnMessage(x.getMessage(), response);
+      return;
+    }
     
     File wav = null;
-    String name = null;
-    ServletFileUpload upload = new ServletFileUpload(new DiskFileItemFactory());
+    MessageDigest digest = ContentIndex.NewDigest();
+    // stream the upload straight to its destination, rather than via a temporary file
+    ServletFileUpload upload = new ServletFileUpload();
+    upload.setFileSizeMax(maxUploadBytes);
     try {
-      List<FileItem> items = upload.parseRequest(request);
-      for (FileItem item : items) {
-        if (!item.isFormField()
+      FileItemIterator items = upload.getItemIterator(request);
+      while (items.hasNext()) {
+        FileItemStream item = items.next();
+        if (!item.isFormField() && wav == null // only one file at a time
             && item.getName() != null && item.getName().toLowerCase().endsWith(".wav")) {
-          log("File: " + item.getName());
-          
-          // save file
-          File tempDir = File.createTempFile("webscriber", item.getName());
-          tempDir.deleteOnExit();
-          tempDir.delete();
-          wav = new File(tempDir, item.getName());
-          wav.deleteOnExit();
-          item.write(wav);
-          log("Saved: " + wav.getPath());
-          break; // only one file at a time
+          InputStream in = item.openStream();
+          try {
+            // the size limit is checked and the content hashed as we go
+            wav = receiveWav(item.getName(), in, digest);
+          } finally {
+            in.close();
+          }
         } // .wav file
       } // next item
       
@@ -91,81 +130,196 @@ public class StartTranscription extends ServletBase {
         }
         
         // start transcription task
-        Job job = startTranscriptionJob(wav);
+        Job job = startTranscriptionJob(
+          wav, ContentIndex.Hex(digest.digest()), submitter(request));
         response.setContentType("application/json;charset=UTF-8");
         Json.createGenerator(response.getWriter())
           .writeStartObject()
           .write("message", "Uploaded " + wav.getName())
           .write("jobId", ""+job.getId())
-          .write("transcriber", job.getTranscriber().getAnnotatorId())
-          .write("version", job.getTranscriber().getVersion())
+          .write("transcriber", job.getTranscriberId())
+          .write("version", job.getTranscriberVersion())
           .write("wav", job.getWav().getName())
           .write("canSendEmail", canSendEmail)
           .writeEnd()
           .close();
       }
-    } catch (Exception x) {
+    } catch (FileUploadBase.FileSizeLimitExceededException x) {
+      uploadTooLarge(wav, response);
+    } catch (FileUploadBase.FileUploadIOException x) { // limit exceeded while streaming
+      if (x.getCause() instanceof FileUploadBase.FileSizeLimitExceededException) {
+        uploadTooLarge(wav, response);
+      } else {
+        discardUpload(wav);
+        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        log("ERROR: " + x);
+        returnMessage("ERROR: " + x, response);
+      }
+    } catch (RejectedExecutionException x) { // queue is full
+      log("Rejected: " + x.getMessage());
+      discardUpload(wav);
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      returnMessage(x.getMessage(), response);
+    } catch (Exception x) { // e.g. there's no transcriber
+      discardUpload(wav);
       response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       log("ERROR: " + x);
       returnMessage("ERROR: " + x, response);
     }
   } // doPost
-  
+
   /**
-   * Starts a job transcribing the given recording.
-   * @param wav
-   * @return The job thread.
+   * Saves an uploaded recording in a new directory of its own, in the
+   * {@link ScratchSpace}.
+   * <p> If saving fails, the recording is larger than {@link #maxUploadBytes}, or the
+   * scratch space runs out of room, the partial file and its directory are deleted.
+   * @param name The name of the recording, which may include a path that is ignored.
+   * @param in The content of the recording. This stream is not closed.
+   * @param digest Digest to update with the content of the recording as it's received, or
+   * null.
+   * @return The saved file.
+   * @throws FileUploadBase.FileSizeLimitExceededException If the recording is too large.
+   * @throws RejectedExecutionException If there's not enough disk space for it.
+   * @throws IOException
    */
-  public Job startTranscriptionJob(File wav) throws Exception { // TODO email parameter
-    
-    // create and configure the transcriber...
-
-    // the transcriber implementation is the first jar in the transcriber directory
-    File transcriberDir = new File(getServletContext().getRealPath("transcriber"));
-    File[] transcribers = transcriberDir.listFiles((File dir, String name)->{
-        return name.endsWith(".jar");
-      });
-    if (transcribers.length == 0) {
-      throw new Exception("There are no transcribers in " + transcriberDir.getPath());
-    }
-    File jar = transcribers[0];
-    AnnotatorDescriptor descriptor = new AnnotatorDescriptor(jar);
-    Annotator annotator = descriptor.getInstance();
-    if (!(annotator instanceof Transcriber)) {
-      throw new Exception("Annotator: " + jar.getName() + " is not a transcriber");
+  protected File receiveWav(String name, InputStream in, MessageDigest digest)
+    throws FileUploadBase.FileSizeLimitExceededException, IOException {
+    name = new File(name.replace('\\', '/')).getName(); // strip any path
+    log("File: " + name);
+    ScratchSpace scratch = ScratchSpace.From(getServletContext());
+    File dir = scratch.createDirectory(-1);
+    File wav = new File(dir, name);
+    boolean saved = false;
+    long startTime = System.nanoTime();
+    long size = 0;
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(wav);
+      byte[] buffer = new byte[65536];
+      int bytesRead = in.read(buffer);
+      while (bytesRead >= 0) {
+        size += bytesRead;
+        if (maxUploadBytes > 0 && size > maxUploadBytes) {
+          throw new FileUploadBase.FileSizeLimitExceededException(
+            name + " is larger than " + maxUploadDescription(), size, maxUploadBytes);
+        }
+        scratch.claim(bytesRead);
+        out.write(buffer, 0, bytesRead);
+        if (digest != null) digest.update(buffer, 0, bytesRead);
+        bytesRead = in.read(buffer);
+      } // next chunk
+      saved = true;
+    } finally {
+      if (out != null) out.close();
+      scratch.release();
+      Metrics.Instance().uploadBytes.add(size);
+      Metrics.Instance().uploadSeconds.add((System.nanoTime() - startTime) / 1e9);
+      if (!saved) scratch.delete(dir);
     }
-    Transcriber transcriber = (Transcriber)annotator;
+    log("Saved: " + wav.getPath());
+    return wav;
+  } // end of receiveWav()
 
-    // give the transcriber the resources it needs...
-    
-    transcriber.setSchema(
-      new Schema(
-        "who", "turn", "utterance", "word",
-        new Layer("scribe", "Transcriber").setAlignment(Constants.ALIGNMENT_NONE)
-        .setPeers(false).setPeersOverlap(false).setSaturated(true),
-        new Layer("date", "Transcription date").setAlignment(Constants.ALIGNMENT_NONE)
-        .setPeers(false).setPeersOverlap(false).setSaturated(true),
-        new Layer("who", "Participants").setAlignment(Constants.ALIGNMENT_NONE)
-        .setPeers(true).setPeersOverlap(true).setSaturated(true),
-        new Layer("turn", "Speaker turns").setAlignment(Constants.ALIGNMENT_INTERVAL)
-        .setPeers(true).setPeersOverlap(false).setSaturated(false)
-        .setParentId("who").setParentIncludes(true),
-        new Layer("utterance", "Utterances").setAlignment(Constants.ALIGNMENT_INTERVAL)
-        .setPeers(true).setPeersOverlap(false).setSaturated(true)
-        .setParentId("turn").setParentIncludes(true),
-        new Layer("word", "Words").setAlignment(Constants.ALIGNMENT_INTERVAL)
-        .setPeers(true).setPeersOverlap(false).setSaturated(false)
-        .setParentId("turn").setParentIncludes(true)));
-    
-    File workingDir = new File(transcriberDir, transcriber.getAnnotatorId());
-    if (!workingDir.exists()) workingDir.mkdir();
-    transcriber.setWorkingDirectory(workingDir);      
-    transcriber.getStatusObservers().add(s->log(s));
+  /**
+   * Identifies who made the given request, so that transcription time can be shared
+   * fairly between submitters. This is their session, if they have one, or otherwise their
+   * address (if the server is behind a reverse proxy, Tomcat's RemoteIpValve can provide
+   * the client's address rather than the proxy's).
+   * @param request
+   * @return An identifier for the submitter.
+   */
+  protected String submitter(HttpServletRequest request) {
+    HttpSession session = request.getSession(false);
+    if (session != null) return "session " + session.getId();
+    return "address " + request.getRemoteAddr();
+  } // end of submitter()
+
+  /**
+   * Deletes a recording that couldn't be queued, along with its upload directory. If the
+   * job was stored before it failed, the recording has already been moved out of the
+   * upload directory, and the job store deletes it.
+   * @param wav The recording returned by {@link #receiveWav(String,InputStream,MessageDigest)},
+   * or null if none was received.
+   */
+  protected void discardUpload(File wav) {
+    if (wav != null) ScratchSpace.From(getServletContext()).delete(wav.getParentFile());
+  } // end of discardUpload()
+
+  /**
+   * Responds that the upload was too large, and deletes any partially uploaded file.
+   * @param wav The partial file, or null.
+   * @param response
+   * @throws IOException
+   */
+  protected void uploadTooLarge(File wav, HttpServletResponse response) throws IOException {
+    discardUpload(wav);
+    log("Rejected upload larger than " + maxUploadDescription());
+    response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    returnMessage("Recording is too large; the limit is " + maxUploadDescription(), response);
+  } // end of uploadTooLarge()
 
+  /**
+   * Describes {@link #maxUploadBytes} for error messages.
+   * @return e.g. "2048MB".
+   */
+  protected String maxUploadDescription() {
+    return (maxUploadBytes / (1024 * 1024)) + "MB";
+  } // end of maxUploadDescription()
+  
+  /**
+   * Queues a job transcribing the given recording.
+   * <p> If an identical recording has already been transcribed, or is queued or being
+   * transcribed, by the same version of the transcriber, the job isn't queued; instead
+   * it {@link Job#follow(Job) follows} the job for the identical recording.
+   * @param wav
+   * @param contentHash The hash of the recording as uploaded, or null if unknown.
+   * @param submitter Who uploaded the recording, or null if unknown.
+   * @return The job.
+   * @throws RejectedExecutionException If there are already too many jobs waiting.
+   */
+  public Job startTranscriptionJob(File wav, String contentHash, String submitter)
+    throws Exception { // TODO email parameter
+    
+    // transcribers are borrowed from a pool when the job starts
+    TranscriberPool pool = TranscriberPool.From(getServletContext());
+    String transcriberId = pool.getAnnotatorId(); // fails if there's no transcriber
+    int sampleRate = normalizeSampleRate != 0? normalizeSampleRate
+      : pool.getPreferredSampleRate();
     Job job = new Job()
-      .setTranscriber(transcriber)
+      .setTranscriberPool(pool)
+      .setSpool(Spool.From(getServletContext())) // null unless workers transcribe it
+      .setTranscriberId(transcriberId)
+      .setTranscriberVersion(pool.getVersion())
+      .setSegmenter(segmentMinutes <= 0? null
+                    : new AudioSegmenter().setSegmentSeconds(segmentMinutes * 60))
+      .setNormalizer(sampleRate <= 0? null
+                     : new AudioNormalizer().setSampleRate(sampleRate))
+      .setContentHash(contentHash)
+      .setSubmitter(submitter)
       .setWav(wav); // TODO set email
-    job.start();
+    try { // read the duration from the header, for scheduling
+      job.setDuration(AudioSegmenter.Duration(wav));
+    } catch (Exception x) { // the transcriber may still be able to deal with it
+    }
+    ContentIndex index = ContentIndex.From(getServletContext());
+    String key = ContentIndex.Key(contentHash, transcriberId, job.getTranscriberVersion());
+    try {
+      // keep it on disk, so it's not lost if the web application restarts
+      JobStore store = JobStore.From(getServletContext());
+      if (store != null) store.add(job);
+      Job leader = index == null? null : index.claim(key, job);
+      if (leader != null) { // no need to transcribe it again
+        log("Job " + job.getId() + " has the same recording as job " + leader.getId());
+        Metrics.Instance().duplicateUploads.inc();
+        job.follow(leader);
+      } else {
+        JobScheduler.From(getServletContext()).submit(job);
+      }
+    } catch (Exception x) {
+      if (index != null) index.remove(key, job);
+      Job.Registry().remove(job);
+      throw x;
+    }
     return job;
   } // end of startTranscriptionJob()
 
@@ -0,0 +1,128 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rolling model of how long jobs take, for estimating when they'll finish.
+ * <p> For each transcriber version, the model keeps an exponentially weighted moving
+ * average of the <em>real-time factor</em> - the time a job took from start to finish,
+ * divided by the duration of its recording. Short recordings have proportionally more
+ * overhead than long ones, so separate averages are kept for recordings of different
+ * lengths; if there's no history for a given length yet, the average for all lengths is
+ * used, and if there's no history for the transcriber, the average for all transcribers.
+ * <p> Recording and predicting are both constant-time, so estimates can be computed for
+ * every status request.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class ThroughputModel {
+
+  /** Upper bounds of the recording duration ranges, in seconds, that are modelled separately. */
+  protected static final double[] DURATION_BOUNDS = { 60, 600, 3600 };
+  
+  /** Real-time factors, by transcriber and duration range. */
+  protected ConcurrentHashMap<String,Double> realTimeFactors
+  = new ConcurrentHashMap<String,Double>();
+
+  /**
+   * The weight given to each new observation, between 0 and 1; higher values adapt more
+   * quickly but fluctuate more.
+   * @see #getSmoothing()
+   * @see #setSmoothing(double)
+   */
+  protected double smoothing = 0.2;
+  /**
+   * Getter for {@link #smoothing}: The weight given to each new observation.
+   * @return The weight given to each new observation, between 0 and 1.
+   */
+  public double getSmoothing() { return smoothing; }
+  /**
+   * Setter for {@link #smoothing}: The weight given to each new observation.
+   * @param newSmoothing The weight given to each new observation, between 0 and 1.
+   */
+  public ThroughputModel setSmoothing(double newSmoothing) { smoothing = newSmoothing; return this; }
+  
+  /**
+   * Default constructor.
+   */
+  public ThroughputModel() {
+  } // end of constructor
+
+  /**
+   * Records how long a job took.
+   * @param annotator The transcriber's ID and version.
+   * @param audioSeconds The duration of the recording.
+   * @param elapsedSeconds How long the job took from start to finish.
+   */
+  public void record(String annotator, double audioSeconds, double elapsedSeconds) {
+    if (audioSeconds <= 0 || elapsedSeconds < 0) return;
+    double factor = elapsedSeconds / audioSeconds;
+    update(annotator + " " + range(audioSeconds), factor);
+    update(annotator, factor);
+    update("", factor);
+  } // end of record()
+
+  /**
+   * Predicts how long a job will take.
+   * @param annotator The transcriber's ID and version.
+   * @param audioSeconds The duration of the recording.
+   * @return The predicted time from start to finish in seconds, or -1 if there's no
+   * history to base a prediction on.
+   */
+  public double predict(String annotator, double audioSeconds) {
+    Double factor = realTimeFactors.get(annotator + " " + range(audioSeconds));
+    if (factor == null) factor = realTimeFactors.get(annotator);
+    if (factor == null) factor = realTimeFactors.get("");
+    if (factor == null) return -1;
+    return factor * audioSeconds;
+  } // end of predict()
+
+  /**
+   * Determines whether there's any history to base predictions on.
+   * @return true if at least one job has been recorded.
+   */
+  public boolean isEmpty() {
+    return realTimeFactors.isEmpty();
+  } // end of isEmpty()
+
+  /**
+   * Updates the moving average with the given key.
+   * @param key
+   * @param factor The observed real-time factor.
+   */
+  protected void update(String key, double factor) {
+    realTimeFactors.merge(key, factor, (average, f) -> average + smoothing * (f - average));
+  } // end of update()
+
+  /**
+   * Identifies the duration range a recording falls into.
+   * @param audioSeconds
+   * @return The index of the range in {@link #DURATION_BOUNDS}.
+   */
+  protected static int range(double audioSeconds) {
+    int r = 0;
+    while (r < DURATION_BOUNDS.length && audioSeconds > DURATION_BOUNDS[r]) r++;
+    return r;
+  } // end of range()
+  
+} // end of class ThroughputModel
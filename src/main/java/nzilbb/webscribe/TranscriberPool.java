@@ -0,0 +1,436 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import javax.servlet.ServletContext;
+import nzilbb.ag.Constants;
+import nzilbb.ag.Layer;
+import nzilbb.ag.Schema;
+import nzilbb.ag.automation.Annotator;
+import nzilbb.ag.automation.Transcriber;
+import nzilbb.ag.automation.util.AnnotatorDescriptor;
+
+/**
+ * Pool of initialized transcriber instances.
+ * <p> Loading the transcriber implementation from its jar file and configuring it can be
+ * expensive, so instances are kept once they've been created, and reused for subsequent
+ * jobs. Jobs {@link #borrow()} a transcriber, and {@link #giveBack(Transcriber)} it when
+ * they're finished.
+ * <p> At most {@link #getMaxSize()} instances exist at once; borrowers wait until an
+ * instance is available. Instances that haven't been used for longer than
+ * {@link #getIdleMillis()} are discarded by {@link #evictIdle()}, except for the most
+ * recently used {@link #getMinSize()} instances.
+ * <p> When the pool is no longer needed, {@link #shutdown()} discards idle instances,
+ * and instances that are given back afterwards, so that e.g. loaded models can be
+ * garbage collected when the web application is stopped.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TranscriberPool {
+
+  /**
+   * Gets the transcriber pool for the given web application.
+   * @param context The servlet context.
+   * @return The pool created by {@link ContextListener}, or null if there is none.
+   */
+  public static TranscriberPool From(ServletContext context) {
+    return (TranscriberPool)context.getAttribute(TranscriberPool.class.getName());
+  } // end of From()
+
+  /**
+   * Creates the schema for transcripts.
+   * @return The schema that transcribers are given.
+   */
+  public static Schema CreateSchema() {
+    return new Schema(
+      "who", "turn", "utterance", "word",
+      new Layer("scribe", "Transcriber").setAlignment(Constants.ALIGNMENT_NONE)
+      .setPeers(false).setPeersOverlap(false).setSaturated(true),
+      new Layer("date", "Transcription date").setAlignment(Constants.ALIGNMENT_NONE)
+      .setPeers(false).setPeersOverlap(false).setSaturated(true),
+      new Layer("who", "Participants").setAlignment(Constants.ALIGNMENT_NONE)
+      .setPeers(true).setPeersOverlap(true).setSaturated(true),
+      new Layer("turn", "Speaker turns").setAlignment(Constants.ALIGNMENT_INTERVAL)
+      .setPeers(true).setPeersOverlap(false).setSaturated(false)
+      .setParentId("who").setParentIncludes(true),
+      new Layer("utterance", "Utterances").setAlignment(Constants.ALIGNMENT_INTERVAL)
+      .setPeers(true).setPeersOverlap(false).setSaturated(true)
+      .setParentId("turn").setParentIncludes(true),
+      new Layer("word", "Words").setAlignment(Constants.ALIGNMENT_INTERVAL)
+      .setPeers(true).setPeersOverlap(false).setSaturated(false)
+      .setParentId("turn").setParentIncludes(true));
+  } // end of CreateSchema()
+  
+  /** An instance that's not currently in use. */
+  static class Idle {
+    Transcriber transcriber;
+    long since = System.currentTimeMillis();
+    Idle(Transcriber transcriber) { this.transcriber = transcriber; }
+  }
+  
+  /**
+   * The directory containing the transcriber jar file, and working directories.
+   * @see #getTranscriberDir()
+   */
+  protected File transcriberDir;
+  /**
+   * Getter for {@link #transcriberDir}: The directory containing the transcriber jar file.
+   * @return The directory containing the transcriber jar file.
+   */
+  public File getTranscriberDir() { return transcriberDir; }
+  
+  /**
+   * The minimum number of instances to keep when evicting idle instances.
+   * @see #getMinSize()
+   * @see #setMinSize(int)
+   */
+  protected int minSize = 1;
+  /**
+   * Getter for {@link #minSize}: The minimum number of instances to keep.
+   * @return The minimum number of instances to keep.
+   */
+  public int getMinSize() { return minSize; }
+  /**
+   * Setter for {@link #minSize}: The minimum number of instances to keep.
+   * @param newMinSize The minimum number of instances to keep.
+   */
+  public TranscriberPool setMinSize(int newMinSize) { minSize = newMinSize; return this; }
+  
+  /**
+   * The maximum number of instances that can exist at once.
+   * @see #getMaxSize()
+   */
+  protected int maxSize;
+  /**
+   * Getter for {@link #maxSize}: The maximum number of instances that can exist at once.
+   * @return The maximum number of instances that can exist at once.
+   */
+  public int getMaxSize() { return maxSize; }
+  
+  /**
+   * How long an instance can be idle before it's evicted, in milliseconds.
+   * @see #getIdleMillis()
+   * @see #setIdleMillis(long)
+   */
+  protected long idleMillis = 1000 * 60 * 30; // 30 minutes
+  /**
+   * Getter for {@link #idleMillis}: How long an instance can be idle before it's evicted.
+   * @return How long an instance can be idle before it's evicted, in milliseconds.
+   */
+  public long getIdleMillis() { return idleMillis; }
+  /**
+   * Setter for {@link #idleMillis}: How long an instance can be idle before it's evicted.
+   * @param newIdleMillis How long an instance can be idle before it's evicted, in milliseconds.
+   */
+  public TranscriberPool setIdleMillis(long newIdleMillis) { idleMillis = newIdleMillis; return this; }
+
+  /** Where log messages go. */
+  protected Consumer<String> log;
+
+  /** Descriptor of the transcriber implementation, loaded when first needed. */
+  protected AnnotatorDescriptor descriptor;
+
+  /** The jar file of the transcriber implementation. */
+  protected File jar;
+
+  /** The sample rate the transcriber prefers, or -1 if not yet known. */
+  protected int preferredSampleRate = -1;
+  
+  /** Idle instances, most recently used first. */
+  protected LinkedBlockingDeque<Idle> idle = new LinkedBlockingDeque<Idle>();
+
+  /** Permits for instances that can be borrowed. */
+  protected Semaphore available;
+
+  /** The number of instances that currently exist. */
+  protected AtomicInteger liveCount = new AtomicInteger(0);
+
+  /** The thread started by {@link #warmUpInBackground()}, if any. */
+  protected Thread warmUpThread;
+
+  /** Whether the pool has been shut down. */
+  protected volatile boolean shutDown = false;
+
+  /**
+   * Constructor.
+   * @param transcriberDir The directory containing the transcriber jar file.
+   * @param maxSize The maximum number of instances that can exist at once.
+   * @param log Where log messages go.
+   */
+  public TranscriberPool(File transcriberDir, int maxSize, Consumer<String> log) {
+    this.transcriberDir = transcriberDir;
+    this.maxSize = Math.max(1, maxSize);
+    this.available = new Semaphore(this.maxSize, true);
+    this.log = log;
+  } // end of constructor
+
+  /**
+   * Gets the descriptor of the transcriber implementation, which is the first jar in
+   * {@link #transcriberDir}.
+   * @return The descriptor.
+   * @throws Exception If there is no transcriber jar, or it can't be loaded.
+   */
+  public synchronized AnnotatorDescriptor getDescriptor() throws Exception {
+    if (descriptor == null) {
+      File[] transcribers = transcriberDir.listFiles((File dir, String name)->{
+          return name.endsWith(".jar");
+        });
+      if (transcribers == null || transcribers.length == 0) {
+        throw new Exception("There are no transcribers in " + transcriberDir.getPath());
+      }
+      Arrays.sort(transcribers);
+      jar = transcribers[0];
+      descriptor = new AnnotatorDescriptor(jar);
+    }
+    return descriptor;
+  } // end of getDescriptor()
+
+  /**
+   * The ID of the transcriber implementation.
+   * @return The annotator ID of the transcriber.
+   * @throws Exception If the transcriber can't be loaded.
+   */
+  public String getAnnotatorId() throws Exception {
+    return getDescriptor().getAnnotatorId();
+  } // end of getAnnotatorId()
+
+  /**
+   * The version of the transcriber implementation.
+   * @return The version of the transcriber.
+   * @throws Exception If the transcriber can't be loaded.
+   */
+  public String getVersion() throws Exception {
+    return getDescriptor().getVersion();
+  } // end of getVersion()
+
+  /**
+   * The sample rate at which the transcriber prefers recordings, if it states one with
+   * an <tt>Audio-Sample-Rate</tt> attribute in the manifest of its jar file. Transcribers
+   * that state a rate are given 16-bit mono PCM recordings at that rate; others are given
+   * recordings as they were uploaded.
+   * @return The preferred sample rate in Hz, or 0 if the transcriber doesn't state one.
+   * @throws Exception If the transcriber can't be loaded.
+   */
+  public synchronized int getPreferredSampleRate() throws Exception {
+    if (preferredSampleRate < 0) {
+      getDescriptor(); // find the jar
+      preferredSampleRate = 0;
+      JarFile jarFile = new JarFile(jar);
+      try {
+        Manifest manifest = jarFile.getManifest();
+        String rate = manifest == null? null
+          : manifest.getMainAttributes().getValue("Audio-Sample-Rate");
+        if (rate != null) {
+          try {
+            preferredSampleRate = Math.max(0, Integer.parseInt(rate.trim()));
+          } catch (NumberFormatException x) {
+            log.accept("TranscriberPool: invalid Audio-Sample-Rate: " + rate);
+          }
+        }
+      } finally {
+        jarFile.close();
+      }
+    }
+    return preferredSampleRate;
+  } // end of getPreferredSampleRate()
+
+  /**
+   * Borrows a transcriber, waiting until one is available if necessary. The caller must
+   * pass it to {@link #giveBack(Transcriber)} or {@link #discard(Transcriber)} when
+   * finished.
+   * @return A configured transcriber.
+   * @throws InterruptedException If interrupted while waiting for a transcriber.
+   * @throws Exception If a new transcriber couldn't be created.
+   */
+  public Transcriber borrow() throws Exception {
+    if (shutDown) throw new IllegalStateException("TranscriberPool has been shut down");
+    available.acquire();
+    try {
+      Idle instance = idle.pollFirst();
+      if (instance != null) return instance.transcriber;
+      return create();
+    } catch (Exception x) {
+      available.release();
+      throw x;
+    }
+  } // end of borrow()
+
+  /**
+   * Returns a borrowed transcriber to the pool, for use by later jobs.
+   * @param transcriber
+   */
+  public void giveBack(Transcriber transcriber) {
+    if (shutDown) { // no one else will use it
+      discard(transcriber);
+      return;
+    }
+    idle.offerFirst(new Idle(transcriber));
+    available.release();
+  } // end of giveBack()
+
+  /**
+   * Discards a borrowed transcriber, e.g. because it failed and may be in an invalid state.
+   * @param transcriber
+   */
+  public void discard(Transcriber transcriber) {
+    liveCount.decrementAndGet();
+    available.release();
+  } // end of discard()
+
+  /**
+   * Ensures there are at least {@link #getMinSize()} instances ready for use, if they're
+   * not all borrowed already.
+   * <p> Each instance is created while holding a permit, the same as if it were being
+   * borrowed, so a job borrowing at the same time can't create another instance beyond
+   * {@link #getMaxSize()}; it waits for this one instead.
+   * @throws Exception If a transcriber couldn't be created.
+   */
+  public void warmUp() throws Exception {
+    while (idle.size() < minSize && liveCount.get() < maxSize
+           && !shutDown && !Thread.currentThread().isInterrupted()) {
+      if (!available.tryAcquire()) break; // all instances are in use or being created
+      try {
+        // a borrower may have created one while we were waiting
+        if (idle.size() >= minSize || liveCount.get() >= maxSize) break;
+        Transcriber transcriber = create();
+        if (shutDown) { // the pool was shut down while it was being created
+          liveCount.decrementAndGet();
+          break;
+        }
+        idle.offerLast(new Idle(transcriber));
+      } finally {
+        available.release();
+      }
+    } // next instance
+  } // end of warmUp()
+
+  /**
+   * Starts a thread that calls {@link #warmUp()}, so that the first job doesn't have to
+   * wait for a transcriber to be loaded. The thread is interrupted by {@link #shutdown()}.
+   * @return This pool.
+   */
+  public synchronized TranscriberPool warmUpInBackground() {
+    warmUpThread = new Thread(() -> {
+        try {
+          warmUp();
+        } catch (Exception x) {
+          log.accept("TranscriberPool: could not initialize transcriber: " + x);
+        }
+    }, "nzilbb.webscribe.TranscriberPool-warmUp");
+    warmUpThread.setDaemon(true);
+    warmUpThread.start();
+    return this;
+  } // end of warmUpInBackground()
+
+  /**
+   * Stops warming up, and discards idle instances. Instances that are currently borrowed
+   * are discarded when they're given back, and no more can be borrowed.
+   */
+  public void shutdown() {
+    shutDown = true;
+    synchronized (this) {
+      if (warmUpThread != null) warmUpThread.interrupt();
+    }
+    int count = 0;
+    Idle instance = idle.pollFirst();
+    while (instance != null) {
+      liveCount.decrementAndGet();
+      count++;
+      instance = idle.pollFirst();
+    } // next idle instance
+    if (count > 0) {
+      log.accept("TranscriberPool: discarded " + count + " idle instance(s)");
+    }
+  } // end of shutdown()
+
+  /**
+   * Discards instances that have been idle for longer than {@link #getIdleMillis()},
+   * retaining at least {@link #getMinSize()} idle instances.
+   * @return The number of instances discarded.
+   */
+  public int evictIdle() {
+    long cutoff = System.currentTimeMillis() - idleMillis;
+    int count = 0;
+    // least recently used instances are at the end
+    while (idle.size() > minSize) {
+      Idle oldest = idle.pollLast();
+      if (oldest == null) break;
+      if (oldest.since >= cutoff) { // not old enough, so no others are either
+        idle.offerLast(oldest);
+        break;
+      }
+      liveCount.decrementAndGet();
+      count++;
+    } // next idle instance
+    return count;
+  } // end of evictIdle()
+
+  /**
+   * The number of instances that currently exist.
+   * @return The number of idle or borrowed instances.
+   */
+  public int getLiveCount() {
+    return liveCount.get();
+  } // end of getLiveCount()
+
+  /**
+   * The number of instances that are not currently in use.
+   * @return The number of idle instances.
+   */
+  public int getIdleCount() {
+    return idle.size();
+  } // end of getIdleCount()
+
+  /**
+   * Creates and configures a new transcriber instance.
+   * @return The new transcriber.
+   * @throws Exception If the transcriber can't be instantiated.
+   */
+  protected Transcriber create() throws Exception {
+    AnnotatorDescriptor descriptor = getDescriptor();
+    Annotator annotator = descriptor.getInstance();
+    if (!(annotator instanceof Transcriber)) {
+      throw new Exception("Annotator: " + descriptor.getAnnotatorId() + " is not a transcriber");
+    }
+    Transcriber transcriber = (Transcriber)annotator;
+
+    // give the transcriber the resources it needs...
+    transcriber.setSchema(CreateSchema());
+    File workingDir = new File(transcriberDir, transcriber.getAnnotatorId());
+    if (!workingDir.exists()) workingDir.mkdir();
+    transcriber.setWorkingDirectory(workingDir);      
+    transcriber.getStatusObservers().add(s->log.accept(s));
+    
+    int live = liveCount.incrementAndGet();
+    log.accept("TranscriberPool: created " + transcriber.getAnnotatorId()
+               + " instance (" + live + " live)");
+    return transcriber;
+  } // end of create()
+  
+} // end of class TranscriberPool
@@ -23,8 +23,19 @@ package nzilbb.webscribe;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import javax.json.Json;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -42,17 +53,23 @@ import nzilbb.util.IO;
 import nzilbb.configure.ParameterSet;
 import java.util.Vector;
 import java.util.function.Consumer;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.zip.ZipOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 
 /**
- * Returns the status of a transcription job.
+ * Returns the transcript of a transcription job, in the format given by the "format"
+ * parameter.
+ * <p> If the "format" parameter is given more than once, the transcript is returned in
+ * all the given formats, as a single ZIP file. Formats that aren't already cached are
+ * serialized in parallel. If any formats can't be serialized, the ZIP file includes
+ * <tt>errors.txt</tt>, listing them.
+ * <p> Requests are handled asynchronously; serialization is done by the
+ * {@link AsyncResponder}, and the result is sent without blocking, so container threads
+ * are not held by slow serializers or slow clients.
  * @author Robert Fromont robert@fromont.net.nz
  */
-@WebServlet("/transcript/*")
+@WebServlet(urlPatterns = "/transcript/*", asyncSupported = true)
 public class Transcript extends ServletBase {
   /**
    * Default constructor.
@@ -69,84 +86,246 @@ public class Transcript extends ServletBase {
         || request.getPathInfo().equals("/")) {
       response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
       returnMessage("No Job ID specified.", response);
-    } else {
-      String suffix = request.getPathInfo().substring(1);
+      return;
+    }
+    String suffix = request.getPathInfo().substring(1);
+    long jobId = -1;
+    try {
+      jobId = Long.parseLong(suffix);
+    } catch(NumberFormatException exception) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("Invalid Job ID: " + suffix, response);
+      return;
+    }
+    log("Transcript: " + jobId);
+    final Job job = Job.FindJob(jobId);
+    if (job == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      returnMessage("Job not found: " + jobId, response);
+      return;
+    }
+    final Graph transcript = job.getTranscript();
+    if (transcript == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      if (job.getStatus() == null) {
+        returnMessage("No transcript for job " + jobId, response);
+      } else {
+        returnMessage("No transcript: " + job.getStatus(), response);
+      }
+      return;
+    }
+    final String mimeType = request.getParameter("format");
+    if (mimeType == null) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("No format specified.", response);
+      return;
+    }
+    Set<String> mimeTypes = new LinkedHashSet<String>(
+      Arrays.asList(request.getParameterValues("format")));
+    if (mimeTypes.size() > 1) {
+      SerializerRegistry serializers = SerializerRegistry.From(getServletContext());
+      for (String format : mimeTypes) {
+        if (!serializers.hasFormat(format)) {
+          response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+          returnMessage("Unknown format: " + format, response);
+          return;
+        }
+      } // next format
+      sendFormats(job, transcript, new Vector<String>(mimeTypes), request, response);
+      return;
+    }
+
+    // has it already been serialized?
+    final TranscriptCache cache = TranscriptCache.From(getServletContext());
+    TranscriptCache.Entry cached = cache.get(jobId, mimeType);
+    if (cached != null) {
       try {
-        long jobId = Long.parseLong(suffix);
-        log("Transcript: " + jobId);
-        Job job = Job.FindJob(jobId);
-        if (job == null) {
-          response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-          returnMessage("Job not found: " + jobId, response);
-        } else if (job.getTranscript() == null) {
-          response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-          if (job.getTranscriber() == null) {
-            returnMessage("No transcript for job " + jobId, response);
-          } else {
-            returnMessage("No transcript: " + job.getTranscriber().getStatus(), response);
-          }
-        } else {
+        InputStream cachedData = cached.open();
+        response.setContentType(cached.getContentType());
+        response.addHeader(
+          "Content-Disposition", "attachment; filename=" + cached.getName());
+        AsyncResponder.Send(request.startAsync(), cachedData);
+        return;
+      } catch (IOException x) { // evicted since we looked it up
+      }
+    }
 
-          String mimeType = request.getParameter("format");
-          if (mimeType == null) {
-            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-            returnMessage("No format specified.", response);
-          } else {
-            SerializeService serialization = new SerializeService(getServletContext());
+    // serialize it on a responder thread, so that this thread is free for other requests
+    final AsyncContext async = request.startAsync();
+    async.setTimeout(0); // the serializer may take a while
+    final SerializeService serialization = new SerializeService(getServletContext());
+    try {
+      AsyncResponder.From(getServletContext()).execute(() -> {
+          try {
             try {
-              NamedStream stream = serialization.serialize(job.getTranscript(), mimeType);
-              if (stream.getName().endsWith(".zip")) {
-                response.setContentType("application/zip");
-              } else {
-                response.setContentType(mimeType);
-              }
-              response.addHeader(
+              SerializeService.Serialization stream
+                = serialization.serialize(transcript, mimeType);
+              HttpServletResponse asyncResponse = (HttpServletResponse)async.getResponse();
+              asyncResponse.setContentType(stream.getContentType());
+              asyncResponse.addHeader(
                 "Content-Disposition", "attachment; filename=" + stream.getName());
-              // send headers immediately, so that the browser shows the 'save' prompt
-              response.getOutputStream().flush();
-              // send data...
-              IO.Pump(stream.getStream(), response.getOutputStream());
+              // send it only as fast as the client can take it, without holding it all
+              // in memory, but keep a copy for next time if it's small enough to cache
+              TranscriptCache.Recorder body = cache.record(
+                job.getId(), mimeType, stream.getName(), stream.getContentType(),
+                AsyncResponder.Stream(async));
+              try {
+                stream.writeTo(body);
+                body.close();
+                body.commit();
+              } catch (IOException x) { // it's too late to send an error
+                log("Transcript " + job.getId() + " " + mimeType + ": " + x);
+                try {
+                  async.complete();
+                } catch (IllegalStateException alreadyComplete) { // the client went away
+                }
+              }
             } catch (NullPointerException npe) {
-              response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-              returnMessage(""+npe.getMessage(), response);
+              returnMessage(HttpServletResponse.SC_NOT_FOUND, ""+npe.getMessage(), async);
+            } catch (Exception x) {
+              log("Transcript " + job.getId() + " " + mimeType + ": " + x);
+              returnMessage(
+                HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "ERROR: " + x, async);
             }
-          } // mimeType set
-        } // job found
-      } catch(Exception exception) {
-        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        returnMessage("Invalid Job ID: " + suffix, response);
-      }
+          } catch (IOException x) { // can't even send an error
+            log("Transcript " + job.getId() + ": " + x);
+            async.complete();
+          }
+        });
+    } catch (RejectedExecutionException x) {
+      returnMessage(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Too many downloads in progress; please try again later.", async);
     }
   }
-  
+
   /**
-   * Finds the serializer that outputs the given format.
-   * @param mimeType
-   * @return The serializer, or null if it couldn't be found.
+   * Sends the given transcript in several formats, as a single ZIP file.
+   * @param job The job the transcript is from.
+   * @param transcript The transcript.
+   * @param mimeTypes The formats, which are all known to the {@link SerializerRegistry}.
+   * @param request
+   * @param response
+   * @throws IOException
    */
-  protected GraphSerializer findSerializer(String mimeType) throws Exception {
-    if ("application/json".equals(mimeType)) {
-      return new nzilbb.ag.serialize.json.JSONSerialization();
+  protected void sendFormats(
+    final Job job, final Graph transcript, final List<String> mimeTypes,
+    HttpServletRequest request, HttpServletResponse response) throws IOException {
+    log("Transcript: " + job.getId() + " " + mimeTypes);
+    final AsyncContext async = request.startAsync();
+    async.setTimeout(0); // the serializers may take a while
+    final TranscriptCache cache = TranscriptCache.From(getServletContext());
+    final SerializeService serialization = new SerializeService(getServletContext());
+    final AsyncResponder responder = AsyncResponder.From(getServletContext());
+    try {
+      responder.execute(() -> {
+          // use cached serializations where possible, and start serializing the other
+          // formats all at once...
+          Map<String,TranscriptCache.Entry> cached
+            = new HashMap<String,TranscriptCache.Entry>();
+          List<String> uncached = new Vector<String>();
+          for (String mimeType : mimeTypes) {
+            TranscriptCache.Entry entry = cache.get(job.getId(), mimeType);
+            if (entry != null) {
+              cached.put(mimeType, entry);
+            } else {
+              uncached.add(mimeType);
+            }
+          } // next format
+          List<Future<SerializeService.Serialization>> serializations
+            = serialization.serializeAll(transcript, uncached, responder::help);
+          int nextSerialization = 0;
+
+          // ...and stream them into the ZIP file in the order requested, as fast as the
+          // client can take them, waiting for each serializer in turn
+          try {
+            HttpServletResponse asyncResponse = (HttpServletResponse)async.getResponse();
+            asyncResponse.setContentType("application/zip");
+            asyncResponse.addHeader(
+              "Content-Disposition",
+              "attachment; filename=" + IO.SafeFileNameUrl(transcript.getId()) + ".zip");
+            ZipOutputStream zip = new ZipOutputStream(AsyncResponder.Stream(async));
+            Set<String> entryNames = new HashSet<String>();
+            StringBuilder errors = new StringBuilder();
+            for (String mimeType : mimeTypes) {
+              TranscriptCache.Entry entry = cached.get(mimeType);
+              InputStream data = null;
+              if (entry != null) {
+                try {
+                  data = entry.open();
+                } catch (IOException x) { // evicted since we looked it up
+                }
+              }
+              if (data != null) {
+                zip.putNextEntry(new ZipEntry(entryName(entry.getName(), entryNames)));
+                try {
+                  IO.Pump(data, zip, false);
+                } finally {
+                  data.close();
+                }
+                zip.closeEntry();
+                continue;
+              }
+              
+              SerializeService.Serialization stream = null;
+              try {
+                if (entry == null) {
+                  stream = serializations.get(nextSerialization++).get();
+                } else { // it was evicted, so serialize it now
+                  stream = serialization.serialize(transcript, mimeType);
+                }
+              } catch (Exception x) {
+                Throwable error = x instanceof ExecutionException? x.getCause() : x;
+                log("Transcript " + job.getId() + " " + mimeType + ": " + error);
+                errors.append(mimeType).append("\tERROR: ")
+                  .append(error.getMessage()).append("\r\n");
+                continue;
+              }
+              zip.putNextEntry(new ZipEntry(entryName(stream.getName(), entryNames)));
+              // keep a copy for next time, if it's small enough to cache
+              TranscriptCache.Recorder recorder = cache.record(
+                job.getId(), mimeType, stream.getName(), stream.getContentType(), zip);
+              stream.writeTo(recorder);
+              recorder.commit();
+              zip.closeEntry();
+            } // next format
+            if (errors.length() > 0) {
+              zip.putNextEntry(new ZipEntry("errors.txt"));
+              zip.write(errors.toString().getBytes("UTF-8"));
+              zip.closeEntry();
+            }
+            zip.close();
+          } catch (IOException x) { // e.g. the client went away; it's too late for an error
+            log("Transcript " + job.getId() + ": " + x);
+            // release the serializations that won't be written
+            for (int s = nextSerialization; s < serializations.size(); s++) {
+              try {
+                serializations.get(s).get().close();
+              } catch (Exception exception) {
+              }
+            } // next unwritten serialization
+            try {
+              async.complete();
+            } catch (IllegalStateException alreadyComplete) {
+            }
+          }
+        });
+    } catch (RejectedExecutionException x) {
+      returnMessage(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Too many downloads in progress; please try again later.", async);
     }
-    // get a list of serializers
-    File serializerDir = new File(getServletContext().getRealPath("formatter"));
-    File[] serializers = serializerDir.listFiles((File dir, String name)->{
-        return name.endsWith(".jar");
-      });
-    for (File jar : serializers) {
-      Vector implementors = IO.FindImplementorsInJar(
-        jar, getClass().getClassLoader(), 
-        Class.forName("nzilbb.ag.serialize.GraphSerializer"));
-      for (Object o : implementors) {
-        GraphSerializer serializer = (GraphSerializer)o;
-        SerializationDescriptor descriptor = serializer.getDescriptor();
-        if (descriptor.getMimeType().equals(mimeType)) {
-          return serializer;
-        }
-      } // next serializer
-    } // next jar file
-    // if we got this far, we didn't find it
-    return null;
-  } // end of findSerializer()
+  } // end of sendFormats()
+
+  /**
+   * Ensures the name of a ZIP entry isn't already used, e.g. by two formats that both
+   * produce .txt files, by prefixing a number if necessary.
+   * @param name The name of the file.
+   * @param names The names used so far, to which the result is added.
+   * @return A name that is not already in <var>names</var>.
+   */
+  protected String entryName(String name, Set<String> names) {
+    String entryName = name;
+    for (int n = 2; !names.add(entryName); n++) entryName = n + "-" + name;
+    return entryName;
+  } // end of entryName()
 
 }
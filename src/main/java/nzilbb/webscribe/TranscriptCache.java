@@ -0,0 +1,439 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.servlet.ServletContext;
+
+/**
+ * Cache of serialized transcripts, keyed by job ID and MIME type.
+ * <p> Serialized transcripts are kept in memory up to a total of {@link #getMaxBytes()}
+ * bytes. When this budget is exceeded, the least recently used entries are evicted. If
+ * {@link #getSpillDir()} is set, evicted entries are written to files in that directory
+ * (up to a total of {@link #getMaxSpillBytes()} bytes), and served from there until
+ * they in turn are evicted.
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class TranscriptCache {
+
+  /**
+   * Gets the transcript cache for the given web application.
+   * @param context The servlet context.
+   * @return The cache created by {@link ContextListener}, or null if there is none.
+   */
+  public static TranscriptCache From(ServletContext context) {
+    return (TranscriptCache)context.getAttribute(TranscriptCache.class.getName());
+  } // end of From()
+
+  /** A cached serialized transcript. */
+  public static class Entry {
+    String key;
+    String name;
+    String contentType;
+    volatile byte[] data;
+    volatile File file;
+    long size;
+    Entry(String key, String name, String contentType, byte[] data) {
+      this.key = key;
+      this.name = name;
+      this.contentType = contentType;
+      this.data = data;
+      this.size = data.length;
+    }
+    /**
+     * The file name of the transcript.
+     * @return The file name.
+     */
+    public String getName() { return name; }
+    /**
+     * The content type of the transcript.
+     * @return The content type.
+     */
+    public String getContentType() { return contentType; }
+    /**
+     * The size of the transcript.
+     * @return The number of bytes.
+     */
+    public long getSize() { return size; }
+    /**
+     * Opens the transcript for reading.
+     * @return A stream of the transcript data.
+     * @throws IOException If the entry was spilled to a file that has since been evicted.
+     */
+    public InputStream open() throws IOException {
+      byte[] data = this.data;
+      if (data != null) return new ByteArrayInputStream(data);
+      return new FileInputStream(file);
+    }
+  }
+
+  /**
+   * An output stream that passes data through to another stream, and also records it so
+   * that it can be added to the cache with {@link #commit()}.
+   */
+  public class Recorder extends FilterOutputStream {
+    String key;
+    String name;
+    String contentType;
+    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    Recorder(String key, String name, String contentType, OutputStream out) {
+      super(out);
+      this.key = key;
+      this.name = name;
+      this.contentType = contentType;
+    }
+    @Override public void write(int b) throws IOException {
+      out.write(b);
+      if (copy != null) {
+        copy.write(b);
+        checkSize();
+      }
+    }
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      if (copy != null) {
+        copy.write(b, off, len);
+        checkSize();
+      }
+    }
+    void checkSize() {
+      if (copy.size() > maxEntryBytes) copy = null; // too big to cache
+    }
+    /**
+     * Adds everything written so far to the cache. This should be called only once all
+     * the data has been written successfully.
+     */
+    public void commit() {
+      if (copy != null) {
+        put(new Entry(key, name, contentType, copy.toByteArray()));
+        copy = null;
+      }
+    }
+  }
+  
+  /**
+   * Maximum total size of transcripts cached in memory.
+   * @see #getMaxBytes()
+   */
+  protected long maxBytes;
+  /**
+   * Getter for {@link #maxBytes}: Maximum total size of transcripts cached in memory.
+   * @return Maximum total size of transcripts cached in memory.
+   */
+  public long getMaxBytes() { return maxBytes; }
+  
+  /**
+   * Maximum size of a single cached transcript.
+   * @see #getMaxEntryBytes()
+   * @see #setMaxEntryBytes(long)
+   */
+  protected long maxEntryBytes;
+  /**
+   * Getter for {@link #maxEntryBytes}: Maximum size of a single cached transcript.
+   * @return Maximum size of a single cached transcript.
+   */
+  public long getMaxEntryBytes() { return maxEntryBytes; }
+  /**
+   * Setter for {@link #maxEntryBytes}: Maximum size of a single cached transcript.
+   * @param newMaxEntryBytes Maximum size of a single cached transcript.
+   */
+  public TranscriptCache setMaxEntryBytes(long newMaxEntryBytes) { maxEntryBytes = newMaxEntryBytes; return this; }
+  
+  /**
+   * Directory for transcripts evicted from memory, or null if they're discarded.
+   * @see #getSpillDir()
+   * @see #setSpillDir(File)
+   */
+  protected File spillDir;
+  /**
+   * Getter for {@link #spillDir}: Directory for transcripts evicted from memory.
+   * @return Directory for transcripts evicted from memory, or null if they're discarded.
+   */
+  public File getSpillDir() { return spillDir; }
+  /**
+   * Setter for {@link #spillDir}: Directory for transcripts evicted from memory.
+   * @param newSpillDir Directory for transcripts evicted from memory, or null to discard them.
+   */
+  public TranscriptCache setSpillDir(File newSpillDir) {
+    spillDir = newSpillDir;
+    if (spillDir != null) {
+      spillDir.mkdirs();
+      // anything there is left over from a previous run
+      File[] files = spillDir.listFiles();
+      if (files != null) for (File file : files) file.delete();
+    }
+    return this;
+  }
+  
+  /**
+   * Maximum total size of transcripts in {@link #spillDir}.
+   * @see #getMaxSpillBytes()
+   * @see #setMaxSpillBytes(long)
+   */
+  protected long maxSpillBytes = 0;
+  /**
+   * Getter for {@link #maxSpillBytes}: Maximum total size of transcripts in {@link #spillDir}.
+   * @return Maximum total size of transcripts in {@link #spillDir}.
+   */
+  public long getMaxSpillBytes() { return maxSpillBytes; }
+  /**
+   * Setter for {@link #maxSpillBytes}: Maximum total size of transcripts in {@link #spillDir}.
+   * @param newMaxSpillBytes Maximum total size of transcripts in {@link #spillDir}.
+   */
+  public TranscriptCache setMaxSpillBytes(long newMaxSpillBytes) { maxSpillBytes = newMaxSpillBytes; return this; }
+
+  /** Where log messages go. */
+  protected Consumer<String> log;
+  
+  /** Transcripts in memory, least recently used first. */
+  protected LinkedHashMap<String,Entry> memory = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+  /** Total size of {@link #memory} entries. */
+  protected long memoryBytes = 0;
+  
+  /** Transcripts in {@link #spillDir}, least recently used first. */
+  protected LinkedHashMap<String,Entry> disk = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+
+  /** Total size of {@link #disk} entries. */
+  protected long diskBytes = 0;
+
+  /**
+   * Entries evicted from {@link #memory} that are being written to {@link #spillDir}.
+   * They're only added to {@link #disk} if they're still here once written, i.e. if
+   * they haven't been {@link #invalidate(long) invalidated} meanwhile.
+   */
+  protected HashSet<Entry> spilling = new HashSet<Entry>();
+
+  /** Number of lookups that found a transcript. */
+  protected AtomicLong hits = new AtomicLong(0);
+
+  /** Number of lookups that didn't find a transcript. */
+  protected AtomicLong misses = new AtomicLong(0);
+
+  /** Source of unique spill file names. */
+  protected AtomicLong nextFileId = new AtomicLong(0);
+  
+  /**
+   * Constructor.
+   * @param maxBytes Maximum total size of transcripts cached in memory.
+   * @param log Where log messages go.
+   */
+  public TranscriptCache(long maxBytes, Consumer<String> log) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxBytes / 4;
+    this.log = log;
+  } // end of constructor
+
+  /**
+   * Looks up a transcript.
+   * @param jobId
+   * @param mimeType
+   * @return The cached transcript, or null if it's not cached.
+   */
+  public synchronized Entry get(long jobId, String mimeType) {
+    String key = Key(jobId, mimeType);
+    Entry entry = memory.get(key);
+    if (entry == null) entry = disk.get(key);
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return entry;
+  } // end of get()
+
+  /**
+   * Creates a stream that writes to the given stream, and can also add the data
+   * written to the cache.
+   * @param jobId
+   * @param mimeType The requested MIME type.
+   * @param name The file name of the transcript.
+   * @param contentType The content type of the data.
+   * @param out The stream to pass data to.
+   * @return A stream whose {@link Recorder#commit()} method adds the data to the cache.
+   */
+  public Recorder record(
+    long jobId, String mimeType, String name, String contentType, OutputStream out) {
+    return new Recorder(Key(jobId, mimeType), name, contentType, out);
+  } // end of record()
+
+  /**
+   * Adds a transcript that has already been serialized to the cache.
+   * @param jobId
+   * @param mimeType The requested MIME type.
+   * @param name The file name of the transcript.
+   * @param contentType The content type of the data.
+   * @param data The serialized transcript.
+   */
+  public void add(long jobId, String mimeType, String name, String contentType, byte[] data) {
+    put(new Entry(Key(jobId, mimeType), name, contentType, data));
+  } // end of add()
+
+  /**
+   * Removes all transcripts for the given job.
+   * @param jobId
+   */
+  public synchronized void invalidate(long jobId) {
+    String prefix = jobId + "\t";
+    Iterator<Map.Entry<String,Entry>> entries = memory.entrySet().iterator();
+    while (entries.hasNext()) {
+      Entry entry = entries.next().getValue();
+      if (entry.key.startsWith(prefix)) {
+        memoryBytes -= entry.size;
+        entries.remove();
+      }
+    } // next memory entry
+    entries = disk.entrySet().iterator();
+    while (entries.hasNext()) {
+      Entry entry = entries.next().getValue();
+      if (entry.key.startsWith(prefix)) {
+        diskBytes -= entry.size;
+        entry.file.delete();
+        entries.remove();
+      }
+    } // next disk entry
+    spilling.removeIf(entry -> entry.key.startsWith(prefix));
+  } // end of invalidate()
+
+  /**
+   * Number of lookups that found a transcript.
+   * @return The number of cache hits.
+   */
+  public long getHits() {
+    return hits.get();
+  } // end of getHits()
+
+  /**
+   * Number of lookups that didn't find a transcript.
+   * @return The number of cache misses.
+   */
+  public long getMisses() {
+    return misses.get();
+  } // end of getMisses()
+
+  /**
+   * Total size of transcripts cached in memory.
+   * @return The number of bytes used.
+   */
+  public synchronized long getMemoryBytes() {
+    return memoryBytes;
+  } // end of getMemoryBytes()
+
+  /**
+   * Adds an entry to the cache, evicting others if necessary. Evicted entries are
+   * {@link #spill(Entry) spilled} once the cache is unlocked, so lookups don't wait for
+   * them to be written.
+   * @param entry
+   */
+  protected void put(Entry entry) {
+    if (entry.size > maxEntryBytes) return;
+    Vector<Entry> evicted = new Vector<Entry>();
+    synchronized (this) {
+      Entry previous = memory.put(entry.key, entry);
+      if (previous != null) memoryBytes -= previous.size;
+      memoryBytes += entry.size;
+      Iterator<Entry> lru = memory.values().iterator();
+      while (memoryBytes > maxBytes && lru.hasNext()) {
+        Entry oldest = lru.next();
+        lru.remove();
+        memoryBytes -= oldest.size;
+        if (spillDir != null && oldest.size <= maxSpillBytes) {
+          spilling.add(oldest);
+          evicted.add(oldest);
+        }
+      } // next least recently used entry
+    }
+    for (Entry oldest : evicted) spill(oldest);
+  } // end of put()
+
+  /**
+   * Writes an entry evicted from memory to {@link #spillDir}, and then adds it to
+   * {@link #disk}, evicting older spilled entries if necessary. This must be called
+   * without holding the cache's lock.
+   * @param entry
+   */
+  protected void spill(Entry entry) {
+    File file = new File(spillDir, nextFileId.incrementAndGet() + ".cache");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        out.write(entry.data);
+      } finally {
+        out.close();
+      }
+    } catch (IOException x) {
+      log.accept("TranscriptCache: could not spill " + entry.name + ": " + x);
+      file.delete();
+      synchronized (this) {
+        spilling.remove(entry);
+      }
+      return;
+    }
+    synchronized (this) {
+      if (!spilling.remove(entry)) { // invalidated while it was being written
+        file.delete();
+        return;
+      }
+      entry.file = file;
+      entry.data = null;
+      Entry previous = disk.put(entry.key, entry);
+      if (previous != null) {
+        diskBytes -= previous.size;
+        previous.file.delete();
+      }
+      diskBytes += entry.size;
+      Iterator<Entry> lru = disk.values().iterator();
+      while (diskBytes > maxSpillBytes && lru.hasNext()) {
+        Entry oldest = lru.next();
+        lru.remove();
+        diskBytes -= oldest.size;
+        oldest.file.delete();
+      } // next least recently used entry
+    }
+  } // end of spill()
+
+  /**
+   * Generates the key for the given job and MIME type.
+   * @param jobId
+   * @param mimeType
+   * @return The cache key.
+   */
+  static String Key(long jobId, String mimeType) {
+    return jobId + "\t" + mimeType;
+  } // end of Key()
+  
+} // end of class TranscriptCache
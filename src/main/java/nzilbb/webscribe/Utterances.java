@@ -0,0 +1,129 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour, 
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Returns the utterances transcribed so far by a job, including while it's running.
+ * <p> The URL path is formatted <tt>utterances/<var>jobId</var></tt>, and the optional
+ * "since" parameter is a cursor returned by a previous request, so that only utterances
+ * added since then are returned. The response is a JSON object with the following
+ * attributes:
+ * <dl>
+ *  <dt>utterances</dt>
+ *   <dd> An array of objects with "start" and "end" times in seconds, "participant", and
+ *    "text" attributes, in order. </dd>
+ *  <dt>cursor</dt>
+ *   <dd> The value of "since" for the next request. </dd>
+ *  <dt>complete</dt>
+ *   <dd> true if there will be no more utterances, false if there may be. </dd>
+ *  <dt>running</dt>
+ *   <dd> true until the job is finished. </dd>
+ * </dl>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+@WebServlet(urlPatterns = "/utterances/*", asyncSupported = true)
+public class Utterances extends ServletBase {
+  /**
+   * Default constructor.
+   */
+  public Utterances() {
+  } // end of constructor
+  
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    if (request.getPathInfo() == null        
+        || !request.getPathInfo().startsWith("/")
+        || request.getPathInfo().equals("/")) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("No Job ID specified.", response);
+      return;
+    }
+    String suffix = request.getPathInfo().substring(1);
+    long jobId = -1;
+    try {
+      jobId = Long.parseLong(suffix);
+    } catch(NumberFormatException exception) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      returnMessage("Invalid Job ID: " + suffix, response);
+      return;
+    }
+    int since = 0;
+    if (request.getParameter("since") != null) {
+      try {
+        since = Integer.parseInt(request.getParameter("since"));
+      } catch(NumberFormatException exception) {
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        returnMessage("Invalid cursor: " + request.getParameter("since"), response);
+        return;
+      }
+    }
+    Job job = Job.FindJob(jobId);
+    if (job == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      returnMessage("Job not found: " + jobId, response);
+      return;
+    }
+
+    // check whether the job is done before taking the snapshot, so "complete" is reliable
+    boolean running = !job.isDone();
+    PartialTranscript partial = job.getPartialTranscript();
+    boolean complete = partial.isComplete();
+    List<PartialTranscript.Utterance> utterances = partial.since(since);
+    StringWriter writer = new StringWriter();
+    JsonGenerator json = Json.createGenerator(writer).writeStartObject()
+      .writeStartArray("utterances");
+    for (PartialTranscript.Utterance utterance : utterances) {
+      json.writeStartObject()
+        .write("start", utterance.getStart())
+        .write("end", utterance.getEnd());
+      if (utterance.getParticipant() == null) {
+        json.writeNull("participant");
+      } else {
+        json.write("participant", utterance.getParticipant());
+      }
+      json.write("text", utterance.getText())
+        .writeEnd();
+    } // next utterance
+    json.writeEnd()
+      .write("cursor", Math.max(0, Math.min(since, partial.size())) + utterances.size())
+      .write("complete", complete || !running)
+      .write("running", running)
+      .writeEnd()
+      .close();
+    response.setContentType("application/json;charset=UTF-8");
+    // send without blocking, in case the client is slow
+    AsyncResponder.Send(request.startAsync(), writer.toString().getBytes("UTF-8"));
+  }
+  
+} // end of class Utterances
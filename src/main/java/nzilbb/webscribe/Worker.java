@@ -0,0 +1,262 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Command line utility that transcribes jobs queued by the web application in a shared
+ * {@link Spool} directory.
+ * <p> This allows transcription to be spread across several processes or machines: the
+ * web application's <tt>SpoolDirectory</tt> parameter is set, and the web application
+ * only queues jobs and serves their transcripts, while any number of workers, which
+ * share the spool directory, claim and transcribe jobs. Workers can be started and
+ * stopped at any time; a job claimed by a worker that dies is returned to the queue once
+ * its heartbeat stops.
+ * <p> The worker uses the transcriber installed in the web application, so it's run from
+ * the web application directory, e.g.
+ * <p><tt>
+ * cd /var/lib/tomcat/webapps/webscribe <br>
+ * java -cp "WEB-INF/classes:WEB-INF/lib/*" nzilbb.webscribe.Worker --spool=/srv/webscribe-spool
+ * </tt>
+ * <p> Options:
+ * <dl>
+ *  <dt>--spool=<var>dir</var></dt>
+ *   <dd>The spool directory shared with the web application (required).</dd>
+ *  <dt>--transcriber=<var>dir</var></dt>
+ *   <dd>The directory containing the transcriber (default <tt>transcriber</tt>).</dd>
+ *  <dt>--jobs=<var>n</var></dt>
+ *   <dd>The number of jobs this worker transcribes at once (default 1).</dd>
+ *  <dt>--transcribers=<var>n</var></dt>
+ *   <dd>The maximum number of transcriber instances, for transcribing segments of long
+ *    recordings in parallel (default the number of jobs).</dd>
+ *  <dt>--name=<var>name</var></dt>
+ *   <dd>The name of the worker, recorded with the jobs it claims (default
+ *    <var>pid</var>@<var>host</var>).</dd>
+ * </dl>
+ * @author Robert Fromont robert@fromont.net.nz
+ */
+public class Worker {
+
+  /** The spool from which jobs are claimed. */
+  protected Spool spool;
+
+  /** The transcribers used for jobs. */
+  protected TranscriberPool transcriberPool;
+
+  /** The name of this worker. */
+  protected String name;
+
+  /** Jobs that this worker has claimed and not yet finished, keyed by directory. */
+  protected Map<File,Job> claimed = new ConcurrentHashMap<File,Job>();
+
+  /** Whether the worker should claim more jobs. */
+  protected volatile boolean running = true;
+
+  /**
+   * Constructor.
+   * @param spool The spool from which jobs are claimed.
+   * @param transcriberPool The transcribers used for jobs.
+   * @param name The name of this worker.
+   */
+  public Worker(Spool spool, TranscriberPool transcriberPool, String name) {
+    this.spool = spool;
+    this.transcriberPool = transcriberPool;
+    this.name = name;
+  } // end of constructor
+
+  /**
+   * Starts the given number of threads that claim and transcribe jobs, and touches the
+   * heartbeats of claimed jobs until the worker is {@link #stop()}ped.
+   * @param jobs The number of jobs that can be transcribed at once.
+   * @return This worker.
+   */
+  public Worker start(int jobs) {
+    Timer heartbeat = new Timer("nzilbb.webscribe.Worker-heartbeat", true);
+    heartbeat.schedule(new TimerTask() {
+        public void run() {
+          for (File dir : claimed.keySet()) {
+            try {
+              if (!spool.heartbeat(dir)) {
+                // its claim is gone, so whatever it produces will be discarded
+                System.err.println("Job " + dir.getName() + " was returned to the queue");
+                claimed.remove(dir);
+              }
+            } catch (Exception x) {
+              System.err.println("Heartbeat failed for job " + dir.getName() + ": " + x);
+            }
+          } // next claimed job
+        }
+      }, spool.getStaleMillis() / 4, spool.getStaleMillis() / 4);
+    for (int t = 0; t < jobs; t++) {
+      new Thread(() -> {
+          while (running) {
+            File dir = spool.claim(name);
+            if (dir == null) { // nothing to do yet
+              try {
+                Thread.sleep(spool.getPollMillis());
+              } catch (InterruptedException x) {
+                break;
+              }
+            } else {
+              transcribe(dir);
+            }
+          } // next job
+        }, "nzilbb.webscribe.Worker-" + t).start();
+    } // next thread
+    return this;
+  } // end of start()
+
+  /**
+   * Transcribes a claimed job, and records its outcome in the spool.
+   * @param dir The directory of the claimed job.
+   */
+  protected void transcribe(final File dir) {
+    try {
+      Job job = spool.load(dir).setTranscriberPool(transcriberPool);
+      claimed.put(dir, job);
+      if (!(""+transcriberPool.getAnnotatorId()).equals(job.getTranscriberId())
+          || !(""+transcriberPool.getVersion()).equals(job.getTranscriberVersion())) {
+        System.err.println(
+          "Job " + job.getId() + " is for " + job.getTranscriberId()
+          + " v" + job.getTranscriberVersion() + " but transcribing with "
+          + transcriberPool.getAnnotatorId() + " v" + transcriberPool.getVersion());
+        job.setTranscriberId(transcriberPool.getAnnotatorId())
+          .setTranscriberVersion(transcriberPool.getVersion());
+      }
+      System.out.println("Transcribing job " + job.getId());
+      final long[] lastProgress = { 0 };
+      job.getChangeObservers().add(j -> {
+          // the web application checks about once a second, so don't write more than that
+          long now = System.currentTimeMillis();
+          if (now - lastProgress[0] < spool.getPollMillis()) return;
+          lastProgress[0] = now;
+          try {
+            spool.progress(dir, j.getPercentComplete(), j.getStatus());
+          } catch (Exception x) {
+          }
+        });
+      job.run();
+      boolean finished = job.getState() == Job.State.Finished;
+      // the web application adds its own "Error: " prefix
+      String error = finished? null : job.getStatus().replaceFirst("^Error: ", "");
+      if (spool.complete(dir, finished? job.getTranscript() : null, error)) {
+        System.out.println("Job " + job.getId() + ": " + job.getStatus());
+      } else {
+        System.err.println("Job " + job.getId() + " was claimed again before it finished");
+      }
+    } catch (Throwable x) {
+      System.err.println("Could not transcribe job " + dir.getName() + ": " + x);
+      try {
+        spool.complete(dir, null, x.getMessage());
+      } catch (Exception exception) {
+      }
+    } finally {
+      claimed.remove(dir);
+    }
+  } // end of transcribe()
+
+  /**
+   * Stops claiming jobs, and returns jobs that haven't been transcribed yet to the
+   * queue, so that other workers can transcribe them.
+   */
+  public void stop() {
+    running = false;
+    for (Map.Entry<File,Job> entry : claimed.entrySet()) {
+      File dir = entry.getKey();
+      // if the recording's gone, the transcript is about to be written
+      if (entry.getValue().getWav().exists() && spool.release(dir)) {
+        System.out.println("Returned job " + dir.getName() + " to the queue");
+      }
+    } // next claimed job
+  } // end of stop()
+
+  public static void main(String argv[]) {
+    String spoolDirectory = null;
+    String transcriberDirectory = "transcriber";
+    int jobs = 1;
+    int transcribers = 0;
+    String name = ManagementFactory.getRuntimeMXBean().getName(); // pid@host
+    for (String arg : argv) {
+      int equals = arg.indexOf('=');
+      String option = equals < 0? arg : arg.substring(0, equals);
+      String value = equals < 0? "" : arg.substring(equals + 1);
+      try {
+        if (option.equals("--spool")) {
+          spoolDirectory = value;
+        } else if (option.equals("--transcriber")) {
+          transcriberDirectory = value;
+        } else if (option.equals("--jobs")) {
+          jobs = Integer.parseInt(value);
+        } else if (option.equals("--transcribers")) {
+          transcribers = Integer.parseInt(value);
+        } else if (option.equals("--name")) {
+          name = value;
+        } else {
+          System.err.println("Unknown option: " + arg);
+          System.exit(1);
+          return;
+        }
+      } catch (NumberFormatException x) {
+        System.err.println("Invalid value for " + option + ": " + value);
+        System.exit(1);
+        return;
+      }
+    } // next argument
+    if (spoolDirectory == null || spoolDirectory.length() == 0) {
+      System.err.println("Usage: java -cp \"WEB-INF/classes:WEB-INF/lib/*\" "
+                         + Worker.class.getName()
+                         + " --spool=dir [--transcriber=dir] [--jobs=n]"
+                         + " [--transcribers=n] [--name=name]");
+      System.exit(1);
+      return;
+    }
+
+    TranscriberPool transcriberPool = new TranscriberPool(
+      new File(transcriberDirectory), Math.max(transcribers, jobs),
+      message -> System.err.println(message));
+    try {
+      System.out.println(
+        "Worker " + name + ": " + transcriberPool.getAnnotatorId()
+        + " v" + transcriberPool.getVersion() + " - " + jobs + " job(s) at once");
+      transcriberPool.warmUp();
+    } catch (Exception x) {
+      System.err.println("Could not initialize transcriber: " + x);
+      System.exit(2);
+      return;
+    }
+    // transcripts are handed back through the spool, so don't keep them
+    Job.Registry().setMaxFinished(0);
+
+    final Worker worker = new Worker(
+      new Spool(new File(spoolDirectory), message -> System.err.println(message)),
+      transcriberPool, name)
+      .start(jobs);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> worker.stop()));
+  } // end of main()
+
+} // end of class Worker
@@ -24,9 +24,11 @@ function listFormats() {
           firstElement = false;
         }
         label.appendChild(radio);
-        const img = document.createElement("img");
-        img.src = `formatter/${format.icon}`;
-        label.appendChild(img);
+        if (format.icon) {
+          const img = document.createElement("img");
+          img.src = `formatter/${format.icon}`;
+          label.appendChild(img);
+        }
         label.appendChild(document.createTextNode(format.name));
       }
     } else {
@@ -105,44 +107,45 @@ function selectFile() {
 }
 
 let monitorTimer = null;
+let monitorSource = null;
 function monitorJob() {
   // show upload progress
   document.getElementById("jobProgress").style.display = "";
-  const jobProgress = document.getElementById("jobProgressBar");
-  
+
+  if (window.EventSource) { // the server can push status changes to us
+    monitorSource = new EventSource(`jobprogress/${jobId}`);
+    monitorSource.addEventListener("message", function(e) {
+      console.log("progress " + e.data);
+      if (!showJobStatus(200, e.data)) stopMonitoring();
+    }, false);
+    monitorSource.addEventListener("error", function(e) {
+      // the server may not support streaming, so fall back to polling
+      console.log("progress stream failed, polling instead");
+      stopMonitoring();
+      pollJob();
+    }, false);
+  } else {
+    pollJob();
+  }
+}
+
+function stopMonitoring() {
+  if (monitorSource) {
+    monitorSource.close();
+    monitorSource = null;
+  }
+  window.clearTimeout(monitorTimer);
+}
+
+function pollJob() {
   const request = new XMLHttpRequest();
   request.open("GET", `jobstatus/${jobId}`);
   request.setRequestHeader("Accept", "application/json");
   request.addEventListener("load", function(e) {
     console.log("statusResult " + this.responseText);
-    try {
-      const response = JSON.parse(this.responseText);
-      if (this.status == 200) {
-        jobProgress.value = response.percentComplete;
-        jobProgress.title = `${jobProgress.value}%`;            
-        document.getElementById("jobStatus").innerHTML
-          = (/%/.test(response.message)? // percent progress (e.g. from download of models)
-             `<pre>${response.message}</pre>`: // use <pre> for correct spacing of text 
-             `<p>${response.message}</p>`); // just a message so no particular formatting
-        
-        if (response.running) {
-          document.getElementById("jobRunning").style.display = "";
-          // check back in a second
-          monitorTimer = window.setTimeout(monitorJob, 1000);
-        } else {
-          document.getElementById("jobRunning").style.display = "none";
-          document.getElementById("jobStatus").innerHTML = `<p>Transcription finished.</p>`;
-          downloadTranscript();
-        }
-      } else {
-        document.getElementById("jobRunning").style.display = "none";
-        document.getElementById("jobStatus").innerHTML
-          = `<p class="error">${response.message}</p>`;
-      }
-    } catch (x) {
-      document.getElementById("jobRunning").style.display = "none";
-      document.getElementById("jobStatus").innerHTML
-        = `<p class="error">Status: ${this.status}</p>${this.responseText}`;
+    if (showJobStatus(this.status, this.responseText)) {
+      // check back in a second
+      monitorTimer = window.setTimeout(pollJob, 1000);
     }
   }, false);
   request.addEventListener("error", function(e) {
@@ -154,6 +157,40 @@ function monitorJob() {
   request.send();
 }
 
+// returns true if the job is still running
+function showJobStatus(status, responseText) {
+  const jobProgress = document.getElementById("jobProgressBar");
+  try {
+    const response = JSON.parse(responseText);
+    if (status == 200) {
+      jobProgress.value = response.percentComplete;
+      jobProgress.title = `${jobProgress.value}%`;            
+      document.getElementById("jobStatus").innerHTML
+        = (/%/.test(response.message)? // percent progress (e.g. from download of models)
+           `<pre>${response.message}</pre>`: // use <pre> for correct spacing of text 
+           `<p>${response.message}</p>`); // just a message so no particular formatting
+      
+      if (response.running) {
+        document.getElementById("jobRunning").style.display = "";
+        return true;
+      } else {
+        document.getElementById("jobRunning").style.display = "none";
+        document.getElementById("jobStatus").innerHTML = `<p>Transcription finished.</p>`;
+        downloadTranscript();
+      }
+    } else {
+      document.getElementById("jobRunning").style.display = "none";
+      document.getElementById("jobStatus").innerHTML
+        = `<p class="error">${response.message}</p>`;
+    }
+  } catch (x) {
+    document.getElementById("jobRunning").style.display = "none";
+    document.getElementById("jobStatus").innerHTML
+      = `<p class="error">Status: ${status}</p>${responseText}`;
+  }
+  return false;
+}
+
 function downloadTranscript() {
   // reset file chooser
   document.getElementById("fileChooser").style.display = "";
@@ -194,11 +231,12 @@ function notify() {
       if (this.status == 200) {
         try {
           const response = JSON.parse(this.responseText);
+          const jobProgress = document.getElementById("jobProgressBar");
           jobProgress.value = response.percentComplete;
           jobProgress.title = `${jobProgress.value}%`;
 
           // stop monitoring job
-          window.clearTimeout(monitorTimer);
+          stopMonitoring();
 
           // notify the user
           document.getElementById("jobStatus").innerHTML
@@ -0,0 +1,228 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Tests {@link EmailOutbox} against a stub SMTP server.
+ */
+public class TestEmailOutbox {
+
+  /** How long to wait before the first retry. */
+  static final long RETRY_MILLIS = 300;
+
+  StubServer server;
+  EmailOutbox outbox;
+
+  @Before public void startServer() throws Exception {
+    server = new StubServer();
+    outbox = new EmailOutbox(
+      EmailOutbox.SessionProperties("127.0.0.1", server.getPort(), null, null), null, null,
+      message -> System.err.println(message))
+      .setRetryMillis(RETRY_MILLIS).setMaxAttempts(4);
+  }
+
+  @After public void stopServer() throws Exception {
+    outbox.shutdown();
+    server.close();
+  }
+
+  /** Messages queued together are sent over one connection. */
+  @Test(timeout=30000) public void connectionReuse() throws Exception {
+    for (int m = 1; m <= 3; m++) outbox.send(message("Message " + m, "someone@localhost"));
+    outbox.start();
+    waitUntil(() -> outbox.getSentCount() == 3);
+    assertEquals("Messages delivered", 3, server.delivered.get());
+    assertEquals("One connection for all messages", 1, server.connections.get());
+    assertEquals("No failures", 0, outbox.getFailedCount());
+  }
+
+  /** Transient rejections (e.g. greylisting) are retried, waiting longer each time. */
+  @Test(timeout=30000) public void transientRejectionIsRetried() throws Exception {
+    server.rcptReply = attempt -> attempt <= 2? "451 4.7.1 Greylisted, try again later"
+      : "250 OK";
+    outbox.send(message("Greylisted", "someone@localhost"));
+    outbox.start();
+    waitUntil(() -> outbox.getSentCount() == 1);
+    assertEquals("Delivered on the third attempt", 3, server.rcptTimes.size());
+    assertEquals("Message delivered", 1, server.delivered.get());
+    long firstDelay = server.rcptTimes.get(1) - server.rcptTimes.get(0);
+    long secondDelay = server.rcptTimes.get(2) - server.rcptTimes.get(1);
+    assertTrue("First retry waits: " + firstDelay, firstDelay >= RETRY_MILLIS - 50);
+    assertTrue("Second retry waits twice as long: " + secondDelay,
+               secondDelay >= 2 * RETRY_MILLIS - 50);
+    assertEquals("No failures", 0, outbox.getFailedCount());
+  }
+
+  /** Messages are given up on after the maximum number of transient rejections. */
+  @Test(timeout=30000) public void givesUpAfterMaxAttempts() throws Exception {
+    outbox.setMaxAttempts(2);
+    server.rcptReply = attempt -> "450 4.2.0 Mailbox busy";
+    outbox.send(message("Busy", "someone@localhost"));
+    outbox.start();
+    waitUntil(() -> outbox.getFailedCount() == 1);
+    assertEquals("Tried twice", 2, server.rcptTimes.size());
+    assertEquals("Not delivered", 0, server.delivered.get());
+  }
+
+  /** Permanent rejections are not retried. */
+  @Test(timeout=30000) public void permanentRejectionIsNotRetried() throws Exception {
+    server.rcptReply = attempt -> "550 5.1.1 No such user";
+    outbox.send(message("Bad address", "nobody@localhost"));
+    outbox.start();
+    waitUntil(() -> outbox.getFailedCount() == 1);
+    Thread.sleep(RETRY_MILLIS * 2);
+    assertEquals("Tried once", 1, server.rcptTimes.size());
+    assertEquals("Not delivered", 0, server.delivered.get());
+  }
+
+  /** A message that can't even be prepared doesn't stop later messages being sent. */
+  @Test(timeout=30000) public void runtimeExceptionDoesNotStopOutbox() throws Exception {
+    outbox.start();
+    outbox.send(new MimeMessage(message("Broken", "someone@localhost")) {
+        @Override public void saveChanges() {
+          throw new IllegalStateException("broken message");
+        }
+      });
+    waitUntil(() -> outbox.getFailedCount() == 1);
+    outbox.send(message("After", "someone@localhost"));
+    waitUntil(() -> outbox.getSentCount() == 1);
+    assertEquals("Later message delivered", 1, server.delivered.get());
+  }
+
+  /**
+   * Creates a message.
+   * @param subject
+   * @param to
+   * @return The message.
+   */
+  MimeMessage message(String subject, String to) throws MessagingException {
+    MimeMessage message = new MimeMessage(outbox.getSession());
+    message.setFrom(new InternetAddress("webscribe@localhost"));
+    message.setRecipient(Message.RecipientType.TO, new InternetAddress(to));
+    message.setSubject(subject);
+    message.setText("Test message: " + subject);
+    return message;
+  }
+
+  /**
+   * Waits until the given condition is true.
+   * @param condition
+   */
+  void waitUntil(BooleanSupplier condition) throws InterruptedException {
+    while (!condition.getAsBoolean()) Thread.sleep(20);
+  }
+
+  /**
+   * A minimal SMTP server, which accepts messages and discards them, replying to
+   * <tt>RCPT TO</tt> as {@link #rcptReply} says.
+   */
+  static class StubServer {
+    ServerSocket socket;
+    AtomicInteger connections = new AtomicInteger(0);
+    AtomicInteger delivered = new AtomicInteger(0);
+    /** When each RCPT TO command was received. */
+    Vector<Long> rcptTimes = new Vector<Long>();
+    /** The reply to the nth RCPT TO command (counting from 1). */
+    volatile IntFunction<String> rcptReply = attempt -> "250 OK";
+
+    StubServer() throws IOException {
+      socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      Thread acceptor = new Thread(() -> {
+          while (!socket.isClosed()) {
+            try {
+              final Socket connection = socket.accept();
+              connections.incrementAndGet();
+              Thread session = new Thread(() -> converse(connection));
+              session.setDaemon(true);
+              session.start();
+            } catch (IOException x) { // closed
+            }
+          } // next connection
+        });
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    int getPort() {
+      return socket.getLocalPort();
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+
+    void converse(Socket connection) {
+      try {
+        BufferedReader in = new BufferedReader(
+          new InputStreamReader(connection.getInputStream(), "US-ASCII"));
+        OutputStream out = connection.getOutputStream();
+        reply(out, "220 stub ESMTP");
+        String line;
+        while ((line = in.readLine()) != null) {
+          String command = line.toUpperCase();
+          if (command.startsWith("EHLO") || command.startsWith("HELO")) {
+            reply(out, "250 stub");
+          } else if (command.startsWith("RCPT")) {
+            rcptTimes.add(System.currentTimeMillis());
+            reply(out, rcptReply.apply(rcptTimes.size()));
+          } else if (command.startsWith("DATA")) {
+            reply(out, "354 Go ahead");
+            while ((line = in.readLine()) != null && !line.equals(".")) ;
+            delivered.incrementAndGet();
+            reply(out, "250 OK");
+          } else if (command.startsWith("QUIT")) {
+            reply(out, "221 Bye");
+            break;
+          } else { // MAIL, RSET, NOOP
+            reply(out, "250 OK");
+          }
+        } // next command
+        connection.close();
+      } catch (IOException x) {
+      }
+    }
+
+    void reply(OutputStream out, String line) throws IOException {
+      out.write((line + "\r\n").getBytes("US-ASCII"));
+      out.flush();
+    }
+  } // end of class StubServer
+}
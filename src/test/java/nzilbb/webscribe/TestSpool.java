@@ -0,0 +1,269 @@
+//
+// Copyright 2023 New Zealand Institute of Language, Brain and Behaviour,
+// University of Canterbury
+// Written by Robert Fromont - robert.fromont@canterbury.ac.nz
+//
+//    This file is part of webscribe.
+//
+//    This is free software; you can redistribute it and/or modify
+//    it under the terms of the GNU General Public License as published by
+//    the Free Software Foundation; either version 2 of the License, or
+//    (at your option) any later version.
+//
+//    This software is distributed in the hope that it will be useful,
+//    but WITHOUT ANY WARRANTY; without even the implied warranty of
+//    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//    GNU General Public License for more details.
+//
+//    You should have received a copy of the GNU General Public License
+//    along with this software; if not, write to the Free Software
+//    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+//
+package nzilbb.webscribe;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Vector;
+import nzilbb.util.IO;
+
+/**
+ * Tests {@link Spool} with several worker processes sharing one spool directory.
+ * <p> Each worker is a separate JVM running {@link Claimant}, which uses the spool the
+ * way {@link Worker} does, but without a transcriber.
+ */
+public class TestSpool {
+
+  /** How long a claim's heartbeat can stop before the job is returned to the queue. */
+  static final long STALE_MILLIS = 1000;
+
+  /** How often the spool is checked. */
+  static final long POLL_MILLIS = 100;
+
+  File dir;
+  Spool spool;
+  Vector<Process> processes = new Vector<Process>();
+
+  @Before public void createSpool() throws Exception {
+    dir = Files.createTempDirectory("TestSpool").toFile();
+    spool = new Spool(new File(dir, "spool"), message -> System.err.println(message))
+      .setStaleMillis(STALE_MILLIS).setPollMillis(POLL_MILLIS);
+  }
+
+  @After public void deleteSpool() {
+    for (Process process : processes) process.destroyForcibly();
+    IO.RecursivelyDelete(dir);
+  }
+
+  /** A job that's been returned to the queue can't be touched by its old worker. */
+  @Test(timeout=60000) public void staleWorkerComesBack() throws Exception {
+    Job job = submit(1);
+
+    Process stale = start("stale", "stale");
+    waitFor("stale-claimed");
+    Process fresh = start("fresh", "fresh");
+
+    // the stale worker doesn't touch the heartbeat, so the job's returned to the queue,
+    // and claimed by the fresh worker, which only finishes once the stale worker's done
+    try {
+      spool.await(job, status -> {}, percent -> {});
+      fail("Claimant reports its outcome as an error");
+    } catch (Exception x) {
+      assertEquals("Outcome is from the fresh worker",
+                   "transcribed by fresh", x.getMessage());
+    }
+    assertEquals("Stale worker couldn't use its claim", 0, stale.waitFor());
+    assertEquals("Fresh worker's claim was untouched", 0, fresh.waitFor());
+    assertSpoolEmpty();
+  }
+
+  /** A killed worker's job is transcribed by another worker. */
+  @Test(timeout=60000) public void killedWorker() throws Exception {
+    Job job = submit(1);
+
+    Process killed = start("killed", "stale");
+    waitFor("killed-claimed");
+    killed.destroyForcibly().waitFor();
+    createMarker("stale-done"); // so that the next worker doesn't wait for it
+    start("fresh", "fresh");
+
+    try {
+      spool.await(job, status -> {}, percent -> {});
+      fail("Claimant reports its outcome as an error");
+    } catch (Exception x) {
+      assertEquals("transcribed by fresh", x.getMessage());
+    }
+    assertSpoolEmpty();
+  }
+
+  /** Jobs are shared between workers, and each is transcribed exactly once. */
+  @Test(timeout=60000) public void eachJobClaimedOnce() throws Exception {
+    int jobCount = 20;
+    Vector<Job> jobs = new Vector<Job>();
+    for (int id = 1; id <= jobCount; id++) jobs.add(submit(id));
+    Process[] workers = {
+      start("w1", "drain"), start("w2", "drain"), start("w3", "drain") };
+
+    for (Job job : jobs) {
+      try {
+        spool.await(job, status -> {}, percent -> {});
+        fail("Claimant reports its outcome as an error");
+      } catch (Exception x) {
+        assertTrue("Job " + job.getId() + " transcribed: " + x.getMessage(),
+                   x.getMessage().startsWith("transcribed by w"));
+      }
+    } // next job
+    int total = 0;
+    for (Process worker : workers) {
+      int count = worker.waitFor();
+      total += count;
+    }
+    assertEquals("Each job claimed exactly once", jobCount, total);
+    assertSpoolEmpty();
+  }
+
+  /**
+   * Submits a job to the spool.
+   * @param id The job's ID.
+   * @return The job.
+   */
+  Job submit(long id) throws Exception {
+    File wav = new File(dir, "job" + id + ".wav");
+    Files.write(wav.toPath(), new byte[1024]);
+    Job job = new Job(id).setWav(wav);
+    spool.submit(job);
+    return job;
+  }
+
+  /**
+   * Starts a worker process.
+   * @param name The worker's name.
+   * @param role What the worker does; see {@link Claimant}.
+   * @return The process.
+   */
+  Process start(String name, String role) throws Exception {
+    Process process = new ProcessBuilder(
+      new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+      "-cp", System.getProperty("java.class.path"),
+      Claimant.class.getName(), dir.getPath(), name, role)
+      .inheritIO().start();
+    processes.add(process);
+    return process;
+  }
+
+  /**
+   * Waits for a marker file to be created by a worker process.
+   * @param name The name of the marker.
+   */
+  void waitFor(String name) throws Exception {
+    while (!new File(dir, name).exists()) Thread.sleep(POLL_MILLIS / 2);
+  }
+
+  /**
+   * Creates a marker file.
+   * @param name The name of the marker.
+   */
+  void createMarker(String name) throws Exception {
+    new File(dir, name).createNewFile();
+  }
+
+  /** Checks that nothing is left in the spool once all the jobs are collected. */
+  void assertSpoolEmpty() {
+    for (String sub : new String[] { "incoming", "queue", "claimed", "done" }) {
+      assertEquals(sub + " is empty", 0, new File(new File(dir, "spool"), sub).list().length);
+    }
+  }
+
+  /**
+   * A worker process. Its arguments are the test directory, the worker's name, and its
+   * role, which is one of:
+   * <dl>
+   *  <dt>stale</dt> <dd>Claims a job and stops touching its heartbeat until the job's been
+   *   claimed by the fresh worker, then tries to use its claim. Exits with 0 if every
+   *   attempt is refused.</dd>
+   *  <dt>fresh</dt> <dd>Claims a job, touches its heartbeat until the stale worker is
+   *   done, then completes it. Exits with 0 if its claim was untouched.</dd>
+   *  <dt>drain</dt> <dd>Claims and completes jobs until none have been waiting for a
+   *   while. Exits with the number of jobs completed.</dd>
+   * </dl>
+   * Outcomes are reported as errors, <q>transcribed by <var>name</var></q>, as
+   * there's no transcriber to produce a transcript.
+   */
+  public static class Claimant {
+    public static void main(String argv[]) throws Exception {
+      File dir = new File(argv[0]);
+      String name = argv[1];
+      String role = argv[2];
+      Spool spool = new Spool(new File(dir, "spool"), message -> System.err.println(message))
+        .setStaleMillis(STALE_MILLIS).setPollMillis(POLL_MILLIS);
+      if (role.equals("drain")) {
+        int count = 0;
+        long lastClaim = System.currentTimeMillis();
+        while (System.currentTimeMillis() - lastClaim < STALE_MILLIS * 2) {
+          File claim = spool.claim(name);
+          if (claim == null) {
+            Thread.sleep(POLL_MILLIS / 10);
+          } else {
+            lastClaim = System.currentTimeMillis();
+            if (spool.complete(claim, null, "transcribed by " + name)) count++;
+          }
+        } // next claim
+        System.exit(count);
+      }
+
+      File claim = null;
+      while ((claim = spool.claim(name)) == null) Thread.sleep(POLL_MILLIS / 10);
+      File wav = new File(claim, "job1.wav");
+      new File(dir, name + "-claimed").createNewFile();
+      int status = 0;
+      if (role.equals("stale")) {
+        // stop touching the heartbeat until the job's been claimed by someone else
+        while (!new File(dir, "fresh-claimed").exists()) Thread.sleep(POLL_MILLIS / 2);
+        if (spool.heartbeat(claim)) {
+          System.err.println(name + ": heartbeat accepted");
+          status = 1;
+        }
+        try {
+          spool.progress(claim, 50, "stale progress");
+        } catch (Exception x) { // refused
+        }
+        if (wav.exists()) {
+          System.err.println(name + ": recording still in claim");
+          status = 1;
+        }
+        try {
+          if (spool.complete(claim, null, "transcribed by " + name)) {
+            System.err.println(name + ": outcome accepted");
+            status = 1;
+          }
+        } catch (Exception x) { // refused
+        }
+        if (spool.release(claim)) {
+          System.err.println(name + ": release accepted");
+          status = 1;
+        }
+        new File(dir, name + "-done").createNewFile();
+      } else { // fresh
+        while (!new File(dir, "stale-done").exists()) {
+          spool.heartbeat(claim);
+          Thread.sleep(POLL_MILLIS);
+        }
+        if (!wav.exists()) {
+          System.err.println(name + ": recording was deleted");
+          status = 1;
+        }
+        if (new File(claim, "progress.txt").exists()) {
+          System.err.println(name + ": progress written by another worker");
+          status = 1;
+        }
+        if (!spool.complete(claim, null, "transcribed by " + name)) {
+          System.err.println(name + ": outcome refused");
+          status = 1;
+        }
+      }
+      System.exit(status);
+    }
+  } // end of class Claimant
+}